@@ -1,5 +1,5 @@
 use clap::{Parser, Subcommand};
-use code_context_graph_core::{Config, Result, SnapshotMeta, FileEntry};
+use code_context_graph_core::{Config, Hash, Result, SnapshotMeta, FileEntry, Symbol};
 use std::path::{Path, PathBuf};
 use tracing::{info, Level};
 use tracing_subscriber::util::SubscriberInitExt;
@@ -12,8 +12,14 @@ use std::io;
 use code_context_graph_storage::merkle::MerkleBuilder;
 use std::fs;
 use serde_json;
-use code_context_graph_parser::language::{LanguageDetector, ParserRegistry};
-use code_context_graph_graph::{GraphBuilder, GraphClient, GraphExecutor};
+use code_context_graph_parser::language::{LanguageDetector, ParseJob, ParseOptions, ParseOutcome, ParserRegistry};
+use code_context_graph_parser::cache::DiskParseCache;
+use code_context_graph_parser::ast::{lexical_outline_reader, BudgetExceeded};
+use std::sync::Arc;
+use code_context_graph_graph::{
+    AsyncGraphClient, BlockingExecutor, EntityLabel, FailureReport, GraphBuilder, GraphExecutor, GraphRows,
+    PoolConfig, WriteBehind, WriteBehindConfig, WriteBehindStats,
+};
 use code_context_graph_viz::mermaid::ClassDiagramExporter;
 use std::env;
 use serde::Deserialize;
@@ -58,10 +64,16 @@ fn load_config_with_defaults(path: &PathBuf) -> Result<Config> {
     if let Some(parser) = partial.parser {
         if let Some(max_kb) = parser.max_file_size_kb { cfg.parser.max_file_size_kb = max_kb; }
         if let Some(ign) = parser.ignore_patterns { cfg.parser.ignore_patterns = ign; }
+        if let Some(ms) = parser.parse_timeout_ms { cfg.parser.parse_timeout_ms = ms; }
+        if let Some(stream) = parser.stream_large_files { cfg.parser.stream_large_files = stream; }
     }
     if let Some(falkor) = partial.falkordb {
         if let Some(url) = falkor.url { cfg.falkordb.url = url; }
         if let Some(gn) = falkor.graph_name { cfg.falkordb.graph_name = gn; }
+        if let Some(bs) = falkor.batch_size { cfg.falkordb.batch_size = bs; }
+        if let Some(ps) = falkor.pool_size { cfg.falkordb.pool_size = ps; }
+        if let Some(n) = falkor.max_in_flight { cfg.falkordb.max_in_flight = n; }
+        if let Some(required) = falkor.required { cfg.falkordb.required = required; }
     }
     if let Some(cas) = partial.cas {
         if let Some(enabled) = cas.enabled { cfg.cas.enabled = enabled; }
@@ -137,9 +149,9 @@ struct PartialConfig {
 #[derive(Debug, Deserialize)]
 struct PartialEngine { name: Option<String>, languages: Option<Vec<String>> }
 #[derive(Debug, Deserialize)]
-struct PartialParser { max_file_size_kb: Option<usize>, ignore_patterns: Option<Vec<String>> }
+struct PartialParser { max_file_size_kb: Option<usize>, ignore_patterns: Option<Vec<String>>, parse_timeout_ms: Option<u64>, stream_large_files: Option<bool> }
 #[derive(Debug, Deserialize)]
-struct PartialFalkor { url: Option<String>, graph_name: Option<String> }
+struct PartialFalkor { url: Option<String>, graph_name: Option<String>, batch_size: Option<usize>, pool_size: Option<usize>, max_in_flight: Option<usize>, required: Option<bool> }
 #[derive(Debug, Deserialize)]
 struct PartialCas { enabled: Option<bool>, storage_path: Option<PathBuf>, hash_algorithm: Option<String>, compression: Option<String>, dedup_threshold: Option<f32> }
 #[derive(Debug, Deserialize)]
@@ -405,8 +417,20 @@ async fn analyze_command(config: Config, path: PathBuf, languages: Option<Vec<St
     let cas = CasStore::new(code_context_graph_storage::cas::CasConfig { root: cas_root.clone() })
         .map_err(|e| io::Error::new(io::ErrorKind::Other, e.to_string()))?;
     let mut builder = MerkleBuilder::new();
-    // Initialize parser registry and graph components
-    let parser_registry = ParserRegistry::new();
+    // Initialize parser registry and graph components. Parsed ASTs are cached
+    // next to the CAS so unchanged files are not reparsed on the next run.
+    let parser_registry = Arc::new(match DiskParseCache::in_workspace(&ws_dir) {
+        Ok(cache) => ParserRegistry::new().with_disk_cache(Arc::new(cache)),
+        Err(e) => {
+            tracing::debug!("Parse cache disabled: {}", e);
+            ParserRegistry::new()
+        }
+    });
+    // The graph only needs declarations and imports, so bodies are not converted
+    let mut parse_options = ParseOptions::outline();
+    if config.parser.parse_timeout_ms > 0 {
+        parse_options = parse_options.with_timeout(std::time::Duration::from_millis(config.parser.parse_timeout_ms));
+    }
     let graph_builder = GraphBuilder::new(&config.falkordb.graph_name);
     // Test hook: if CCG_GRAPH_TEST_RECORD is set, write queries to that file instead of connecting to Redis
     struct FileExec { path: PathBuf }
@@ -414,22 +438,57 @@ async fn analyze_command(config: Config, path: PathBuf, languages: Option<Vec<St
         fn query(&self, _graph: &str, cypher: &str) -> anyhow::Result<redis::Value> {
             use std::io::Write;
             let mut f = fs::OpenOptions::new().create(true).append(true).open(&self.path)?;
-            writeln!(f, "{}", cypher)?;
+            // One write per line so concurrent batches don't interleave
+            f.write_all(format!("{}\n", cypher).as_bytes())?;
             Ok(redis::Value::Okay)
         }
     }
+    // Writes run in the background, at most max_in_flight batches at a time
     let graph_client = if let Ok(p) = env::var("CCG_GRAPH_TEST_RECORD") {
-        GraphClient::with_executor(&config.falkordb.graph_name, Box::new(FileExec { path: PathBuf::from(p) }))
+        let exec = BlockingExecutor::new(FileExec { path: PathBuf::from(p) });
+        AsyncGraphClient::new(&config.falkordb.graph_name, Arc::new(exec), config.falkordb.max_in_flight)
     } else {
-        GraphClient::new_with_redis(&config.falkordb.url, &config.falkordb.graph_name)
+        let pool = PoolConfig { max_size: config.falkordb.pool_size, ..PoolConfig::default() };
+        AsyncGraphClient::new_with_redis_pool(&config.falkordb.url, &config.falkordb.graph_name, pool, config.falkordb.max_in_flight)
             .map_err(|e| io::Error::new(io::ErrorKind::Other, e.to_string()))?
-    };
+    }.with_batch_size(config.falkordb.batch_size);
+    // Failed batches are kept on disk instead of being dropped
+    let failure_log = ws_dir.join("graph_failures.jsonl");
+    let graph_client = graph_client.with_failure_report(FailureReport::new(&failure_log));
+    // Mutations are buffered, coalesced and written behind the walk
+    let graph_writer = WriteBehind::new(graph_client, WriteBehindConfig::default());
+    // Failed writes are a warning, or fail the command once the snapshot is
+    // saved when the graph is required
+    fn report_graph_writes(result: anyhow::Result<WriteBehindStats>, failure_log: &Path, required: bool) -> io::Result<()> {
+        match result {
+            Ok(stats) => {
+                tracing::debug!(
+                    "graph writes: {} rows received, {} coalesced, {} flushes",
+                    stats.rows_received, stats.rows_coalesced, stats.flushes
+                );
+                if let Some(pool) = stats.pool {
+                    tracing::debug!(
+                        "graph writes: {} commands in {} round-trips (max depth {}), {:?} mean latency, {} connections opened, {} reconnects",
+                        pool.commands, pool.pipelines, pool.max_pipeline_depth, pool.mean_command_latency(),
+                        pool.connections_opened, pool.reconnects
+                    );
+                }
+                Ok(())
+            }
+            Err(e) => {
+                let message = format!("Graph writes failed: {}; failed batches are recorded in {}", e, failure_log.display());
+                if required {
+                    return Err(io::Error::new(io::ErrorKind::Other, message));
+                }
+                eprintln!("Warning: {}", message);
+                Ok(())
+            }
+        }
+    }
 
     // Very simple fallback when language-specific parser is unavailable: extract
-    // function names and import modules with string scanning to build minimal queries.
-    fn basic_queries_from_source(src: &str, file_path: &str) -> Vec<String> {
-        let mut q = Vec::new();
-        q.push(format!("MERGE (f:File {{ path: '{}' }})", file_path.replace('\\', "/")));
+    // function names and import modules with string scanning to build minimal rows.
+    fn basic_rows_from_source(src: &str, file_path: &str, rows: &mut GraphRows) {
         // functions: look for "def name("
         let mut i = 0usize;
         let bytes = src.as_bytes();
@@ -443,8 +502,7 @@ async fn analyze_command(config: Config, path: PathBuf, languages: Option<Vec<St
                 name.push(ch);
             }
             if !name.is_empty() {
-                q.push(format!("MERGE (fn:Function {{ name: '{}' }})", name.replace("'", "\\'")));
-                q.push("MERGE (f)-[:CONTAINS]->(fn)".to_string());
+                rows.add_entity(file_path, EntityLabel::Function, &name);
             }
             i = start;
         }
@@ -454,18 +512,15 @@ async fn analyze_command(config: Config, path: PathBuf, languages: Option<Vec<St
             if let Some(rest) = l.strip_prefix("import ") {
                 let mod_name = rest.split(|c: char| c.is_whitespace() || c == ',' ).next().unwrap_or("");
                 if !mod_name.is_empty() {
-                    q.push(format!("MERGE (m:Module {{ name: '{}' }})", mod_name.replace("'", "\\'")));
-                    q.push("MERGE (f)-[:IMPORTS]->(m)".to_string());
+                    rows.add_entity(file_path, EntityLabel::Module, mod_name);
                 }
             } else if let Some(rest) = l.strip_prefix("from ") {
                 let mod_name = rest.split_whitespace().next().unwrap_or("");
                 if !mod_name.is_empty() {
-                    q.push(format!("MERGE (m:Module {{ name: '{}' }})", mod_name.replace("'", "\\'")));
-                    q.push("MERGE (f)-[:IMPORTS]->(m)".to_string());
+                    rows.add_entity(file_path, EntityLabel::Module, mod_name);
                 }
             }
         }
-        q
     }
 
     if path.is_file() {
@@ -475,38 +530,40 @@ async fn analyze_command(config: Config, path: PathBuf, languages: Option<Vec<St
                 let mut files_indexed: usize = 0;
                 let mut total_bytes: u64 = 0;
                 let mut files_meta: Vec<FileEntry> = Vec::new();
+                let mut graph_writes = Ok(());
                 total_bytes += bytes.len() as u64;
                 files_indexed += 1;
                 builder.add(path_to_unix(&path), &bytes);
                 // Parse and persist to graph (with fallback)
                 let lang = LanguageDetector::detect_from_path(&path);
                 if let Ok(src) = std::str::from_utf8(&bytes) {
+                    let rel_str = path_to_unix(&path);
+                    let mut rows = GraphRows::new();
                     let mut persisted = false;
                     if parser_registry.supports_language(&lang) {
-                        match parser_registry.parse(src, lang) {
+                        match parser_registry.parse_with_options(src, lang, &parse_options) {
                             Ok(ast) => {
-                                let mut queries = graph_builder.build_queries(&ast, &path_to_unix(&path));
-                                let has_fn = queries.iter().any(|q| q.contains("(fn:Function"));
-                                let has_mod = queries.iter().any(|q| q.contains("(m:Module"));
-                                if !has_fn || !has_mod {
-                                    let fb = basic_queries_from_source(src, &path_to_unix(&path));
-                                    // Simpler: extend all fallback queries; MERGE is idempotent and the file alias is consistent
-                                    queries.extend(fb);
+                                graph_builder.build_rows(&ast, &rel_str, &mut rows);
+                                if !rows.has_entity(&rel_str, EntityLabel::Function) || !rows.has_entity(&rel_str, EntityLabel::Module) {
+                                    // Simpler: add all fallback rows; MERGE is idempotent
+                                    basic_rows_from_source(src, &rel_str, &mut rows);
                                 }
-                                let _ = graph_client.persist_queries(&queries);
                                 persisted = true;
                             }
                             Err(_) => { /* fall through to fallback */ }
                         }
                     }
                     if !persisted {
-                        let queries = basic_queries_from_source(src, &path_to_unix(&path));
-                        let _ = graph_client.persist_queries(&queries);
+                        rows.add_file(&rel_str);
+                        basic_rows_from_source(src, &rel_str, &mut rows);
                     }
+                    graph_writer.push(rows).await
+                        .map_err(|e| io::Error::new(io::ErrorKind::Other, e.to_string()))?;
+                    graph_writes = report_graph_writes(graph_writer.finish().await, &failure_log, config.falkordb.required);
                 }
                 // Store into CAS
                 match cas.put_bytes(&bytes) {
-                    Ok(h) => files_meta.push(FileEntry { path: path_to_unix(&path), hash: h }),
+                    Ok(h) => files_meta.push(FileEntry { path: Symbol::intern(&path_to_unix(&path)), hash: h }),
                     Err(_) => {}
                 }
                 let merkle = builder.build();
@@ -521,6 +578,7 @@ async fn analyze_command(config: Config, path: PathBuf, languages: Option<Vec<St
                 if let Ok(json) = serde_json::to_string_pretty(&meta) {
                     let _ = fs::write(meta_path, json);
                 }
+                graph_writes?;
                 println!("✅ Initialized storage workspace");
                 return Ok(())
             }
@@ -534,6 +592,55 @@ async fn analyze_command(config: Config, path: PathBuf, languages: Option<Vec<St
     let max_size_bytes: u64 = (config.parser.max_file_size_kb as u64) * 1024;
     let lang_allow: Option<Vec<String>> = languages.or_else(|| Some(config.engine.languages.clone()));
 
+    // Files are parsed in parallel batches, then persisted and stored in walk order
+    const PARSE_BATCH_SIZE: usize = 256;
+    let mut pending: Vec<(String, PathBuf, Vec<u8>)> = Vec::new();
+    let mut streamed: Vec<(String, PathBuf, String)> = Vec::new();
+    let mut in_flight = None;
+    // Parsing is CPU-bound rayon work, so it runs on the blocking pool while
+    // the previous batch is written
+    let parse_batch = |pending: Vec<(String, PathBuf, Vec<u8>)>| {
+        let registry = Arc::clone(&parser_registry);
+        let options = parse_options.clone();
+        tokio::task::spawn_blocking(move || {
+            let jobs = pending.iter().map(|(_, p, bytes)| {
+                ParseJob::new(p.as_path(), bytes.as_slice(), LanguageDetector::detect_from_path(p))
+            });
+            let outcomes = registry.parse_many_with_options(jobs, &options);
+            (pending, outcomes)
+        })
+    };
+    let mut batch_rows = |(pending, outcomes): (Vec<(String, PathBuf, Vec<u8>)>, Vec<ParseOutcome>)| -> GraphRows {
+        // Rows for the whole batch go out together in bulk
+        let mut rows = GraphRows::new();
+        let mut file_rows = GraphRows::new();
+        for ((rel_str, _, bytes), outcome) in pending.into_iter().zip(outcomes) {
+            // Parse into graph rows
+            if let Ok(src) = std::str::from_utf8(&bytes) {
+                match outcome.result {
+                    Ok(ast) => {
+                        graph_builder.build_rows(&ast, &rel_str, &mut file_rows);
+                        if !file_rows.has_entity(&rel_str, EntityLabel::Function) || !file_rows.has_entity(&rel_str, EntityLabel::Module) {
+                            basic_rows_from_source(src, &rel_str, &mut file_rows);
+                        }
+                    }
+                    // Unsupported language or parse failure
+                    Err(_) => {
+                        file_rows.add_file(&rel_str);
+                        basic_rows_from_source(src, &rel_str, &mut file_rows);
+                    }
+                }
+                rows.append(&mut file_rows);
+            }
+            // Store into CAS and record file entry
+            match cas.put_bytes(&bytes) {
+                Ok(h) => files_meta.push(FileEntry { path: Symbol::intern(&rel_str), hash: h }),
+                Err(_) => {}
+            }
+        }
+        rows
+    };
+
     // Simple stack-based DFS to avoid extra deps
     let mut stack: Vec<PathBuf> = vec![path.clone()];
     while let Some(dir) = stack.pop() {
@@ -558,63 +665,53 @@ async fn analyze_command(config: Config, path: PathBuf, languages: Option<Vec<St
                 continue;
             }
             if md.is_file() {
-                // Skip files exceeding max size limit
-                if md.len() > max_size_bytes { continue; }
+                // Ignore files by pattern (e.g., *.min.js)
+                if let Some(name) = p.file_name().and_then(|s| s.to_str()) {
+                    if should_ignore_name(name, &ignore_patterns) { continue; }
+                }
+                // Filter by allowed languages/extensions if provided
+                if let Some(ref allow) = lang_allow {
+                    if let Some(ext) = p.extension().and_then(|s| s.to_str()) {
+                        if !is_allowed_extension(ext, allow) { continue; }
+                    } else {
+                        continue;
+                    }
+                }
+                // Relative path (unix separators)
+                let rel_str = if let Ok(rel) = p.strip_prefix(&path) {
+                    path_to_unix(rel)
+                } else {
+                    // Fallback for cases like path "." where DirEntry gives absolute paths
+                    path_to_unix(&p)
+                };
+                // Files exceeding max size are skipped, or streamed when enabled
+                if md.len() > max_size_bytes {
+                    if !config.parser.stream_large_files { continue; }
+                    // Hash while copying into the CAS; the file is never read whole
+                    let Ok(hash) = cas.put_file(&p) else { continue };
+                    total_bytes += md.len();
+                    files_indexed += 1;
+                    builder.add_hash(rel_str.clone(), hash.clone());
+                    streamed.push((rel_str, p, hash));
+                    continue;
+                }
                 // Read file bytes
                 match fs::read(&p) {
                     Ok(bytes) => {
-                        // Ignore files by pattern (e.g., *.min.js)
-                        if let Some(name) = p.file_name().and_then(|s| s.to_str()) {
-                            if should_ignore_name(name, &ignore_patterns) { continue; }
-                        }
-                        // Filter by allowed languages/extensions if provided
-                        if let Some(ref allow) = lang_allow {
-                            if let Some(ext) = p.extension().and_then(|s| s.to_str()) {
-                                if !is_allowed_extension(ext, allow) { continue; }
-                            } else {
-                                continue;
-                            }
-                        }
                         total_bytes += bytes.len() as u64;
                         files_indexed += 1;
-                        // Relative path (unix separators)
-                        let rel_str = if let Ok(rel) = p.strip_prefix(&path) {
-                            path_to_unix(rel)
-                        } else {
-                            // Fallback for cases like path "." where DirEntry gives absolute paths
-                            path_to_unix(&p)
-                        };
                         builder.add(rel_str.clone(), &bytes);
-                            // Parse and persist to graph
-                            let lang = LanguageDetector::detect_from_path(&p);
-                            if let Ok(src) = std::str::from_utf8(&bytes) {
-                                let mut persisted = false;
-                                if parser_registry.supports_language(&lang) {
-                                    match parser_registry.parse(src, lang) {
-                                        Ok(ast) => {
-                                            let mut queries = graph_builder.build_queries(&ast, &rel_str);
-                                            let has_fn = queries.iter().any(|q| q.contains("(fn:Function"));
-                                            let has_mod = queries.iter().any(|q| q.contains("(m:Module"));
-                                            if !has_fn || !has_mod {
-                                                let fb = basic_queries_from_source(src, &rel_str);
-                                                queries.extend(fb);
-                                            }
-                                            let _ = graph_client.persist_queries(&queries);
-                                            persisted = true;
-                                        }
-                                        Err(_) => { /* fallthrough */ }
-                                    }
-                                }
-                                if !persisted {
-                                    let queries = basic_queries_from_source(src, &rel_str);
-                                    let _ = graph_client.persist_queries(&queries);
-                                }
-                            }
-                            // Store into CAS and record file entry
-                            match cas.put_bytes(&bytes) {
-                                Ok(h) => files_meta.push(FileEntry { path: rel_str, hash: h }),
-                                Err(_) => {}
+                        pending.push((rel_str, p, bytes));
+                        if pending.len() >= PARSE_BATCH_SIZE {
+                            // The next batch parses while this one is written
+                            let parsing = parse_batch(std::mem::take(&mut pending));
+                            if let Some(parsed) = in_flight.replace(parsing) {
+                                let parsed = parsed.await
+                                    .map_err(|e| io::Error::new(io::ErrorKind::Other, e.to_string()))?;
+                                graph_writer.push(batch_rows(parsed)).await
+                                    .map_err(|e| io::Error::new(io::ErrorKind::Other, e.to_string()))?;
                             }
+                        }
                     },
                     Err(_) => {
                         // skip unreadable file
@@ -623,6 +720,52 @@ async fn analyze_command(config: Config, path: PathBuf, languages: Option<Vec<St
             }
         }
     }
+    let last = parse_batch(std::mem::take(&mut pending));
+    for parsed in in_flight.into_iter().chain(std::iter::once(last)) {
+        let parsed = parsed.await
+            .map_err(|e| io::Error::new(io::ErrorKind::Other, e.to_string()))?;
+        graph_writer.push(batch_rows(parsed)).await
+            .map_err(|e| io::Error::new(io::ErrorKind::Other, e.to_string()))?;
+    }
+    // Large files already live in the CAS; parse them from disk
+    let mut rows = GraphRows::new();
+    let mut file_rows = GraphRows::new();
+    for (rel_str, p, hash) in streamed {
+        let lang = LanguageDetector::detect_from_path(&p);
+        // The CAS copy already hashed the file, so the parser need not
+        file_rows.add_file(&rel_str);
+        let outlined = match parser_registry.parse_file_with_hash(&p, lang, Hash::from_hex(&hash), &parse_options) {
+            Ok(ast) => {
+                graph_builder.build_rows(&ast, &rel_str, &mut file_rows);
+                ast.budget_exceeded == Some(BudgetExceeded::Time)
+            }
+            // Unsupported language or parse failure
+            Err(e) => {
+                tracing::warn!("Failed to parse {}: {}", rel_str, e);
+                false
+            }
+        };
+        // Same fallback as the in-memory path, from a line-by-line outline
+        if !outlined && (!file_rows.has_entity(&rel_str, EntityLabel::Function) || !file_rows.has_entity(&rel_str, EntityLabel::Module)) {
+            if let Ok(outline) = fs::File::open(&p).and_then(|f| lexical_outline_reader(io::BufReader::new(f), lang)) {
+                graph_builder.build_rows(&outline, &rel_str, &mut file_rows);
+            }
+        }
+        rows.append(&mut file_rows);
+        files_meta.push(FileEntry { path: Symbol::intern(&rel_str), hash });
+    }
+    graph_writer.push(rows).await
+        .map_err(|e| io::Error::new(io::ErrorKind::Other, e.to_string()))?;
+    let graph_writes = report_graph_writes(graph_writer.finish().await, &failure_log, config.falkordb.required);
+    for (lang, stats) in parser_registry.throughput_stats() {
+        tracing::debug!(
+            "parsed {} {:?} files ({} bytes, {:.0} B/s per core)",
+            stats.files, lang, stats.bytes, stats.bytes_per_second()
+        );
+        if stats.timeouts > 0 {
+            eprintln!("{} {:?} file(s) exceeded the parse timeout and were outlined lexically", stats.timeouts, lang);
+        }
+    }
 
     let merkle = builder.build();
     println!("Indexed files: {}", files_indexed);
@@ -636,6 +779,7 @@ async fn analyze_command(config: Config, path: PathBuf, languages: Option<Vec<St
     if let Ok(json) = serde_json::to_string_pretty(&meta) {
         let _ = fs::write(meta_path, json);
     }
+    graph_writes?;
     println!("✅ Initialized storage workspace");
     Ok(())
 }
@@ -711,8 +855,8 @@ async fn version_command(config: Config, sub: VersionCommands) -> Result<()> {
             let m1: SnapshotMeta = serde_json::from_str(&s1).unwrap_or(SnapshotMeta::new(from, 0, 0, None));
             let m2: SnapshotMeta = serde_json::from_str(&s2).unwrap_or(SnapshotMeta::new(to, 0, 0, None));
             use std::collections::{HashMap, HashSet};
-            let map1: HashMap<_, _> = m1.files.iter().map(|f| (f.path.clone(), f.hash.clone())).collect();
-            let map2: HashMap<_, _> = m2.files.iter().map(|f| (f.path.clone(), f.hash.clone())).collect();
+            let map1: HashMap<_, _> = m1.files.iter().map(|f| (f.path, f.hash.as_str())).collect();
+            let map2: HashMap<_, _> = m2.files.iter().map(|f| (f.path, f.hash.as_str())).collect();
             let set1: HashSet<_> = map1.keys().cloned().collect();
             let set2: HashSet<_> = map2.keys().cloned().collect();
             let added: Vec<_> = set2.difference(&set1).cloned().collect();
@@ -856,10 +1000,20 @@ async fn serve_command(_config: Config, port: u16) -> Result<()> {
     Ok(())
 }
 
-async fn viz_command(_config: Config, viz: VizCommands) -> Result<()> {
+async fn viz_command(config: Config, viz: VizCommands) -> Result<()> {
     match viz {
         VizCommands::Class { path, out, format, filter_class } => {
-            let registry = ParserRegistry::new();
+            // Reuse the parse cache of an analyzed workspace, without creating one
+            let repo = if path.is_dir() { path.as_path() } else { path.parent().unwrap_or(Path::new(".")) };
+            let ws_dir = resolve_workspace_dir(&config, repo);
+            let registry = match ws_dir.is_dir().then(|| DiskParseCache::in_workspace(&ws_dir)) {
+                Some(Ok(cache)) => ParserRegistry::new().with_disk_cache(Arc::new(cache)),
+                Some(Err(e)) => {
+                    tracing::debug!("Parse cache disabled: {}", e);
+                    ParserRegistry::new()
+                }
+                None => ParserRegistry::new(),
+            };
             // Helper to write output given a mermaid diagram string
             let write_output = |mermaid: String| -> Result<()> {
                 match format.to_lowercase().as_str() {
@@ -891,20 +1045,23 @@ async fn viz_command(_config: Config, viz: VizCommands) -> Result<()> {
 
             if path.is_dir() {
                 // Parse all supported files under directory
-                let mut asts: Vec<code_context_graph_parser::ast::SimplifiedAST> = Vec::new();
+                let mut jobs: Vec<ParseJob> = Vec::new();
                 for entry in walkdir::WalkDir::new(&path).into_iter().filter_map(|e| e.ok()) {
                     let p = entry.path();
                     if p.is_file() {
                         let lang = LanguageDetector::detect_from_path(p);
                         if registry.supports_language(&lang) {
-                            if let Ok(src) = std::fs::read_to_string(p) {
-                                if let Ok(ast) = registry.parse(&src, lang) {
-                                    asts.push(ast);
-                                }
+                            if let Ok(src) = std::fs::read(p) {
+                                jobs.push(ParseJob::new(p.to_path_buf(), src, lang));
                             }
                         }
                     }
                 }
+                let asts: Vec<code_context_graph_parser::ast::SimplifiedAST> = registry
+                    .parse_many(jobs)
+                    .into_iter()
+                    .filter_map(|outcome| outcome.result.ok())
+                    .collect();
                 // Merge: exporter over multiple ASTs
                 let mut mermaid = String::from("classDiagram\n");
                 for ast in &asts {
@@ -923,7 +1080,7 @@ async fn viz_command(_config: Config, viz: VizCommands) -> Result<()> {
                 if !registry.supports_language(&lang) {
                     return Err(code_context_graph_core::CodeGraphError::Parser { message: format!("Unsupported language for {}", path.display()) }.into());
                 }
-                let ast = registry.parse(&source, lang)?;
+                let ast = registry.parse_with_options(&source, lang, &ParseOptions::default())?;
                 let mermaid = ClassDiagramExporter::from_ast_with_filter(&ast, filter_ref);
                 write_output(mermaid)?;
             }
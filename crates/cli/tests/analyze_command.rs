@@ -136,6 +136,7 @@ fn analyze_respects_max_file_size_kb() {
         [parser]
         max_file_size_kb = 1
         ignore_patterns = []
+        stream_large_files = false
         [falkordb]
         url = "redis://localhost:6379"
         graph_name = "code_graph"
@@ -201,6 +202,34 @@ fn analyze_respects_max_file_size_kb() {
         .stdout(predicate::str::contains(&format!("root: {}", expected_root)));    
 }
 
+#[test]
+fn analyze_streams_large_files_by_default() {
+    let tmp = tempfile::tempdir().unwrap();
+    let repo = tmp.path();
+
+    let small = b"print('small')\n".to_vec();
+    let big = b"def big():\n    return 1\n".repeat(100); // over 2KB
+    std::fs::write(repo.join("ok.py"), &small).unwrap();
+    std::fs::write(repo.join("big.py"), &big).unwrap();
+
+    let config_path = repo.join("ccg.toml");
+    std::fs::write(&config_path, "[parser]\nmax_file_size_kb = 1\nignore_patterns = []\n").unwrap();
+
+    // Large files are parsed from disk and indexed like the rest
+    let mut mb = MerkleBuilder::new();
+    mb.add("big.py", &big);
+    mb.add("ok.py", &small);
+    let expected_root = mb.build().root();
+
+    let mut cmd = Command::cargo_bin("ccg").unwrap();
+    cmd.arg("--config").arg(&config_path)
+        .arg("analyze").arg("--path").arg(repo);
+    cmd.assert()
+        .success()
+        .stdout(predicate::str::contains("Indexed files: 2"))
+        .stdout(predicate::str::contains(&format!("root: {}", expected_root)));
+}
+
 #[test]
 fn analyze_respects_config_ignore_and_cas_path() {
     let tmp = tempfile::tempdir().unwrap();
@@ -391,3 +420,40 @@ fn analyze_ingests_files_and_prints_summary() {
         .stdout(predicate::str::contains("Indexed files: 3"))
         .stdout(predicate::str::contains(&format!("root: {}", expected_root)));
 }
+
+#[test]
+fn analyze_warns_when_graph_writes_fail() {
+    let tmp = tempfile::tempdir().unwrap();
+    let repo = tmp.path();
+    std::fs::write(repo.join("main.py"), b"import os\n").unwrap();
+
+    // Nothing listens on port 1
+    let config_path = repo.join("ccg.toml");
+    std::fs::write(&config_path, "[falkordb]\nurl = \"redis://127.0.0.1:1\"\n").unwrap();
+
+    let mut cmd = Command::cargo_bin("ccg").unwrap();
+    cmd.arg("--config").arg(&config_path)
+        .arg("analyze").arg("--path").arg(repo);
+    cmd.assert()
+        .success()
+        .stdout(predicate::str::contains("Indexed files: 1"))
+        .stderr(predicate::str::contains("graph_failures.jsonl"));
+}
+
+#[test]
+fn analyze_fails_when_required_graph_writes_fail() {
+    let tmp = tempfile::tempdir().unwrap();
+    let repo = tmp.path();
+    std::fs::write(repo.join("main.py"), b"import os\n").unwrap();
+
+    let config_path = repo.join("ccg.toml");
+    std::fs::write(&config_path, "[falkordb]\nurl = \"redis://127.0.0.1:1\"\nrequired = true\n").unwrap();
+
+    let mut cmd = Command::cargo_bin("ccg").unwrap();
+    cmd.arg("--config").arg(&config_path)
+        .arg("analyze").arg("--path").arg(repo);
+    cmd.assert()
+        .failure()
+        .stdout(predicate::str::contains("Indexed files: 1"))
+        .stderr(predicate::str::contains("graph_failures.jsonl"));
+}
@@ -55,6 +55,9 @@ fn analyze_persists_basic_function_and_imports_to_graph() {
     cmd.assert().success();
 
     let recorded = fs::read_to_string(&record_path).expect("record file should exist");
-    assert!(recorded.contains("MERGE (fn:Function { name: 'foo' })"));
-    assert!(recorded.contains("MERGE (m:Module { name: 'os' })"));
+    // Entities are written in bulk as UNWIND rows
+    assert!(recorded.contains("name:'foo'}"));
+    assert!(recorded.contains("MERGE (:Function { name: r.name })"));
+    assert!(recorded.contains("name:'os'}"));
+    assert!(recorded.contains("MERGE (:Module { name: r.name })"));
 }
@@ -27,12 +27,53 @@ pub struct EngineConfig {
 pub struct ParserConfig {
     pub max_file_size_kb: usize,
     pub ignore_patterns: Vec<String>,
+    /// Per-file parse deadline; files that run past it are outlined
+    /// lexically. 0 disables the limit.
+    #[serde(default = "default_parse_timeout_ms")]
+    pub parse_timeout_ms: u64,
+    /// Stream files over `max_file_size_kb` into the CAS and parse them from
+    /// disk without loading them, instead of skipping them.
+    #[serde(default = "default_stream_large_files")]
+    pub stream_large_files: bool,
+}
+
+fn default_stream_large_files() -> bool {
+    true
+}
+
+fn default_parse_timeout_ms() -> u64 {
+    10_000
 }
 
 #[derive(Debug, Clone, Serialize, Deserialize)]
 pub struct FalkorDBConfig {
     pub url: String,
     pub graph_name: String,
+    /// Rows per bulk `UNWIND` write.
+    #[serde(default = "default_batch_size")]
+    pub batch_size: usize,
+    /// Most Redis connections open at once.
+    #[serde(default = "default_pool_size")]
+    pub pool_size: usize,
+    /// Most graph write batches in flight at once.
+    #[serde(default = "default_max_in_flight")]
+    pub max_in_flight: usize,
+    /// Fail `analyze` when graph writes fail. Otherwise failed batches are
+    /// only recorded in the workspace's failure log.
+    #[serde(default)]
+    pub required: bool,
+}
+
+fn default_batch_size() -> usize {
+    500
+}
+
+fn default_pool_size() -> usize {
+    8
+}
+
+fn default_max_in_flight() -> usize {
+    4
 }
 
 #[derive(Debug, Clone, Serialize, Deserialize)]
@@ -123,10 +164,16 @@ impl Config {
             parser: ParserConfig {
                 max_file_size_kb: 1024,
                 ignore_patterns: vec!["*_test.py".to_string(), "*.min.js".to_string()],
+                parse_timeout_ms: default_parse_timeout_ms(),
+                stream_large_files: default_stream_large_files(),
             },
             falkordb: FalkorDBConfig {
                 url: "redis://localhost:6379".to_string(),
                 graph_name: "code_graph".to_string(),
+                batch_size: default_batch_size(),
+                pool_size: default_pool_size(),
+                max_in_flight: default_max_in_flight(),
+                required: false,
             },
             cas: CASConfig {
                 enabled: true,
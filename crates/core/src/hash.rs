@@ -1,33 +1,208 @@
 use blake3::Hasher;
-use serde::{Deserialize, Serialize};
+use serde::de::{self, Deserializer, Visitor};
+use serde::{Deserialize, Serialize, Serializer};
 use std::fmt;
+use std::io::Write;
+use std::str::FromStr;
 
-#[derive(Debug, Clone, PartialEq, Eq, Hash, Serialize, Deserialize)]
-pub struct Hash(String);
+use crate::CodeGraphError;
+
+/// 32-byte blake3 digest.
+///
+/// Stored as raw bytes, so it is `Copy` and cheap to compare and hash. Hex is
+/// only produced for `Display` and for human-readable serializers (JSON, TOML),
+/// where it is the same 64-character string the type used to wrap.
+#[derive(Clone, Copy, PartialEq, Eq, PartialOrd, Ord)]
+pub struct Hash([u8; 32]);
 
 impl Hash {
     pub fn new(data: &[u8]) -> Self {
-        let mut hasher = Hasher::new();
-        hasher.update(data);
-        Self(hasher.finalize().to_hex().to_string())
+        Self(*blake3::hash(data).as_bytes())
     }
-    
+
     pub fn from_string(s: &str) -> Self {
         Self::new(s.as_bytes())
     }
-    
-    pub fn as_str(&self) -> &str {
+
+    /// Hashes formatted text without building the intermediate `String`:
+    /// `Hash::from_fmt(format_args!("{}:{}", a, b))` equals
+    /// `Hash::from_string(&format!("{}:{}", a, b))`.
+    pub fn from_fmt(args: fmt::Arguments<'_>) -> Self {
+        let mut hasher = Hasher::new();
+        // Writing into a hasher cannot fail
+        let _ = hasher.write_fmt(args);
+        Self(*hasher.finalize().as_bytes())
+    }
+
+    /// Incremental hasher for ids built from several fields.
+    pub fn builder() -> HashBuilder {
+        HashBuilder(Hasher::new())
+    }
+
+    pub fn from_bytes(bytes: [u8; 32]) -> Self {
+        Self(bytes)
+    }
+
+    pub fn from_hex(hex: &str) -> Option<Self> {
+        let hex = hex.as_bytes();
+        if hex.len() != 64 {
+            return None;
+        }
+
+        let mut bytes = [0u8; 32];
+        for (byte, pair) in bytes.iter_mut().zip(hex.chunks_exact(2)) {
+            *byte = (hex_value(pair[0])? << 4) | hex_value(pair[1])?;
+        }
+        Some(Self(bytes))
+    }
+
+    pub fn as_bytes(&self) -> &[u8; 32] {
         &self.0
     }
-    
-    pub fn short(&self) -> &str {
-        &self.0[..8]
+
+    pub fn to_hex(&self) -> String {
+        self.to_string()
+    }
+
+    /// First 8 hex characters, for logs and display.
+    pub fn short(&self) -> String {
+        let mut short = self.to_string();
+        short.truncate(8);
+        short
+    }
+}
+
+/// Feeds fields into a blake3 hasher without building an intermediate string.
+#[derive(Clone)]
+pub struct HashBuilder(Hasher);
+
+impl HashBuilder {
+    pub fn update(&mut self, bytes: &[u8]) -> &mut Self {
+        self.0.update(bytes);
+        self
+    }
+
+    /// Adds a string followed by a separator, so `("ab", "c")` and
+    /// `("a", "bc")` hash differently.
+    pub fn update_str(&mut self, value: &str) -> &mut Self {
+        self.0.update(value.as_bytes());
+        self.0.update(&[0]);
+        self
+    }
+
+    pub fn update_u32(&mut self, value: u32) -> &mut Self {
+        self.0.update(&value.to_le_bytes());
+        self
+    }
+
+    pub fn update_hash(&mut self, hash: &Hash) -> &mut Self {
+        self.0.update(&hash.0);
+        self
+    }
+
+    pub fn update_fmt(&mut self, args: fmt::Arguments<'_>) -> &mut Self {
+        let _ = self.0.write_fmt(args);
+        self.0.update(&[0]);
+        self
+    }
+
+    pub fn finish(&self) -> Hash {
+        Hash(*self.0.finalize().as_bytes())
+    }
+}
+
+fn hex_value(digit: u8) -> Option<u8> {
+    match digit {
+        b'0'..=b'9' => Some(digit - b'0'),
+        b'a'..=b'f' => Some(digit - b'a' + 10),
+        b'A'..=b'F' => Some(digit - b'A' + 10),
+        _ => None,
+    }
+}
+
+impl std::hash::Hash for Hash {
+    fn hash<H: std::hash::Hasher>(&self, state: &mut H) {
+        // Already uniformly distributed; 8 bytes are plenty for bucketing
+        let mut prefix = [0u8; 8];
+        prefix.copy_from_slice(&self.0[..8]);
+        state.write_u64(u64::from_le_bytes(prefix));
     }
 }
 
 impl fmt::Display for Hash {
     fn fmt(&self, f: &mut fmt::Formatter<'_>) -> fmt::Result {
-        write!(f, "{}", self.0)
+        const DIGITS: &[u8; 16] = b"0123456789abcdef";
+        let mut hex = [0u8; 64];
+        for (i, byte) in self.0.iter().enumerate() {
+            hex[i * 2] = DIGITS[(byte >> 4) as usize];
+            hex[i * 2 + 1] = DIGITS[(byte & 0x0f) as usize];
+        }
+        // Only ASCII hex digits were written
+        f.write_str(std::str::from_utf8(&hex).unwrap_or_default())
+    }
+}
+
+impl fmt::Debug for Hash {
+    fn fmt(&self, f: &mut fmt::Formatter<'_>) -> fmt::Result {
+        write!(f, "Hash({})", self)
+    }
+}
+
+impl FromStr for Hash {
+    type Err = CodeGraphError;
+
+    fn from_str(s: &str) -> Result<Self, Self::Err> {
+        Self::from_hex(s).ok_or_else(|| CodeGraphError::Hash {
+            message: format!("Invalid hex digest: {}", s),
+        })
+    }
+}
+
+impl Serialize for Hash {
+    fn serialize<S: Serializer>(&self, serializer: S) -> Result<S::Ok, S::Error> {
+        if serializer.is_human_readable() {
+            serializer.collect_str(self)
+        } else {
+            serializer.serialize_bytes(&self.0)
+        }
+    }
+}
+
+impl<'de> Deserialize<'de> for Hash {
+    fn deserialize<D: Deserializer<'de>>(deserializer: D) -> Result<Self, D::Error> {
+        struct HashVisitor;
+
+        impl<'de> Visitor<'de> for HashVisitor {
+            type Value = Hash;
+
+            fn expecting(&self, f: &mut fmt::Formatter<'_>) -> fmt::Result {
+                f.write_str("a 64-character hex string or 32 bytes")
+            }
+
+            fn visit_str<E: de::Error>(self, value: &str) -> Result<Hash, E> {
+                Hash::from_hex(value).ok_or_else(|| E::invalid_value(de::Unexpected::Str(value), &self))
+            }
+
+            fn visit_bytes<E: de::Error>(self, value: &[u8]) -> Result<Hash, E> {
+                <[u8; 32]>::try_from(value)
+                    .map(Hash)
+                    .map_err(|_| E::invalid_length(value.len(), &self))
+            }
+
+            fn visit_seq<A: de::SeqAccess<'de>>(self, mut seq: A) -> Result<Hash, A::Error> {
+                let mut bytes = [0u8; 32];
+                for (i, byte) in bytes.iter_mut().enumerate() {
+                    *byte = seq.next_element()?.ok_or_else(|| de::Error::invalid_length(i, &self))?;
+                }
+                Ok(Hash(bytes))
+            }
+        }
+
+        if deserializer.is_human_readable() {
+            deserializer.deserialize_str(HashVisitor)
+        } else {
+            deserializer.deserialize_bytes(HashVisitor)
+        }
     }
 }
 
@@ -41,4 +216,4 @@ impl From<String> for Hash {
     fn from(s: String) -> Self {
         Self::from_string(&s)
     }
-}
\ No newline at end of file
+}
@@ -3,9 +3,11 @@ pub mod error;
 pub mod hash;
 pub mod config;
 pub mod snapshot;
+pub mod symbol;
 
 pub use types::*;
 pub use error::*;
 pub use hash::*;
 pub use config::*;
-pub use snapshot::*;
\ No newline at end of file
+pub use snapshot::*;
+pub use symbol::*;
\ No newline at end of file
@@ -1,3 +1,4 @@
+use crate::Symbol;
 use serde::{Deserialize, Serialize};
 
 #[derive(Debug, Clone, Serialize, Deserialize)]
@@ -27,6 +28,7 @@ impl SnapshotMeta {
 
 #[derive(Debug, Clone, Serialize, Deserialize)]
 pub struct FileEntry {
-    pub path: String,
+    /// Workspace-relative path with `/` separators.
+    pub path: Symbol,
     pub hash: String,
 }
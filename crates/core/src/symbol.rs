@@ -0,0 +1,160 @@
+use serde::de::{self, Deserializer, Visitor};
+use serde::{Deserialize, Serialize, Serializer};
+use std::collections::hash_map::RandomState;
+use std::collections::HashMap;
+use std::fmt;
+use std::hash::BuildHasher;
+use std::num::NonZeroU32;
+use std::sync::{OnceLock, RwLock};
+
+const SHARDS: usize = 16;
+
+/// Compact id of a string in the process-wide symbol table.
+///
+/// Equal strings always get the same symbol, so symbols compare and hash as
+/// plain integers. Interned text lives for the rest of the process; intern
+/// names, kinds and paths, not arbitrary source text.
+#[derive(Clone, Copy, PartialEq, Eq, Hash)]
+pub struct Symbol(NonZeroU32);
+
+impl Symbol {
+    pub fn intern(value: &str) -> Self {
+        table().intern(value)
+    }
+
+    /// The symbol of `value` if it has been interned, without interning it.
+    pub fn lookup(value: &str) -> Option<Self> {
+        table().lookup(value)
+    }
+
+    pub fn as_str(self) -> &'static str {
+        table().resolve(self)
+    }
+
+    pub fn as_u32(self) -> u32 {
+        self.0.get()
+    }
+
+    /// Number of distinct strings interned so far.
+    pub fn count() -> usize {
+        table().strings.read().unwrap_or_else(|e| e.into_inner()).len()
+    }
+}
+
+struct SymbolTable {
+    hasher: RandomState,
+    /// Lock-striped string to symbol maps
+    shards: Vec<RwLock<HashMap<&'static str, Symbol>>>,
+    /// Symbol `n` resolves to `strings[n - 1]`
+    strings: RwLock<Vec<&'static str>>,
+}
+
+fn table() -> &'static SymbolTable {
+    static TABLE: OnceLock<SymbolTable> = OnceLock::new();
+    TABLE.get_or_init(|| SymbolTable {
+        hasher: RandomState::new(),
+        shards: (0..SHARDS).map(|_| RwLock::new(HashMap::new())).collect(),
+        strings: RwLock::new(Vec::new()),
+    })
+}
+
+impl SymbolTable {
+    fn shard(&self, value: &str) -> &RwLock<HashMap<&'static str, Symbol>> {
+        &self.shards[self.hasher.hash_one(value) as usize % SHARDS]
+    }
+
+    fn lookup(&self, value: &str) -> Option<Symbol> {
+        self.shard(value).read().unwrap_or_else(|e| e.into_inner()).get(value).copied()
+    }
+
+    fn intern(&self, value: &str) -> Symbol {
+        let shard = self.shard(value);
+        if let Some(&symbol) = shard.read().unwrap_or_else(|e| e.into_inner()).get(value) {
+            return symbol;
+        }
+
+        let mut map = shard.write().unwrap_or_else(|e| e.into_inner());
+        if let Some(&symbol) = map.get(value) {
+            return symbol;
+        }
+
+        let text: &'static str = Box::leak(value.into());
+        let symbol = {
+            let mut strings = self.strings.write().unwrap_or_else(|e| e.into_inner());
+            strings.push(text);
+            let id = u32::try_from(strings.len()).expect("symbol table overflow");
+            Symbol(NonZeroU32::new(id).expect("symbol ids start at 1"))
+        };
+        map.insert(text, symbol);
+        symbol
+    }
+
+    fn resolve(&self, symbol: Symbol) -> &'static str {
+        let strings = self.strings.read().unwrap_or_else(|e| e.into_inner());
+        strings[symbol.0.get() as usize - 1]
+    }
+}
+
+impl From<&str> for Symbol {
+    fn from(value: &str) -> Self {
+        Self::intern(value)
+    }
+}
+
+impl AsRef<str> for Symbol {
+    fn as_ref(&self) -> &str {
+        self.as_str()
+    }
+}
+
+impl PartialEq<str> for Symbol {
+    fn eq(&self, other: &str) -> bool {
+        self.as_str() == other
+    }
+}
+
+impl PartialEq<&str> for Symbol {
+    fn eq(&self, other: &&str) -> bool {
+        self.as_str() == *other
+    }
+}
+
+impl fmt::Display for Symbol {
+    fn fmt(&self, f: &mut fmt::Formatter<'_>) -> fmt::Result {
+        f.write_str(self.as_str())
+    }
+}
+
+impl fmt::Debug for Symbol {
+    fn fmt(&self, f: &mut fmt::Formatter<'_>) -> fmt::Result {
+        write!(f, "Symbol({:?})", self.as_str())
+    }
+}
+
+/// Symbols go over the wire as their text; ids are only stable within one
+/// process.
+impl Serialize for Symbol {
+    fn serialize<S: Serializer>(&self, serializer: S) -> Result<S::Ok, S::Error> {
+        serializer.serialize_str(self.as_str())
+    }
+}
+
+impl<'de> Deserialize<'de> for Symbol {
+    fn deserialize<D: Deserializer<'de>>(deserializer: D) -> Result<Self, D::Error> {
+        struct SymbolVisitor;
+
+        impl<'de> Visitor<'de> for SymbolVisitor {
+            type Value = Symbol;
+
+            fn expecting(&self, f: &mut fmt::Formatter<'_>) -> fmt::Result {
+                f.write_str("a string")
+            }
+
+            fn visit_str<E: de::Error>(self, value: &str) -> Result<Symbol, E> {
+                Ok(Symbol::intern(value))
+            }
+        }
+
+        deserializer.deserialize_str(SymbolVisitor)
+    }
+}
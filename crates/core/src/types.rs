@@ -1,4 +1,4 @@
-use crate::Hash;
+use crate::{Hash, Symbol};
 use chrono::{DateTime, Utc};
 use serde::{Deserialize, Serialize};
 use std::collections::HashMap;
@@ -78,24 +78,28 @@ pub enum ConnascenceType {
 pub struct CodeNode {
     pub id: Hash,
     pub node_type: NodeType,
-    pub name: String,
+    pub name: Symbol,
     pub language: Language,
     pub file_path: PathBuf,
     pub line_range: (u32, u32),
+    /// Content hash of the entity's source, to tell edits from moves.
+    #[serde(default, skip_serializing_if = "Option::is_none")]
+    pub fingerprint: Option<Hash>,
     pub metadata: HashMap<String, serde_json::Value>,
 }
 
 impl CodeNode {
+    /// `name` should be the qualified symbol path (e.g. `Outer::Inner::run`).
+    /// The id is derived from the file, language, type and that path only;
+    /// `line_range` is a plain attribute and can change without changing the id.
     pub fn new(
         node_type: NodeType,
-        name: String,
+        name: Symbol,
         language: Language,
         file_path: PathBuf,
         line_range: (u32, u32),
     ) -> Self {
-        let content = format!("{}:{}:{}:{}-{}", 
-            file_path.display(), language as u8, name, line_range.0, line_range.1);
-        let id = Hash::from_string(&content);
+        let id = Self::stable_id(&file_path, language, &node_type, name.as_str());
         
         Self {
             id,
@@ -104,9 +108,26 @@ impl CodeNode {
             language,
             file_path,
             line_range,
+            fingerprint: None,
             metadata: HashMap::new(),
         }
     }
+
+    pub fn stable_id(file_path: &std::path::Path, language: Language, node_type: &NodeType, qualified_name: &str) -> Hash {
+        Hash::from_fmt(format_args!("{}:{}:{:?}:{}",
+            file_path.display(), language as u8, node_type, qualified_name))
+    }
+
+    pub fn with_fingerprint(mut self, fingerprint: Hash) -> Self {
+        self.fingerprint = Some(fingerprint);
+        self
+    }
+
+    /// Whether `other` is the same entity with different content. A pure move
+    /// (only `line_range` differs) is not a change.
+    pub fn content_changed(&self, other: &CodeNode) -> bool {
+        self.id == other.id && self.fingerprint != other.fingerprint
+    }
 }
 
 #[derive(Debug, Clone, Serialize, Deserialize)]
@@ -120,8 +141,7 @@ pub struct Relation {
 
 impl Relation {
     pub fn new(from_node: Hash, to_node: Hash, relation_type: RelationType) -> Self {
-        let content = format!("{}->{}:{:?}", from_node, to_node, relation_type);
-        let id = Hash::from_string(&content);
+        let id = Hash::from_fmt(format_args!("{}->{}:{:?}", from_node, to_node, relation_type));
         
         Self {
             id,
@@ -0,0 +1,45 @@
+use code_context_graph_core::Hash;
+
+#[test]
+fn display_is_blake3_hex() {
+    let hash = Hash::from_string("hello");
+    assert_eq!(hash.to_string(), blake3::hash(b"hello").to_hex().to_string());
+    assert_eq!(hash.short(), &hash.to_hex()[..8]);
+}
+
+#[test]
+fn from_fmt_matches_formatted_string() {
+    let name = "foo";
+    let line = 42;
+    assert_eq!(
+        Hash::from_fmt(format_args!("{}:{}", name, line)),
+        Hash::from_string(&format!("{}:{}", name, line))
+    );
+}
+
+#[test]
+fn hex_round_trip() {
+    let hash = Hash::from_string("round trip");
+    assert_eq!(Hash::from_hex(&hash.to_hex()), Some(hash));
+    assert_eq!(hash.to_hex().parse::<Hash>().unwrap(), hash);
+    assert!(Hash::from_hex("not hex").is_none());
+    assert!("zz".repeat(32).parse::<Hash>().is_err());
+}
+
+#[test]
+fn json_is_the_legacy_hex_string() {
+    let hash = Hash::from_string("wire");
+    let json = serde_json::to_string(&hash).unwrap();
+    assert_eq!(json, format!("\"{}\"", blake3::hash(b"wire").to_hex()));
+
+    let back: Hash = serde_json::from_str(&json).unwrap();
+    assert_eq!(back, hash);
+}
+
+#[test]
+fn hash_is_copy_and_fixed_size() {
+    let hash = Hash::new(b"copy");
+    let copy = hash;
+    assert_eq!(hash, copy);
+    assert_eq!(std::mem::size_of::<Hash>(), 32);
+}
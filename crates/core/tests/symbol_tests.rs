@@ -0,0 +1,59 @@
+use code_context_graph_core::Symbol;
+use std::collections::HashSet;
+
+#[test]
+fn equal_strings_share_a_symbol() {
+    let a = Symbol::intern("symbol_tests::equal");
+    let b = Symbol::intern(&String::from("symbol_tests::equal"));
+    let other = Symbol::intern("symbol_tests::other");
+
+    assert_eq!(a, b);
+    assert_ne!(a, other);
+    assert_eq!(a.as_str(), "symbol_tests::equal");
+    assert_eq!(a, "symbol_tests::equal");
+}
+
+#[test]
+fn lookup_does_not_intern() {
+    assert_eq!(Symbol::lookup("symbol_tests::never_interned"), None);
+
+    let symbol = Symbol::intern("symbol_tests::interned");
+    assert_eq!(Symbol::lookup("symbol_tests::interned"), Some(symbol));
+}
+
+#[test]
+fn serializes_as_text() {
+    let symbol = Symbol::intern("process_data");
+    let json = serde_json::to_string(&symbol).unwrap();
+    assert_eq!(json, "\"process_data\"");
+
+    let back: Symbol = serde_json::from_str(&json).unwrap();
+    assert_eq!(back, symbol);
+}
+
+#[test]
+fn concurrent_interning_agrees() {
+    let names: Vec<String> = (0..200).map(|i| format!("symbol_tests::concurrent_{}", i)).collect();
+
+    let per_thread: Vec<Vec<Symbol>> = std::thread::scope(|scope| {
+        let handles: Vec<_> = (0..8)
+            .map(|_| scope.spawn(|| names.iter().map(|name| Symbol::intern(name)).collect::<Vec<_>>()))
+            .collect();
+        handles.into_iter().map(|h| h.join().unwrap()).collect()
+    });
+
+    for symbols in &per_thread[1..] {
+        assert_eq!(symbols, &per_thread[0]);
+    }
+    let distinct: HashSet<Symbol> = per_thread[0].iter().copied().collect();
+    assert_eq!(distinct.len(), names.len());
+    for (symbol, name) in per_thread[0].iter().zip(&names) {
+        assert_eq!(symbol.as_str(), name);
+    }
+}
+
+#[test]
+fn symbol_is_four_bytes() {
+    assert_eq!(std::mem::size_of::<Symbol>(), 4);
+    assert_eq!(std::mem::size_of::<Option<Symbol>>(), 4);
+}
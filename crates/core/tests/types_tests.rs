@@ -0,0 +1,18 @@
+use std::path::PathBuf;
+
+use code_context_graph_core::{CodeNode, Hash, Language, NodeType};
+
+#[test]
+fn code_node_id_ignores_line_range() {
+    let path = PathBuf::from("src/Service.java");
+    let before = CodeNode::new(NodeType::Method, "Service::start".into(), Language::Java, path.clone(), (3, 5));
+    let after = CodeNode::new(NodeType::Method, "Service::start".into(), Language::Java, path.clone(), (10, 12));
+    let other = CodeNode::new(NodeType::Method, "Service::stop".into(), Language::Java, path, (3, 5));
+
+    assert_eq!(before.name, "Service::start");
+    assert_eq!(before.id, after.id);
+    assert_ne!(before.id, other.id);
+
+    let edited = after.clone().with_fingerprint(Hash::new(b"void start() { run(); }"));
+    assert!(before.clone().with_fingerprint(Hash::new(b"void start() {}")).content_changed(&edited));
+}
@@ -0,0 +1,328 @@
+use crate::pool::{is_connection_error, PoolConfig, PoolMetrics, PoolStats};
+use crate::rows::{GraphRows, DEFAULT_BATCH_SIZE};
+use crate::write_behind::FailureReport;
+use crate::GraphExecutor;
+use redis::aio::MultiplexedConnection;
+use redis::{Client as RedisClient, RedisResult, Value as RedisValue};
+use std::future::Future;
+use std::io;
+use std::pin::Pin;
+use std::sync::atomic::{AtomicUsize, Ordering};
+use std::sync::{Arc, Mutex};
+use std::time::Instant;
+use tokio::sync::Semaphore;
+
+pub type BoxFuture<'a, T> = Pin<Box<dyn Future<Output = T> + Send + 'a>>;
+
+/// Non-blocking counterpart of `GraphExecutor`.
+pub trait AsyncGraphExecutor: Send + Sync {
+    fn query<'a>(&'a self, graph: &'a str, cypher: &'a str) -> BoxFuture<'a, anyhow::Result<RedisValue>>;
+
+    /// Runs `cyphers` in order and returns their replies.
+    fn query_pipeline<'a>(&'a self, graph: &'a str, cyphers: &'a [String]) -> BoxFuture<'a, anyhow::Result<Vec<RedisValue>>> {
+        Box::pin(async move {
+            let mut values = Vec::with_capacity(cyphers.len());
+            for cypher in cyphers {
+                values.push(self.query(graph, cypher).await?);
+            }
+            Ok(values)
+        })
+    }
+}
+
+/// Runs a blocking `GraphExecutor` on tokio's blocking pool so it can be
+/// used where an `AsyncGraphExecutor` is expected.
+pub struct BlockingExecutor {
+    inner: Arc<dyn GraphExecutor>,
+}
+
+impl BlockingExecutor {
+    pub fn new(inner: impl GraphExecutor + 'static) -> Self {
+        Self { inner: Arc::new(inner) }
+    }
+}
+
+impl AsyncGraphExecutor for BlockingExecutor {
+    fn query<'a>(&'a self, graph: &'a str, cypher: &'a str) -> BoxFuture<'a, anyhow::Result<RedisValue>> {
+        let inner = Arc::clone(&self.inner);
+        let (graph, cypher) = (graph.to_string(), cypher.to_string());
+        Box::pin(async move { tokio::task::spawn_blocking(move || inner.query(&graph, &cypher)).await? })
+    }
+
+    fn query_pipeline<'a>(&'a self, graph: &'a str, cyphers: &'a [String]) -> BoxFuture<'a, anyhow::Result<Vec<RedisValue>>> {
+        let inner = Arc::clone(&self.inner);
+        let (graph, cyphers) = (graph.to_string(), cyphers.to_vec());
+        Box::pin(async move { tokio::task::spawn_blocking(move || inner.query_pipeline(&graph, &cyphers)).await? })
+    }
+}
+
+/// A pooled multiplexed connection and when it last answered.
+struct Slot {
+    conn: Option<MultiplexedConnection>,
+    checked: Instant,
+}
+
+/// `GRAPH.QUERY` over a small pool of multiplexed tokio connections.
+/// Round-trips take the connections in turn, and pipelines from concurrent
+/// callers interleave on each connection instead of queueing for one.
+///
+/// The pool follows the same `PoolConfig` as `RedisExecutor`: up to
+/// `max_size` connections, each opened on first use within
+/// `connect_timeout`, pinged before reuse once idle past
+/// `health_check_interval`, and reopened after an I/O error.
+pub struct AsyncRedisExecutor {
+    client: RedisClient,
+    config: PoolConfig,
+    slots: Vec<tokio::sync::Mutex<Slot>>,
+    next: AtomicUsize,
+    metrics: Arc<PoolMetrics>,
+}
+
+impl AsyncRedisExecutor {
+    pub fn new(url: &str) -> anyhow::Result<Self> {
+        Self::with_config(url, PoolConfig::default())
+    }
+
+    pub fn with_config(url: &str, config: PoolConfig) -> anyhow::Result<Self> {
+        let config = PoolConfig { max_size: config.max_size.max(1), max_pipeline_depth: config.max_pipeline_depth.max(1), ..config };
+        let slots = (0..config.max_size)
+            .map(|_| tokio::sync::Mutex::new(Slot { conn: None, checked: Instant::now() }))
+            .collect();
+        Ok(Self {
+            client: RedisClient::open(url)?,
+            config,
+            slots,
+            next: AtomicUsize::new(0),
+            metrics: Arc::new(PoolMetrics::default()),
+        })
+    }
+
+    pub fn config(&self) -> &PoolConfig {
+        &self.config
+    }
+
+    pub fn metrics(&self) -> Arc<PoolMetrics> {
+        Arc::clone(&self.metrics)
+    }
+
+    /// A healthy connection for pool slot `index`, opening one if needed.
+    async fn connection(&self, index: usize) -> RedisResult<MultiplexedConnection> {
+        let mut guard = self.slots[index].lock().await;
+        let slot = &mut *guard;
+        if let Some(conn) = slot.conn.as_mut() {
+            if slot.checked.elapsed() < self.config.health_check_interval || self.ping(conn).await {
+                slot.checked = Instant::now();
+                return Ok(conn.clone());
+            }
+            self.metrics.record_health_check_failure();
+            self.metrics.record_disconnect();
+            slot.conn = None;
+        }
+
+        let connect = self.client.get_multiplexed_tokio_connection();
+        let opened = match tokio::time::timeout(self.config.connect_timeout, connect).await {
+            Ok(opened) => opened,
+            Err(_) => Err(io::Error::new(io::ErrorKind::TimedOut, "timed out connecting to Redis").into()),
+        };
+        match opened {
+            Ok(conn) => {
+                self.metrics.record_connect();
+                slot.conn = Some(conn.clone());
+                slot.checked = Instant::now();
+                Ok(conn)
+            }
+            Err(e) => {
+                self.metrics.record_connect_failure();
+                Err(e)
+            }
+        }
+    }
+
+    /// Whether `conn` answers a PING within the connect timeout.
+    async fn ping(&self, conn: &mut MultiplexedConnection) -> bool {
+        let ping = redis::cmd("PING").query_async::<_, ()>(conn);
+        matches!(tokio::time::timeout(self.config.connect_timeout, ping).await, Ok(Ok(())))
+    }
+
+    async fn reset(&self, index: usize) {
+        if self.slots[index].lock().await.conn.take().is_some() {
+            self.metrics.record_disconnect();
+        }
+    }
+
+    /// Same retry rule as the blocking executor: one retry on a fresh
+    /// connection after an I/O failure.
+    async fn round_trip(&self, graph: &str, cyphers: &[String]) -> RedisResult<Vec<RedisValue>> {
+        let mut pipe = redis::pipe();
+        for cypher in cyphers {
+            pipe.cmd("GRAPH.QUERY").arg(graph).arg(cypher);
+        }
+
+        let index = self.next.fetch_add(1, Ordering::Relaxed) % self.slots.len();
+        let mut retried = false;
+        loop {
+            let mut conn = self.connection(index).await?;
+            let started = Instant::now();
+            match pipe.query_async::<_, Vec<RedisValue>>(&mut conn).await {
+                Ok(values) => {
+                    self.metrics.record_round_trip(cyphers.len(), started.elapsed());
+                    return Ok(values);
+                }
+                Err(e) if is_connection_error(&e) => {
+                    self.reset(index).await;
+                    if retried {
+                        return Err(e);
+                    }
+                    self.metrics.record_reconnect();
+                    retried = true;
+                }
+                Err(e) => return Err(e),
+            }
+        }
+    }
+}
+
+impl AsyncGraphExecutor for AsyncRedisExecutor {
+    fn query<'a>(&'a self, graph: &'a str, cypher: &'a str) -> BoxFuture<'a, anyhow::Result<RedisValue>> {
+        Box::pin(async move {
+            let mut values = self.round_trip(graph, &[cypher.to_string()]).await?;
+            values.pop().ok_or_else(|| anyhow::anyhow!("GRAPH.QUERY returned no reply"))
+        })
+    }
+
+    fn query_pipeline<'a>(&'a self, graph: &'a str, cyphers: &'a [String]) -> BoxFuture<'a, anyhow::Result<Vec<RedisValue>>> {
+        Box::pin(async move {
+            let mut values = Vec::with_capacity(cyphers.len());
+            for chunk in cyphers.chunks(self.config.max_pipeline_depth) {
+                values.extend(self.round_trip(graph, chunk).await?);
+            }
+            Ok(values)
+        })
+    }
+}
+
+/// Writes graph batches in background tasks, with at most `max_in_flight`
+/// batches outstanding at a time.
+///
+/// `submit` returns as soon as the batch has a slot, so the caller can go
+/// on parsing while earlier batches are written; when every slot is taken
+/// it waits for one to free up. Failures are kept and reported by `finish`.
+pub struct AsyncGraphClient {
+    graph_name: Arc<str>,
+    exec: Arc<dyn AsyncGraphExecutor>,
+    in_flight: Arc<Semaphore>,
+    max_in_flight: u32,
+    batch_size: usize,
+    first_error: Arc<Mutex<Option<anyhow::Error>>>,
+    failed_batches: Arc<AtomicUsize>,
+    failure_report: Option<Arc<FailureReport>>,
+    pool_metrics: Option<Arc<PoolMetrics>>,
+}
+
+impl AsyncGraphClient {
+    pub fn new(graph_name: &str, exec: Arc<dyn AsyncGraphExecutor>, max_in_flight: usize) -> Self {
+        let max_in_flight = max_in_flight.clamp(1, u16::MAX as usize) as u32;
+        Self {
+            graph_name: Arc::from(graph_name),
+            exec,
+            in_flight: Arc::new(Semaphore::new(max_in_flight as usize)),
+            max_in_flight,
+            batch_size: DEFAULT_BATCH_SIZE,
+            first_error: Arc::new(Mutex::new(None)),
+            failed_batches: Arc::new(AtomicUsize::new(0)),
+            failure_report: None,
+            pool_metrics: None,
+        }
+    }
+
+    pub fn new_with_redis(url: &str, graph_name: &str, max_in_flight: usize) -> anyhow::Result<Self> {
+        Self::new_with_redis_pool(url, graph_name, PoolConfig::default(), max_in_flight)
+    }
+
+    pub fn new_with_redis_pool(url: &str, graph_name: &str, pool: PoolConfig, max_in_flight: usize) -> anyhow::Result<Self> {
+        let exec = AsyncRedisExecutor::with_config(url, pool)?;
+        let metrics = exec.metrics();
+        let mut client = Self::new(graph_name, Arc::new(exec), max_in_flight);
+        client.pool_metrics = Some(metrics);
+        Ok(client)
+    }
+
+    /// Sets how many rows `submit_rows` puts in each statement.
+    pub fn with_batch_size(mut self, batch_size: usize) -> Self {
+        self.batch_size = batch_size.max(1);
+        self
+    }
+
+    /// Appends every batch that fails to `report`, so failed writes can be
+    /// inspected or replayed later.
+    pub fn with_failure_report(mut self, report: FailureReport) -> Self {
+        self.failure_report = Some(Arc::new(report));
+        self
+    }
+
+    pub fn batch_size(&self) -> usize {
+        self.batch_size
+    }
+
+    /// Batches that failed so far.
+    pub fn failed_batches(&self) -> usize {
+        self.failed_batches.load(Ordering::Relaxed)
+    }
+
+    pub fn pool_stats(&self) -> Option<PoolStats> {
+        self.pool_metrics.as_ref().map(|m| m.snapshot())
+    }
+
+    /// Queues `queries` to be written as one pipeline, waiting only while
+    /// `max_in_flight` batches are already being written.
+    pub async fn submit(&self, queries: Vec<String>) -> anyhow::Result<()> {
+        if queries.is_empty() {
+            return Ok(());
+        }
+        let permit = Arc::clone(&self.in_flight).acquire_owned().await?;
+        let exec = Arc::clone(&self.exec);
+        let graph = Arc::clone(&self.graph_name);
+        let first_error = Arc::clone(&self.first_error);
+        let failed_batches = Arc::clone(&self.failed_batches);
+        let failure_report = self.failure_report.clone();
+        tokio::spawn(async move {
+            if let Err(e) = exec.query_pipeline(&graph, &queries).await {
+                failed_batches.fetch_add(1, Ordering::Relaxed);
+                let e = match failure_report {
+                    // The report syncs to disk, so it runs on the blocking pool
+                    Some(report) => {
+                        let recorded = tokio::task::spawn_blocking(move || {
+                            if let Err(log_err) = report.record(&graph, &e, &queries) {
+                                tracing::warn!("could not record failed graph batch in {}: {}", report.path().display(), log_err);
+                            }
+                            e
+                        });
+                        match recorded.await {
+                            Ok(e) => e,
+                            Err(join_err) => anyhow::anyhow!("recording a failed graph batch panicked: {}", join_err),
+                        }
+                    }
+                    None => e,
+                };
+                first_error.lock().unwrap().get_or_insert(e);
+            }
+            drop(permit);
+        });
+        Ok(())
+    }
+
+    pub async fn submit_rows(&self, rows: &GraphRows) -> anyhow::Result<()> {
+        self.submit(rows.to_statements(self.batch_size)).await
+    }
+
+    /// Waits for every submitted batch and returns the first failure.
+    pub async fn finish(&self) -> anyhow::Result<()> {
+        // Every slot free means every write has completed
+        let all = self.in_flight.acquire_many(self.max_in_flight).await?;
+        drop(all);
+        match self.first_error.lock().unwrap().take() {
+            Some(e) => Err(e),
+            None => Ok(()),
+        }
+    }
+}
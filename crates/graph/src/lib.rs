@@ -3,6 +3,20 @@ use code_context_graph_core::Language;
 use code_context_graph_parser::ast::{ASTNode, ASTNodeType, SimplifiedAST};
 use redis::{Client as RedisClient, Value as RedisValue};
 use std::sync::{Arc, Mutex};
+use std::time::Instant;
+
+pub mod async_exec;
+pub mod pool;
+pub mod query;
+pub mod rows;
+pub mod write_behind;
+
+use pool::is_connection_error;
+pub use async_exec::{AsyncGraphClient, AsyncGraphExecutor, AsyncRedisExecutor, BlockingExecutor, BoxFuture};
+pub use pool::{ConnectionPool, PoolConfig, PoolMetrics, PoolStats};
+pub use query::{templates, Param, Query};
+pub use rows::{EntityLabel, EntityRow, GraphRows, DEFAULT_BATCH_SIZE};
+pub use write_behind::{FailureReport, WriteBehind, WriteBehindConfig, WriteBehindStats};
 
 pub struct GraphBuilder {
     graph_name: String,
@@ -13,39 +27,61 @@ impl GraphBuilder {
         Self { graph_name: graph_name.to_string() }
     }
 
+    /// Legacy form of `build_statements` with values inlined as literals.
     pub fn build_queries(&self, ast: &SimplifiedAST, file_path: &str) -> Vec<String> {
         let mut queries = Vec::new();
         // File node
         queries.push(format!("MERGE (f:File {{ path: '{}' }})", file_path.replace('\\', "/")));
         // Walk AST for simple entities
-        self.walk(&ast.root, ast.language, &mut queries);
+        let mut entities = Vec::new();
+        self.walk(ast.root(), ast.language, &mut entities);
+        for (label, name) in entities {
+            let (alias, relation) = match label {
+                EntityLabel::Class => ("cls", "CONTAINS"),
+                EntityLabel::Function => ("fn", "CONTAINS"),
+                EntityLabel::Module => ("m", "IMPORTS"),
+            };
+            queries.push(format!("MERGE ({}:{} {{ name: '{}' }})", alias, label.label(), escape(name)));
+            queries.push(format!("MERGE (f)-[:{}]->({})", relation, alias));
+        }
         queries
     }
 
-    fn walk(&self, node: &ASTNode, language: Language, queries: &mut Vec<String>) {
-        match node.node_type {
-            ASTNodeType::ClassDeclaration => {
-                if let Some(name) = &node.name {
-                    queries.push(format!("MERGE (cls:Class {{ name: '{}' }})", escape(name)));
-                    queries.push("MERGE (f)-[:CONTAINS]->(cls)".to_string());
-                }
-            }
-            ASTNodeType::FunctionDeclaration | ASTNodeType::MethodDeclaration => {
-                if let Some(name) = &node.name {
-                    queries.push(format!("MERGE (fn:Function {{ name: '{}' }})", escape(name)));
-                    queries.push("MERGE (f)-[:CONTAINS]->(fn)".to_string());
-                }
-            }
-            ASTNodeType::ImportDeclaration => {
-                if let Some(name) = &node.name {
-                    queries.push(format!("MERGE (m:Module {{ name: '{}' }})", escape(name)));
-                    queries.push("MERGE (f)-[:IMPORTS]->(m)".to_string());
-                }
-            }
-            _ => {}
+    /// One parameterized query for the file and one per entity, all drawn
+    /// from the shared `templates`.
+    pub fn build_statements(&self, ast: &SimplifiedAST, file_path: &str) -> Vec<Query> {
+        let path = file_path.replace('\\', "/");
+        let mut queries = vec![Query::new(templates::MERGE_FILE).param("path", path.as_str())];
+        let mut entities = Vec::new();
+        self.walk(ast.root(), ast.language, &mut entities);
+        for (label, name) in entities {
+            queries.push(Query::new(templates::merge_entity(label)).param("path", path.as_str()).param("name", name));
+        }
+        queries
+    }
+
+    /// Appends the file and its entities to `rows` for a bulk write.
+    pub fn build_rows(&self, ast: &SimplifiedAST, file_path: &str, rows: &mut GraphRows) {
+        rows.add_file(file_path);
+        let mut entities = Vec::new();
+        self.walk(ast.root(), ast.language, &mut entities);
+        for (label, name) in entities {
+            rows.add_entity(file_path, label, name);
+        }
+    }
+
+    fn walk<'a>(&self, node: &'a ASTNode, language: Language, entities: &mut Vec<(EntityLabel, &'a str)>) {
+        let label = match node.node_type {
+            ASTNodeType::ClassDeclaration => Some(EntityLabel::Class),
+            ASTNodeType::FunctionDeclaration | ASTNodeType::MethodDeclaration => Some(EntityLabel::Function),
+            ASTNodeType::ImportDeclaration => Some(EntityLabel::Module),
+            _ => None,
+        };
+        if let (Some(label), Some(name)) = (label, &node.name) {
+            entities.push((label, name.as_str()));
         }
         for child in &node.children {
-            self.walk(child, language, queries);
+            self.walk(child, language, entities);
         }
     }
 }
@@ -54,55 +90,144 @@ fn escape(s: &str) -> String { s.replace("'", "\\'") }
 
 pub trait GraphExecutor: Send + Sync {
     fn query(&self, graph: &str, cypher: &str) -> anyhow::Result<RedisValue>;
+
+    /// Runs `cyphers` in order and returns their replies. Executors that can
+    /// pipeline send them together instead of one round-trip each.
+    fn query_pipeline(&self, graph: &str, cyphers: &[String]) -> anyhow::Result<Vec<RedisValue>> {
+        cyphers.iter().map(|cypher| self.query(graph, cypher)).collect()
+    }
 }
 
 pub struct RedisExecutor {
-    client: RedisClient,
+    pool: ConnectionPool,
 }
 
 impl RedisExecutor {
     pub fn new(url: &str) -> anyhow::Result<Self> {
-        Ok(Self { client: RedisClient::open(url)? })
+        Self::with_config(url, PoolConfig::default())
+    }
+
+    pub fn with_config(url: &str, config: PoolConfig) -> anyhow::Result<Self> {
+        Ok(Self { pool: ConnectionPool::new(RedisClient::open(url)?, config) })
+    }
+
+    pub fn metrics(&self) -> Arc<PoolMetrics> {
+        self.pool.metrics()
+    }
+
+    /// Sends `cyphers` as one pipeline on a pooled connection. A connection
+    /// that fails at the I/O level is dropped and the batch retried once on
+    /// a fresh one; the writes are MERGEs, so replaying them is safe.
+    fn round_trip(&self, graph: &str, cyphers: &[String]) -> redis::RedisResult<Vec<RedisValue>> {
+        let mut pipe = redis::pipe();
+        for cypher in cyphers {
+            // Execute FalkorDB/RedisGraph query
+            pipe.cmd("GRAPH.QUERY").arg(graph).arg(cypher);
+        }
+
+        let mut retried = false;
+        loop {
+            let mut conn = self.pool.get()?;
+            let started = Instant::now();
+            match pipe.query::<Vec<RedisValue>>(&mut *conn) {
+                Ok(values) => {
+                    self.pool.metrics().record_round_trip(cyphers.len(), started.elapsed());
+                    return Ok(values);
+                }
+                Err(e) if is_connection_error(&e) && !retried => {
+                    conn.mark_broken();
+                    self.pool.metrics().record_reconnect();
+                    retried = true;
+                }
+                Err(e) => {
+                    if is_connection_error(&e) {
+                        conn.mark_broken();
+                    }
+                    return Err(e);
+                }
+            }
+        }
     }
 }
 
 impl GraphExecutor for RedisExecutor {
     fn query(&self, graph: &str, cypher: &str) -> anyhow::Result<RedisValue> {
-        let mut conn = self.client.get_connection()?;
-        // Execute FalkorDB/RedisGraph query
-        let val: redis::Value = redis::cmd("GRAPH.QUERY")
-            .arg(graph)
-            .arg(cypher)
-            .query(&mut conn)?;
-        Ok(val)
+        let mut values = self.round_trip(graph, &[cypher.to_string()])?;
+        values.pop().ok_or_else(|| anyhow::anyhow!("GRAPH.QUERY returned no reply"))
+    }
+
+    fn query_pipeline(&self, graph: &str, cyphers: &[String]) -> anyhow::Result<Vec<RedisValue>> {
+        let mut values = Vec::with_capacity(cyphers.len());
+        for chunk in cyphers.chunks(self.pool.config().max_pipeline_depth.max(1)) {
+            values.extend(self.round_trip(graph, chunk)?);
+        }
+        Ok(values)
     }
 }
 
 pub struct GraphClient {
     graph_name: String,
     exec: Box<dyn GraphExecutor>,
+    pool_metrics: Option<Arc<PoolMetrics>>,
+    batch_size: usize,
     recorded: Arc<Mutex<Vec<(String, String)>>>,
 }
 
 impl GraphClient {
     pub fn new_with_redis(url: &str, graph_name: &str) -> anyhow::Result<Self> {
-        let exec = Box::new(RedisExecutor::new(url)?);
-        Ok(Self::with_executor(graph_name, exec))
+        Self::new_with_redis_pool(url, graph_name, PoolConfig::default())
+    }
+
+    pub fn new_with_redis_pool(url: &str, graph_name: &str, pool: PoolConfig) -> anyhow::Result<Self> {
+        let exec = RedisExecutor::with_config(url, pool)?;
+        let metrics = exec.metrics();
+        let mut client = Self::with_executor(graph_name, Box::new(exec));
+        client.pool_metrics = Some(metrics);
+        Ok(client)
     }
 
     pub fn with_executor(graph_name: &str, exec: Box<dyn GraphExecutor>) -> Self {
         Self {
             graph_name: graph_name.to_string(),
             exec,
+            pool_metrics: None,
+            batch_size: DEFAULT_BATCH_SIZE,
             recorded: Arc::new(Mutex::new(Vec::new())),
         }
     }
 
+    /// Sets how many rows `persist_rows` sends per statement.
+    pub fn with_batch_size(mut self, batch_size: usize) -> Self {
+        self.batch_size = batch_size.max(1);
+        self
+    }
+
+    pub fn batch_size(&self) -> usize {
+        self.batch_size
+    }
+
+    /// Connection and latency counters, when backed by a Redis pool.
+    pub fn pool_stats(&self) -> Option<PoolStats> {
+        self.pool_metrics.as_ref().map(|m| m.snapshot())
+    }
+
+    /// Writes `rows` with one `UNWIND` statement per batch instead of one
+    /// statement per node and edge.
+    pub fn persist_rows(&self, rows: &GraphRows) -> anyhow::Result<()> {
+        self.persist_statements(&rows.to_queries(self.batch_size))
+    }
+
+    pub fn persist_statements(&self, queries: &[Query]) -> anyhow::Result<()> {
+        let rendered: Vec<String> = queries.iter().map(Query::to_cypher).collect();
+        self.persist_queries(&rendered)
+    }
+
     pub fn persist_queries(&self, queries: &[String]) -> anyhow::Result<()> {
-        for q in queries {
-            self.recorded.lock().unwrap().push((self.graph_name.clone(), q.clone()));
-            let _ = self.exec.query(&self.graph_name, q)?;
-        }
+        self.recorded
+            .lock()
+            .unwrap()
+            .extend(queries.iter().map(|q| (self.graph_name.clone(), q.clone())));
+        self.exec.query_pipeline(&self.graph_name, queries)?;
         Ok(())
     }
 
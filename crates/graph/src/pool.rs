@@ -0,0 +1,264 @@
+use redis::{Client as RedisClient, Connection, ConnectionLike, RedisError};
+use std::sync::atomic::{AtomicU64, Ordering};
+use std::sync::{Arc, Condvar, Mutex};
+use std::time::{Duration, Instant};
+
+/// Settings for the pooled connections behind `RedisExecutor` and
+/// `AsyncRedisExecutor`.
+#[derive(Debug, Clone)]
+pub struct PoolConfig {
+    /// Most connections open at once; callers wait when all are in use.
+    pub max_size: usize,
+    /// Idle connections older than this are pinged before reuse.
+    pub health_check_interval: Duration,
+    pub connect_timeout: Duration,
+    /// Most commands sent in one pipelined write.
+    pub max_pipeline_depth: usize,
+}
+
+impl Default for PoolConfig {
+    fn default() -> Self {
+        Self {
+            max_size: 8,
+            health_check_interval: Duration::from_secs(30),
+            connect_timeout: Duration::from_secs(5),
+            max_pipeline_depth: 256,
+        }
+    }
+}
+
+/// Live counters for a pool, shared with whoever wants to report them.
+#[derive(Debug, Default)]
+pub struct PoolMetrics {
+    connections_opened: AtomicU64,
+    connections_open: AtomicU64,
+    connect_failures: AtomicU64,
+    health_check_failures: AtomicU64,
+    reconnects: AtomicU64,
+    commands: AtomicU64,
+    pipelines: AtomicU64,
+    max_pipeline_depth: AtomicU64,
+    command_micros: AtomicU64,
+    max_command_micros: AtomicU64,
+}
+
+/// A point-in-time copy of `PoolMetrics`.
+#[derive(Debug, Clone, Copy, Default, PartialEq)]
+pub struct PoolStats {
+    pub connections_opened: u64,
+    pub connections_open: u64,
+    pub connect_failures: u64,
+    pub health_check_failures: u64,
+    pub reconnects: u64,
+    pub commands: u64,
+    pub pipelines: u64,
+    pub max_pipeline_depth: u64,
+    pub command_micros: u64,
+    pub max_command_micros: u64,
+}
+
+impl PoolStats {
+    /// Mean latency per command. Pipelined commands share their round-trip.
+    pub fn mean_command_latency(&self) -> Duration {
+        if self.commands == 0 {
+            return Duration::ZERO;
+        }
+        Duration::from_micros(self.command_micros / self.commands)
+    }
+
+    pub fn mean_pipeline_depth(&self) -> f64 {
+        if self.pipelines == 0 {
+            return 0.0;
+        }
+        self.commands as f64 / self.pipelines as f64
+    }
+}
+
+impl PoolMetrics {
+    pub fn snapshot(&self) -> PoolStats {
+        PoolStats {
+            connections_opened: self.connections_opened.load(Ordering::Relaxed),
+            connections_open: self.connections_open.load(Ordering::Relaxed),
+            connect_failures: self.connect_failures.load(Ordering::Relaxed),
+            health_check_failures: self.health_check_failures.load(Ordering::Relaxed),
+            reconnects: self.reconnects.load(Ordering::Relaxed),
+            commands: self.commands.load(Ordering::Relaxed),
+            pipelines: self.pipelines.load(Ordering::Relaxed),
+            max_pipeline_depth: self.max_pipeline_depth.load(Ordering::Relaxed),
+            command_micros: self.command_micros.load(Ordering::Relaxed),
+            max_command_micros: self.max_command_micros.load(Ordering::Relaxed),
+        }
+    }
+
+    /// Records one round-trip carrying `depth` commands.
+    pub(crate) fn record_round_trip(&self, depth: usize, elapsed: Duration) {
+        let micros = elapsed.as_micros() as u64;
+        let depth = depth as u64;
+        self.commands.fetch_add(depth, Ordering::Relaxed);
+        self.pipelines.fetch_add(1, Ordering::Relaxed);
+        self.max_pipeline_depth.fetch_max(depth, Ordering::Relaxed);
+        self.command_micros.fetch_add(micros, Ordering::Relaxed);
+        self.max_command_micros.fetch_max(micros / depth.max(1), Ordering::Relaxed);
+    }
+
+    pub(crate) fn record_reconnect(&self) {
+        self.reconnects.fetch_add(1, Ordering::Relaxed);
+    }
+
+    pub(crate) fn record_connect(&self) {
+        self.connections_opened.fetch_add(1, Ordering::Relaxed);
+        self.connections_open.fetch_add(1, Ordering::Relaxed);
+    }
+
+    pub(crate) fn record_connect_failure(&self) {
+        self.connect_failures.fetch_add(1, Ordering::Relaxed);
+    }
+
+    pub(crate) fn record_disconnect(&self) {
+        self.connections_open.fetch_sub(1, Ordering::Relaxed);
+    }
+
+    pub(crate) fn record_health_check_failure(&self) {
+        self.health_check_failures.fetch_add(1, Ordering::Relaxed);
+    }
+}
+
+struct Idle {
+    conn: Connection,
+    last_used: Instant,
+}
+
+struct PoolState {
+    idle: Vec<Idle>,
+    open: usize,
+}
+
+/// A bounded pool of blocking Redis connections.
+pub struct ConnectionPool {
+    client: RedisClient,
+    config: PoolConfig,
+    state: Mutex<PoolState>,
+    returned: Condvar,
+    metrics: Arc<PoolMetrics>,
+}
+
+impl ConnectionPool {
+    pub fn new(client: RedisClient, config: PoolConfig) -> Self {
+        let config = PoolConfig { max_size: config.max_size.max(1), ..config };
+        Self {
+            client,
+            config,
+            state: Mutex::new(PoolState { idle: Vec::new(), open: 0 }),
+            returned: Condvar::new(),
+            metrics: Arc::new(PoolMetrics::default()),
+        }
+    }
+
+    pub fn config(&self) -> &PoolConfig {
+        &self.config
+    }
+
+    pub fn metrics(&self) -> Arc<PoolMetrics> {
+        Arc::clone(&self.metrics)
+    }
+
+    /// Takes a healthy connection, opening one if the pool has room and
+    /// waiting for one to be returned otherwise.
+    pub fn get(&self) -> Result<PooledConnection<'_>, RedisError> {
+        let mut state = self.state.lock().unwrap();
+        loop {
+            if let Some(mut idle) = state.idle.pop() {
+                drop(state);
+                if idle.last_used.elapsed() < self.config.health_check_interval || idle.conn.check_connection() {
+                    return Ok(PooledConnection { pool: self, conn: Some(idle.conn), broken: false });
+                }
+                self.metrics.record_health_check_failure();
+                self.discard();
+                state = self.state.lock().unwrap();
+                continue;
+            }
+            if state.open < self.config.max_size {
+                // Reserve the slot before connecting so the lock isn't held
+                state.open += 1;
+                drop(state);
+                return match self.client.get_connection_with_timeout(self.config.connect_timeout) {
+                    Ok(conn) => {
+                        self.metrics.record_connect();
+                        Ok(PooledConnection { pool: self, conn: Some(conn), broken: false })
+                    }
+                    Err(e) => {
+                        self.metrics.record_connect_failure();
+                        self.release_slot();
+                        Err(e)
+                    }
+                };
+            }
+            state = self.returned.wait(state).unwrap();
+        }
+    }
+
+    fn put_back(&self, conn: Connection) {
+        let mut state = self.state.lock().unwrap();
+        state.idle.push(Idle { conn, last_used: Instant::now() });
+        drop(state);
+        self.returned.notify_one();
+    }
+
+    /// Forgets a connection that was dropped instead of returned.
+    fn discard(&self) {
+        self.metrics.record_disconnect();
+        self.release_slot();
+    }
+
+    fn release_slot(&self) {
+        self.state.lock().unwrap().open -= 1;
+        self.returned.notify_one();
+    }
+}
+
+/// A connection checked out of a `ConnectionPool`. It goes back to the pool
+/// on drop unless it was marked broken.
+pub struct PooledConnection<'a> {
+    pool: &'a ConnectionPool,
+    conn: Option<Connection>,
+    broken: bool,
+}
+
+impl PooledConnection<'_> {
+    /// Closes the connection instead of returning it, e.g. after an I/O error.
+    pub fn mark_broken(&mut self) {
+        self.broken = true;
+    }
+}
+
+impl std::ops::Deref for PooledConnection<'_> {
+    type Target = Connection;
+
+    fn deref(&self) -> &Connection {
+        self.conn.as_ref().expect("connection taken")
+    }
+}
+
+impl std::ops::DerefMut for PooledConnection<'_> {
+    fn deref_mut(&mut self) -> &mut Connection {
+        self.conn.as_mut().expect("connection taken")
+    }
+}
+
+impl Drop for PooledConnection<'_> {
+    fn drop(&mut self) {
+        if let Some(conn) = self.conn.take() {
+            if self.broken || !conn.is_open() {
+                drop(conn);
+                self.pool.discard();
+            } else {
+                self.pool.put_back(conn);
+            }
+        }
+    }
+}
+
+/// Whether `e` means the connection itself is unusable.
+pub(crate) fn is_connection_error(e: &RedisError) -> bool {
+    e.is_io_error() || e.is_connection_dropped() || e.is_connection_refusal() || e.is_timeout()
+}
@@ -0,0 +1,164 @@
+use crate::rows::EntityLabel;
+
+/// A Cypher parameter value.
+#[derive(Debug, Clone, PartialEq)]
+pub enum Param {
+    Null,
+    Bool(bool),
+    Int(i64),
+    Str(String),
+    List(Vec<Param>),
+    Map(Vec<(&'static str, Param)>),
+}
+
+impl Param {
+    /// Appends the value as a Cypher literal.
+    fn write(&self, out: &mut String) {
+        match self {
+            Param::Null => out.push_str("null"),
+            Param::Bool(b) => out.push_str(if *b { "true" } else { "false" }),
+            Param::Int(i) => out.push_str(&i.to_string()),
+            Param::Str(s) => {
+                out.reserve(s.len() + 2);
+                out.push('\'');
+                for c in s.chars() {
+                    if c == '\\' || c == '\'' {
+                        out.push('\\');
+                    }
+                    out.push(c);
+                }
+                out.push('\'');
+            }
+            Param::List(items) => {
+                out.push('[');
+                for (i, item) in items.iter().enumerate() {
+                    if i > 0 { out.push(','); }
+                    item.write(out);
+                }
+                out.push(']');
+            }
+            Param::Map(entries) => {
+                out.push('{');
+                for (i, (key, value)) in entries.iter().enumerate() {
+                    if i > 0 { out.push(','); }
+                    out.push_str(key);
+                    out.push(':');
+                    value.write(out);
+                }
+                out.push('}');
+            }
+        }
+    }
+}
+
+impl From<&str> for Param {
+    fn from(s: &str) -> Self { Param::Str(s.to_string()) }
+}
+
+impl From<String> for Param {
+    fn from(s: String) -> Self { Param::Str(s) }
+}
+
+impl From<i64> for Param {
+    fn from(i: i64) -> Self { Param::Int(i) }
+}
+
+impl From<bool> for Param {
+    fn from(b: bool) -> Self { Param::Bool(b) }
+}
+
+/// A fixed statement template and the parameters it is run with.
+///
+/// Templates name their inputs `$name` and never contain values, so every
+/// use of a template sends the same statement text and FalkorDB can reuse
+/// its cached plan. Parameters go in the `CYPHER name=value ...` prefix.
+#[derive(Debug, Clone, PartialEq)]
+pub struct Query {
+    template: &'static str,
+    params: Vec<(&'static str, Param)>,
+}
+
+impl Query {
+    pub fn new(template: &'static str) -> Self {
+        Self { template, params: Vec::new() }
+    }
+
+    pub fn param(mut self, name: &'static str, value: impl Into<Param>) -> Self {
+        self.params.push((name, value.into()));
+        self
+    }
+
+    pub fn template(&self) -> &'static str {
+        self.template
+    }
+
+    pub fn params(&self) -> &[(&'static str, Param)] {
+        &self.params
+    }
+
+    /// The statement as sent to `GRAPH.QUERY`.
+    pub fn to_cypher(&self) -> String {
+        let mut out = String::with_capacity(self.template.len() + 32);
+        self.write_cypher(&mut out);
+        out
+    }
+
+    pub fn write_cypher(&self, out: &mut String) {
+        if !self.params.is_empty() {
+            out.push_str("CYPHER ");
+            for (name, value) in &self.params {
+                out.push_str(name);
+                out.push('=');
+                value.write(out);
+                out.push(' ');
+            }
+        }
+        out.push_str(self.template);
+    }
+}
+
+/// The statements the graph writers use.
+pub mod templates {
+    use super::EntityLabel;
+
+    pub const MERGE_FILE: &str = "MERGE (f:File { path: $path })";
+    pub const UNWIND_FILES: &str = "UNWIND $rows AS r MERGE (:File { path: r.path })";
+
+    /// Merges a file, one entity, and the edge between them. Expects `$path`
+    /// and `$name`.
+    pub fn merge_entity(label: EntityLabel) -> &'static str {
+        match label {
+            EntityLabel::Class => "MERGE (f:File { path: $path }) MERGE (n:Class { name: $name }) MERGE (f)-[:CONTAINS]->(n)",
+            EntityLabel::Function => "MERGE (f:File { path: $path }) MERGE (n:Function { name: $name }) MERGE (f)-[:CONTAINS]->(n)",
+            EntityLabel::Module => "MERGE (f:File { path: $path }) MERGE (n:Module { name: $name }) MERGE (f)-[:IMPORTS]->(n)",
+        }
+    }
+
+    /// Merges entity nodes only. Expects `$rows` of `{name}` maps.
+    pub fn unwind_nodes(label: EntityLabel) -> &'static str {
+        match label {
+            EntityLabel::Class => "UNWIND $rows AS r MERGE (:Class { name: r.name })",
+            EntityLabel::Function => "UNWIND $rows AS r MERGE (:Function { name: r.name })",
+            EntityLabel::Module => "UNWIND $rows AS r MERGE (:Module { name: r.name })",
+        }
+    }
+
+    /// Links files to entity nodes that `unwind_nodes` already merged.
+    /// Expects `$rows` of `{path, name}` maps.
+    pub fn unwind_edges(label: EntityLabel) -> &'static str {
+        match label {
+            EntityLabel::Class => "UNWIND $rows AS r MATCH (n:Class { name: r.name }) MERGE (f:File { path: r.path }) MERGE (f)-[:CONTAINS]->(n)",
+            EntityLabel::Function => "UNWIND $rows AS r MATCH (n:Function { name: r.name }) MERGE (f:File { path: r.path }) MERGE (f)-[:CONTAINS]->(n)",
+            EntityLabel::Module => "UNWIND $rows AS r MATCH (n:Module { name: r.name }) MERGE (f:File { path: r.path }) MERGE (f)-[:IMPORTS]->(n)",
+        }
+    }
+
+    /// Bulk form of `merge_entity`. Expects `$rows` of `{path, name}` maps.
+    pub fn unwind_entities(label: EntityLabel) -> &'static str {
+        match label {
+            EntityLabel::Class => "UNWIND $rows AS r MERGE (f:File { path: r.path }) MERGE (n:Class { name: r.name }) MERGE (f)-[:CONTAINS]->(n)",
+            EntityLabel::Function => "UNWIND $rows AS r MERGE (f:File { path: r.path }) MERGE (n:Function { name: r.name }) MERGE (f)-[:CONTAINS]->(n)",
+            EntityLabel::Module => "UNWIND $rows AS r MERGE (f:File { path: r.path }) MERGE (n:Module { name: r.name }) MERGE (f)-[:IMPORTS]->(n)",
+        }
+    }
+}
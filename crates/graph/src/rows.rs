@@ -0,0 +1,118 @@
+use crate::query::{templates, Param, Query};
+
+/// Default number of rows sent in one `UNWIND` statement.
+pub const DEFAULT_BATCH_SIZE: usize = 500;
+
+/// Kinds of named entity a file can own or reference.
+#[derive(Debug, Clone, Copy, PartialEq, Eq, Hash, PartialOrd, Ord)]
+pub enum EntityLabel {
+    Class,
+    Function,
+    Module,
+}
+
+impl EntityLabel {
+    pub const ALL: [EntityLabel; 3] = [EntityLabel::Class, EntityLabel::Function, EntityLabel::Module];
+
+    pub fn label(self) -> &'static str {
+        match self {
+            EntityLabel::Class => "Class",
+            EntityLabel::Function => "Function",
+            EntityLabel::Module => "Module",
+        }
+    }
+
+    /// Edge type from the owning file to the entity.
+    pub fn relation(self) -> &'static str {
+        match self {
+            EntityLabel::Class | EntityLabel::Function => "CONTAINS",
+            EntityLabel::Module => "IMPORTS",
+        }
+    }
+}
+
+/// An entity together with the file that contains or imports it.
+#[derive(Debug, Clone, PartialEq, Eq, Hash, PartialOrd, Ord)]
+pub struct EntityRow {
+    pub file: String,
+    pub label: EntityLabel,
+    pub name: String,
+}
+
+/// Graph mutations collected as typed rows, to be written in bulk.
+#[derive(Debug, Clone, Default)]
+pub struct GraphRows {
+    pub files: Vec<String>,
+    pub entities: Vec<EntityRow>,
+}
+
+impl GraphRows {
+    pub fn new() -> Self {
+        Self::default()
+    }
+
+    pub fn add_file(&mut self, path: &str) {
+        self.files.push(path.replace('\\', "/"));
+    }
+
+    pub fn add_entity(&mut self, file: &str, label: EntityLabel, name: &str) {
+        self.entities.push(EntityRow {
+            file: file.replace('\\', "/"),
+            label,
+            name: name.to_string(),
+        });
+    }
+
+    /// Whether `file` has at least one entity with `label`.
+    pub fn has_entity(&self, file: &str, label: EntityLabel) -> bool {
+        self.entities.iter().any(|e| e.label == label && e.file == file)
+    }
+
+    pub fn len(&self) -> usize {
+        self.files.len() + self.entities.len()
+    }
+
+    pub fn is_empty(&self) -> bool {
+        self.files.is_empty() && self.entities.is_empty()
+    }
+
+    pub fn append(&mut self, other: &mut GraphRows) {
+        self.files.append(&mut other.files);
+        self.entities.append(&mut other.entities);
+    }
+
+    pub fn clear(&mut self) {
+        self.files.clear();
+        self.entities.clear();
+    }
+
+    /// Groups the rows into `UNWIND $rows` queries of at most `batch_size`
+    /// rows each: file nodes first, then one run per entity label.
+    pub fn to_queries(&self, batch_size: usize) -> Vec<Query> {
+        let batch_size = batch_size.max(1);
+        let mut queries = Vec::new();
+
+        for chunk in self.files.chunks(batch_size) {
+            let rows = chunk.iter()
+                .map(|path| Param::Map(vec![("path", path.as_str().into())]))
+                .collect();
+            queries.push(Query::new(templates::UNWIND_FILES).param("rows", Param::List(rows)));
+        }
+
+        for label in EntityLabel::ALL {
+            let entities: Vec<&EntityRow> = self.entities.iter().filter(|e| e.label == label).collect();
+            for chunk in entities.chunks(batch_size) {
+                let rows = chunk.iter()
+                    .map(|e| Param::Map(vec![("path", e.file.as_str().into()), ("name", e.name.as_str().into())]))
+                    .collect();
+                queries.push(Query::new(templates::unwind_entities(label)).param("rows", Param::List(rows)));
+            }
+        }
+        queries
+    }
+
+    /// `to_queries` rendered as Cypher text.
+    pub fn to_statements(&self, batch_size: usize) -> Vec<String> {
+        self.to_queries(batch_size).iter().map(Query::to_cypher).collect()
+    }
+}
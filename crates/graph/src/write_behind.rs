@@ -0,0 +1,287 @@
+use crate::async_exec::AsyncGraphClient;
+use crate::pool::PoolStats;
+use crate::query::{templates, Param, Query};
+use crate::rows::{EntityLabel, EntityRow, GraphRows};
+use std::collections::BTreeSet;
+use std::fs::{File, OpenOptions};
+use std::io::Write;
+use std::path::{Path, PathBuf};
+use std::sync::atomic::{AtomicU64, Ordering};
+use std::sync::{Arc, Mutex};
+use std::time::{Duration, SystemTime, UNIX_EPOCH};
+use tokio::sync::Notify;
+use tokio::task::JoinHandle;
+
+/// Rough per-row bookkeeping cost on top of the row's strings.
+const ROW_OVERHEAD_BYTES: usize = 48;
+
+/// Append-only log of failed graph batches, one JSON object per line. Each
+/// line holds the statements as sent, so they can be replayed. The file is
+/// only created once something fails.
+pub struct FailureReport {
+    path: PathBuf,
+    file: Mutex<Option<File>>,
+}
+
+impl FailureReport {
+    pub fn new(path: impl Into<PathBuf>) -> Self {
+        Self { path: path.into(), file: Mutex::new(None) }
+    }
+
+    pub fn path(&self) -> &Path {
+        &self.path
+    }
+
+    /// Appends one failed batch and syncs it to disk.
+    pub fn record(&self, graph: &str, error: &anyhow::Error, statements: &[String]) -> std::io::Result<()> {
+        let unix_ms = SystemTime::now().duration_since(UNIX_EPOCH).map(|d| d.as_millis() as u64).unwrap_or(0);
+        let mut line = serde_json::json!({
+            "unix_ms": unix_ms,
+            "graph": graph,
+            "error": format!("{:#}", error),
+            "statements": statements,
+        })
+        .to_string();
+        line.push('\n');
+
+        let mut slot = self.file.lock().unwrap();
+        if slot.is_none() {
+            if let Some(parent) = self.path.parent() {
+                std::fs::create_dir_all(parent)?;
+            }
+            *slot = Some(OpenOptions::new().create(true).append(true).open(&self.path)?);
+        }
+        let file = slot.as_mut().expect("opened above");
+        file.write_all(line.as_bytes())?;
+        file.sync_data()
+    }
+}
+
+#[derive(Debug, Clone)]
+pub struct WriteBehindConfig {
+    /// Flush once this many distinct rows are buffered.
+    pub flush_rows: usize,
+    /// Flush whatever is buffered at least this often.
+    pub flush_interval: Duration,
+    /// Flush, and wait for a write slot, once buffered rows take this much
+    /// memory. Together with the client's in-flight limit this bounds what
+    /// ingest holds in memory.
+    pub memory_budget: usize,
+}
+
+impl Default for WriteBehindConfig {
+    fn default() -> Self {
+        Self {
+            flush_rows: 10_000,
+            flush_interval: Duration::from_secs(1),
+            memory_budget: 64 * 1024 * 1024,
+        }
+    }
+}
+
+#[derive(Debug, Clone, Copy, Default, PartialEq)]
+pub struct WriteBehindStats {
+    pub rows_received: u64,
+    /// Rows dropped because an identical row was already buffered.
+    pub rows_coalesced: u64,
+    pub flushes: u64,
+    pub failed_batches: u64,
+    pub pool: Option<PoolStats>,
+}
+
+/// Buffered mutations. Sets make duplicate rows free.
+#[derive(Default)]
+struct Pending {
+    files: BTreeSet<String>,
+    entities: BTreeSet<EntityRow>,
+    bytes: usize,
+}
+
+impl Pending {
+    /// Adds `rows`, returning how many were already buffered.
+    fn insert(&mut self, rows: GraphRows) -> u64 {
+        let mut duplicates = 0;
+        for file in rows.files {
+            let bytes = file.len() + ROW_OVERHEAD_BYTES;
+            if self.files.insert(file) {
+                self.bytes += bytes;
+            } else {
+                duplicates += 1;
+            }
+        }
+        for entity in rows.entities {
+            let bytes = entity.file.len() + entity.name.len() + ROW_OVERHEAD_BYTES;
+            if self.entities.insert(entity) {
+                self.bytes += bytes;
+            } else {
+                duplicates += 1;
+            }
+        }
+        duplicates
+    }
+
+    fn len(&self) -> usize {
+        self.files.len() + self.entities.len()
+    }
+
+    fn is_empty(&self) -> bool {
+        self.files.is_empty() && self.entities.is_empty()
+    }
+
+    /// Renders the buffer with each entity node merged once, however many
+    /// files reference it, and edges attached with a MATCH on the node.
+    fn to_statements(&self, batch_size: usize) -> Vec<String> {
+        let batch_size = batch_size.max(1);
+        let mut queries = Vec::new();
+
+        // Files with entities are merged by their edge rows
+        let linked: BTreeSet<&str> = self.entities.iter().map(|e| e.file.as_str()).collect();
+        let bare: Vec<&String> = self.files.iter().filter(|f| !linked.contains(f.as_str())).collect();
+        for chunk in bare.chunks(batch_size) {
+            let rows = chunk.iter().map(|path| Param::Map(vec![("path", path.as_str().into())])).collect();
+            queries.push(Query::new(templates::UNWIND_FILES).param("rows", Param::List(rows)));
+        }
+
+        for label in EntityLabel::ALL {
+            let entities: Vec<&EntityRow> = self.entities.iter().filter(|e| e.label == label).collect();
+            let names: BTreeSet<&str> = entities.iter().map(|e| e.name.as_str()).collect();
+            let names: Vec<&str> = names.into_iter().collect();
+            for chunk in names.chunks(batch_size) {
+                let rows = chunk.iter().map(|name| Param::Map(vec![("name", (*name).into())])).collect();
+                queries.push(Query::new(templates::unwind_nodes(label)).param("rows", Param::List(rows)));
+            }
+            for chunk in entities.chunks(batch_size) {
+                let rows = chunk.iter()
+                    .map(|e| Param::Map(vec![("path", e.file.as_str().into()), ("name", e.name.as_str().into())]))
+                    .collect();
+                queries.push(Query::new(templates::unwind_edges(label)).param("rows", Param::List(rows)));
+            }
+        }
+        queries.iter().map(Query::to_cypher).collect()
+    }
+}
+
+struct Inner {
+    client: AsyncGraphClient,
+    config: WriteBehindConfig,
+    pending: tokio::sync::Mutex<Pending>,
+    rows_received: AtomicU64,
+    rows_coalesced: AtomicU64,
+    flushes: AtomicU64,
+}
+
+impl Inner {
+    async fn flush(&self) -> anyhow::Result<()> {
+        let batch = std::mem::take(&mut *self.pending.lock().await);
+        self.write(batch).await
+    }
+
+    async fn write(&self, batch: Pending) -> anyhow::Result<()> {
+        if batch.is_empty() {
+            return Ok(());
+        }
+        self.flushes.fetch_add(1, Ordering::Relaxed);
+        // Waits while the client has max_in_flight batches outstanding
+        self.client.submit(batch.to_statements(self.client.batch_size())).await
+    }
+
+    fn stats(&self) -> WriteBehindStats {
+        WriteBehindStats {
+            rows_received: self.rows_received.load(Ordering::Relaxed),
+            rows_coalesced: self.rows_coalesced.load(Ordering::Relaxed),
+            flushes: self.flushes.load(Ordering::Relaxed),
+            failed_batches: self.client.failed_batches() as u64,
+            pool: self.client.pool_stats(),
+        }
+    }
+}
+
+/// Write-behind buffer in front of an `AsyncGraphClient`.
+///
+/// `push` returns as soon as its rows are buffered. Identical rows are
+/// coalesced, and the buffer is written when it reaches `flush_rows` or
+/// `memory_budget`, and every `flush_interval`. Reaching either limit makes
+/// `push` wait for a free write slot, so a slow graph slows ingest down
+/// rather than growing the buffer. Failed batches go to the client's
+/// `FailureReport` and are counted by `finish`. Call `finish` before
+/// dropping the buffer, or rows still buffered are lost.
+pub struct WriteBehind {
+    inner: Arc<Inner>,
+    stop: Arc<Notify>,
+    ticker: JoinHandle<()>,
+}
+
+impl WriteBehind {
+    /// Must be called inside a tokio runtime, which runs the interval flush.
+    pub fn new(client: AsyncGraphClient, config: WriteBehindConfig) -> Self {
+        let period = config.flush_interval.max(Duration::from_millis(1));
+        let inner = Arc::new(Inner {
+            client,
+            config,
+            pending: tokio::sync::Mutex::new(Pending::default()),
+            rows_received: AtomicU64::new(0),
+            rows_coalesced: AtomicU64::new(0),
+            flushes: AtomicU64::new(0),
+        });
+
+        let weak = Arc::downgrade(&inner);
+        let stop = Arc::new(Notify::new());
+        let stopped = Arc::clone(&stop);
+        let ticker = tokio::spawn(async move {
+            let mut interval = tokio::time::interval(period);
+            // The first tick completes immediately
+            interval.tick().await;
+            loop {
+                tokio::select! {
+                    _ = interval.tick() => {}
+                    _ = stopped.notified() => break,
+                }
+                let Some(inner) = weak.upgrade() else { break };
+                // Failures are reported through the client
+                let _ = inner.flush().await;
+            }
+        });
+        Self { inner, stop, ticker }
+    }
+
+    pub async fn push(&self, rows: GraphRows) -> anyhow::Result<()> {
+        let received = rows.len() as u64;
+        let ready = {
+            let mut pending = self.inner.pending.lock().await;
+            let duplicates = pending.insert(rows);
+            self.inner.rows_received.fetch_add(received, Ordering::Relaxed);
+            self.inner.rows_coalesced.fetch_add(duplicates, Ordering::Relaxed);
+            let config = &self.inner.config;
+            if pending.len() >= config.flush_rows || pending.bytes >= config.memory_budget {
+                Some(std::mem::take(&mut *pending))
+            } else {
+                None
+            }
+        };
+        match ready {
+            Some(batch) => self.inner.write(batch).await,
+            None => Ok(()),
+        }
+    }
+
+    /// Writes everything buffered so far without waiting for it to land.
+    pub async fn flush(&self) -> anyhow::Result<()> {
+        self.inner.flush().await
+    }
+
+    pub fn stats(&self) -> WriteBehindStats {
+        self.inner.stats()
+    }
+
+    /// Writes what is left, waits for every batch, and returns the first
+    /// failure, if any.
+    pub async fn finish(self) -> anyhow::Result<WriteBehindStats> {
+        let WriteBehind { inner, stop, ticker } = self;
+        // Let an interval flush that is under way hand off its batch first
+        stop.notify_one();
+        let _ = ticker.await;
+        inner.flush().await?;
+        inner.client.finish().await?;
+        Ok(inner.stats())
+    }
+}
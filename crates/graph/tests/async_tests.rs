@@ -0,0 +1,99 @@
+use code_context_graph_graph::{AsyncGraphClient, AsyncGraphExecutor, BlockingExecutor, BoxFuture, GraphExecutor};
+use std::sync::atomic::{AtomicUsize, Ordering};
+use std::sync::{Arc, Mutex};
+use std::time::Duration;
+
+/// Records queries and tracks how many calls overlap.
+#[derive(Default)]
+struct SlowExec {
+    recorded: Mutex<Vec<String>>,
+    active: AtomicUsize,
+    peak: AtomicUsize,
+    fail_on: Option<&'static str>,
+}
+
+impl AsyncGraphExecutor for SlowExec {
+    fn query<'a>(&'a self, _graph: &'a str, cypher: &'a str) -> BoxFuture<'a, anyhow::Result<redis::Value>> {
+        Box::pin(async move {
+            let now = self.active.fetch_add(1, Ordering::SeqCst) + 1;
+            self.peak.fetch_max(now, Ordering::SeqCst);
+            tokio::time::sleep(Duration::from_millis(10)).await;
+            self.active.fetch_sub(1, Ordering::SeqCst);
+            if Some(cypher) == self.fail_on {
+                anyhow::bail!("write rejected: {}", cypher);
+            }
+            self.recorded.lock().unwrap().push(cypher.to_string());
+            Ok(redis::Value::Okay)
+        })
+    }
+}
+
+#[tokio::test(flavor = "multi_thread", worker_threads = 4)]
+async fn submit_bounds_writes_in_flight() {
+    let exec = Arc::new(SlowExec::default());
+    let client = AsyncGraphClient::new("g", exec.clone(), 2);
+
+    for i in 0..8 {
+        client.submit(vec![format!("RETURN {}", i)]).await.unwrap();
+    }
+    client.finish().await.unwrap();
+
+    assert_eq!(exec.recorded.lock().unwrap().len(), 8);
+    let peak = exec.peak.load(Ordering::SeqCst);
+    assert!(peak <= 2, "at most two batches may be in flight, saw {}", peak);
+    assert!(peak >= 2, "batches should overlap, saw {}", peak);
+}
+
+#[tokio::test]
+async fn finish_reports_failed_writes() {
+    let exec = Arc::new(SlowExec { fail_on: Some("RETURN bad"), ..SlowExec::default() });
+    let client = AsyncGraphClient::new("g", exec.clone(), 4);
+
+    client.submit(vec!["RETURN 1".to_string()]).await.unwrap();
+    client.submit(vec!["RETURN bad".to_string()]).await.unwrap();
+    client.submit(vec!["RETURN 2".to_string()]).await.unwrap();
+
+    let err = client.finish().await.unwrap_err();
+    assert!(err.to_string().contains("RETURN bad"));
+    assert_eq!(exec.recorded.lock().unwrap().len(), 2);
+    // The failure is reported once
+    client.finish().await.unwrap();
+}
+
+struct SyncExec(Arc<Mutex<Vec<String>>>);
+
+impl GraphExecutor for SyncExec {
+    fn query(&self, _graph: &str, cypher: &str) -> anyhow::Result<redis::Value> {
+        self.0.lock().unwrap().push(cypher.to_string());
+        Ok(redis::Value::Okay)
+    }
+}
+
+#[tokio::test]
+async fn blocking_executor_adapts_sync_executors() {
+    let recorded = Arc::new(Mutex::new(Vec::new()));
+    let exec = BlockingExecutor::new(SyncExec(recorded.clone()));
+
+    let replies = exec.query_pipeline("g", &["RETURN 1".to_string(), "RETURN 2".to_string()]).await.unwrap();
+    assert_eq!(replies.len(), 2);
+    assert_eq!(*recorded.lock().unwrap(), vec!["RETURN 1".to_string(), "RETURN 2".to_string()]);
+}
+
+#[tokio::test]
+async fn redis_pool_config_applies_to_async_executor() {
+    use code_context_graph_graph::{AsyncRedisExecutor, PoolConfig};
+
+    // Nothing listens on port 1
+    let pool = PoolConfig { max_size: 2, connect_timeout: Duration::from_millis(200), max_pipeline_depth: 0, ..PoolConfig::default() };
+    let exec = AsyncRedisExecutor::with_config("redis://127.0.0.1:1", pool).unwrap();
+    assert_eq!(exec.config().max_size, 2);
+    assert_eq!(exec.config().max_pipeline_depth, 1);
+
+    // Each round-trip takes the next pooled connection and fails to open it
+    assert!(exec.query("g", "RETURN 1").await.is_err());
+    assert!(exec.query("g", "RETURN 1").await.is_err());
+    let stats = exec.metrics().snapshot();
+    assert_eq!(stats.connect_failures, 2);
+    assert_eq!(stats.connections_open, 0);
+    assert_eq!(stats.commands, 0);
+}
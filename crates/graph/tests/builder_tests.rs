@@ -66,3 +66,66 @@ def foo():
         "MERGE (f)-[:IMPORTS]->(m)",
     ]);
 }
+
+#[test]
+fn builds_typed_rows_for_bulk_writes() {
+    use code_context_graph_graph::{EntityLabel, GraphRows};
+
+    let source = r#"
+import os
+
+class Foo:
+    def bar(self):
+        pass
+"#;
+    let ast = TestUtils::parse_source(source, Language::Python).unwrap();
+    let builder = GraphBuilder::new("code_graph");
+    let mut rows = GraphRows::new();
+    builder.build_rows(&ast, "src\\foo.py", &mut rows);
+
+    assert_eq!(rows.files, vec!["src/foo.py".to_string()]);
+    assert!(rows.has_entity("src/foo.py", EntityLabel::Class));
+    assert!(rows.has_entity("src/foo.py", EntityLabel::Function));
+    assert!(rows.has_entity("src/foo.py", EntityLabel::Module));
+
+    let statements = rows.to_statements(100);
+    // One statement for files plus one per entity label
+    assert_eq!(statements.len(), 4);
+    contains_all(&statements.join("\n"), &[
+        "CYPHER rows=[{path:'src/foo.py'}] UNWIND $rows AS r MERGE (:File { path: r.path })",
+        "{path:'src/foo.py',name:'Foo'}",
+        "MERGE (n:Class { name: r.name }) MERGE (f)-[:CONTAINS]->(n)",
+        "MERGE (n:Module { name: r.name }) MERGE (f)-[:IMPORTS]->(n)",
+    ]);
+}
+
+#[test]
+fn row_literals_are_escaped() {
+    use code_context_graph_graph::{EntityLabel, GraphRows};
+
+    let mut rows = GraphRows::new();
+    rows.add_entity("a.py", EntityLabel::Function, "it's\\odd");
+    let statements = rows.to_statements(10);
+    assert_eq!(statements.len(), 1);
+    assert!(statements[0].contains(r"name:'it\'s\\odd'"), "got: {}", statements[0]);
+}
+
+#[test]
+fn statements_reuse_fixed_templates_across_files() {
+    use code_context_graph_graph::{templates, EntityLabel, Param};
+
+    let builder = GraphBuilder::new("code_graph");
+    let a = builder.build_statements(&TestUtils::parse_source("def foo():\n    pass\n", Language::Python).unwrap(), "a.py");
+    let b = builder.build_statements(&TestUtils::parse_source("def bar():\n    pass\n", Language::Python).unwrap(), "b.py");
+
+    assert_eq!(a.len(), 2);
+    assert_eq!(a[0].template(), templates::MERGE_FILE);
+    // Same statement text for both files; only the parameters differ
+    assert_eq!(a[1].template(), templates::merge_entity(EntityLabel::Function));
+    assert_eq!(a[1].template(), b[1].template());
+    assert_eq!(a[1].params()[1], ("name", Param::Str("foo".to_string())));
+    assert_eq!(
+        b[1].to_cypher(),
+        "CYPHER path='b.py' name='bar' MERGE (f:File { path: $path }) MERGE (n:Function { name: $name }) MERGE (f)-[:CONTAINS]->(n)"
+    );
+}
@@ -52,3 +52,73 @@ def foo(x):
     assert!(all.contains("MERGE (fn:Function { name: 'foo' })"));
     assert!(all.contains("MERGE (m:Module { name: 'os' })"));
 }
+
+#[test]
+fn persist_rows_sends_one_statement_per_batch() {
+    use code_context_graph_graph::{EntityLabel, GraphRows};
+
+    let client = GraphClient::with_executor("code_graph", Box::new(MockExec::new())).with_batch_size(2);
+    let mut rows = GraphRows::new();
+    for i in 0..5 {
+        let file = format!("m{}.py", i);
+        rows.add_file(&file);
+        rows.add_entity(&file, EntityLabel::Function, &format!("f{}", i));
+    }
+    client.persist_rows(&rows).unwrap();
+
+    let recorded = client.recorded_for_tests();
+    // 5 files and 5 functions, two rows per statement
+    assert_eq!(recorded.len(), 6);
+    assert!(recorded.iter().all(|(_, q)| q.contains("UNWIND $rows AS r")));
+    assert!(recorded[5].1.contains("{path:'m4.py',name:'f4'}"));
+}
+
+#[test]
+fn persist_empty_rows_sends_nothing() {
+    use code_context_graph_graph::GraphRows;
+
+    let client = GraphClient::with_executor("code_graph", Box::new(MockExec::new()));
+    client.persist_rows(&GraphRows::new()).unwrap();
+    assert!(client.recorded_for_tests().is_empty());
+}
+
+#[test]
+fn persist_statements_renders_parameters() {
+    use code_context_graph_graph::{Param, Query};
+
+    let client = GraphClient::with_executor("code_graph", Box::new(MockExec::new()));
+    let query = Query::new("MATCH (n { id: $id, tags: $tags }) RETURN n")
+        .param("id", 7i64)
+        .param("tags", Param::List(vec!["a'b".into(), Param::Null, true.into()]));
+    client.persist_statements(&[query]).unwrap();
+
+    let recorded = client.recorded_for_tests();
+    assert_eq!(recorded[0].1, r"CYPHER id=7 tags=['a\'b',null,true] MATCH (n { id: $id, tags: $tags }) RETURN n");
+}
+
+#[test]
+fn executors_pipeline_through_query_by_default() {
+    let exec = MockExec::new();
+    let cyphers = vec!["RETURN 1".to_string(), "RETURN 2".to_string()];
+    let replies = exec.query_pipeline("g", &cyphers).unwrap();
+    assert_eq!(replies.len(), 2);
+    assert_eq!(exec.recorded(), vec![("g".to_string(), "RETURN 1".to_string()), ("g".to_string(), "RETURN 2".to_string())]);
+}
+
+#[test]
+fn redis_pool_reports_connect_failures() {
+    use code_context_graph_graph::{PoolConfig, RedisExecutor};
+    use std::time::Duration;
+
+    // Nothing listens on port 1
+    let pool = PoolConfig { max_size: 1, connect_timeout: Duration::from_millis(200), ..PoolConfig::default() };
+    let exec = RedisExecutor::with_config("redis://127.0.0.1:1", pool).unwrap();
+    assert!(exec.query("g", "RETURN 1").is_err());
+    // The failed connect gives its slot back, so a second attempt doesn't block
+    assert!(exec.query("g", "RETURN 1").is_err());
+
+    let stats = exec.metrics().snapshot();
+    assert_eq!(stats.connect_failures, 2);
+    assert_eq!(stats.connections_open, 0);
+    assert_eq!(stats.commands, 0);
+}
@@ -0,0 +1,104 @@
+use code_context_graph_graph::{
+    AsyncGraphClient, AsyncGraphExecutor, BoxFuture, EntityLabel, FailureReport, GraphRows, WriteBehind,
+    WriteBehindConfig,
+};
+use std::sync::{Arc, Mutex};
+use std::time::Duration;
+
+#[derive(Default)]
+struct RecordingExec {
+    recorded: Mutex<Vec<String>>,
+    fail: bool,
+}
+
+impl RecordingExec {
+    fn recorded(&self) -> Vec<String> {
+        self.recorded.lock().unwrap().clone()
+    }
+}
+
+impl AsyncGraphExecutor for RecordingExec {
+    fn query<'a>(&'a self, _graph: &'a str, cypher: &'a str) -> BoxFuture<'a, anyhow::Result<redis::Value>> {
+        Box::pin(async move {
+            if self.fail {
+                anyhow::bail!("graph unavailable");
+            }
+            self.recorded.lock().unwrap().push(cypher.to_string());
+            Ok(redis::Value::Okay)
+        })
+    }
+}
+
+fn importing(file: &str, module: &str) -> GraphRows {
+    let mut rows = GraphRows::new();
+    rows.add_file(file);
+    rows.add_entity(file, EntityLabel::Module, module);
+    rows
+}
+
+#[tokio::test]
+async fn duplicate_rows_and_shared_nodes_are_coalesced() {
+    let exec = Arc::new(RecordingExec::default());
+    let writer = WriteBehind::new(AsyncGraphClient::new("g", exec.clone(), 2), WriteBehindConfig::default());
+
+    writer.push(importing("a.py", "os")).await.unwrap();
+    writer.push(importing("b.py", "os")).await.unwrap();
+    writer.push(importing("a.py", "os")).await.unwrap();
+    let stats = writer.finish().await.unwrap();
+
+    assert_eq!(stats.rows_received, 6);
+    assert_eq!(stats.rows_coalesced, 2);
+    assert_eq!(stats.flushes, 1);
+
+    let recorded = exec.recorded();
+    // The module node is merged once, then linked from both files
+    assert_eq!(recorded.len(), 2);
+    assert_eq!(recorded[0], "CYPHER rows=[{name:'os'}] UNWIND $rows AS r MERGE (:Module { name: r.name })");
+    assert!(recorded[1].starts_with("CYPHER rows=[{path:'a.py',name:'os'},{path:'b.py',name:'os'}] UNWIND $rows AS r MATCH (n:Module"));
+}
+
+#[tokio::test]
+async fn flushes_when_the_buffer_fills() {
+    let exec = Arc::new(RecordingExec::default());
+    let config = WriteBehindConfig { flush_rows: 4, flush_interval: Duration::from_secs(3600), ..WriteBehindConfig::default() };
+    let writer = WriteBehind::new(AsyncGraphClient::new("g", exec.clone(), 2), config);
+
+    for i in 0..4 {
+        writer.push(importing(&format!("m{}.py", i), "os")).await.unwrap();
+    }
+    // Two rows per push, so every second push fills the buffer
+    assert_eq!(writer.stats().flushes, 2);
+    assert_eq!(writer.finish().await.unwrap().flushes, 2);
+}
+
+#[tokio::test]
+async fn flushes_on_the_interval() {
+    let exec = Arc::new(RecordingExec::default());
+    let config = WriteBehindConfig { flush_interval: Duration::from_millis(20), ..WriteBehindConfig::default() };
+    let writer = WriteBehind::new(AsyncGraphClient::new("g", exec.clone(), 2), config);
+
+    writer.push(importing("a.py", "os")).await.unwrap();
+    tokio::time::sleep(Duration::from_millis(200)).await;
+    assert!(!exec.recorded().is_empty(), "buffered rows should be written without an explicit flush");
+    writer.finish().await.unwrap();
+}
+
+#[tokio::test]
+async fn failed_batches_are_reported_durably() {
+    let dir = tempfile::tempdir().unwrap();
+    let log = dir.path().join("ws").join("graph_failures.jsonl");
+    let exec = Arc::new(RecordingExec { fail: true, ..RecordingExec::default() });
+    let client = AsyncGraphClient::new("g", exec, 2).with_failure_report(FailureReport::new(&log));
+    let writer = WriteBehind::new(client, WriteBehindConfig::default());
+
+    writer.push(importing("a.py", "os")).await.unwrap();
+    let err = writer.finish().await.unwrap_err();
+    assert!(err.to_string().contains("graph unavailable"));
+
+    let report = std::fs::read_to_string(&log).unwrap();
+    let lines: Vec<&str> = report.lines().collect();
+    assert_eq!(lines.len(), 1);
+    let entry: serde_json::Value = serde_json::from_str(lines[0]).unwrap();
+    assert_eq!(entry["graph"], "g");
+    assert_eq!(entry["statements"].as_array().unwrap().len(), 2);
+}
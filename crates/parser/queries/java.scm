@@ -0,0 +1,55 @@
+; Definitions
+
+(class_declaration
+  name: (identifier) @name) @definition.class
+
+(interface_declaration
+  name: (identifier) @name) @definition.interface
+
+(enum_declaration
+  name: (identifier) @name) @definition.enum
+
+(method_declaration
+  name: (identifier) @name) @definition.method
+
+(constructor_declaration
+  name: (identifier) @name) @definition.method
+
+(local_variable_declaration
+  declarator: (variable_declarator
+    name: (identifier) @name)) @definition.variable
+
+; Inheritance
+
+(superclass
+  (type_identifier) @reference.extends)
+
+(superclass
+  (generic_type
+    (type_identifier) @reference.extends))
+
+(super_interfaces
+  (type_list
+    (type_identifier) @reference.implements))
+
+(super_interfaces
+  (type_list
+    (generic_type
+      (type_identifier) @reference.implements)))
+
+(extends_interfaces
+  (type_list
+    (type_identifier) @reference.extends))
+
+; Imports
+
+(import_declaration
+  (scoped_identifier) @name) @reference.import
+
+(import_declaration
+  (identifier) @name) @reference.import
+
+; Calls
+
+(method_invocation
+  name: (identifier) @name) @reference.call
@@ -0,0 +1,44 @@
+; Definitions
+
+(class_declaration
+  name: (identifier) @name) @definition.class
+
+(function_declaration
+  name: (identifier) @name) @definition.function
+
+(generator_function_declaration
+  name: (identifier) @name) @definition.function
+
+(method_definition
+  name: (property_identifier) @name) @definition.method
+
+(variable_declarator
+  name: (identifier) @name
+  value: (arrow_function)) @definition.function
+
+(variable_declaration
+  (variable_declarator
+    name: (identifier) @name)) @definition.variable
+
+; Inheritance
+
+(class_heritage
+  (identifier) @reference.extends)
+
+(class_heritage
+  (member_expression) @reference.extends)
+
+; Imports
+
+(import_statement
+  source: (string
+    (string_fragment) @name)) @reference.import
+
+; Calls
+
+(call_expression
+  function: (identifier) @name) @reference.call
+
+(call_expression
+  function: (member_expression
+    property: (property_identifier) @name)) @reference.call
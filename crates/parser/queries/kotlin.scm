@@ -0,0 +1,36 @@
+; Definitions
+
+(class_declaration
+  (identifier) @name) @definition.class
+
+(object_declaration
+  (identifier) @name) @definition.class
+
+(function_declaration
+  (identifier) @name) @definition.function
+
+; Inheritance. Kotlin does not mark which supertype is the class, so every
+; supertype is reported as extended.
+
+(delegation_specifier
+  (user_type
+    (identifier) @reference.extends))
+
+(delegation_specifier
+  (constructor_invocation
+    (user_type
+      (identifier) @reference.extends)))
+
+; Imports
+
+(import
+  (qualified_identifier) @name) @reference.import
+
+; Calls
+
+(call_expression
+  . (identifier) @name) @reference.call
+
+(call_expression
+  . (navigation_expression
+    (identifier) @name .)) @reference.call
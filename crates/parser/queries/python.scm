@@ -0,0 +1,44 @@
+; Definitions
+
+(class_definition
+  name: (identifier) @name) @definition.class
+
+(function_definition
+  name: (identifier) @name) @definition.function
+
+(assignment
+  left: (identifier) @name) @definition.variable
+
+; Inheritance
+
+(class_definition
+  superclasses: (argument_list
+    (identifier) @reference.extends))
+
+(class_definition
+  superclasses: (argument_list
+    (attribute) @reference.extends))
+
+; Imports
+
+(import_statement
+  name: (dotted_name) @name) @reference.import
+
+(import_statement
+  name: (aliased_import
+    name: (dotted_name) @name)) @reference.import
+
+(import_from_statement
+  module_name: (dotted_name) @name) @reference.import
+
+(import_from_statement
+  module_name: (relative_import) @name) @reference.import
+
+; Calls
+
+(call
+  function: (identifier) @name) @reference.call
+
+(call
+  function: (attribute
+    attribute: (identifier) @name)) @reference.call
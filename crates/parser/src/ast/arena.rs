@@ -0,0 +1,627 @@
+use code_context_graph_core::{Language, Result, CodeGraphError, Symbol};
+use crate::ast::{ASTNode, ASTNodeType, NodeLocation, NodeMetadata, SimplifiedAST};
+use std::borrow::Cow;
+use std::collections::HashMap;
+use std::sync::Arc;
+use tree_sitter::Node;
+
+/// Index of a node inside an `ArenaAST`. The root is always `0`.
+pub type NodeId = u32;
+
+const NONE: u32 = u32::MAX;
+
+/// Deduplicating string table; each distinct string is stored once.
+#[derive(Debug, Clone, Default)]
+pub struct StringInterner {
+    lookup: HashMap<Arc<str>, u32>,
+    strings: Vec<Arc<str>>,
+}
+
+impl StringInterner {
+    pub fn new() -> Self {
+        Self::default()
+    }
+
+    pub fn intern(&mut self, value: &str) -> u32 {
+        if let Some(&symbol) = self.lookup.get(value) {
+            return symbol;
+        }
+
+        let symbol = self.strings.len() as u32;
+        let value: Arc<str> = Arc::from(value);
+        self.strings.push(Arc::clone(&value));
+        self.lookup.insert(value, symbol);
+        symbol
+    }
+
+    pub fn resolve(&self, symbol: u32) -> Option<&str> {
+        self.strings.get(symbol as usize).map(|s| s.as_ref())
+    }
+
+    pub fn len(&self) -> usize {
+        self.strings.len()
+    }
+
+    pub fn is_empty(&self) -> bool {
+        self.strings.is_empty()
+    }
+}
+
+/// Byte range of a node's name inside the arena's source.
+#[derive(Debug, Clone, Copy, PartialEq, Eq)]
+struct NameSpan {
+    start: u32,
+    len: u32,
+}
+
+impl NameSpan {
+    const NONE: NameSpan = NameSpan { start: NONE, len: 0 };
+
+    /// `name` must be a slice of `source`, which every extracted name is.
+    fn of(name: &str, source: &str) -> Self {
+        let start = name.as_ptr() as usize - source.as_ptr() as usize;
+        debug_assert!(source.get(start..start + name.len()) == Some(name));
+        NameSpan { start: start as u32, len: name.len() as u32 }
+    }
+}
+
+/// Fixed-size node record. Children are linked through indices rather than
+/// owned, and nodes are laid out in preorder, so the subtree of node `i`
+/// is exactly `i..subtree_end`.
+#[derive(Debug, Clone, PartialEq)]
+struct ArenaNode {
+    node_type: u32,
+    kind: u32,
+    name: NameSpan,
+    location: NodeLocation,
+    parent: NodeId,
+    first_child: NodeId,
+    next_sibling: NodeId,
+    subtree_end: NodeId,
+    is_named: bool,
+}
+
+/// Flat alternative to `SimplifiedAST`.
+///
+/// All nodes live in one contiguous `Vec`. Names are byte ranges into the
+/// shared source, so building the arena allocates no strings per node;
+/// tree-sitter kinds are interned, node types are stored as small indices,
+/// and only nodes that
+/// carry language-specific metadata (decorators, modifiers, supertypes...)
+/// get an entry in the metadata side-table. The common `kind`/`is_named`/
+/// `language` metadata is answered from the node itself, so none of it is
+/// materialized per node.
+#[derive(Debug, Clone)]
+pub struct ArenaAST {
+    nodes: Vec<ArenaNode>,
+    node_types: Vec<ASTNodeType>,
+    strings: StringInterner,
+    metadata: Vec<(NodeId, NodeMetadata)>,
+    source: Arc<str>,
+    pub language: Language,
+    pub source_hash: code_context_graph_core::Hash,
+}
+
+impl ArenaAST {
+    /// Converts a tree-sitter tree, applying the same node filtering and name
+    /// extraction as `SimplifiedAST::from_tree_sitter`. The walk uses an
+    /// explicit stack, so deeply nested sources cannot overflow the call stack.
+    /// The source is copied once into a shared buffer.
+    pub fn from_tree_sitter(root: Node, source: &str, language: Language) -> Result<Self> {
+        Self::from_tree_sitter_shared(root, Arc::from(source), language)
+    }
+
+    /// Like `from_tree_sitter`, keeping a reference to `source` instead of
+    /// copying it.
+    pub fn from_tree_sitter_shared(root: Node, source: Arc<str>, language: Language) -> Result<Self> {
+        let mut builder = ArenaBuilder::new(language);
+        let mut pending: Vec<(Node, NodeId)> = vec![(root, NONE)];
+        let mut last_child: Vec<NodeId> = Vec::new();
+
+        while let Some((node, parent)) = pending.pop() {
+            let id = builder.push(&node, &source, parent);
+            last_child.push(NONE);
+
+            if parent != NONE {
+                match last_child[parent as usize] {
+                    NONE => builder.nodes[parent as usize].first_child = id,
+                    previous => builder.nodes[previous as usize].next_sibling = id,
+                }
+                last_child[parent as usize] = id;
+            }
+
+            // Push included children reversed so they pop in source order
+            let first_pending = pending.len();
+            let mut cursor = node.walk();
+            for child in node.children(&mut cursor) {
+                if SimplifiedAST::should_include_node(&child, language) {
+                    pending.push((child, id));
+                }
+            }
+            pending[first_pending..].reverse();
+        }
+
+        if builder.nodes.is_empty() {
+            return Err(CodeGraphError::Parser {
+                message: "Cannot build an arena AST from an empty tree".to_string(),
+            });
+        }
+
+        Ok(builder.finish(source))
+    }
+
+    pub fn root(&self) -> NodeRef<'_> {
+        self.node(0)
+    }
+
+    /// Panics if `id` is out of range, like slice indexing.
+    pub fn node(&self, id: NodeId) -> NodeRef<'_> {
+        assert!((id as usize) < self.nodes.len(), "node id {} out of range", id);
+        NodeRef { ast: self, id }
+    }
+
+    pub fn get(&self, id: NodeId) -> Option<NodeRef<'_>> {
+        ((id as usize) < self.nodes.len()).then(|| NodeRef { ast: self, id })
+    }
+
+    pub fn len(&self) -> usize {
+        self.nodes.len()
+    }
+
+    pub fn is_empty(&self) -> bool {
+        self.nodes.is_empty()
+    }
+
+    /// All nodes in preorder.
+    pub fn iter(&self) -> impl Iterator<Item = NodeRef<'_>> + '_ {
+        (0..self.nodes.len() as NodeId).map(move |id| NodeRef { ast: self, id })
+    }
+
+    pub fn interner(&self) -> &StringInterner {
+        &self.strings
+    }
+
+    /// The source the tree was built from; names and node text borrow it.
+    pub fn source(&self) -> &str {
+        &self.source
+    }
+
+    pub fn shared_source(&self) -> &Arc<str> {
+        &self.source
+    }
+
+    /// Approximate heap footprint in bytes: node array, side-tables, interned
+    /// kinds and the source buffer.
+    pub fn memory_usage(&self) -> usize {
+        let nodes = self.nodes.capacity() * std::mem::size_of::<ArenaNode>();
+        let strings: usize = self.strings.strings.iter()
+            .map(|s| s.len() + std::mem::size_of::<Arc<str>>() * 2 + std::mem::size_of::<u32>())
+            .sum();
+        let metadata: usize = self.metadata.iter()
+            .map(|(_, metadata)| std::mem::size_of::<(NodeId, NodeMetadata)>() + metadata.heap_size())
+            .sum();
+        nodes + strings + metadata + self.source.len()
+    }
+
+    fn type_index(&self, node_type: &ASTNodeType) -> Option<u32> {
+        self.node_types.iter()
+            .position(|t| t == node_type)
+            .map(|i| i as u32)
+    }
+
+    // Query API mirroring SimplifiedAST
+
+    pub fn find_all_functions(&self) -> Vec<NodeRef<'_>> {
+        let mut result = self.root().find_children_by_type(&ASTNodeType::FunctionDeclaration);
+        result.extend(self.root().find_children_by_type(&ASTNodeType::MethodDeclaration));
+        result
+    }
+
+    pub fn find_all_classes(&self) -> Vec<NodeRef<'_>> {
+        let mut result = self.root().find_children_by_type(&ASTNodeType::ClassDeclaration);
+        result.extend(self.root().find_children_by_type(&ASTNodeType::InterfaceDeclaration));
+        result
+    }
+
+    pub fn find_all_imports(&self) -> Vec<NodeRef<'_>> {
+        self.root().find_children_by_type(&ASTNodeType::ImportDeclaration)
+    }
+
+    pub fn find_all_calls(&self) -> Vec<NodeRef<'_>> {
+        self.root().find_children_by_type(&ASTNodeType::CallExpression)
+    }
+
+    pub fn find_all_interfaces(&self) -> Vec<NodeRef<'_>> {
+        self.root().find_children_by_type(&ASTNodeType::InterfaceDeclaration)
+    }
+
+    pub fn find_all_enums(&self) -> Vec<NodeRef<'_>> {
+        self.root().find_children_by_type(&ASTNodeType::EnumDeclaration)
+    }
+
+    /// Expands back into the owned tree representation, e.g. for APIs that
+    /// still take a `SimplifiedAST`.
+    pub fn to_simplified(&self) -> SimplifiedAST {
+        SimplifiedAST::from_parts(self.root().to_ast_node(), self.language, self.source_hash)
+    }
+}
+
+struct ArenaBuilder {
+    nodes: Vec<ArenaNode>,
+    node_types: Vec<ASTNodeType>,
+    type_lookup: HashMap<ASTNodeType, u32>,
+    strings: StringInterner,
+    metadata: Vec<(NodeId, NodeMetadata)>,
+    language: Language,
+}
+
+impl ArenaBuilder {
+    fn new(language: Language) -> Self {
+        Self {
+            nodes: Vec::new(),
+            node_types: Vec::new(),
+            type_lookup: HashMap::new(),
+            strings: StringInterner::new(),
+            metadata: Vec::new(),
+            language,
+        }
+    }
+
+    fn push(&mut self, node: &Node, source: &str, parent: NodeId) -> NodeId {
+        let id = self.nodes.len() as NodeId;
+        let node_type = ASTNodeType::from_tree_sitter_kind(node.kind(), self.language);
+        let name = SimplifiedAST::node_name(node, source, &node_type)
+            .map_or(NameSpan::NONE, |name| NameSpan::of(name, source));
+
+        let mut metadata = NodeMetadata::new();
+        SimplifiedAST::add_language_metadata(&mut metadata, node, source, self.language);
+        if !metadata.is_empty() {
+            // Nodes are pushed in preorder, so the side-table stays sorted by id
+            self.metadata.push((id, metadata));
+        }
+
+        let node_type = self.intern_type(node_type);
+        let kind = self.strings.intern(node.kind());
+
+        self.nodes.push(ArenaNode {
+            node_type,
+            kind,
+            name,
+            location: NodeLocation::from_tree_sitter(*node),
+            parent,
+            first_child: NONE,
+            next_sibling: NONE,
+            subtree_end: NONE,
+            is_named: node.is_named(),
+        });
+        id
+    }
+
+    fn intern_type(&mut self, node_type: ASTNodeType) -> u32 {
+        if let Some(&index) = self.type_lookup.get(&node_type) {
+            return index;
+        }
+        let index = self.node_types.len() as u32;
+        self.node_types.push(node_type.clone());
+        self.type_lookup.insert(node_type, index);
+        index
+    }
+
+    fn finish(mut self, source: Arc<str>) -> ArenaAST {
+        // In preorder a subtree ends where the next node outside it begins:
+        // the node's next sibling, or else wherever its parent's subtree ends.
+        // Parents precede their children, so one forward pass suffices.
+        let len = self.nodes.len() as NodeId;
+        for id in 0..len as usize {
+            let node = &self.nodes[id];
+            let end = if node.next_sibling != NONE {
+                node.next_sibling
+            } else if node.parent != NONE {
+                self.nodes[node.parent as usize].subtree_end
+            } else {
+                len
+            };
+            self.nodes[id].subtree_end = end;
+        }
+
+        self.nodes.shrink_to_fit();
+        self.metadata.shrink_to_fit();
+
+        ArenaAST {
+            nodes: self.nodes,
+            node_types: self.node_types,
+            strings: self.strings,
+            metadata: self.metadata,
+            source_hash: code_context_graph_core::Hash::from_string(&source),
+            source,
+            language: self.language,
+        }
+    }
+}
+
+/// Borrowed view of one arena node.
+#[derive(Clone, Copy)]
+pub struct NodeRef<'a> {
+    ast: &'a ArenaAST,
+    id: NodeId,
+}
+
+impl<'a> NodeRef<'a> {
+    fn raw(&self) -> &'a ArenaNode {
+        &self.ast.nodes[self.id as usize]
+    }
+
+    pub fn id(&self) -> NodeId {
+        self.id
+    }
+
+    pub fn node_type(&self) -> &'a ASTNodeType {
+        &self.ast.node_types[self.raw().node_type as usize]
+    }
+
+    /// The tree-sitter node kind, e.g. `function_definition`.
+    pub fn kind(&self) -> &'a str {
+        self.ast.strings.resolve(self.raw().kind).unwrap_or("")
+    }
+
+    pub fn name(&self) -> Option<&'a str> {
+        match self.raw().name {
+            NameSpan { start: NONE, .. } => None,
+            NameSpan { start, len } => self.ast.source.get(start as usize..(start + len) as usize),
+        }
+    }
+
+    pub fn location(&self) -> &'a NodeLocation {
+        &self.raw().location
+    }
+
+    pub fn is_named(&self) -> bool {
+        self.raw().is_named
+    }
+
+    pub fn parent(&self) -> Option<NodeRef<'a>> {
+        self.link(self.raw().parent)
+    }
+
+    pub fn first_child(&self) -> Option<NodeRef<'a>> {
+        self.link(self.raw().first_child)
+    }
+
+    pub fn next_sibling(&self) -> Option<NodeRef<'a>> {
+        self.link(self.raw().next_sibling)
+    }
+
+    pub fn children(&self) -> Children<'a> {
+        Children { next: self.first_child() }
+    }
+
+    /// Strict descendants in preorder.
+    pub fn descendants(&self) -> impl Iterator<Item = NodeRef<'a>> + 'a {
+        let ast = self.ast;
+        (self.id + 1..self.raw().subtree_end).map(move |id| NodeRef { ast, id })
+    }
+
+    fn link(&self, id: NodeId) -> Option<NodeRef<'a>> {
+        (id != NONE).then(|| NodeRef { ast: self.ast, id })
+    }
+
+    /// Language-specific metadata stored for this node, if any.
+    pub fn metadata(&self) -> Option<&'a NodeMetadata> {
+        let table = &self.ast.metadata;
+        table.binary_search_by_key(&self.id, |(id, _)| *id)
+            .ok()
+            .map(|index| &table[index].1)
+    }
+
+    /// Same contract as `ASTNode::get_metadata`.
+    pub fn get_metadata<T>(&self, key: &str) -> Option<T>
+    where
+        T: for<'de> serde::Deserialize<'de>
+    {
+        let value = match key {
+            "kind" => serde_json::Value::from(self.kind()),
+            "is_named" => serde_json::Value::from(self.is_named()),
+            "language" => serde_json::to_value(self.ast.language).ok()?,
+            _ => return self.metadata()?.get(key),
+        };
+        serde_json::from_value(value).ok()
+    }
+
+    pub fn text(&self, source: &'a str) -> &'a str {
+        let location = self.location();
+        source.get(location.start_byte as usize..location.end_byte as usize).unwrap_or("")
+    }
+
+    /// This node's text in the arena's own source.
+    pub fn source_text(&self) -> &'a str {
+        self.text(&self.ast.source)
+    }
+
+    pub fn find_children_by_type(&self, node_type: &ASTNodeType) -> Vec<NodeRef<'a>> {
+        match self.ast.type_index(node_type) {
+            Some(index) => self.descendants()
+                .filter(|node| node.raw().node_type == index)
+                .collect(),
+            None => Vec::new(),
+        }
+    }
+
+    pub fn find_child_by_name(&self, name: &str) -> Option<NodeRef<'a>> {
+        self.descendants().find(|node| node.name() == Some(name))
+    }
+
+    pub fn is_declaration(&self) -> bool {
+        matches!(self.node_type(),
+            ASTNodeType::ClassDeclaration |
+            ASTNodeType::FunctionDeclaration |
+            ASTNodeType::MethodDeclaration |
+            ASTNodeType::VariableDeclaration |
+            ASTNodeType::TypeDeclaration |
+            ASTNodeType::InterfaceDeclaration |
+            ASTNodeType::EnumDeclaration
+        )
+    }
+
+    /// First id after this node's subtree; the next node a preorder walk
+    /// visits when skipping this subtree.
+    pub(crate) fn subtree_end(&self) -> NodeId {
+        self.raw().subtree_end
+    }
+
+    /// Rebuilds the owned subtree with an explicit stack, so deeply nested
+    /// sources cannot overflow the call stack.
+    fn to_ast_node(&self) -> ASTNode {
+        let mut stack: Vec<(ASTNode, Children<'a>)> = vec![(self.to_ast_leaf(), self.children())];
+
+        loop {
+            let next = stack.last_mut().expect("stack holds the root until it returns").1.next();
+            match next {
+                Some(child) => stack.push((child.to_ast_leaf(), child.children())),
+                None => {
+                    let (node, _) = stack.pop().expect("stack holds the root until it returns");
+                    match stack.last_mut() {
+                        Some((parent, _)) => parent.add_child(node),
+                        None => return node,
+                    }
+                }
+            }
+        }
+    }
+
+    /// This node alone, without its children.
+    fn to_ast_leaf(&self) -> ASTNode {
+        let mut node = ASTNode::unassigned(
+            self.node_type().clone(),
+            self.name().map(str::to_string),
+            self.location().clone(),
+        );
+
+        node.metadata = self.metadata().cloned().unwrap_or_default();
+        node.metadata.kind = Some(Cow::Borrowed(Symbol::intern(self.kind()).as_str()));
+        node.metadata.is_named = Some(self.is_named());
+        node.metadata.language = Some(self.ast.language);
+        node
+    }
+}
+
+impl std::fmt::Debug for NodeRef<'_> {
+    fn fmt(&self, f: &mut std::fmt::Formatter<'_>) -> std::fmt::Result {
+        f.debug_struct("NodeRef")
+            .field("id", &self.id)
+            .field("node_type", self.node_type())
+            .field("name", &self.name())
+            .finish()
+    }
+}
+
+pub struct Children<'a> {
+    next: Option<NodeRef<'a>>,
+}
+
+impl<'a> Iterator for Children<'a> {
+    type Item = NodeRef<'a>;
+
+    fn next(&mut self) -> Option<Self::Item> {
+        let current = self.next?;
+        self.next = current.next_sibling();
+        Some(current)
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::language::pool::ParserPool;
+
+    fn parse_both(source: &str, language: Language) -> (ArenaAST, SimplifiedAST) {
+        let pool = ParserPool::new();
+        let mut parser = pool.checkout(language).unwrap();
+        let tree = parser.parse(source, None).unwrap();
+        let arena = ArenaAST::from_tree_sitter(tree.root_node(), source, language).unwrap();
+        let simplified = SimplifiedAST::from_tree_sitter(tree.root_node(), source, language).unwrap();
+        (arena, simplified)
+    }
+
+    const PYTHON: &str = "import os\n\n@cached\ndef load(path):\n    return os.path.join(path, 'x')\n\nclass Repo(Base):\n    def save(self):\n        load('y')\n";
+
+    #[test]
+    fn test_round_trip_matches_simplified_ast() {
+        let (arena, simplified) = parse_both(PYTHON, Language::Python);
+        assert_eq!(arena.to_simplified().root(), simplified.root());
+        assert_eq!(arena.source_hash, simplified.source_hash);
+    }
+
+    #[test]
+    fn test_queries_match_simplified_ast() {
+        let (arena, simplified) = parse_both(PYTHON, Language::Python);
+
+        let names = |nodes: Vec<NodeRef>| nodes.iter().map(|n| n.name().map(str::to_string)).collect::<Vec<_>>();
+        let legacy = |nodes: Vec<&ASTNode>| nodes.iter().map(|n| n.name.clone()).collect::<Vec<_>>();
+
+        assert_eq!(names(arena.find_all_functions()), legacy(simplified.find_all_functions()));
+        assert_eq!(names(arena.find_all_classes()), legacy(simplified.find_all_classes()));
+        assert_eq!(names(arena.find_all_imports()), legacy(simplified.find_all_imports()));
+        assert_eq!(arena.find_all_calls().len(), simplified.find_all_calls().len());
+    }
+
+    #[test]
+    fn test_links_and_subtree_ranges() {
+        let (arena, _) = parse_both(PYTHON, Language::Python);
+
+        for node in arena.iter() {
+            let children: Vec<NodeId> = node.children().map(|c| c.id()).collect();
+            for child in &children {
+                assert_eq!(arena.node(*child).parent().map(|p| p.id()), Some(node.id()));
+            }
+            // Every descendant is reachable through child links
+            let mut reachable = 0;
+            let mut stack = children;
+            while let Some(id) = stack.pop() {
+                reachable += 1;
+                stack.extend(arena.node(id).children().map(|c| c.id()));
+            }
+            assert_eq!(reachable, node.descendants().count());
+        }
+        assert_eq!(arena.root().subtree_end() as usize, arena.len());
+    }
+
+    #[test]
+    fn test_metadata_side_table() {
+        let (arena, _) = parse_both(PYTHON, Language::Python);
+
+        let class = arena.find_all_classes()[0];
+        assert_eq!(class.get_metadata::<Vec<String>>("base_classes"), Some(vec!["Base".to_string()]));
+        assert_eq!(class.get_metadata::<String>("kind"), Some("class_definition".to_string()));
+        assert!(arena.metadata.len() < arena.len() / 4);
+    }
+
+    #[test]
+    fn test_names_borrow_the_shared_source() {
+        let source = "def f():\n    pass\n\ndef g():\n    f()\n    f()\n";
+        let (arena, _) = parse_both(source, Language::Python);
+
+        let f_nodes: Vec<_> = arena.iter().filter(|n| n.name() == Some("f")).collect();
+        assert!(f_nodes.len() >= 3);
+
+        let buffer = arena.source().as_bytes().as_ptr_range();
+        for node in &f_nodes {
+            assert!(buffer.contains(&node.name().unwrap().as_ptr()));
+        }
+        // Only tree-sitter kinds are interned
+        assert!((0..arena.interner().len() as u32).all(|s| arena.interner().resolve(s) != Some("f")));
+        assert_eq!(arena.find_all_functions()[0].source_text(), "def f():\n    pass");
+    }
+
+    #[test]
+    fn test_shared_source_is_not_copied() {
+        let source: Arc<str> = Arc::from(PYTHON);
+        let pool = ParserPool::new();
+        let mut parser = pool.checkout(Language::Python).unwrap();
+        let tree = parser.parse(PYTHON, None).unwrap();
+
+        let arena = ArenaAST::from_tree_sitter_shared(tree.root_node(), Arc::clone(&source), Language::Python).unwrap();
+
+        assert!(Arc::ptr_eq(arena.shared_source(), &source));
+        assert_eq!(arena.find_all_imports()[0].name(), Some("os"));
+    }
+}
@@ -0,0 +1,220 @@
+use code_context_graph_core::Language;
+use crate::ast::{ASTNode, ASTNodeType, NodeLocation, ParseLevel, SimplifiedAST};
+use crate::ast::text::SourceText;
+use serde::{Serialize, Deserialize};
+use tree_sitter::Node;
+
+/// Per-file limits for converting a syntax tree into a `SimplifiedAST`.
+///
+/// `max_depth` counts converted nodes only, so the nodes walked through in
+/// outline mode do not use it up. The resulting tree is dropped, cloned and
+/// serialized recursively, which is what the depth limit protects.
+#[derive(Debug, Clone, Copy, PartialEq, Eq, Serialize, Deserialize)]
+pub struct ConversionBudget {
+    pub max_nodes: usize,
+    pub max_depth: usize,
+}
+
+impl ConversionBudget {
+    pub const UNLIMITED: ConversionBudget = ConversionBudget {
+        max_nodes: usize::MAX,
+        max_depth: usize::MAX,
+    };
+
+    pub fn new(max_nodes: usize, max_depth: usize) -> Self {
+        Self { max_nodes, max_depth }
+    }
+}
+
+impl Default for ConversionBudget {
+    fn default() -> Self {
+        Self::new(1_000_000, 1_000)
+    }
+}
+
+/// Which budget a conversion ran out of.
+#[derive(Debug, Clone, Copy, PartialEq, Eq, Hash, Serialize, Deserialize)]
+#[serde(rename_all = "snake_case")]
+pub enum BudgetExceeded {
+    Nodes,
+    Depth,
+    /// The parse ran past its deadline; the AST is a lexical outline.
+    Time,
+}
+
+/// How the children of a frame are handled.
+#[derive(Debug, Clone, Copy)]
+enum Mode {
+    /// Convert every included child.
+    Full,
+    /// Convert outline nodes only and walk through everything else.
+    Scan { in_callable: bool },
+    /// Children of an outline declaration: the body is scanned, the
+    /// signature converted in full.
+    Declaration { body_in_callable: bool },
+}
+
+struct Frame<'tree> {
+    ts_node: Node<'tree>,
+    /// `None` for nodes walked through without being converted.
+    node: Option<ASTNode>,
+    mode: Mode,
+    /// Index of the nearest frame, this one included, that holds a node.
+    target: usize,
+    depth: usize,
+}
+
+/// Iterative tree-sitter to `ASTNode` conversion driven by a single
+/// `TreeCursor`, so deep trees cannot overflow the stack.
+///
+/// In `ParseLevel::Full` the conversion stops at the first exceeded budget
+/// and returns it. In `ParseLevel::Outline` nodes over budget are left out
+/// and the first exceeded budget is reported next to the (partial) tree.
+pub(crate) fn convert<S: SourceText + ?Sized>(
+    root: Node,
+    source: &S,
+    language: Language,
+    level: ParseLevel,
+    budget: &ConversionBudget,
+) -> (Option<ASTNode>, Option<BudgetExceeded>) {
+    let root_mode = match level {
+        ParseLevel::Full => Mode::Full,
+        ParseLevel::Outline => Mode::Scan { in_callable: false },
+    };
+    let mut frames = vec![Frame {
+        ts_node: root,
+        node: Some(make_node(root, source, language)),
+        mode: root_mode,
+        target: 0,
+        depth: 1,
+    }];
+    let mut converted = 1usize;
+    let mut exceeded = None;
+
+    let mut cursor = root.walk();
+    if !cursor.goto_first_child() {
+        return (frames.pop().and_then(|f| f.node), exceeded);
+    }
+
+    'walk: loop {
+        let child = cursor.node();
+        let parent = &frames[frames.len() - 1];
+        let (parent_target, parent_depth) = (parent.target, parent.depth);
+        let decision = SimplifiedAST::should_include_node(&child, language)
+            .then(|| decide(parent, &child, language));
+
+        if let Some((convert_child, mode)) = decision {
+            let depth = parent_depth + usize::from(convert_child);
+            let over = if !convert_child {
+                None
+            } else if converted >= budget.max_nodes {
+                Some(BudgetExceeded::Nodes)
+            } else if depth > budget.max_depth {
+                Some(BudgetExceeded::Depth)
+            } else {
+                None
+            };
+
+            match over {
+                Some(kind) if level == ParseLevel::Full => return (None, Some(kind)),
+                Some(kind) => {
+                    exceeded.get_or_insert(kind);
+                }
+                None => {
+                    let target = if convert_child { frames.len() } else { parent_target };
+                    let node = convert_child.then(|| make_node(child, source, language));
+                    converted += usize::from(convert_child);
+                    frames.push(Frame { ts_node: child, node, mode, target, depth });
+
+                    if cursor.goto_first_child() {
+                        continue 'walk;
+                    }
+                    finish(&mut frames);
+                }
+            }
+        }
+
+        // Move to the next sibling, finishing every frame we climb out of
+        loop {
+            if cursor.goto_next_sibling() {
+                continue 'walk;
+            }
+            if !cursor.goto_parent() || frames.len() == 1 {
+                break 'walk;
+            }
+            finish(&mut frames);
+        }
+    }
+
+    (frames.swap_remove(0).node, exceeded)
+}
+
+/// Whether `child` of `parent` gets converted (`true`) or only walked
+/// through (`false`), and the mode for its own children.
+fn decide(parent: &Frame, child: &Node, language: Language) -> (bool, Mode) {
+    match parent.mode {
+        Mode::Full => (true, Mode::Full),
+        Mode::Declaration { body_in_callable } => {
+            if is_declaration_body(&parent.ts_node, child) {
+                // The body node itself is kept so members sit where a full parse puts them
+                (true, Mode::Scan { in_callable: body_in_callable })
+            } else {
+                (true, Mode::Full)
+            }
+        }
+        Mode::Scan { in_callable } => {
+            match ASTNodeType::known_kind(child.kind(), language) {
+                Some(node_type) if is_outline_node(&node_type, in_callable) => {
+                    let body_in_callable = in_callable
+                        || matches!(node_type, ASTNodeType::FunctionDeclaration | ASTNodeType::MethodDeclaration);
+                    (true, Mode::Declaration { body_in_callable })
+                }
+                _ => (false, Mode::Scan { in_callable }),
+            }
+        }
+    }
+}
+
+/// Pops the top frame and attaches its node to the nearest converted ancestor.
+fn finish(frames: &mut Vec<Frame>) {
+    let Some(frame) = frames.pop() else { return };
+    if let (Some(node), Some(parent)) = (frame.node, frames.last()) {
+        let target = parent.target;
+        if let Some(parent_node) = frames[target].node.as_mut() {
+            parent_node.add_child(node);
+        }
+    }
+}
+
+fn make_node<S: SourceText + ?Sized>(node: Node, source: &S, language: Language) -> ASTNode {
+    let node_type = ASTNodeType::from_tree_sitter_kind(node.kind(), language);
+    let location = NodeLocation::from_tree_sitter(node);
+    let name = SimplifiedAST::extract_node_name(&node, source, &node_type);
+
+    let mut ast_node = ASTNode::unassigned(node_type, name, location);
+    SimplifiedAST::add_node_metadata(&mut ast_node, &node, source, language);
+    ast_node
+}
+
+fn is_outline_node(node_type: &ASTNodeType, in_callable: bool) -> bool {
+    match node_type {
+        ASTNodeType::ClassDeclaration |
+        ASTNodeType::FunctionDeclaration |
+        ASTNodeType::MethodDeclaration |
+        ASTNodeType::TypeDeclaration |
+        ASTNodeType::InterfaceDeclaration |
+        ASTNodeType::EnumDeclaration |
+        ASTNodeType::ImportDeclaration => true,
+        // Module and class level variables only, not locals
+        ASTNodeType::VariableDeclaration => !in_callable,
+        _ => false,
+    }
+}
+
+fn is_declaration_body(declaration: &Node, child: &Node) -> bool {
+    declaration.child_by_field_name("body").map_or(false, |body| body == *child)
+        || matches!(child.kind(),
+            "class_body" | "interface_body" | "enum_body" | "enum_class_body" |
+            "function_body" | "constructor_body"
+        )
+}
@@ -0,0 +1,105 @@
+use crate::ast::{ASTNode, ASTNodeType};
+use std::collections::HashMap;
+
+const NO_PARENT: u32 = u32::MAX;
+
+/// Secondary indices over a `SimplifiedAST`, built in one preorder pass.
+///
+/// Nodes are identified by their preorder ordinal (the root is `0`). Each
+/// ordinal records its parent and its position among the parent's children,
+/// so a handle resolves to the node in O(depth) without the index borrowing
+/// the tree it describes. Names are keyed by the index's own copy of each
+/// distinct name, which is freed with the index.
+#[derive(Clone, Default)]
+pub(crate) struct AstIndex {
+    parent: Vec<u32>,
+    child_index: Vec<u32>,
+    by_type: HashMap<ASTNodeType, Vec<u32>>,
+    by_name: HashMap<Box<str>, Vec<u32>>,
+}
+
+impl AstIndex {
+    pub(crate) fn build(root: &ASTNode) -> Self {
+        let mut index = Self::default();
+        let mut stack = vec![(root, NO_PARENT, 0u32)];
+
+        while let Some((node, parent, child_index)) = stack.pop() {
+            let ordinal = index.parent.len() as u32;
+            index.parent.push(parent);
+            index.child_index.push(child_index);
+
+            index.by_type.entry(node.node_type.clone()).or_default().push(ordinal);
+            if let Some(name) = node.name.as_deref() {
+                // Only the first occurrence of a name allocates its key
+                match index.by_name.get_mut(name) {
+                    Some(ordinals) => ordinals.push(ordinal),
+                    None => {
+                        index.by_name.insert(name.into(), vec![ordinal]);
+                    }
+                }
+            }
+
+            // Reversed so children pop in source order
+            for (i, child) in node.children.iter().enumerate().rev() {
+                stack.push((child, ordinal, i as u32));
+            }
+        }
+        index
+    }
+
+    pub(crate) fn count_of_type(&self, node_type: &ASTNodeType) -> usize {
+        self.by_type.get(node_type).map_or(0, Vec::len)
+    }
+
+    /// Nodes of `node_type` in preorder, the root included.
+    pub(crate) fn of_type<'a>(&self, root: &'a ASTNode, node_type: &ASTNodeType) -> Vec<&'a ASTNode> {
+        let mut nodes = self.resolve_all(root, self.by_type.get(node_type));
+        // Only differs when the tree was changed after indexing
+        nodes.retain(|node| node.node_type == *node_type);
+        nodes
+    }
+
+    /// Nodes named `name` in preorder, the root included.
+    pub(crate) fn named<'a>(&self, root: &'a ASTNode, name: &str) -> Vec<&'a ASTNode> {
+        let mut nodes = self.resolve_all(root, self.by_name.get(name));
+        nodes.retain(|node| node.name.as_deref() == Some(name));
+        nodes
+    }
+
+    fn resolve_all<'a>(&self, root: &'a ASTNode, ordinals: Option<&Vec<u32>>) -> Vec<&'a ASTNode> {
+        let Some(ordinals) = ordinals else { return Vec::new() };
+        let mut path = Vec::new();
+        ordinals.iter()
+            .filter_map(|&ordinal| self.resolve(root, ordinal, &mut path))
+            .collect()
+    }
+
+    fn resolve<'a>(&self, root: &'a ASTNode, ordinal: u32, path: &mut Vec<u32>) -> Option<&'a ASTNode> {
+        path.clear();
+        let mut current = ordinal;
+        while current != 0 {
+            path.push(*self.child_index.get(current as usize)?);
+            current = self.parent[current as usize];
+        }
+
+        let mut node = root;
+        for &i in path.iter().rev() {
+            node = node.children.get(i as usize)?;
+        }
+        Some(node)
+    }
+
+    pub(crate) fn len(&self) -> usize {
+        self.parent.len()
+    }
+}
+
+impl std::fmt::Debug for AstIndex {
+    fn fmt(&self, f: &mut std::fmt::Formatter<'_>) -> std::fmt::Result {
+        f.debug_struct("AstIndex")
+            .field("nodes", &self.parent.len())
+            .field("types", &self.by_type.len())
+            .field("names", &self.by_name.len())
+            .finish()
+    }
+}
@@ -0,0 +1,373 @@
+use code_context_graph_core::{Hash, Language};
+use crate::ast::{ASTNode, ASTNodeType, BudgetExceeded, NodeLocation, ParseLevel, SimplifiedAST};
+use std::io::BufRead;
+
+const JAVA_MODIFIERS: &[&str] = &[
+    "public", "private", "protected", "static", "final", "abstract", "sealed", "non-sealed",
+    "synchronized", "native", "strictfp", "default",
+];
+const KOTLIN_MODIFIERS: &[&str] = &[
+    "public", "private", "protected", "internal", "open", "abstract", "final", "sealed", "data",
+    "inner", "override", "suspend", "inline", "tailrec", "operator", "infix", "external",
+    "companion", "value", "annotation", "expect", "actual", "const", "lateinit",
+];
+const JS_MODIFIERS: &[&str] = &["export", "default", "async", "static"];
+/// Words that can precede `(` at the start of a Java line without it being
+/// a method declaration.
+const JAVA_STATEMENTS: &[&str] = &[
+    "return", "new", "if", "for", "while", "switch", "catch", "else", "throw", "try", "do", "case",
+    "super", "this", "assert", "synchronized",
+];
+
+/// A declaration or import found on one line.
+struct Declaration<'s> {
+    node_type: ASTNodeType,
+    name: &'s str,
+    modifiers: Vec<&'s str>,
+}
+
+/// Builds an outline of `source` line by line, without a syntax tree.
+///
+/// This is the fallback for files whose parse ran past its deadline, so it
+/// only has to be cheap and roughly right: it recognizes classes,
+/// interfaces, enums, functions and imports by their leading keywords, and
+/// nests members under the enclosing type by indentation (Python) or brace
+/// depth (the other languages). Comments and strings are not understood.
+pub fn lexical_outline(source: &str, language: Language) -> SimplifiedAST {
+    let mut outliner = LexicalOutliner::new(language);
+    for line in source.split_inclusive('\n') {
+        outliner.line(line, line.len());
+    }
+    outliner.finish(Hash::from_string(source), BudgetExceeded::Time)
+}
+
+/// Like `lexical_outline`, but reads the source from `reader` one line at a
+/// time, so only the current line is ever held in memory. This is the
+/// timeout fallback of files parsed from disk. The content hash is computed
+/// over the raw bytes as they stream past. Invalid UTF-8 is replaced in the
+/// lines that contain it.
+pub fn lexical_outline_reader<R: BufRead>(mut reader: R, language: Language) -> std::io::Result<SimplifiedAST> {
+    let mut outliner = LexicalOutliner::new(language);
+    let mut hasher = Hash::builder();
+    let mut line = Vec::new();
+    loop {
+        line.clear();
+        if reader.read_until(b'\n', &mut line)? == 0 {
+            break;
+        }
+        hasher.update(&line);
+        outliner.line(&String::from_utf8_lossy(&line), line.len());
+    }
+    Ok(outliner.finish(hasher.finish(), BudgetExceeded::Time))
+}
+
+struct LexicalOutliner {
+    language: Language,
+    root: ASTNode,
+    /// Open types as (level, path of child indices from the root)
+    open: Vec<(usize, Vec<usize>)>,
+    brace_depth: usize,
+    /// Byte offset and zero-based row of the next line
+    offset: usize,
+    row: usize,
+}
+
+impl LexicalOutliner {
+    fn new(language: Language) -> Self {
+        let root_type = match language {
+            Language::Python => ASTNodeType::Module,
+            _ => ASTNodeType::Program,
+        };
+        Self {
+            language,
+            root: ASTNode::unassigned(root_type, None, NodeLocation::new(1, 0, 1, 0, 0, 0)),
+            open: Vec::new(),
+            brace_depth: 0,
+            offset: 0,
+            row: 0,
+        }
+    }
+
+    /// Takes the next line, terminator included, and its length in the
+    /// source.
+    fn line(&mut self, line: &str, byte_len: usize) {
+        let language = self.language;
+        let text = line.trim_end_matches(['\n', '\r']);
+        let trimmed = text.trim_start();
+        let indent = text.len() - trimmed.len();
+        let level = match language {
+            Language::Python => indent,
+            _ => self.brace_depth,
+        };
+
+        if !trimmed.is_empty() {
+            while self.open.last().map_or(false, |(open_level, _)| *open_level >= level) {
+                self.open.pop();
+            }
+
+            let in_type = !self.open.is_empty();
+            if let Some(declaration) = declaration(trimmed, language, in_type) {
+                let line_number = self.row as u32 + 1;
+                let start = (self.offset + indent) as u32;
+                let location = NodeLocation::new(
+                    line_number, indent as u32, line_number, text.len() as u32, start, (self.offset + text.len()) as u32,
+                );
+                let is_type = matches!(
+                    declaration.node_type,
+                    ASTNodeType::ClassDeclaration | ASTNodeType::InterfaceDeclaration | ASTNodeType::EnumDeclaration
+                );
+
+                let mut node = ASTNode::unassigned(declaration.node_type, Some(declaration.name.to_string()), location);
+                node.metadata.modifiers = declaration.modifiers.iter().map(|m| m.to_string()).collect();
+                node.metadata.is_async = declaration.modifiers.contains(&"async");
+                node.metadata.language = Some(language);
+
+                let parent_path = self.open.last().map(|(_, path)| path.clone()).unwrap_or_default();
+                let parent = node_at(&mut self.root, &parent_path);
+                parent.children.push(node);
+                if is_type {
+                    let mut path = parent_path;
+                    path.push(parent.children.len() - 1);
+                    self.open.push((level, path));
+                }
+            }
+        }
+
+        if language != Language::Python {
+            for byte in text.bytes() {
+                match byte {
+                    b'{' => self.brace_depth += 1,
+                    b'}' => self.brace_depth = self.brace_depth.saturating_sub(1),
+                    _ => {}
+                }
+            }
+        }
+        self.offset += byte_len;
+        self.row += 1;
+    }
+
+    fn finish(mut self, source_hash: Hash, reason: BudgetExceeded) -> SimplifiedAST {
+        self.root.location = NodeLocation::new(1, 0, self.row.max(1) as u32, 0, 0, self.offset as u32);
+        let mut ast = SimplifiedAST::from_parts(self.root, self.language, source_hash);
+        ast.level = ParseLevel::Outline;
+        ast.budget_exceeded = Some(reason);
+        ast
+    }
+}
+
+fn node_at<'a>(root: &'a mut ASTNode, path: &[usize]) -> &'a mut ASTNode {
+    path.iter().fold(root, |node, &i| &mut node.children[i])
+}
+
+fn declaration(line: &str, language: Language, in_type: bool) -> Option<Declaration<'_>> {
+    match language {
+        Language::Python => python_declaration(line),
+        Language::Java => java_declaration(line, in_type),
+        Language::Kotlin => kotlin_declaration(line),
+        Language::JavaScript => javascript_declaration(line, in_type),
+        _ => None,
+    }
+}
+
+fn python_declaration(line: &str) -> Option<Declaration<'_>> {
+    let (modifiers, rest) = strip_modifiers(line, &["async"]);
+    let (keyword, rest) = split_word(rest)?;
+    let node_type = match keyword {
+        "class" => ASTNodeType::ClassDeclaration,
+        "def" => ASTNodeType::FunctionDeclaration,
+        "import" | "from" => {
+            let name = rest.split(|c: char| c == ',' || c.is_whitespace()).next().filter(|n| !n.is_empty())?;
+            return Some(Declaration { node_type: ASTNodeType::ImportDeclaration, name, modifiers });
+        }
+        _ => return None,
+    };
+    Some(Declaration { node_type, name: identifier(rest)?, modifiers })
+}
+
+fn java_declaration(line: &str, in_type: bool) -> Option<Declaration<'_>> {
+    if let Some(rest) = line.strip_prefix("import ") {
+        let name = rest.trim_start_matches("static ").trim_end().trim_end_matches(';').trim();
+        return (!name.is_empty()).then(|| Declaration { node_type: ASTNodeType::ImportDeclaration, name, modifiers: Vec::new() });
+    }
+    let (modifiers, rest) = strip_modifiers(line, JAVA_MODIFIERS);
+    if let Some(declaration) = type_declaration(rest, &modifiers, &["class", "record"]) {
+        return Some(declaration);
+    }
+
+    // `Type name(...)` that is not a statement or a call
+    if !in_type || line.ends_with(';') {
+        return None;
+    }
+    let signature = &rest[..rest.find('(')?];
+    let mut words = signature.split_whitespace();
+    let first = words.next()?;
+    let name = words.last()?;
+    if JAVA_STATEMENTS.contains(&first) || signature.contains('=') || identifier(name) != Some(name) {
+        return None;
+    }
+    Some(Declaration { node_type: ASTNodeType::MethodDeclaration, name, modifiers })
+}
+
+fn kotlin_declaration(line: &str) -> Option<Declaration<'_>> {
+    if let Some(rest) = line.strip_prefix("import ") {
+        let name = rest.split_whitespace().next()?;
+        return Some(Declaration { node_type: ASTNodeType::ImportDeclaration, name, modifiers: Vec::new() });
+    }
+    let (modifiers, rest) = strip_modifiers(line, KOTLIN_MODIFIERS);
+    if let Some(declaration) = type_declaration(rest, &modifiers, &["class", "object"]) {
+        return Some(declaration);
+    }
+
+    let rest = rest.strip_prefix("fun ")?.trim_start();
+    // Skip type parameters and the receiver of extension functions
+    let rest = match rest.strip_prefix('<') {
+        Some(generic) => generic[generic.find('>')? + 1..].trim_start(),
+        None => rest,
+    };
+    let signature = &rest[..rest.find('(').unwrap_or(rest.len())];
+    let name = signature.rsplit('.').next()?;
+    Some(Declaration { node_type: ASTNodeType::FunctionDeclaration, name: identifier(name)?, modifiers })
+}
+
+fn javascript_declaration(line: &str, in_type: bool) -> Option<Declaration<'_>> {
+    if line.starts_with("import ") {
+        // `import x from 'm'` and `import 'm'`: the module is the quoted part
+        let quoted = line.split(['\'', '"']).nth(1).filter(|m| !m.is_empty())?;
+        return Some(Declaration { node_type: ASTNodeType::ImportDeclaration, name: quoted, modifiers: Vec::new() });
+    }
+    let (modifiers, rest) = strip_modifiers(line, JS_MODIFIERS);
+    if let Some(declaration) = type_declaration(rest, &modifiers, &["class"]) {
+        return Some(declaration);
+    }
+    if let Some(rest) = rest.strip_prefix("function") {
+        let rest = rest.trim_start_matches('*').trim_start();
+        return Some(Declaration { node_type: ASTNodeType::FunctionDeclaration, name: identifier(rest)?, modifiers });
+    }
+
+    // `name(args) {` directly inside a class body
+    let name = identifier(rest)?;
+    let after = rest[name.len()..].trim_start();
+    let keyword = matches!(name, "if" | "for" | "while" | "switch" | "catch" | "return" | "constructor" | "function");
+    (in_type && !keyword && after.starts_with('(') && line.ends_with('{'))
+        .then(|| Declaration { node_type: ASTNodeType::MethodDeclaration, name, modifiers })
+}
+
+/// `class`/`interface`/`enum` declarations, plus the language's other
+/// class-like keywords in `class_keywords`.
+fn type_declaration<'s>(rest: &'s str, modifiers: &[&'s str], class_keywords: &[&str]) -> Option<Declaration<'s>> {
+    let (keyword, rest) = split_word(rest)?;
+    let node_type = match keyword {
+        "interface" | "@interface" => ASTNodeType::InterfaceDeclaration,
+        // Kotlin writes `enum class`
+        "enum" => {
+            let rest = rest.strip_prefix("class ").unwrap_or(rest);
+            return Some(Declaration { node_type: ASTNodeType::EnumDeclaration, name: identifier(rest)?, modifiers: modifiers.to_vec() });
+        }
+        keyword if class_keywords.contains(&keyword) => ASTNodeType::ClassDeclaration,
+        _ => return None,
+    };
+    Some(Declaration { node_type, name: identifier(rest)?, modifiers: modifiers.to_vec() })
+}
+
+fn strip_modifiers<'s>(mut line: &'s str, known: &[&str]) -> (Vec<&'s str>, &'s str) {
+    let mut modifiers = Vec::new();
+    while let Some((word, rest)) = split_word(line) {
+        if !known.contains(&word) {
+            break;
+        }
+        modifiers.push(word);
+        line = rest;
+    }
+    (modifiers, line)
+}
+
+fn split_word(line: &str) -> Option<(&str, &str)> {
+    let line = line.trim_start();
+    let end = line.find(char::is_whitespace).unwrap_or(line.len());
+    (end > 0).then(|| (&line[..end], line[end..].trim_start()))
+}
+
+/// The identifier at the start of `text`.
+fn identifier(text: &str) -> Option<&str> {
+    let end = text
+        .find(|c: char| !(c.is_alphanumeric() || c == '_' || c == '$'))
+        .unwrap_or(text.len());
+    (end > 0).then(|| &text[..end])
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    fn outline(source: &str, language: Language) -> Vec<(ASTNodeType, String, usize)> {
+        fn collect(node: &ASTNode, depth: usize, out: &mut Vec<(ASTNodeType, String, usize)>) {
+            for child in &node.children {
+                out.push((child.node_type.clone(), child.name.clone().unwrap_or_default(), depth));
+                collect(child, depth + 1, out);
+            }
+        }
+        let ast = lexical_outline(source, language);
+        assert_eq!(ast.level, ParseLevel::Outline);
+        assert_eq!(ast.budget_exceeded, Some(BudgetExceeded::Time));
+        let mut out = Vec::new();
+        collect(ast.root(), 0, &mut out);
+        out
+    }
+
+    #[test]
+    fn test_python_nests_by_indentation() {
+        let source = "import os\nfrom a.b import c\n\nclass A(Base):\n    def f(self):\n        x = 1\n\n    async def g(self):\n        pass\n\ndef h():\n    pass\n";
+
+        assert_eq!(outline(source, Language::Python), vec![
+            (ASTNodeType::ImportDeclaration, "os".to_string(), 0),
+            (ASTNodeType::ImportDeclaration, "a.b".to_string(), 0),
+            (ASTNodeType::ClassDeclaration, "A".to_string(), 0),
+            (ASTNodeType::FunctionDeclaration, "f".to_string(), 1),
+            (ASTNodeType::FunctionDeclaration, "g".to_string(), 1),
+            (ASTNodeType::FunctionDeclaration, "h".to_string(), 0),
+        ]);
+    }
+
+    #[test]
+    fn test_java_nests_by_braces() {
+        let source = "import java.util.List;\n\npublic class Repo extends Base {\n    private int size;\n\n    public static List<String> load(String key) {\n        return List.of(key);\n    }\n}\n\ninterface Store {}\n";
+
+        assert_eq!(outline(source, Language::Java), vec![
+            (ASTNodeType::ImportDeclaration, "java.util.List".to_string(), 0),
+            (ASTNodeType::ClassDeclaration, "Repo".to_string(), 0),
+            (ASTNodeType::MethodDeclaration, "load".to_string(), 1),
+            (ASTNodeType::InterfaceDeclaration, "Store".to_string(), 0),
+        ]);
+    }
+
+    #[test]
+    fn test_kotlin_and_javascript() {
+        let kotlin = "import kotlinx.coroutines.flow\n\ndata class User(val id: Int)\n\nenum class Color { RED }\n\nsuspend fun <T> List<T>.load(): T = first()\n";
+        assert_eq!(outline(kotlin, Language::Kotlin), vec![
+            (ASTNodeType::ImportDeclaration, "kotlinx.coroutines.flow".to_string(), 0),
+            (ASTNodeType::ClassDeclaration, "User".to_string(), 0),
+            (ASTNodeType::EnumDeclaration, "Color".to_string(), 0),
+            (ASTNodeType::FunctionDeclaration, "load".to_string(), 0),
+        ]);
+
+        let javascript = "import x from 'lib';\n\nexport default class View {\n  render(props) {\n    if (props) {\n    }\n  }\n}\n\nasync function main() {}\n";
+        assert_eq!(outline(javascript, Language::JavaScript), vec![
+            (ASTNodeType::ImportDeclaration, "lib".to_string(), 0),
+            (ASTNodeType::ClassDeclaration, "View".to_string(), 0),
+            (ASTNodeType::MethodDeclaration, "render".to_string(), 1),
+            (ASTNodeType::FunctionDeclaration, "main".to_string(), 0),
+        ]);
+    }
+
+    #[test]
+    fn test_reader_matches_in_memory_outline() {
+        let source = "import os\r\n\r\nclass A:\r\n    def f(self):\r\n        pass\r\n\r\ndef g():\r\n    return 1";
+        let in_memory = lexical_outline(source, Language::Python);
+        let streamed = lexical_outline_reader(std::io::BufReader::with_capacity(4, source.as_bytes()), Language::Python).unwrap();
+
+        assert_eq!(streamed.root(), in_memory.root());
+        assert_eq!(streamed.source_hash, Hash::from_string(source));
+        assert_eq!(streamed.budget_exceeded, Some(BudgetExceeded::Time));
+        assert_eq!(streamed.root().location.end_byte as usize, source.len());
+    }
+}
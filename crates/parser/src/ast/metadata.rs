@@ -0,0 +1,302 @@
+use code_context_graph_core::{Language, Symbol};
+use serde::{Serialize, Deserialize};
+use serde::de::DeserializeOwned;
+use std::borrow::Cow;
+use std::collections::HashMap;
+
+/// Free-form metadata for keys the typed model does not know about.
+pub type MetadataMap = HashMap<String, serde_json::Value>;
+
+/// Metadata keys with a dedicated typed field in `NodeMetadata`.
+#[derive(Debug, Clone, Copy, PartialEq, Eq, Hash)]
+pub enum MetadataKey {
+    Kind,
+    IsNamed,
+    Language,
+    Modifiers,
+    Extends,
+    Implements,
+    Decorators,
+    BaseClasses,
+    Parents,
+    Async,
+    Generator,
+}
+
+impl MetadataKey {
+    pub const ALL: [MetadataKey; 11] = [
+        MetadataKey::Kind,
+        MetadataKey::IsNamed,
+        MetadataKey::Language,
+        MetadataKey::Modifiers,
+        MetadataKey::Extends,
+        MetadataKey::Implements,
+        MetadataKey::Decorators,
+        MetadataKey::BaseClasses,
+        MetadataKey::Parents,
+        MetadataKey::Async,
+        MetadataKey::Generator,
+    ];
+
+    /// The string key used by `get_metadata`/`add_metadata` and in JSON.
+    pub fn as_str(self) -> &'static str {
+        match self {
+            MetadataKey::Kind => "kind",
+            MetadataKey::IsNamed => "is_named",
+            MetadataKey::Language => "language",
+            MetadataKey::Modifiers => "modifiers",
+            MetadataKey::Extends => "extends",
+            MetadataKey::Implements => "implements",
+            MetadataKey::Decorators => "decorators",
+            MetadataKey::BaseClasses => "base_classes",
+            MetadataKey::Parents => "parents",
+            MetadataKey::Async => "async",
+            MetadataKey::Generator => "generator",
+        }
+    }
+
+    pub fn from_name(name: &str) -> Option<Self> {
+        Self::ALL.iter().copied().find(|key| key.as_str() == name)
+    }
+}
+
+/// Typed per-node metadata.
+///
+/// Well-known keys are plain fields and can be read by reference, without
+/// going through serde_json. Anything else lands in `extra`. Node text is
+/// not copied here; it is the `location` byte range of the node, see
+/// `ASTNode::get_text_content`.
+///
+/// Absent values are `None`, empty or `false`, which is also how the string
+/// API reports them: `get("modifiers")` is `None` rather than `Some(vec![])`.
+#[derive(Debug, Clone, Default, PartialEq, Serialize, Deserialize)]
+pub struct NodeMetadata {
+    #[serde(default, skip_serializing_if = "Option::is_none", deserialize_with = "deserialize_kind")]
+    pub kind: Option<Cow<'static, str>>,
+    #[serde(default, skip_serializing_if = "Option::is_none")]
+    pub is_named: Option<bool>,
+    #[serde(default, skip_serializing_if = "Option::is_none")]
+    pub language: Option<Language>,
+    #[serde(default, skip_serializing_if = "Vec::is_empty")]
+    pub modifiers: Vec<String>,
+    #[serde(default, skip_serializing_if = "Option::is_none")]
+    pub extends: Option<String>,
+    #[serde(default, skip_serializing_if = "Vec::is_empty")]
+    pub implements: Vec<String>,
+    #[serde(default, skip_serializing_if = "Vec::is_empty")]
+    pub decorators: Vec<String>,
+    #[serde(default, skip_serializing_if = "Vec::is_empty")]
+    pub base_classes: Vec<String>,
+    #[serde(default, skip_serializing_if = "Vec::is_empty")]
+    pub parents: Vec<String>,
+    #[serde(default, rename = "async", skip_serializing_if = "is_false")]
+    pub is_async: bool,
+    #[serde(default, rename = "generator", skip_serializing_if = "is_false")]
+    pub is_generator: bool,
+    #[serde(flatten)]
+    pub extra: MetadataMap,
+}
+
+fn is_false(value: &bool) -> bool {
+    !*value
+}
+
+/// Kinds come from a small fixed vocabulary, so deserialized ones are
+/// interned and borrowed instead of allocated per node.
+fn deserialize_kind<'de, D: serde::Deserializer<'de>>(deserializer: D) -> Result<Option<Cow<'static, str>>, D::Error> {
+    let kind = Option::<Symbol>::deserialize(deserializer)?;
+    Ok(kind.map(|kind| Cow::Borrowed(kind.as_str())))
+}
+
+impl NodeMetadata {
+    pub fn new() -> Self {
+        Self::default()
+    }
+
+    pub fn is_empty(&self) -> bool {
+        MetadataKey::ALL.iter().all(|&key| !self.has_typed(key)) && self.extra.is_empty()
+    }
+
+    pub fn contains(&self, key: &str) -> bool {
+        match MetadataKey::from_name(key) {
+            Some(typed) if self.has_typed(typed) => true,
+            _ => self.extra.contains_key(key),
+        }
+    }
+
+    pub fn has_modifier(&self, modifier: &str) -> bool {
+        self.modifiers.iter().any(|m| m == modifier)
+    }
+
+    /// String-keyed read, kept for callers that predate the typed fields.
+    /// Prefer the fields themselves on hot paths.
+    pub fn get<T: DeserializeOwned>(&self, key: &str) -> Option<T> {
+        if let Some(typed) = MetadataKey::from_name(key) {
+            if let Some(value) = self.typed_value(typed) {
+                return serde_json::from_value(value).ok();
+            }
+        }
+        self.extra.get(key).and_then(|value| T::deserialize(value).ok())
+    }
+
+    /// String-keyed write. Values for well-known keys are stored in their
+    /// typed field; values that do not fit the field's type go to `extra`.
+    pub fn set<T: Serialize>(&mut self, key: &str, value: T) {
+        let Ok(value) = serde_json::to_value(value) else {
+            return;
+        };
+
+        if let Some(typed) = MetadataKey::from_name(key) {
+            if self.set_typed(typed, value.clone()).is_ok() {
+                self.extra.remove(key);
+                return;
+            }
+        }
+        self.extra.insert(key.to_string(), value);
+    }
+
+    /// Approximate heap bytes owned by this metadata.
+    pub fn heap_size(&self) -> usize {
+        let strings = |values: &Vec<String>| {
+            values.capacity() * std::mem::size_of::<String>()
+                + values.iter().map(String::capacity).sum::<usize>()
+        };
+        let kind = match &self.kind {
+            Some(Cow::Owned(kind)) => kind.capacity(),
+            _ => 0,
+        };
+
+        kind
+            + self.extends.as_ref().map_or(0, String::capacity)
+            + strings(&self.modifiers)
+            + strings(&self.implements)
+            + strings(&self.decorators)
+            + strings(&self.base_classes)
+            + strings(&self.parents)
+            + self.extra.capacity() * std::mem::size_of::<(String, serde_json::Value)>()
+    }
+
+    fn has_typed(&self, key: MetadataKey) -> bool {
+        match key {
+            MetadataKey::Kind => self.kind.is_some(),
+            MetadataKey::IsNamed => self.is_named.is_some(),
+            MetadataKey::Language => self.language.is_some(),
+            MetadataKey::Modifiers => !self.modifiers.is_empty(),
+            MetadataKey::Extends => self.extends.is_some(),
+            MetadataKey::Implements => !self.implements.is_empty(),
+            MetadataKey::Decorators => !self.decorators.is_empty(),
+            MetadataKey::BaseClasses => !self.base_classes.is_empty(),
+            MetadataKey::Parents => !self.parents.is_empty(),
+            MetadataKey::Async => self.is_async,
+            MetadataKey::Generator => self.is_generator,
+        }
+    }
+
+    fn typed_value(&self, key: MetadataKey) -> Option<serde_json::Value> {
+        if !self.has_typed(key) {
+            return None;
+        }
+
+        let value = match key {
+            MetadataKey::Kind => serde_json::to_value(&self.kind),
+            MetadataKey::IsNamed => serde_json::to_value(self.is_named),
+            MetadataKey::Language => serde_json::to_value(self.language),
+            MetadataKey::Modifiers => serde_json::to_value(&self.modifiers),
+            MetadataKey::Extends => serde_json::to_value(&self.extends),
+            MetadataKey::Implements => serde_json::to_value(&self.implements),
+            MetadataKey::Decorators => serde_json::to_value(&self.decorators),
+            MetadataKey::BaseClasses => serde_json::to_value(&self.base_classes),
+            MetadataKey::Parents => serde_json::to_value(&self.parents),
+            MetadataKey::Async => serde_json::to_value(self.is_async),
+            MetadataKey::Generator => serde_json::to_value(self.is_generator),
+        };
+        value.ok()
+    }
+
+    fn set_typed(&mut self, key: MetadataKey, value: serde_json::Value) -> serde_json::Result<()> {
+        match key {
+            MetadataKey::Kind => self.kind = Some(Cow::Borrowed(serde_json::from_value::<Symbol>(value)?.as_str())),
+            MetadataKey::IsNamed => self.is_named = Some(serde_json::from_value(value)?),
+            MetadataKey::Language => self.language = Some(serde_json::from_value(value)?),
+            MetadataKey::Modifiers => self.modifiers = serde_json::from_value(value)?,
+            MetadataKey::Extends => self.extends = Some(serde_json::from_value(value)?),
+            MetadataKey::Implements => self.implements = serde_json::from_value(value)?,
+            MetadataKey::Decorators => self.decorators = serde_json::from_value(value)?,
+            MetadataKey::BaseClasses => self.base_classes = serde_json::from_value(value)?,
+            MetadataKey::Parents => self.parents = serde_json::from_value(value)?,
+            MetadataKey::Async => self.is_async = serde_json::from_value(value)?,
+            MetadataKey::Generator => self.is_generator = serde_json::from_value(value)?,
+        }
+        Ok(())
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    #[test]
+    fn test_string_api_maps_to_typed_fields() {
+        let mut metadata = NodeMetadata::new();
+        metadata.set("extends", "Base");
+        metadata.set("modifiers", vec!["public", "static"]);
+        metadata.set("async", true);
+        metadata.set("visibility", "public");
+
+        assert_eq!(metadata.extends.as_deref(), Some("Base"));
+        assert!(metadata.has_modifier("static"));
+        assert!(metadata.is_async);
+        assert_eq!(metadata.extra.len(), 1);
+
+        assert_eq!(metadata.get::<String>("extends"), Some("Base".to_string()));
+        assert_eq!(metadata.get::<String>("visibility"), Some("public".to_string()));
+        assert_eq!(metadata.get::<bool>("generator"), None);
+    }
+
+    #[test]
+    fn test_empty_values_read_as_absent() {
+        let metadata = NodeMetadata::new();
+        assert!(metadata.is_empty());
+        assert!(!metadata.contains("modifiers"));
+        assert_eq!(metadata.get::<Vec<String>>("modifiers"), None);
+    }
+
+    #[test]
+    fn test_mistyped_value_falls_back_to_extra() {
+        let mut metadata = NodeMetadata::new();
+        metadata.set("extends", 42);
+
+        assert_eq!(metadata.extends, None);
+        assert_eq!(metadata.get::<i32>("extends"), Some(42));
+    }
+
+    #[test]
+    fn test_json_uses_the_string_keys() {
+        let mut metadata = NodeMetadata::new();
+        metadata.kind = Some(Cow::Borrowed("function_definition"));
+        metadata.is_async = true;
+        metadata.set("custom", 1);
+
+        let json = serde_json::to_value(&metadata).unwrap();
+        assert_eq!(json, serde_json::json!({
+            "kind": "function_definition",
+            "async": true,
+            "custom": 1,
+        }));
+
+        let back: NodeMetadata = serde_json::from_value(json).unwrap();
+        assert_eq!(back, metadata);
+    }
+
+    #[test]
+    fn test_deserialized_kinds_are_interned() {
+        let json = serde_json::json!({ "kind": "class_definition" });
+        let first: NodeMetadata = serde_json::from_value(json.clone()).unwrap();
+        let second: NodeMetadata = serde_json::from_value(json).unwrap();
+
+        match (&first.kind, &second.kind) {
+            (Some(Cow::Borrowed(a)), Some(Cow::Borrowed(b))) => assert!(std::ptr::eq(*a, *b)),
+            other => panic!("kinds should borrow the symbol table: {:?}", other),
+        }
+    }
+}
@@ -1,5 +1,15 @@
 pub mod simplified;
 pub mod node;
+pub mod arena;
+pub mod metadata;
+pub mod convert;
+pub mod lexical;
+mod index;
+pub(crate) mod text;
 
 pub use simplified::*;
-pub use node::*;
\ No newline at end of file
+pub use node::*;
+pub use arena::*;
+pub use metadata::*;
+pub use convert::{BudgetExceeded, ConversionBudget};
+pub use lexical::{lexical_outline, lexical_outline_reader};
\ No newline at end of file
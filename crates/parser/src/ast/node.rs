@@ -1,6 +1,6 @@
 use code_context_graph_core::{Language, Hash};
 use serde::{Serialize, Deserialize};
-use std::collections::HashMap;
+use crate::ast::NodeMetadata;
 
 #[derive(Debug, Clone, PartialEq, Serialize, Deserialize)]
 pub struct ASTNode {
@@ -9,7 +9,7 @@ pub struct ASTNode {
     pub name: Option<String>,
     pub location: NodeLocation,
     pub children: Vec<ASTNode>,
-    pub metadata: HashMap<String, serde_json::Value>,
+    pub metadata: NodeMetadata,
 }
 
 #[derive(Debug, Clone, PartialEq, Eq, Hash, Serialize, Deserialize)]
@@ -66,37 +66,99 @@ pub struct NodeLocation {
 }
 
 impl ASTNode {
+    /// Creates a detached node whose id only reflects its type and name. Once
+    /// the node is part of a `SimplifiedAST` it carries the path-based id
+    /// assigned by `assign_stable_ids`.
     pub fn new(
         node_type: ASTNodeType,
         name: Option<String>,
         location: NodeLocation,
     ) -> Self {
-        let content = format!("{:?}:{}:{}:{}", 
-            node_type, 
-            name.as_deref().unwrap_or(""), 
-            location.start_line, 
-            location.start_column
-        );
-        let id = Hash::from_string(&content);
+        let mut node = Self::unassigned(node_type, name, location);
+        node.id = Self::stable_id(None, &node.node_type, node.name.as_deref(), 0);
+        node
+    }
 
+    /// Node with a placeholder id, for trees that get `assign_stable_ids`
+    /// afterwards anyway.
+    pub(crate) fn unassigned(
+        node_type: ASTNodeType,
+        name: Option<String>,
+        location: NodeLocation,
+    ) -> Self {
         Self {
-            id,
+            id: Hash::from_bytes([0; 32]),
             node_type,
             name,
             location,
             children: Vec::new(),
-            metadata: HashMap::new(),
+            metadata: NodeMetadata::new(),
+        }
+    }
+
+    /// Id derived from the parent's id, the node's type and name, and its
+    /// ordinal among siblings with the same type and name. Location is left
+    /// out on purpose: inserting a line above a method must not change the
+    /// method's id.
+    pub fn stable_id(parent: Option<&Hash>, node_type: &ASTNodeType, name: Option<&str>, ordinal: u32) -> Hash {
+        let mut builder = Hash::builder();
+        if let Some(parent) = parent {
+            builder.update_hash(parent);
+        }
+        builder
+            .update_fmt(format_args!("{:?}", node_type))
+            .update_str(name.unwrap_or(""))
+            .update_u32(ordinal);
+        builder.finish()
+    }
+
+    /// Recomputes the ids of every descendant from this node's own id.
+    pub fn assign_stable_ids(&mut self) {
+        let mut stack: Vec<&mut ASTNode> = vec![self];
+
+        while let Some(node) = stack.pop() {
+            let parent_id = node.id;
+            let ordinals = Self::sibling_ordinals(&node.children);
+
+            for (child, ordinal) in node.children.iter_mut().zip(ordinals) {
+                child.id = Self::stable_id(Some(&parent_id), &child.node_type, child.name.as_deref(), ordinal);
+            }
+            stack.extend(node.children.iter_mut());
         }
     }
 
+    fn sibling_ordinals(children: &[ASTNode]) -> Vec<u32> {
+        let same = |a: &ASTNode, b: &ASTNode| a.node_type == b.node_type && a.name == b.name;
+
+        // Quadratic scan is cheaper than a map for the usual handful of children
+        if children.len() <= 32 {
+            return children.iter().enumerate()
+                .map(|(i, child)| children[..i].iter().filter(|prev| same(prev, child)).count() as u32)
+                .collect();
+        }
+
+        let mut seen: std::collections::HashMap<(&ASTNodeType, Option<&str>), u32> = std::collections::HashMap::new();
+        children.iter()
+            .map(|child| {
+                let count = seen.entry((&child.node_type, child.name.as_deref())).or_insert(0);
+                *count += 1;
+                *count - 1
+            })
+            .collect()
+    }
+
+    /// Hash of the node's source text, for telling whether an entity with an
+    /// unchanged id was actually edited.
+    pub fn fingerprint(&self, source: &str) -> Hash {
+        Hash::new(self.get_text_content(source).as_bytes())
+    }
+
     pub fn add_child(&mut self, child: ASTNode) {
         self.children.push(child);
     }
 
     pub fn add_metadata<T: Serialize>(&mut self, key: &str, value: T) {
-        if let Ok(json_value) = serde_json::to_value(value) {
-            self.metadata.insert(key.to_string(), json_value);
-        }
+        self.metadata.set(key, value);
     }
 
     pub fn get_metadata<T>(&self, key: &str) -> Option<T> 
@@ -104,30 +166,31 @@ impl ASTNode {
         T: for<'de> Deserialize<'de>
     {
         self.metadata.get(key)
-            .and_then(|v| serde_json::from_value(v.clone()).ok())
     }
 
+    /// Descendants of `node_type` in preorder, this node excluded.
     pub fn find_children_by_type(&self, node_type: &ASTNodeType) -> Vec<&ASTNode> {
         let mut result = Vec::new();
-        
-        for child in &self.children {
-            if &child.node_type == node_type {
-                result.push(child);
+        let mut stack: Vec<&ASTNode> = self.children.iter().rev().collect();
+
+        while let Some(node) = stack.pop() {
+            if &node.node_type == node_type {
+                result.push(node);
             }
-            result.extend(child.find_children_by_type(node_type));
+            stack.extend(node.children.iter().rev());
         }
-        
         result
     }
 
+    /// First descendant named `name` in preorder, this node excluded.
     pub fn find_child_by_name(&self, name: &str) -> Option<&ASTNode> {
-        for child in &self.children {
-            if child.name.as_deref() == Some(name) {
-                return Some(child);
-            }
-            if let Some(found) = child.find_child_by_name(name) {
-                return Some(found);
+        let mut stack: Vec<&ASTNode> = self.children.iter().rev().collect();
+
+        while let Some(node) = stack.pop() {
+            if node.name.as_deref() == Some(name) {
+                return Some(node);
             }
+            stack.extend(node.children.iter().rev());
         }
         None
     }
@@ -212,7 +275,13 @@ impl NodeLocation {
 
 impl ASTNodeType {
     pub fn from_tree_sitter_kind(kind: &str, language: Language) -> Self {
-        match (kind, language) {
+        Self::known_kind(kind, language).unwrap_or_else(|| ASTNodeType::Other(kind.to_string()))
+    }
+
+    /// Like `from_tree_sitter_kind`, but `None` instead of allocating an
+    /// `Other` for kinds without a dedicated variant.
+    pub(crate) fn known_kind(kind: &str, language: Language) -> Option<Self> {
+        let node_type = match (kind, language) {
             // Common across languages
             ("program", _) | ("source_file", _) => ASTNodeType::Program,
             ("module", _) => ASTNodeType::Module,
@@ -281,9 +350,9 @@ impl ASTNodeType {
             ("decorator", Language::Python) => ASTNodeType::Decorator,
             ("lambda", _) => ASTNodeType::Lambda,
             
-            // Default
-            _ => ASTNodeType::Other(kind.to_string()),
-        }
+            _ => return None,
+        };
+        Some(node_type)
     }
 }
 
@@ -1,56 +1,147 @@
 use code_context_graph_core::{Language, Result, CodeGraphError};
-use crate::ast::{ASTNode, ASTNodeType, NodeLocation};
+use crate::ast::{ASTNode, ASTNodeType, NodeLocation, NodeMetadata};
+use crate::ast::convert::{self, BudgetExceeded, ConversionBudget};
+use crate::ast::index::AstIndex;
+use crate::ast::text::SourceText;
+use std::borrow::Cow;
+use std::sync::OnceLock;
 use tree_sitter::Node;
 use serde::{Serialize, Deserialize};
 
+/// How much of the syntax tree gets converted.
+#[derive(Debug, Clone, Copy, Default, PartialEq, Eq, Hash, Serialize, Deserialize)]
+#[serde(rename_all = "snake_case")]
+pub enum ParseLevel {
+    /// Every included node, down to identifiers and literals.
+    #[default]
+    Full,
+    /// Declarations with their signatures, imports and inheritance metadata.
+    /// Bodies are only searched for nested declarations; their statements
+    /// and expressions are not converted.
+    Outline,
+}
+
 #[derive(Debug, Clone, Serialize, Deserialize)]
 pub struct SimplifiedAST {
-    pub root: ASTNode,
+    /// Private so that every change goes through `root_mut`, which drops
+    /// the index.
+    root: ASTNode,
     pub language: Language,
     pub source_hash: code_context_graph_core::Hash,
+    #[serde(default)]
+    pub level: ParseLevel,
+    /// Set when conversion ran out of budget; `level` is then `Outline`.
+    #[serde(default, skip_serializing_if = "Option::is_none")]
+    pub budget_exceeded: Option<BudgetExceeded>,
+    /// Built on the first indexed query.
+    #[serde(skip)]
+    index: OnceLock<AstIndex>,
 }
 
+/// Upper bound on nodes visited while looking for a declaration's name.
+const MAX_NAME_SEARCH_NODES: usize = 512;
+
 impl SimplifiedAST {
+    /// Wraps `root` and (re)assigns the stable, position-independent ids of
+    /// the whole tree.
     pub fn new(root: ASTNode, language: Language, source: &str) -> Self {
         let source_hash = code_context_graph_core::Hash::from_string(source);
-        
+        Self::from_parts(root, language, source_hash)
+    }
+
+    pub(crate) fn from_parts(mut root: ASTNode, language: Language, source_hash: code_context_graph_core::Hash) -> Self {
+        root.id = ASTNode::stable_id(None, &root.node_type, root.name.as_deref(), 0);
+        root.assign_stable_ids();
+
         Self {
             root,
             language,
             source_hash,
+            level: ParseLevel::Full,
+            budget_exceeded: None,
+            index: OnceLock::new(),
         }
     }
 
     pub fn from_tree_sitter(node: Node, source: &str, language: Language) -> Result<Self> {
-        let root = Self::convert_node(node, source, language)?;
-        Ok(Self::new(root, language, source))
+        Self::from_tree_sitter_with_level(node, source, language, ParseLevel::Full)
     }
 
-    fn convert_node(node: Node, source: &str, language: Language) -> Result<ASTNode> {
-        let node_type = ASTNodeType::from_tree_sitter_kind(node.kind(), language);
-        let location = NodeLocation::from_tree_sitter(node);
-        
-        // Extract name for named nodes
-        let name = Self::extract_node_name(&node, source, &node_type);
-        
-        let mut ast_node = ASTNode::new(node_type, name, location);
-        
-        // Add language-specific metadata
-        Self::add_node_metadata(&mut ast_node, &node, source, language);
-        
-        // Convert children
-        let mut cursor = node.walk();
-        for child in node.children(&mut cursor) {
-            if Self::should_include_node(&child, language) {
-                let child_ast = Self::convert_node(child, source, language)?;
-                ast_node.add_child(child_ast);
-            }
+    pub fn from_tree_sitter_with_level(node: Node, source: &str, language: Language, level: ParseLevel) -> Result<Self> {
+        Self::from_tree_sitter_with_budget(node, source, language, level, &ConversionBudget::default())
+    }
+
+    /// Converts with explicit node and depth budgets. A full conversion that
+    /// runs out of budget is redone at outline level; an outline conversion
+    /// that runs out keeps what fit. Either way `budget_exceeded` says so.
+    pub fn from_tree_sitter_with_budget(
+        node: Node,
+        source: &str,
+        language: Language,
+        level: ParseLevel,
+        budget: &ConversionBudget,
+    ) -> Result<Self> {
+        let source_hash = code_context_graph_core::Hash::from_string(source);
+        Self::from_source_text(node, source, source_hash, language, level, budget)
+    }
+
+    /// `from_tree_sitter_with_budget` for sources that are not held in
+    /// memory: node text is read through `source`, and the content hash is
+    /// supplied by the caller.
+    pub(crate) fn from_source_text<S: SourceText + ?Sized>(
+        node: Node,
+        source: &S,
+        source_hash: code_context_graph_core::Hash,
+        language: Language,
+        level: ParseLevel,
+        budget: &ConversionBudget,
+    ) -> Result<Self> {
+        let (mut root, mut exceeded) = convert::convert(node, source, language, level, budget);
+        let mut level = level;
+        if root.is_none() {
+            tracing::debug!("{:?} conversion over {:?} budget, falling back to outline", language, exceeded);
+            let (outline, _) = convert::convert(node, source, language, ParseLevel::Outline, budget);
+            root = outline;
+            level = ParseLevel::Outline;
         }
-        
-        Ok(ast_node)
+        let root = root.ok_or_else(|| CodeGraphError::Parser {
+            message: format!("Failed to convert {:?} syntax tree", language)
+        })?;
+
+        let mut ast = Self::from_parts(root, language, source_hash);
+        ast.level = level;
+        ast.budget_exceeded = exceeded.take();
+        Ok(ast)
+    }
+
+    /// Full conversion of a single subtree, failing when it goes over
+    /// `budget`.
+    pub(crate) fn convert_node(node: Node, source: &str, language: Language, budget: &ConversionBudget) -> Result<ASTNode> {
+        match convert::convert(node, source, language, ParseLevel::Full, budget) {
+            (Some(root), _) => Ok(root),
+            (None, exceeded) => Err(CodeGraphError::Parser {
+                message: format!("{:?} subtree conversion over {:?} budget", language, exceeded)
+            }),
+        }
+    }
+
+    pub(crate) fn extract_node_name<S: SourceText + ?Sized>(node: &Node, source: &S, node_type: &ASTNodeType) -> Option<String> {
+        let (name, quoted) = Self::name_node(node, node_type)?;
+        let text = source.node_text(&name)?;
+        Some(if quoted { Self::trim_quotes(&text).to_string() } else { text.into_owned() })
     }
 
-    fn extract_node_name(node: &Node, source: &str, node_type: &ASTNodeType) -> Option<String> {
+    /// The name `extract_node_name` would give the node, borrowed from
+    /// `source`. Names are always a verbatim slice of the source.
+    pub(crate) fn node_name<'s>(node: &Node, source: &'s str, node_type: &ASTNodeType) -> Option<&'s str> {
+        let (name, quoted) = Self::name_node(node, node_type)?;
+        let text = name.utf8_text(source.as_bytes()).ok()?;
+        Some(if quoted { Self::trim_quotes(text) } else { text })
+    }
+
+    /// The node whose text names `node`, and whether that text may be a
+    /// quoted string.
+    fn name_node<'tree>(node: &Node<'tree>, node_type: &ASTNodeType) -> Option<(Node<'tree>, bool)> {
         match node_type {
             ASTNodeType::ClassDeclaration |
             ASTNodeType::FunctionDeclaration |
@@ -58,50 +149,82 @@ impl SimplifiedAST {
             ASTNodeType::VariableDeclaration |
             ASTNodeType::InterfaceDeclaration |
             ASTNodeType::EnumDeclaration => {
-                Self::find_name_child(node, source)
-            },
-            ASTNodeType::Identifier => {
-                Some(node.utf8_text(source.as_bytes()).unwrap_or("").to_string())
+                Self::find_name_child(node).map(|name| (name, false))
             },
+            ASTNodeType::Identifier => Some((*node, false)),
             ASTNodeType::ImportDeclaration => {
-                Self::extract_import_name(node, source)
+                Self::import_name_node(node)
             },
             _ => None,
         }
     }
 
-    fn find_name_child(node: &Node, source: &str) -> Option<String> {
+    fn trim_quotes(text: &str) -> &str {
+        text.trim_matches('"').trim_matches('\'')
+    }
+
+    /// The name is the first name-like descendant in preorder. When the node
+    /// has a `name` field, only the children before it (modifiers,
+    /// annotations) can hold an earlier one, so the body is never searched.
+    fn find_name_child<'tree>(node: &Node<'tree>) -> Option<Node<'tree>> {
+        let name_field = node.child_by_field_name("name")
+            .filter(|name| Self::is_name_kind(name.kind()));
+        Self::first_name_node(node, name_field).or(name_field)
+    }
+
+    fn is_name_kind(kind: &str) -> bool {
+        matches!(kind, "identifier" | "name" | "type_identifier" | "simple_identifier")
+    }
+
+    /// Iterative preorder search below `node`, stopping at the direct child
+    /// `stop_at` or after `MAX_NAME_SEARCH_NODES` nodes.
+    fn first_name_node<'tree>(node: &Node<'tree>, stop_at: Option<Node<'tree>>) -> Option<Node<'tree>> {
         let mut cursor = node.walk();
-        for child in node.children(&mut cursor) {
-            if matches!(child.kind(), "identifier" | "name" | "type_identifier" | "simple_identifier") {
-                if let Ok(text) = child.utf8_text(source.as_bytes()) {
-                    return Some(text.to_string());
-                }
+        if !cursor.goto_first_child() {
+            return None;
+        }
+
+        let mut depth = 1usize;
+        let mut visited = 0usize;
+        loop {
+            let current = cursor.node();
+            if depth == 1 && Some(current) == stop_at {
+                return None;
+            }
+            if Self::is_name_kind(current.kind()) {
+                return Some(current);
             }
-            // For nested structures, look deeper
-            if let Some(nested_name) = Self::find_name_child(&child, source) {
-                return Some(nested_name);
+            visited += 1;
+            if visited >= MAX_NAME_SEARCH_NODES {
+                return None;
+            }
+
+            if cursor.goto_first_child() {
+                depth += 1;
+                continue;
+            }
+            while !cursor.goto_next_sibling() {
+                if depth == 1 || !cursor.goto_parent() {
+                    return None;
+                }
+                depth -= 1;
             }
         }
-        None
     }
 
-    fn extract_import_name(node: &Node, source: &str) -> Option<String> {
+    fn import_name_node<'tree>(node: &Node<'tree>) -> Option<(Node<'tree>, bool)> {
         // Try to get the main imported module/package name
         let mut cursor = node.walk();
         for child in node.children(&mut cursor) {
             match child.kind() {
+                // String literals lose their quotes
                 "dotted_name" | "module_name" | "identifier" | "string_literal" => {
-                    if let Ok(text) = child.utf8_text(source.as_bytes()) {
-                        // Remove quotes from string literals
-                        let clean_text = text.trim_matches('"').trim_matches('\'');
-                        return Some(clean_text.to_string());
-                    }
+                    return Some((child, true));
                 },
                 "scoped_identifier" => {
                     // Handle JavaScript style imports
-                    if let Some(name) = Self::find_name_child(&child, source) {
-                        return Some(name);
+                    if let Some(name) = Self::find_name_child(&child) {
+                        return Some((name, false));
                     }
                 },
                 _ => {}
@@ -110,71 +233,69 @@ impl SimplifiedAST {
         None
     }
 
-    fn add_node_metadata(ast_node: &mut ASTNode, node: &Node, source: &str, language: Language) {
-        // Add common metadata
-        ast_node.add_metadata("kind", node.kind());
-        ast_node.add_metadata("is_named", node.is_named());
-        ast_node.add_metadata("language", language);
+    pub(crate) fn add_node_metadata<S: SourceText + ?Sized>(ast_node: &mut ASTNode, node: &Node, source: &S, language: Language) {
+        // Add common metadata. Node text is not copied; it is the node's byte range.
+        ast_node.metadata.kind = Some(Cow::Borrowed(node.kind()));
+        ast_node.metadata.is_named = Some(node.is_named());
+        ast_node.metadata.language = Some(language);
         
-        // Add text content for small nodes
-        if let Ok(text) = node.utf8_text(source.as_bytes()) {
-            if text.len() < 100 { // Only for small nodes to avoid large metadata
-                ast_node.add_metadata("text", text);
-            }
-        }
-        
-        // Language-specific metadata
+        Self::add_language_metadata(&mut ast_node.metadata, node, source, language);
+    }
+
+    /// Language-specific metadata only (decorators, modifiers, supertypes...),
+    /// written into `metadata`. Shared by the tree and arena representations.
+    pub(crate) fn add_language_metadata<S: SourceText + ?Sized>(metadata: &mut NodeMetadata, node: &Node, source: &S, language: Language) {
         match language {
-            Language::Python => Self::add_python_metadata(ast_node, node, source),
-            Language::Java => Self::add_java_metadata(ast_node, node, source),
-            Language::JavaScript => Self::add_javascript_metadata(ast_node, node, source),
-            Language::Kotlin => Self::add_kotlin_metadata(ast_node, node, source),
+            Language::Python => Self::add_python_metadata(metadata, node, source),
+            Language::Java => Self::add_java_metadata(metadata, node, source),
+            Language::JavaScript => Self::add_javascript_metadata(metadata, node, source),
+            Language::Kotlin => Self::add_kotlin_metadata(metadata, node, source),
             _ => {}
         }
     }
 
-    fn add_python_metadata(ast_node: &mut ASTNode, node: &Node, source: &str) {
+    fn add_python_metadata<S: SourceText + ?Sized>(metadata: &mut NodeMetadata, node: &Node, source: &S) {
         match node.kind() {
             "function_definition" => {
                 // Check for decorators - they might be children or siblings
                 let decorators = Self::extract_python_decorators(node, source);
                 if !decorators.is_empty() {
-                    ast_node.add_metadata("decorators", decorators);
+                    metadata.decorators = decorators;
                 }
             },
             "class_definition" => {
                 // Check for base classes
                 if let Some(base_classes) = Self::extract_python_base_classes(node, source) {
-                    ast_node.add_metadata("base_classes", base_classes);
+                    metadata.base_classes = base_classes;
                 }
             },
             _ => {}
         }
     }
 
-    fn add_java_metadata(ast_node: &mut ASTNode, node: &Node, source: &str) {
+    fn add_java_metadata<S: SourceText + ?Sized>(metadata: &mut NodeMetadata, node: &Node, source: &S) {
         match node.kind() {
             "method_declaration" | "constructor_declaration" => {
                 // Extract modifiers
                 let modifiers = Self::extract_java_modifiers(node, source);
                 if !modifiers.is_empty() {
-                    ast_node.add_metadata("modifiers", modifiers);
+                    metadata.modifiers = modifiers;
                 }
             },
             "class_declaration" => {
                 // Extract extends and implements
                 if let Some(extends) = Self::extract_java_extends(node, source) {
-                    ast_node.add_metadata("extends", extends);
+                    metadata.extends = Some(extends);
                 }
                 if let Some(implements) = Self::extract_java_implements(node, source) {
-                    ast_node.add_metadata("implements", implements);
+                    metadata.implements = implements;
                 }
             },
             _ => {}
         }
     }
 
-    fn add_javascript_metadata(ast_node: &mut ASTNode, node: &Node, source: &str) {
+    fn add_javascript_metadata<S: SourceText + ?Sized>(metadata: &mut NodeMetadata, node: &Node, source: &S) {
         match node.kind() {
             "function_declaration" | "method_definition" => {
                 // Check if async
@@ -183,7 +304,7 @@ impl SimplifiedAST {
                     .any(|child| child.kind() == "async");
                 
                 if is_async {
-                    ast_node.add_metadata("async", true);
+                    metadata.is_async = true;
                 }
             
                 // Check if generator
@@ -191,45 +312,45 @@ impl SimplifiedAST {
                     .any(|child| child.kind() == "*");
                 
                 if is_generator {
-                    ast_node.add_metadata("generator", true);
+                    metadata.is_generator = true;
                 }
             },
             "class_declaration" => {
                 // Extract extends
                 if let Some(extends) = Self::extract_js_extends(node, source) {
-                    ast_node.add_metadata("extends", extends);
+                    metadata.extends = Some(extends);
                 }
             },
             _ => {}
         }
     }
 
-    fn add_kotlin_metadata(ast_node: &mut ASTNode, node: &Node, source: &str) {
+    fn add_kotlin_metadata<S: SourceText + ?Sized>(metadata: &mut NodeMetadata, node: &Node, source: &S) {
         match node.kind() {
             "function_declaration" => {
                 // Extract modifiers
                 let modifiers = Self::extract_kotlin_modifiers(node, source);
                 if !modifiers.is_empty() {
-                    ast_node.add_metadata("modifiers", modifiers);
+                    metadata.modifiers = modifiers;
                 }
             },
             "class_declaration" | "object_declaration" => {
                 // Extract modifiers for classes/objects
                 let modifiers = Self::extract_kotlin_modifiers(node, source);
                 if !modifiers.is_empty() {
-                    ast_node.add_metadata("modifiers", modifiers);
+                    metadata.modifiers = modifiers;
                 }
                 
                 // Extract parent types
                 if let Some(parents) = Self::extract_kotlin_parents(node, source) {
-                    ast_node.add_metadata("parents", parents);
+                    metadata.parents = parents;
                 }
             },
             _ => {}
         }
     }
 
-    fn should_include_node(node: &Node, language: Language) -> bool {
+    pub(crate) fn should_include_node(node: &Node, language: Language) -> bool {
         // Filter out noise nodes but keep important structural elements
         let kind = node.kind();
         
@@ -266,14 +387,14 @@ impl SimplifiedAST {
     }
 
     // Helper methods for extracting language-specific information
-    fn extract_python_decorators(node: &Node, source: &str) -> Vec<String> {
+    fn extract_python_decorators<S: SourceText + ?Sized>(node: &Node, source: &S) -> Vec<String> {
         let mut decorators = Vec::new();
         
         // First, check direct children
         let mut cursor = node.walk();
         for child in node.children(&mut cursor) {
             if child.kind() == "decorator" {
-                if let Ok(text) = child.utf8_text(source.as_bytes()) {
+                if let Some(text) = source.node_text(&child) {
                     decorators.push(text.to_string());
                 }
             }
@@ -286,7 +407,7 @@ impl SimplifiedAST {
                     let mut parent_cursor = parent.walk();
                     for sibling in parent.children(&mut parent_cursor) {
                         if sibling.kind() == "decorator" {
-                            if let Ok(text) = sibling.utf8_text(source.as_bytes()) {
+                            if let Some(text) = source.node_text(&sibling) {
                                 decorators.push(text.to_string());
                             }
                         }
@@ -298,7 +419,7 @@ impl SimplifiedAST {
         decorators
     }
     
-    fn extract_python_base_classes(node: &Node, source: &str) -> Option<Vec<String>> {
+    fn extract_python_base_classes<S: SourceText + ?Sized>(node: &Node, source: &S) -> Option<Vec<String>> {
         let mut cursor = node.walk();
         for child in node.children(&mut cursor) {
             if child.kind() == "argument_list" {
@@ -306,7 +427,7 @@ impl SimplifiedAST {
                 let mut child_cursor = child.walk();
                 for grandchild in child.children(&mut child_cursor) {
                     if grandchild.kind() == "identifier" {
-                        if let Ok(text) = grandchild.utf8_text(source.as_bytes()) {
+                        if let Some(text) = source.node_text(&grandchild) {
                             base_classes.push(text.to_string());
                         }
                     }
@@ -319,12 +440,12 @@ impl SimplifiedAST {
         None
     }
 
-    fn extract_java_modifiers(node: &Node, source: &str) -> Vec<String> {
+    fn extract_java_modifiers<S: SourceText + ?Sized>(node: &Node, source: &S) -> Vec<String> {
         let mut modifiers = Vec::new();
         let mut cursor = node.walk();
         for child in node.children(&mut cursor) {
             if matches!(child.kind(), "public" | "private" | "protected" | "static" | "final" | "abstract" | "synchronized") {
-                if let Ok(text) = child.utf8_text(source.as_bytes()) {
+                if let Some(text) = source.node_text(&child) {
                     modifiers.push(text.to_string());
                 }
             }
@@ -332,7 +453,7 @@ impl SimplifiedAST {
         modifiers
     }
 
-    fn extract_java_extends(node: &Node, source: &str) -> Option<String> {
+    fn extract_java_extends<S: SourceText + ?Sized>(node: &Node, source: &S) -> Option<String> {
         let mut cursor = node.walk();
         for child in node.children(&mut cursor) {
             if child.kind() == "superclass" {
@@ -340,13 +461,13 @@ impl SimplifiedAST {
                 let mut child_cursor = child.walk();
                 for grandchild in child.children(&mut child_cursor) {
                     if grandchild.kind() == "type_identifier" || grandchild.kind() == "identifier" {
-                        if let Ok(text) = grandchild.utf8_text(source.as_bytes()) {
+                        if let Some(text) = source.node_text(&grandchild) {
                             return Some(text.to_string());
                         }
                     }
                 }
                 // Fallback to full text if no identifier found
-                if let Ok(text) = child.utf8_text(source.as_bytes()) {
+                if let Some(text) = source.node_text(&child) {
                     let clean_text = text.trim().replace("extends ", "");
                     if !clean_text.is_empty() {
                         return Some(clean_text);
@@ -357,7 +478,7 @@ impl SimplifiedAST {
         None
     }
 
-    fn extract_java_implements(node: &Node, source: &str) -> Option<Vec<String>> {
+    fn extract_java_implements<S: SourceText + ?Sized>(node: &Node, source: &S) -> Option<Vec<String>> {
         let mut cursor = node.walk();
         for child in node.children(&mut cursor) {
             if child.kind() == "super_interfaces" {
@@ -365,7 +486,7 @@ impl SimplifiedAST {
                 let mut child_cursor = child.walk();
                 for grandchild in child.children(&mut child_cursor) {
                     if grandchild.kind() == "type_identifier" || grandchild.kind() == "identifier" {
-                        if let Ok(text) = grandchild.utf8_text(source.as_bytes()) {
+                        if let Some(text) = source.node_text(&grandchild) {
                             interfaces.push(text.to_string());
                         }
                     }
@@ -378,11 +499,11 @@ impl SimplifiedAST {
         None
     }
 
-    fn extract_js_extends(node: &Node, source: &str) -> Option<String> {
+    fn extract_js_extends<S: SourceText + ?Sized>(node: &Node, source: &S) -> Option<String> {
         let mut cursor = node.walk();
         for child in node.children(&mut cursor) {
             if child.kind() == "class_heritage" {
-                if let Ok(text) = child.utf8_text(source.as_bytes()) {
+                if let Some(text) = source.node_text(&child) {
                     return Some(text.to_string());
                 }
             }
@@ -390,7 +511,7 @@ impl SimplifiedAST {
         None
     }
 
-    fn extract_kotlin_modifiers(node: &Node, source: &str) -> Vec<String> {
+    fn extract_kotlin_modifiers<S: SourceText + ?Sized>(node: &Node, source: &S) -> Vec<String> {
         let mut modifiers = Vec::new();
         let mut cursor = node.walk();
         for child in node.children(&mut cursor) {
@@ -399,7 +520,7 @@ impl SimplifiedAST {
                 "visibility_modifier" | "inheritance_modifier" | "function_modifier" |
                 "modifiers" | "modifier"
             ) {
-                if let Ok(text) = child.utf8_text(source.as_bytes()) {
+                if let Some(text) = source.node_text(&child) {
                     modifiers.push(text.to_string());
                 }
             } else if matches!(child.kind(),
@@ -407,7 +528,7 @@ impl SimplifiedAST {
                 "abstract" | "final" | "open" | "override" | "data" | "sealed" |
                 "inner" | "enum" | "annotation" | "companion" | "lateinit" | "vararg"
             ) {
-                if let Ok(text) = child.utf8_text(source.as_bytes()) {
+                if let Some(text) = source.node_text(&child) {
                     modifiers.push(text.to_string());
                 }
             }
@@ -416,7 +537,7 @@ impl SimplifiedAST {
             if child.kind() == "modifiers" {
                 let mut child_cursor = child.walk();
                 for grandchild in child.children(&mut child_cursor) {
-                    if let Ok(text) = grandchild.utf8_text(source.as_bytes()) {
+                    if let Some(text) = source.node_text(&grandchild) {
                         modifiers.push(text.to_string());
                     }
                 }
@@ -425,7 +546,7 @@ impl SimplifiedAST {
         modifiers
     }
 
-    fn extract_kotlin_parents(node: &Node, source: &str) -> Option<Vec<String>> {
+    fn extract_kotlin_parents<S: SourceText + ?Sized>(node: &Node, source: &S) -> Option<Vec<String>> {
         let mut parents = Vec::new();
         let mut cursor = node.walk();
         for child in node.children(&mut cursor) {
@@ -437,9 +558,9 @@ impl SimplifiedAST {
                         "constructor_invocation" | "user_type" | "type_identifier" | 
                         "simple_identifier" | "identifier" | "supertype"
                     ) {
-                        if let Ok(text) = grandchild.utf8_text(source.as_bytes()) {
+                        if let Some(text) = source.node_text(&grandchild) {
                             // Clean up the text (remove constructor call syntax)
-                            let clean_text = text.split('(').next().unwrap_or(text).trim();
+                            let clean_text = text.split('(').next().unwrap_or(&*text).trim();
                             if !clean_text.is_empty() {
                                 parents.push(clean_text.to_string());
                             }
@@ -451,7 +572,7 @@ impl SimplifiedAST {
                         let mut nested_cursor = grandchild.walk();
                         for nested_child in grandchild.children(&mut nested_cursor) {
                             if matches!(nested_child.kind(), "type_identifier" | "simple_identifier") {
-                                if let Ok(text) = nested_child.utf8_text(source.as_bytes()) {
+                                if let Some(text) = source.node_text(&nested_child) {
                                     parents.push(text.to_string());
                                 }
                             }
@@ -467,33 +588,93 @@ impl SimplifiedAST {
         }
     }
 
-    // Public API for AST traversal
+    // Public API for AST traversal. Queries are answered from an index of
+    // node types and names built once per AST.
     pub fn find_all_functions(&self) -> Vec<&ASTNode> {
-        let mut result = self.root.find_children_by_type(&ASTNodeType::FunctionDeclaration);
-        result.extend(self.root.find_children_by_type(&ASTNodeType::MethodDeclaration));
+        let mut result = self.descendants_of_type(&ASTNodeType::FunctionDeclaration);
+        result.extend(self.descendants_of_type(&ASTNodeType::MethodDeclaration));
         result
     }
 
     pub fn find_all_classes(&self) -> Vec<&ASTNode> {
-        let mut result = self.root.find_children_by_type(&ASTNodeType::ClassDeclaration);
-        result.extend(self.root.find_children_by_type(&ASTNodeType::InterfaceDeclaration));
+        let mut result = self.descendants_of_type(&ASTNodeType::ClassDeclaration);
+        result.extend(self.descendants_of_type(&ASTNodeType::InterfaceDeclaration));
         result
     }
 
     pub fn find_all_imports(&self) -> Vec<&ASTNode> {
-        self.root.find_children_by_type(&ASTNodeType::ImportDeclaration)
+        self.descendants_of_type(&ASTNodeType::ImportDeclaration)
     }
 
     pub fn find_all_calls(&self) -> Vec<&ASTNode> {
-        self.root.find_children_by_type(&ASTNodeType::CallExpression)
+        self.descendants_of_type(&ASTNodeType::CallExpression)
     }
     
     pub fn find_all_interfaces(&self) -> Vec<&ASTNode> {
-        self.root.find_children_by_type(&ASTNodeType::InterfaceDeclaration)
+        self.descendants_of_type(&ASTNodeType::InterfaceDeclaration)
     }
     
     pub fn find_all_enums(&self) -> Vec<&ASTNode> {
-        self.root.find_children_by_type(&ASTNodeType::EnumDeclaration)
+        self.descendants_of_type(&ASTNodeType::EnumDeclaration)
+    }
+
+    /// Every node of `node_type` in preorder, the root included.
+    pub fn nodes_of_type(&self, node_type: &ASTNodeType) -> Vec<&ASTNode> {
+        self.index().of_type(&self.root, node_type)
+    }
+
+    pub fn count_of_type(&self, node_type: &ASTNodeType) -> usize {
+        self.index().count_of_type(node_type)
+    }
+
+    /// Every node named `name` in preorder, the root included.
+    pub fn nodes_named(&self, name: &str) -> Vec<&ASTNode> {
+        self.index().named(&self.root, name)
+    }
+
+    pub fn node_count(&self) -> usize {
+        self.index().len()
+    }
+
+    pub fn root(&self) -> &ASTNode {
+        &self.root
+    }
+
+    /// Mutable access to the tree. Drops the lookup index, so the next query
+    /// rebuilds it from the changed tree.
+    pub fn root_mut(&mut self) -> &mut ASTNode {
+        self.index = OnceLock::new();
+        &mut self.root
+    }
+
+    pub fn into_root(self) -> ASTNode {
+        self.root
+    }
+
+    fn index(&self) -> &AstIndex {
+        self.index.get_or_init(|| AstIndex::build(&self.root))
+    }
+
+    /// Same as `root.find_children_by_type`: the root itself is left out.
+    fn descendants_of_type(&self, node_type: &ASTNodeType) -> Vec<&ASTNode> {
+        let mut nodes = self.nodes_of_type(node_type);
+        if nodes.first().map_or(false, |first| std::ptr::eq(*first, &self.root)) {
+            nodes.remove(0);
+        }
+        nodes
+    }
+
+    /// Approximate heap footprint in bytes: nodes, names and metadata.
+    pub fn memory_usage(&self) -> usize {
+        let mut total = std::mem::size_of::<SimplifiedAST>();
+        let mut stack = vec![&self.root];
+        while let Some(node) = stack.pop() {
+            total += node.children.capacity() * std::mem::size_of::<ASTNode>()
+                + node.name.as_ref().map_or(0, String::capacity)
+                + node.metadata.heap_size();
+            stack.extend(&node.children);
+        }
+        total
     }
 }
 
@@ -529,4 +710,191 @@ mod tests {
         
         assert_eq!(functions.len(), 2);
     }
+
+    fn parse_at(source: &str, language: Language, level: ParseLevel) -> SimplifiedAST {
+        let mut parser = tree_sitter::Parser::new();
+        parser.set_language(&crate::language::tree_sitter_language(language).unwrap()).unwrap();
+        let tree = parser.parse(source, None).unwrap();
+        SimplifiedAST::from_tree_sitter_with_level(tree.root_node(), source, language, level).unwrap()
+    }
+
+    fn node_count(node: &ASTNode) -> usize {
+        1 + node.children.iter().map(node_count).sum::<usize>()
+    }
+
+    fn outline_names(ast: &SimplifiedAST) -> Vec<(ASTNodeType, Option<String>)> {
+        let mut names = Vec::new();
+        let mut stack = vec![&ast.root];
+        while let Some(node) = stack.pop() {
+            if node.is_declaration() && node.node_type != ASTNodeType::VariableDeclaration
+                || node.node_type == ASTNodeType::ImportDeclaration
+            {
+                names.push((node.node_type.clone(), node.name.clone()));
+            }
+            stack.extend(node.children.iter().rev());
+        }
+        names
+    }
+
+    #[test]
+    fn test_outline_keeps_declarations_and_drops_bodies() {
+        let source = r#"
+import os
+from typing import List
+
+class Base:
+    pass
+
+class Service(Base):
+    def start(self, items: List[int]) -> int:
+        total = 0
+        for item in items:
+            total += os.getpid() + item
+        def helper():
+            return total
+        return helper()
+"#;
+        let full = parse_at(source, Language::Python, ParseLevel::Full);
+        let outline = parse_at(source, Language::Python, ParseLevel::Outline);
+
+        assert_eq!(outline.level, ParseLevel::Outline);
+        assert_eq!(outline_names(&outline), outline_names(&full));
+        assert!(outline.find_all_calls().is_empty());
+        assert!(node_count(&outline.root) * 2 < node_count(&full.root));
+
+        let service = outline.find_all_classes().into_iter()
+            .find(|c| c.name.as_deref() == Some("Service"))
+            .unwrap();
+        assert_eq!(service.metadata.base_classes, vec!["Base".to_string()]);
+    }
+
+    fn parse_with_budget(source: &str, language: Language, level: ParseLevel, budget: ConversionBudget) -> SimplifiedAST {
+        let mut parser = tree_sitter::Parser::new();
+        parser.set_language(&crate::language::tree_sitter_language(language).unwrap()).unwrap();
+        let tree = parser.parse(source, None).unwrap();
+        SimplifiedAST::from_tree_sitter_with_budget(tree.root_node(), source, language, level, &budget).unwrap()
+    }
+
+    #[test]
+    fn test_deep_nesting_downgrades_to_outline() {
+        let source = format!(
+            "def before():\n    pass\n\nx = {}1{}\n\ndef after():\n    pass\n",
+            "[".repeat(5000),
+            "]".repeat(5000),
+        );
+
+        let ast = parse_at(&source, Language::Python, ParseLevel::Full);
+
+        assert_eq!(ast.level, ParseLevel::Outline);
+        assert_eq!(ast.budget_exceeded, Some(BudgetExceeded::Depth));
+        let names: Vec<_> = ast.find_all_functions().iter().filter_map(|f| f.name.clone()).collect();
+        assert_eq!(names, vec!["before".to_string(), "after".to_string()]);
+    }
+
+    #[test]
+    fn test_node_budget_downgrades_to_outline() {
+        let source = "def a():\n    return [1, 2, 3]\n\ndef b():\n    return {'k': (4, 5)}\n";
+        let full = parse_at(source, Language::Python, ParseLevel::Full);
+        assert_eq!(full.budget_exceeded, None);
+
+        let budget = ConversionBudget::new(node_count(&full.root) - 1, 1_000);
+        let limited = parse_with_budget(source, Language::Python, ParseLevel::Full, budget);
+
+        assert_eq!(limited.level, ParseLevel::Outline);
+        assert_eq!(limited.budget_exceeded, Some(BudgetExceeded::Nodes));
+        assert_eq!(limited.find_all_functions().len(), 2);
+    }
+
+    #[test]
+    fn test_outline_over_budget_keeps_what_fits() {
+        let source = "def a():\n    pass\n\ndef b():\n    pass\n\ndef c():\n    pass\n";
+        let outline = parse_at(source, Language::Python, ParseLevel::Outline);
+        let first_function_nodes = node_count(&outline.find_all_functions()[0]);
+
+        let budget = ConversionBudget::new(1 + first_function_nodes, 1_000);
+        let limited = parse_with_budget(source, Language::Python, ParseLevel::Outline, budget);
+
+        assert_eq!(limited.budget_exceeded, Some(BudgetExceeded::Nodes));
+        assert_eq!(limited.find_all_functions().len(), 1);
+    }
+
+    #[test]
+    fn test_names_come_from_the_name_field() {
+        let source = "@decorator(option)\nclass Service(Base, Mixin):\n    def start(self, other):\n        return other\n";
+        let ast = parse_at(source, Language::Python, ParseLevel::Full);
+
+        assert_eq!(ast.find_all_classes()[0].name.as_deref(), Some("Service"));
+        assert_eq!(ast.find_all_functions()[0].name.as_deref(), Some("start"));
+    }
+
+    #[test]
+    fn test_outline_keeps_java_signatures() {
+        let source = r#"
+import java.util.List;
+
+public class Repo extends Base implements Store {
+    private int size;
+
+    public static List<String> load(String key) {
+        int local = key.length();
+        return List.of(key);
+    }
+}
+"#;
+        let full = parse_at(source, Language::Java, ParseLevel::Full);
+        let outline = parse_at(source, Language::Java, ParseLevel::Outline);
+
+        assert_eq!(outline_names(&outline), outline_names(&full));
+        assert!(outline.find_all_calls().is_empty());
+
+        let class = &outline.find_all_classes()[0];
+        assert_eq!(class.metadata.extends.as_deref(), Some("Base"));
+        let method = &outline.find_all_functions()[0];
+        assert_eq!(method.metadata.modifiers, full.find_all_functions()[0].metadata.modifiers);
+        // Locals are not part of the outline
+        assert!(outline.root.find_children_by_type(&ASTNodeType::VariableDeclaration).is_empty());
+    }
+
+    #[test]
+    fn test_index_matches_tree_walks() {
+        let source = "import os\n\nclass A:\n    def f(self):\n        return os.getcwd()\n\ndef g():\n    return A().f()\n";
+        let ast = parse_at(source, Language::Python, ParseLevel::Full);
+
+        for node_type in [ASTNodeType::FunctionDeclaration, ASTNodeType::CallExpression, ASTNodeType::ClassDeclaration] {
+            let walked = ast.root.find_children_by_type(&node_type);
+            let indexed = ast.nodes_of_type(&node_type);
+            assert_eq!(indexed.len(), walked.len());
+            assert!(indexed.iter().zip(&walked).all(|(a, b)| std::ptr::eq(*a, *b)));
+            assert_eq!(ast.count_of_type(&node_type), walked.len());
+        }
+        assert_eq!(ast.count_of_type(&ASTNodeType::Program), 1);
+        assert_eq!(ast.node_count(), node_count(&ast.root));
+
+        let named = ast.nodes_named("A");
+        assert!(named.iter().all(|node| node.name.as_deref() == Some("A")));
+        assert!(named.iter().any(|node| node.node_type == ASTNodeType::ClassDeclaration));
+        assert!(ast.nodes_named("not_a_name_in_this_file").is_empty());
+    }
+
+    #[test]
+    fn test_root_mut_invalidates_index() {
+        let location = NodeLocation::new(1, 0, 10, 0, 0, 100);
+        let root = ASTNode::new(ASTNodeType::Program, None, location.clone());
+        let mut ast = SimplifiedAST::new(root, Language::Python, "test");
+        assert!(ast.find_all_functions().is_empty());
+
+        ast.root_mut().add_child(ASTNode::new(ASTNodeType::FunctionDeclaration, Some("late".to_string()), location));
+
+        assert_eq!(ast.find_all_functions().len(), 1);
+        assert_eq!(ast.nodes_named("late").len(), 1);
+    }
+
+    #[test]
+    fn test_index_does_not_intern_names() {
+        let source = "def index_only_name_7f3a():\n    pass\n";
+        let ast = parse_at(source, Language::Python, ParseLevel::Full);
+
+        assert_eq!(ast.nodes_named("index_only_name_7f3a").len(), 1);
+        assert!(code_context_graph_core::Symbol::lookup("index_only_name_7f3a").is_none());
+    }
 }
\ No newline at end of file
@@ -0,0 +1,39 @@
+use std::borrow::Cow;
+use std::cell::RefCell;
+use std::io::{Read, Seek, SeekFrom};
+use tree_sitter::Node;
+
+/// Where node text comes from while a syntax tree is converted.
+pub(crate) trait SourceText {
+    /// The text `node` spans, or `None` if it cannot be read as UTF-8.
+    fn node_text(&self, node: &Node) -> Option<Cow<'_, str>>;
+}
+
+impl SourceText for str {
+    fn node_text(&self, node: &Node) -> Option<Cow<'_, str>> {
+        node.utf8_text(self.as_bytes()).ok().map(Cow::Borrowed)
+    }
+}
+
+/// Node text read on demand from a seekable reader, for sources that are
+/// parsed without being loaded. Only the names and signatures conversion
+/// asks for are read, each with one seek.
+pub(crate) struct ReaderText<R> {
+    reader: RefCell<R>,
+}
+
+impl<R: Read + Seek> ReaderText<R> {
+    pub(crate) fn new(reader: R) -> Self {
+        Self { reader: RefCell::new(reader) }
+    }
+}
+
+impl<R: Read + Seek> SourceText for ReaderText<R> {
+    fn node_text(&self, node: &Node) -> Option<Cow<'_, str>> {
+        let mut reader = self.reader.borrow_mut();
+        reader.seek(SeekFrom::Start(node.start_byte() as u64)).ok()?;
+        let mut bytes = vec![0; node.end_byte() - node.start_byte()];
+        reader.read_exact(&mut bytes).ok()?;
+        String::from_utf8(bytes).ok().map(Cow::Owned)
+    }
+}
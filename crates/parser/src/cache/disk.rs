@@ -0,0 +1,345 @@
+use code_context_graph_core::{Language, Result, CodeGraphError, Hash};
+use std::fs;
+use std::io::Write;
+use std::path::{Path, PathBuf};
+use std::sync::atomic::{AtomicU64, Ordering};
+use std::sync::Mutex;
+use std::time::SystemTime;
+use crate::ast::SimplifiedAST;
+use crate::language::ParseOptions;
+
+/// Bumped whenever the cached encoding or the conversion output changes, so
+/// stale entries are never read back.
+const CACHE_FORMAT: u32 = 1;
+
+/// Generous compared to `ConversionBudget`'s depth limit: every AST level is
+/// a few CBOR nesting levels.
+const DECODE_RECURSION_LIMIT: usize = 16_384;
+
+/// Default cap on the bytes of entries kept on disk.
+pub const DEFAULT_MAX_BYTES: u64 = 512 * 1024 * 1024;
+
+
+#[derive(Debug, Clone, Copy, Default, PartialEq, Eq)]
+pub struct DiskCacheStats {
+    pub hits: u64,
+    pub misses: u64,
+    pub writes: u64,
+    pub evictions: u64,
+}
+
+/// Persistent parse cache under the `.ccg` workspace.
+///
+/// Entries are CBOR-encoded `SimplifiedAST`s keyed by the blake3 hash of the
+/// source (the same hash the CAS stores the file under), the language, the
+/// parse options and the parser version. Entries are written atomically and
+/// anything unreadable is treated as a miss, so the directory can be deleted
+/// at any time.
+///
+/// Entries live in a directory per cache format and parser version; opening
+/// the cache deletes the directories of other versions. Once the entries
+/// pass `max_bytes`, the least recently used ones (by mtime, which hits
+/// refresh) are deleted down to three quarters of the cap.
+#[derive(Debug)]
+pub struct DiskParseCache {
+    root: PathBuf,
+    /// Entries of the current format and parser version
+    dir: PathBuf,
+    max_bytes: u64,
+    bytes: AtomicU64,
+    pruning: Mutex<()>,
+    hits: AtomicU64,
+    misses: AtomicU64,
+    writes: AtomicU64,
+    evictions: AtomicU64,
+}
+
+impl DiskParseCache {
+    pub fn open(root: impl Into<PathBuf>) -> Result<Self> {
+        let root = root.into();
+        let generation = format!("v{}-{}", CACHE_FORMAT, env!("CARGO_PKG_VERSION"));
+        let dir = root.join(&generation);
+        fs::create_dir_all(&dir)?;
+        // Entries of other versions can never be read back
+        for entry in fs::read_dir(&root)?.flatten() {
+            if entry.file_name() == generation.as_str() {
+                continue;
+            }
+            let path = entry.path();
+            let removed = if path.is_dir() { fs::remove_dir_all(&path) } else { fs::remove_file(&path) };
+            if let Err(e) = removed {
+                tracing::debug!("Failed to remove stale parse cache entry {}: {}", path.display(), e);
+            }
+        }
+        let bytes = entries(&dir).iter().map(|entry| entry.bytes).sum();
+        Ok(Self {
+            root,
+            dir,
+            max_bytes: DEFAULT_MAX_BYTES,
+            bytes: AtomicU64::new(bytes),
+            pruning: Mutex::new(()),
+            hits: AtomicU64::new(0),
+            misses: AtomicU64::new(0),
+            writes: AtomicU64::new(0),
+            evictions: AtomicU64::new(0),
+        })
+    }
+
+    pub fn with_max_bytes(mut self, max_bytes: u64) -> Self {
+        self.max_bytes = max_bytes;
+        self
+    }
+
+    /// The conventional location inside a `.ccg` workspace directory.
+    pub fn in_workspace(workspace: &Path) -> Result<Self> {
+        Self::open(workspace.join("parse-cache"))
+    }
+
+    pub fn root(&self) -> &Path {
+        &self.root
+    }
+
+    pub fn key(content_hash: &Hash, language: Language, options: &ParseOptions) -> Hash {
+        Hash::builder()
+            .update_hash(content_hash)
+            .update_fmt(format_args!("{:?}", language))
+            .update_fmt(format_args!("{:?}", options.level))
+            .update_fmt(format_args!("{}:{}", options.budget.max_nodes, options.budget.max_depth))
+            .update_str(env!("CARGO_PKG_VERSION"))
+            .update_u32(CACHE_FORMAT)
+            .finish()
+    }
+
+    pub fn get(&self, content_hash: &Hash, language: Language, options: &ParseOptions) -> Option<SimplifiedAST> {
+        let path = self.path_for(&Self::key(content_hash, language, options));
+        let decoded = fs::File::open(&path).ok().and_then(|file| {
+            let mut reader = std::io::BufReader::new(file);
+            match ciborium::de::from_reader_with_recursion_limit::<SimplifiedAST, _>(&mut reader, DECODE_RECURSION_LIMIT) {
+                Ok(ast) => {
+                    // Keeps the entry from being pruned as least recently used
+                    let _ = reader.get_ref().set_modified(SystemTime::now());
+                    Some(ast)
+                }
+                Err(e) => {
+                    tracing::debug!("Dropping unreadable parse cache entry {}: {}", path.display(), e);
+                    let _ = fs::remove_file(&path);
+                    None
+                }
+            }
+        });
+
+        let counter = if decoded.is_some() { &self.hits } else { &self.misses };
+        counter.fetch_add(1, Ordering::Relaxed);
+        decoded
+    }
+
+    pub fn put(&self, ast: &SimplifiedAST, options: &ParseOptions) -> Result<()> {
+        let path = self.path_for(&Self::key(&ast.source_hash, ast.language, options));
+        if let Some(parent) = path.parent() {
+            fs::create_dir_all(parent)?;
+        }
+
+        let mut encoded = Vec::new();
+        ciborium::ser::into_writer(ast, &mut encoded).map_err(|e| CodeGraphError::Parser {
+            message: format!("Failed to encode parse cache entry: {}", e)
+        })?;
+
+        // Write to a unique temp file, then rename, so readers never see a
+        // partial entry and concurrent writers of the same key do not clash
+        static TEMP_COUNTER: AtomicU64 = AtomicU64::new(0);
+        let tmp_path = path.with_extension(format!(
+            "{}-{}.tmp",
+            std::process::id(),
+            TEMP_COUNTER.fetch_add(1, Ordering::Relaxed)
+        ));
+        {
+            let mut file = fs::File::create(&tmp_path)?;
+            file.write_all(&encoded)?;
+        }
+        fs::rename(&tmp_path, &path)?;
+        self.writes.fetch_add(1, Ordering::Relaxed);
+        let bytes = self.bytes.fetch_add(encoded.len() as u64, Ordering::Relaxed) + encoded.len() as u64;
+        if bytes > self.max_bytes {
+            self.prune();
+        }
+        Ok(())
+    }
+
+    /// Deletes the least recently used entries until the cache is down to
+    /// three quarters of `max_bytes`. Only one thread prunes at a time;
+    /// writers that find it busy leave the work to it.
+    fn prune(&self) {
+        let Ok(_pruning) = self.pruning.try_lock() else { return };
+        let mut entries = entries(&self.dir);
+        entries.sort_by_key(|entry| entry.modified);
+        let target = self.max_bytes / 4 * 3;
+        let mut total: u64 = entries.iter().map(|entry| entry.bytes).sum();
+        for entry in entries {
+            if total <= target {
+                break;
+            }
+            if fs::remove_file(&entry.path).is_ok() {
+                total -= entry.bytes;
+                self.evictions.fetch_add(1, Ordering::Relaxed);
+            }
+        }
+        // Resynchronizes with the disk, which overwrites and other processes
+        // sharing the directory also change
+        self.bytes.store(total, Ordering::Relaxed);
+    }
+
+    pub fn stats(&self) -> DiskCacheStats {
+        DiskCacheStats {
+            hits: self.hits.load(Ordering::Relaxed),
+            misses: self.misses.load(Ordering::Relaxed),
+            writes: self.writes.load(Ordering::Relaxed),
+            evictions: self.evictions.load(Ordering::Relaxed),
+        }
+    }
+
+    fn path_for(&self, key: &Hash) -> PathBuf {
+        let hex = key.to_hex();
+        let (bucket, rest) = hex.split_at(2);
+        self.dir.join(bucket).join(format!("{}.cbor", rest))
+    }
+}
+
+struct Entry {
+    path: PathBuf,
+    bytes: u64,
+    modified: SystemTime,
+}
+
+/// The entries under `dir`, skipping anything that disappears or cannot be
+/// read meanwhile.
+fn entries(dir: &Path) -> Vec<Entry> {
+    let Ok(buckets) = fs::read_dir(dir) else { return Vec::new() };
+    buckets.flatten()
+        .filter_map(|bucket| fs::read_dir(bucket.path()).ok())
+        .flat_map(|files| files.flatten())
+        .filter(|file| file.path().extension().map_or(false, |ext| ext == "cbor"))
+        .filter_map(|file| {
+            let metadata = file.metadata().ok()?;
+            Some(Entry {
+                path: file.path(),
+                bytes: metadata.len(),
+                modified: metadata.modified().unwrap_or(SystemTime::UNIX_EPOCH),
+            })
+        })
+        .collect()
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::ast::ParseLevel;
+    use crate::language::ParserRegistry;
+    use std::sync::Arc;
+
+    const SOURCE: &str = "import os\n\nclass A(Base):\n    @staticmethod\n    def f(x):\n        return os.path.join(x, 'y')\n";
+
+    #[test]
+    fn test_round_trip() {
+        let dir = tempfile::tempdir().unwrap();
+        let cache = DiskParseCache::open(dir.path()).unwrap();
+        let options = ParseOptions::default();
+        let ast = ParserRegistry::new().parse(SOURCE, Language::Python).unwrap();
+
+        assert!(cache.get(&ast.source_hash, Language::Python, &options).is_none());
+        cache.put(&ast, &options).unwrap();
+        let cached = cache.get(&ast.source_hash, Language::Python, &options).unwrap();
+
+        assert_eq!(cached.root(), ast.root());
+        assert_eq!(cached.source_hash, ast.source_hash);
+        assert_eq!(cache.stats(), DiskCacheStats { hits: 1, misses: 1, writes: 1, evictions: 0 });
+    }
+
+    #[test]
+    fn test_key_depends_on_language_and_options() {
+        let hash = Hash::from_string(SOURCE);
+        let full = DiskParseCache::key(&hash, Language::Python, &ParseOptions::default());
+
+        assert_ne!(full, DiskParseCache::key(&hash, Language::Java, &ParseOptions::default()));
+        assert_ne!(full, DiskParseCache::key(&hash, Language::Python, &ParseOptions::outline()));
+        assert_eq!(full, DiskParseCache::key(&hash, Language::Python, &ParseOptions::full()));
+    }
+
+    #[test]
+    fn test_corrupt_entry_is_a_miss() {
+        let dir = tempfile::tempdir().unwrap();
+        let cache = DiskParseCache::open(dir.path()).unwrap();
+        let options = ParseOptions::default();
+        let hash = Hash::from_string(SOURCE);
+
+        let path = cache.path_for(&DiskParseCache::key(&hash, Language::Python, &options));
+        fs::create_dir_all(path.parent().unwrap()).unwrap();
+        fs::write(&path, b"not cbor").unwrap();
+
+        assert!(cache.get(&hash, Language::Python, &options).is_none());
+        assert!(!path.exists());
+    }
+
+    #[test]
+    fn test_registry_reads_through_the_cache() {
+        let dir = tempfile::tempdir().unwrap();
+        let cache = Arc::new(DiskParseCache::open(dir.path()).unwrap());
+        let registry = ParserRegistry::new().with_disk_cache(Arc::clone(&cache));
+        let options = ParseOptions::outline();
+
+        let first = registry.parse_with_options(SOURCE, Language::Python, &options).unwrap();
+        let second = registry.parse_with_options(SOURCE, Language::Python, &options).unwrap();
+
+        assert_eq!(first.root(), second.root());
+        assert_eq!(second.level, ParseLevel::Outline);
+        assert_eq!(cache.stats(), DiskCacheStats { hits: 1, misses: 1, writes: 1, evictions: 0 });
+    }
+
+    #[test]
+    fn test_prunes_least_recently_used_entries() {
+        let dir = tempfile::tempdir().unwrap();
+        let options = ParseOptions::default();
+        let registry = ParserRegistry::new();
+        let asts: Vec<SimplifiedAST> = (0..4)
+            .map(|i| registry.parse(&format!("{}x{} = 1\n", SOURCE, i), Language::Python).unwrap())
+            .collect();
+        let mut encoded = Vec::new();
+        ciborium::ser::into_writer(&asts[0], &mut encoded).unwrap();
+        // Room for three entries, pruned down to two
+        let cache = DiskParseCache::open(dir.path()).unwrap().with_max_bytes(encoded.len() as u64 * 3 + 8);
+
+        for ast in &asts[..3] {
+            cache.put(ast, &options).unwrap();
+        }
+        // Ages the first two, then makes the first the most recently used
+        let past = SystemTime::now() - std::time::Duration::from_secs(60);
+        for ast in &asts[..2] {
+            let path = cache.path_for(&DiskParseCache::key(&ast.source_hash, Language::Python, &options));
+            fs::File::options().write(true).open(path).unwrap().set_modified(past).unwrap();
+        }
+        assert!(cache.get(&asts[0].source_hash, Language::Python, &options).is_some());
+        cache.put(&asts[3], &options).unwrap();
+
+        assert_eq!(cache.stats().evictions, 2);
+        assert!(cache.get(&asts[1].source_hash, Language::Python, &options).is_none());
+        assert!(cache.get(&asts[0].source_hash, Language::Python, &options).is_some());
+        assert!(cache.get(&asts[3].source_hash, Language::Python, &options).is_some());
+    }
+
+    #[test]
+    fn test_open_removes_other_versions() {
+        let dir = tempfile::tempdir().unwrap();
+        let stale = dir.path().join("v0-0.0.0").join("ab");
+        fs::create_dir_all(&stale).unwrap();
+        fs::write(stale.join("cd.cbor"), b"old").unwrap();
+        fs::create_dir_all(dir.path().join("ef")).unwrap();
+
+        let cache = DiskParseCache::open(dir.path()).unwrap();
+        let ast = ParserRegistry::new().parse(SOURCE, Language::Python).unwrap();
+        cache.put(&ast, &ParseOptions::default()).unwrap();
+        let reopened = DiskParseCache::open(dir.path()).unwrap();
+
+        assert!(!dir.path().join("v0-0.0.0").exists());
+        assert!(!dir.path().join("ef").exists());
+        assert!(reopened.get(&ast.source_hash, Language::Python, &ParseOptions::default()).is_some());
+    }
+}
@@ -0,0 +1,355 @@
+use std::collections::HashMap;
+use std::hash::Hash;
+
+const NIL: usize = usize::MAX;
+
+/// Counters of an `LruCache` since it was created.
+#[derive(Debug, Clone, Copy, Default, PartialEq, Eq)]
+pub struct LruStats {
+    pub hits: u64,
+    pub misses: u64,
+    pub evictions: u64,
+}
+
+struct Slot<K, V> {
+    key: K,
+    value: V,
+    bytes: usize,
+    prev: usize,
+    next: usize,
+}
+
+/// Least-recently-used cache bounded by entry count and total byte size.
+///
+/// Entries live in a slab linked into a recency list by index, so lookups,
+/// inserts and evictions are all O(1). Byte sizes are supplied by the caller
+/// on insert. Not synchronized; wrap it in a `Mutex` to share it.
+pub struct LruCache<K, V> {
+    map: HashMap<K, usize>,
+    slots: Vec<Option<Slot<K, V>>>,
+    free: Vec<usize>,
+    /// Most recently used
+    head: usize,
+    /// Least recently used
+    tail: usize,
+    bytes: usize,
+    max_entries: usize,
+    max_bytes: usize,
+    stats: LruStats,
+}
+
+impl<K: Hash + Eq + Clone, V> LruCache<K, V> {
+    pub fn new(max_entries: usize, max_bytes: usize) -> Self {
+        Self {
+            map: HashMap::new(),
+            slots: Vec::new(),
+            free: Vec::new(),
+            head: NIL,
+            tail: NIL,
+            bytes: 0,
+            max_entries,
+            max_bytes,
+            stats: LruStats::default(),
+        }
+    }
+
+    /// Looks `key` up and marks it most recently used. Counts a hit or miss.
+    pub fn get(&mut self, key: &K) -> Option<&V> {
+        self.get_if(key, |_| true)
+    }
+
+    /// Like `get`, but an entry rejected by `valid` is a miss and is left
+    /// where it is in the recency order.
+    pub fn get_if(&mut self, key: &K, valid: impl FnOnce(&V) -> bool) -> Option<&V> {
+        let index = self.map.get(key).copied()
+            .filter(|&index| self.slot(index).map_or(false, |slot| valid(&slot.value)));
+        match index {
+            Some(index) => {
+                self.stats.hits += 1;
+                self.touch(index);
+                self.slot(index).map(|slot| &slot.value)
+            }
+            None => {
+                self.stats.misses += 1;
+                None
+            }
+        }
+    }
+
+    /// Looks `key` up without touching recency or counters.
+    pub fn peek(&self, key: &K) -> Option<&V> {
+        self.map.get(key).and_then(|&index| self.slot(index)).map(|slot| &slot.value)
+    }
+
+    pub fn contains_key(&self, key: &K) -> bool {
+        self.map.contains_key(key)
+    }
+
+    /// Inserts or replaces `key`, then evicts least recently used entries
+    /// until both limits hold again. A value larger than the whole byte
+    /// budget is not stored and counts as an eviction.
+    pub fn insert(&mut self, key: K, value: V, bytes: usize) {
+        self.remove(&key);
+        if bytes > self.max_bytes || self.max_entries == 0 {
+            self.stats.evictions += 1;
+            return;
+        }
+
+        let slot = Slot { key: key.clone(), value, bytes, prev: NIL, next: NIL };
+        let index = match self.free.pop() {
+            Some(index) => {
+                self.slots[index] = Some(slot);
+                index
+            }
+            None => {
+                self.slots.push(Some(slot));
+                self.slots.len() - 1
+            }
+        };
+        self.map.insert(key, index);
+        self.bytes += bytes;
+        self.push_front(index);
+
+        while self.map.len() > self.max_entries || self.bytes > self.max_bytes {
+            let lru = self.tail;
+            if lru == NIL || lru == index {
+                break;
+            }
+            self.remove_index(lru);
+            self.stats.evictions += 1;
+        }
+    }
+
+    pub fn remove(&mut self, key: &K) -> Option<V> {
+        let index = self.map.get(key).copied()?;
+        self.remove_index(index).map(|slot| slot.value)
+    }
+
+    /// Removes the least recently used entry, counting it as an eviction.
+    pub fn pop_lru(&mut self) -> Option<(K, V)> {
+        if self.tail == NIL {
+            return None;
+        }
+        let slot = self.remove_index(self.tail)?;
+        self.stats.evictions += 1;
+        Some((slot.key, slot.value))
+    }
+
+    /// Keeps only the entries for which `keep` returns true. Removed entries
+    /// are not counted as evictions.
+    pub fn retain(&mut self, mut keep: impl FnMut(&K, &V) -> bool) {
+        let doomed: Vec<usize> = self.slots.iter()
+            .enumerate()
+            .filter_map(|(index, slot)| match slot {
+                Some(slot) if !keep(&slot.key, &slot.value) => Some(index),
+                _ => None,
+            })
+            .collect();
+        for index in doomed {
+            self.remove_index(index);
+        }
+    }
+
+    pub fn clear(&mut self) {
+        self.map.clear();
+        self.slots.clear();
+        self.free.clear();
+        self.head = NIL;
+        self.tail = NIL;
+        self.bytes = 0;
+    }
+
+    pub fn len(&self) -> usize {
+        self.map.len()
+    }
+
+    pub fn is_empty(&self) -> bool {
+        self.map.is_empty()
+    }
+
+    /// Sum of the byte sizes of the cached entries.
+    pub fn bytes(&self) -> usize {
+        self.bytes
+    }
+
+    pub fn max_entries(&self) -> usize {
+        self.max_entries
+    }
+
+    pub fn max_bytes(&self) -> usize {
+        self.max_bytes
+    }
+
+    pub fn stats(&self) -> LruStats {
+        self.stats
+    }
+
+    fn slot(&self, index: usize) -> Option<&Slot<K, V>> {
+        self.slots.get(index).and_then(Option::as_ref)
+    }
+
+    fn remove_index(&mut self, index: usize) -> Option<Slot<K, V>> {
+        self.unlink(index);
+        let slot = self.slots.get_mut(index)?.take()?;
+        self.map.remove(&slot.key);
+        self.bytes -= slot.bytes;
+        self.free.push(index);
+        Some(slot)
+    }
+
+    fn touch(&mut self, index: usize) {
+        if self.head != index {
+            self.unlink(index);
+            self.push_front(index);
+        }
+    }
+
+    fn push_front(&mut self, index: usize) {
+        let old_head = self.head;
+        if let Some(slot) = self.slots[index].as_mut() {
+            slot.prev = NIL;
+            slot.next = old_head;
+        }
+        if old_head != NIL {
+            if let Some(head) = self.slots[old_head].as_mut() {
+                head.prev = index;
+            }
+        }
+        self.head = index;
+        if self.tail == NIL {
+            self.tail = index;
+        }
+    }
+
+    fn unlink(&mut self, index: usize) {
+        let Some((prev, next)) = self.slot(index).map(|slot| (slot.prev, slot.next)) else { return };
+
+        if prev != NIL {
+            if let Some(slot) = self.slots[prev].as_mut() {
+                slot.next = next;
+            }
+        } else if self.head == index {
+            self.head = next;
+        }
+
+        if next != NIL {
+            if let Some(slot) = self.slots[next].as_mut() {
+                slot.prev = prev;
+            }
+        } else if self.tail == index {
+            self.tail = prev;
+        }
+
+        if let Some(slot) = self.slots[index].as_mut() {
+            slot.prev = NIL;
+            slot.next = NIL;
+        }
+    }
+}
+
+impl<K, V> std::fmt::Debug for LruCache<K, V> {
+    fn fmt(&self, f: &mut std::fmt::Formatter<'_>) -> std::fmt::Result {
+        f.debug_struct("LruCache")
+            .field("len", &self.map.len())
+            .field("bytes", &self.bytes)
+            .field("max_entries", &self.max_entries)
+            .field("max_bytes", &self.max_bytes)
+            .field("stats", &self.stats)
+            .finish()
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    fn keys(cache: &LruCache<u32, &'static str>) -> Vec<u32> {
+        let mut keys = Vec::new();
+        let mut index = cache.head;
+        while index != NIL {
+            let slot = cache.slot(index).unwrap();
+            keys.push(slot.key);
+            index = slot.next;
+        }
+        keys
+    }
+
+    #[test]
+    fn test_evicts_least_recently_used() {
+        let mut cache = LruCache::new(2, usize::MAX);
+        cache.insert(1, "a", 1);
+        cache.insert(2, "b", 1);
+        assert_eq!(cache.get(&1), Some(&"a"));
+
+        cache.insert(3, "c", 1);
+
+        assert_eq!(keys(&cache), vec![3, 1]);
+        assert!(!cache.contains_key(&2));
+        assert_eq!(cache.stats(), LruStats { hits: 1, misses: 0, evictions: 1 });
+    }
+
+    #[test]
+    fn test_byte_budget() {
+        let mut cache = LruCache::new(100, 10);
+        cache.insert(1, "a", 4);
+        cache.insert(2, "b", 4);
+        cache.insert(3, "c", 4);
+
+        assert_eq!(keys(&cache), vec![3, 2]);
+        assert_eq!(cache.bytes(), 8);
+
+        // Larger than the whole budget: not stored, nothing else evicted
+        cache.insert(4, "d", 11);
+        assert_eq!(keys(&cache), vec![3, 2]);
+        assert_eq!(cache.stats().evictions, 2);
+    }
+
+    #[test]
+    fn test_replace_and_remove_keep_accounting() {
+        let mut cache = LruCache::new(10, 100);
+        cache.insert(1, "a", 10);
+        cache.insert(1, "b", 20);
+        assert_eq!(cache.len(), 1);
+        assert_eq!(cache.bytes(), 20);
+
+        cache.insert(2, "c", 5);
+        assert_eq!(cache.remove(&1), Some("b"));
+        assert_eq!(cache.bytes(), 5);
+        assert_eq!(cache.get(&1), None);
+        assert_eq!(cache.stats().misses, 1);
+        assert_eq!(cache.get_if(&2, |value| *value == "x"), None);
+        assert_eq!(cache.stats().misses, 2);
+
+        // Freed slots are reused
+        cache.insert(3, "d", 5);
+        assert_eq!(cache.slots.len(), 2);
+        assert_eq!(keys(&cache), vec![3, 2]);
+    }
+
+    #[test]
+    fn test_pop_lru() {
+        let mut cache = LruCache::new(10, 100);
+        cache.insert(1, "a", 3);
+        cache.insert(2, "b", 4);
+        cache.get(&1);
+
+        assert_eq!(cache.pop_lru(), Some((2, "b")));
+        assert_eq!(cache.bytes(), 3);
+        assert_eq!(cache.pop_lru(), Some((1, "a")));
+        assert_eq!(cache.pop_lru(), None);
+        assert_eq!(cache.stats().evictions, 2);
+    }
+
+    #[test]
+    fn test_retain() {
+        let mut cache = LruCache::new(10, 100);
+        for key in 0..6 {
+            cache.insert(key, "v", 1);
+        }
+        cache.retain(|key, _| key % 2 == 0);
+
+        assert_eq!(keys(&cache), vec![4, 2, 0]);
+        assert_eq!(cache.bytes(), 3);
+        assert_eq!(cache.stats().evictions, 0);
+    }
+}
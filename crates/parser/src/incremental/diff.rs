@@ -0,0 +1,113 @@
+use crate::ast::{ASTNode, SimplifiedAST};
+use code_context_graph_core::Hash;
+use std::collections::HashMap;
+
+/// Declaration-level difference between two versions of a file, keyed by the
+/// stable node ids. Only `added`, `removed` and `modified` entities need a
+/// graph write; `moved` ones just have a new location.
+#[derive(Debug, Default)]
+pub struct EntityDiff<'a> {
+    pub added: Vec<&'a ASTNode>,
+    pub removed: Vec<&'a ASTNode>,
+    pub modified: Vec<&'a ASTNode>,
+    pub moved: Vec<&'a ASTNode>,
+    pub unchanged: usize,
+}
+
+impl EntityDiff<'_> {
+    /// True when no entity needs to be written.
+    pub fn is_empty(&self) -> bool {
+        self.added.is_empty() && self.removed.is_empty() && self.modified.is_empty()
+    }
+}
+
+/// Compares the named declarations of `old` and `new`. Entities in `new`
+/// appear in `added`, `modified` and `moved`; entities only in `old` appear
+/// in `removed`. An entity counts as modified when its source text changed,
+/// so a class is also modified when one of its methods is.
+pub fn diff_entities<'a>(
+    old: &'a SimplifiedAST,
+    old_source: &str,
+    new: &'a SimplifiedAST,
+    new_source: &str,
+) -> EntityDiff<'a> {
+    let mut previous: HashMap<Hash, &'a ASTNode> = HashMap::new();
+    collect_entities(old.root(), &mut |node| {
+        previous.insert(node.id, node);
+    });
+
+    let mut diff = EntityDiff::default();
+    collect_entities(new.root(), &mut |node| {
+        match previous.remove(&node.id) {
+            None => diff.added.push(node),
+            Some(before) if before.fingerprint(old_source) != node.fingerprint(new_source) => {
+                diff.modified.push(node)
+            }
+            Some(before) if before.location != node.location => diff.moved.push(node),
+            Some(_) => diff.unchanged += 1,
+        }
+    });
+
+    diff.removed = previous.into_values().collect();
+    diff.removed.sort_by_key(|node| node.location.start_byte);
+    diff
+}
+
+fn collect_entities<'a>(root: &'a ASTNode, visit: &mut dyn FnMut(&'a ASTNode)) {
+    let mut stack = vec![root];
+    while let Some(node) = stack.pop() {
+        if node.is_declaration() && node.name.is_some() {
+            visit(node);
+        }
+        stack.extend(node.children.iter().rev());
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::language::ParserRegistry;
+    use code_context_graph_core::Language;
+
+    const BEFORE: &str = "class Service {\n    void start() { run(); }\n    void stop() {}\n}\n";
+
+    fn parse(source: &str) -> SimplifiedAST {
+        ParserRegistry::new().parse(source, Language::Java).unwrap()
+    }
+
+    fn names<'a>(nodes: &[&'a ASTNode]) -> Vec<&'a str> {
+        nodes.iter().filter_map(|n| n.name.as_deref()).collect()
+    }
+
+    #[test]
+    fn test_inserting_lines_above_keeps_ids() {
+        let after = format!("// header\n\n{}", BEFORE);
+        let (old, new) = (parse(BEFORE), parse(&after));
+
+        let diff = diff_entities(&old, BEFORE, &new, &after);
+        assert!(diff.is_empty());
+        assert!(!diff.moved.is_empty());
+    }
+
+    #[test]
+    fn test_only_edited_entities_are_reported() {
+        let after = BEFORE.replace("void stop() {}", "void stop() { halt(); }");
+        let (old, new) = (parse(BEFORE), parse(&after));
+
+        let diff = diff_entities(&old, BEFORE, &new, &after);
+        assert!(diff.added.is_empty());
+        assert!(diff.removed.is_empty());
+        assert!(names(&diff.modified).contains(&"stop"));
+        assert!(!names(&diff.modified).contains(&"start"));
+    }
+
+    #[test]
+    fn test_added_and_removed_entities() {
+        let after = BEFORE.replace("void stop() {}", "void pause() {}");
+        let (old, new) = (parse(BEFORE), parse(&after));
+
+        let diff = diff_entities(&old, BEFORE, &new, &after);
+        assert_eq!(names(&diff.added), vec!["pause"]);
+        assert_eq!(names(&diff.removed), vec!["stop"]);
+    }
+}
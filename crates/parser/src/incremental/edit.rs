@@ -0,0 +1,364 @@
+use crate::ast::{ASTNode, ASTNodeType, BudgetExceeded, ConversionBudget, NodeLocation, SimplifiedAST};
+use code_context_graph_core::{CodeGraphError, Language, Result};
+use tree_sitter::{InputEdit, Node, Point};
+
+/// A single text replacement, expressed in byte offsets.
+///
+/// `start_byte..old_end_byte` in the old source was replaced by
+/// `start_byte..new_end_byte` in the new source.
+#[derive(Debug, Clone, Copy, PartialEq, Eq)]
+pub struct SourceEdit {
+    pub start_byte: usize,
+    pub old_end_byte: usize,
+    pub new_end_byte: usize,
+}
+
+impl SourceEdit {
+    pub fn new(start_byte: usize, old_end_byte: usize, new_end_byte: usize) -> Self {
+        Self {
+            start_byte,
+            old_end_byte,
+            new_end_byte,
+        }
+    }
+
+    /// Smallest single edit turning `old` into `new`, found by trimming the
+    /// common prefix and suffix. Returns `None` when both are identical.
+    pub fn diff(old: &str, new: &str) -> Option<Self> {
+        if old == new {
+            return None;
+        }
+
+        let old_bytes = old.as_bytes();
+        let new_bytes = new.as_bytes();
+
+        let prefix = old_bytes.iter()
+            .zip(new_bytes)
+            .take_while(|(a, b)| a == b)
+            .count();
+        let suffix = old_bytes[prefix..].iter().rev()
+            .zip(new_bytes[prefix..].iter().rev())
+            .take_while(|(a, b)| a == b)
+            .count();
+
+        Some(Self::new(prefix, old.len() - suffix, new.len() - suffix))
+    }
+
+    /// Whether this edit is consistent with the given old and new sources.
+    pub fn is_valid_for(&self, old: &str, new: &str) -> bool {
+        self.start_byte <= self.old_end_byte
+            && self.start_byte <= self.new_end_byte
+            && self.old_end_byte <= old.len()
+            && self.new_end_byte <= new.len()
+            && old.len() - self.old_end_byte == new.len() - self.new_end_byte
+    }
+
+    pub fn to_input_edit(&self, old: &str, new: &str) -> InputEdit {
+        InputEdit {
+            start_byte: self.start_byte,
+            old_end_byte: self.old_end_byte,
+            new_end_byte: self.new_end_byte,
+            start_position: point_at(old, self.start_byte),
+            old_end_position: point_at(old, self.old_end_byte),
+            new_end_position: point_at(new, self.new_end_byte),
+        }
+    }
+}
+
+fn point_at(text: &str, byte: usize) -> Point {
+    let prefix = &text.as_bytes()[..byte.min(text.len())];
+    let row = prefix.iter().filter(|&&b| b == b'\n').count();
+    let column = match prefix.iter().rposition(|&b| b == b'\n') {
+        Some(newline) => prefix.len() - newline - 1,
+        None => prefix.len(),
+    };
+    Point::new(row, column)
+}
+
+/// Counters describing how much of the previous AST survived a reparse.
+#[derive(Debug, Clone, Copy, Default, PartialEq, Eq)]
+pub struct ReuseStats {
+    pub reused_subtrees: usize,
+    pub converted_nodes: usize,
+}
+
+/// Rebuilds a `SimplifiedAST` after an edit, converting only the nodes that
+/// touch the edit or one of tree-sitter's `changed_ranges`. Every other
+/// subtree is moved over from the previous AST and, if it sits after the
+/// edit, shifted to its new location. Ids do not depend on location, so
+/// shifted nodes keep theirs.
+///
+/// Both walks use explicit stacks. New subtrees are converted under the
+/// remaining `ConversionBudget`, and the rebuilt tree as a whole must fit
+/// it; otherwise the rebuild fails so the caller can fall back to a full,
+/// budgeted parse.
+pub(crate) struct AstRebuilder<'a> {
+    source: &'a str,
+    language: Language,
+    edit: InputEdit,
+    changed_ranges: &'a [tree_sitter::Range],
+    budget: ConversionBudget,
+    stats: ReuseStats,
+}
+
+/// A dirty node whose children are being rebuilt.
+struct Frame<'tree> {
+    node: ASTNode,
+    children: std::vec::IntoIter<Node<'tree>>,
+    old_starts: Vec<u32>,
+    old_children: Vec<Option<ASTNode>>,
+}
+
+/// What `AstRebuilder::open` made of a node.
+enum Step<'tree> {
+    /// Reused or freshly converted as a whole.
+    Done(ASTNode),
+    /// Refreshed; its children still have to be rebuilt.
+    Open(Frame<'tree>),
+}
+
+impl<'a> AstRebuilder<'a> {
+    pub(crate) fn new(
+        source: &'a str,
+        language: Language,
+        edit: InputEdit,
+        changed_ranges: &'a [tree_sitter::Range],
+        budget: &ConversionBudget,
+    ) -> Self {
+        Self {
+            source,
+            language,
+            edit,
+            changed_ranges,
+            budget: *budget,
+            stats: ReuseStats::default(),
+        }
+    }
+
+    pub(crate) fn rebuild(mut self, old_ast: SimplifiedAST, root: Node) -> Result<(SimplifiedAST, ReuseStats)> {
+        let mut stack = match self.open(root, Some(old_ast.into_root()), 1)? {
+            Step::Done(node) => return self.finish(node),
+            Step::Open(frame) => vec![frame],
+        };
+
+        loop {
+            let frame = stack.last_mut().expect("the root frame is popped last");
+            match frame.children.next() {
+                Some(child) => {
+                    let counterpart = self.take_counterpart(&child, &frame.old_starts, &mut frame.old_children);
+                    let depth = stack.len() + 1;
+                    match self.open(child, counterpart, depth)? {
+                        Step::Done(node) => stack.last_mut().expect("parent frame").node.add_child(node),
+                        Step::Open(frame) => stack.push(frame),
+                    }
+                }
+                None => {
+                    let done = stack.pop().expect("frame on the stack").node;
+                    match stack.last_mut() {
+                        Some(parent) => parent.node.add_child(done),
+                        None => return self.finish(done),
+                    }
+                }
+            }
+        }
+    }
+
+    fn finish(self, root: ASTNode) -> Result<(SimplifiedAST, ReuseStats)> {
+        if let Some(exceeded) = exceeds(&root, &self.budget) {
+            return Err(over_budget(self.language, exceeded));
+        }
+        Ok((SimplifiedAST::new(root, self.language, self.source), self.stats))
+    }
+
+    /// Reuses `node`'s old counterpart if it is clean, converts it if it is
+    /// new, and otherwise refreshes it and lists the children to rebuild.
+    /// `depth` is 1 for the root.
+    fn open<'tree>(&mut self, node: Node<'tree>, old: Option<ASTNode>, depth: usize) -> Result<Step<'tree>> {
+        // Only dirty nodes are opened, so their children always are too
+        let old = match old {
+            Some(old) if !self.is_dirty(&node, true) && Self::same_extent(&old, &node) => {
+                self.stats.reused_subtrees += 1;
+                return Ok(Step::Done(self.relocate(old)));
+            }
+            Some(old) => old,
+            None => {
+                self.stats.converted_nodes += 1;
+                let budget = ConversionBudget::new(self.budget.max_nodes, self.budget.max_depth.saturating_sub(depth - 1));
+                return SimplifiedAST::convert_node(node, self.source, self.language, &budget).map(Step::Done);
+            }
+        };
+        if depth > self.budget.max_depth {
+            return Err(over_budget(self.language, BudgetExceeded::Depth));
+        }
+
+        // Dirty node that existed before: refresh its own data, then try to
+        // salvage its children one by one.
+        let node_type = ASTNodeType::from_tree_sitter_kind(node.kind(), self.language);
+        let location = NodeLocation::from_tree_sitter(node);
+        let name = SimplifiedAST::extract_node_name(&node, self.source, &node_type);
+        let mut ast_node = ASTNode::unassigned(node_type, name, location);
+        SimplifiedAST::add_node_metadata(&mut ast_node, &node, self.source, self.language);
+        self.stats.converted_nodes += 1;
+
+        let mut cursor = node.walk();
+        let children: Vec<Node<'tree>> = node.children(&mut cursor)
+            .filter(|child| SimplifiedAST::should_include_node(child, self.language))
+            .collect();
+
+        Ok(Step::Open(Frame {
+            node: ast_node,
+            children: children.into_iter(),
+            old_starts: old.children.iter().map(|c| c.location.start_byte).collect(),
+            old_children: old.children.into_iter().map(Some).collect(),
+        }))
+    }
+
+    fn is_dirty(&self, node: &Node, parent_dirty: bool) -> bool {
+        let (start, end) = (node.start_byte(), node.end_byte());
+
+        // Touching the edited bytes, including insertions at a boundary
+        if start <= self.edit.new_end_byte && end >= self.edit.start_byte {
+            return true;
+        }
+
+        // Metadata read from the parent (e.g. Python decorators) may be stale
+        if parent_dirty && Self::depends_on_parent(node, self.language) {
+            return true;
+        }
+
+        self.changed_ranges.iter()
+            .any(|range| start < range.end_byte && range.start_byte < end)
+    }
+
+    fn depends_on_parent(node: &Node, language: Language) -> bool {
+        language == Language::Python && node.kind() == "function_definition"
+    }
+
+    fn same_extent(old: &ASTNode, node: &Node) -> bool {
+        let old_len = old.location.end_byte - old.location.start_byte;
+        old_len as usize == node.end_byte() - node.start_byte()
+    }
+
+    /// Maps a start offset in the new source back to the old source.
+    fn old_start(&self, new_start: usize) -> Option<usize> {
+        if new_start < self.edit.start_byte {
+            Some(new_start)
+        } else if new_start > self.edit.new_end_byte {
+            Some(new_start - self.edit.new_end_byte + self.edit.old_end_byte)
+        } else {
+            None
+        }
+    }
+
+    fn take_counterpart(
+        &self,
+        child: &Node,
+        old_starts: &[u32],
+        old_children: &mut [Option<ASTNode>],
+    ) -> Option<ASTNode> {
+        let old_start = self.old_start(child.start_byte())? as u32;
+        let node_type = ASTNodeType::from_tree_sitter_kind(child.kind(), self.language);
+
+        let first = old_starts.partition_point(|&start| start < old_start);
+        let index = (first..old_starts.len())
+            .take_while(|&i| old_starts[i] == old_start)
+            .find(|&i| matches!(&old_children[i], Some(old) if old.node_type == node_type))?;
+
+        old_children[index].take()
+    }
+
+    fn relocate(&self, mut node: ASTNode) -> ASTNode {
+        if (node.location.start_byte as usize) >= self.edit.start_byte {
+            self.shift(&mut node);
+        }
+        node
+    }
+
+    fn shift(&self, node: &mut ASTNode) {
+        let byte_delta = self.edit.new_end_byte as i64 - self.edit.old_end_byte as i64;
+        let mut stack = vec![node];
+        while let Some(node) = stack.pop() {
+            let location = &mut node.location;
+            location.start_byte = (location.start_byte as i64 + byte_delta) as u32;
+            location.end_byte = (location.end_byte as i64 + byte_delta) as u32;
+            (location.start_line, location.start_column) = self.shift_point(location.start_line, location.start_column);
+            (location.end_line, location.end_column) = self.shift_point(location.end_line, location.end_column);
+            stack.extend(node.children.iter_mut());
+        }
+    }
+
+    fn shift_point(&self, line: u32, column: u32) -> (u32, u32) {
+        let old_end = self.edit.old_end_position;
+        let new_end = self.edit.new_end_position;
+
+        // Lines are 1-based in NodeLocation, rows are 0-based in tree-sitter
+        let row = (line - 1) as i64;
+        let column = if row == old_end.row as i64 {
+            (column as i64 + new_end.column as i64 - old_end.column as i64) as u32
+        } else {
+            column
+        };
+        let row = row + new_end.row as i64 - old_end.row as i64;
+
+        (row as u32 + 1, column)
+    }
+}
+
+/// The first budget `root` goes over, counting every node and level.
+fn exceeds(root: &ASTNode, budget: &ConversionBudget) -> Option<BudgetExceeded> {
+    let mut nodes = 0usize;
+    let mut stack = vec![(root, 1usize)];
+    while let Some((node, depth)) = stack.pop() {
+        nodes += 1;
+        if nodes > budget.max_nodes {
+            return Some(BudgetExceeded::Nodes);
+        }
+        if depth > budget.max_depth {
+            return Some(BudgetExceeded::Depth);
+        }
+        stack.extend(node.children.iter().map(|child| (child, depth + 1)));
+    }
+    None
+}
+
+fn over_budget(language: Language, exceeded: BudgetExceeded) -> CodeGraphError {
+    CodeGraphError::Parser {
+        message: format!("{:?} incremental rebuild over {:?} budget", language, exceeded)
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    #[test]
+    fn test_diff_finds_minimal_edit() {
+        let edit = SourceEdit::diff("def a():\n    return 1\n", "def a():\n    return 42\n").unwrap();
+        assert_eq!(edit, SourceEdit::new(20, 21, 22));
+        assert!(SourceEdit::diff("same", "same").is_none());
+    }
+
+    #[test]
+    fn test_diff_handles_pure_insertion_and_deletion() {
+        assert_eq!(SourceEdit::diff("ac", "abc"), Some(SourceEdit::new(1, 1, 2)));
+        assert_eq!(SourceEdit::diff("abc", "ac"), Some(SourceEdit::new(1, 2, 1)));
+    }
+
+    #[test]
+    fn test_input_edit_points() {
+        let old = "a\nbc\n";
+        let new = "a\nbXYc\n";
+        let edit = SourceEdit::diff(old, new).unwrap().to_input_edit(old, new);
+
+        assert_eq!(edit.start_position, Point::new(1, 1));
+        assert_eq!(edit.old_end_position, Point::new(1, 1));
+        assert_eq!(edit.new_end_position, Point::new(1, 3));
+    }
+
+    #[test]
+    fn test_validity_check() {
+        let edit = SourceEdit::new(1, 2, 3);
+        assert!(edit.is_valid_for("abc", "aXYc"));
+        assert!(!edit.is_valid_for("abc", "abc"));
+    }
+}
@@ -1,61 +1,204 @@
-use crate::ast::SimplifiedAST;
+pub mod edit;
+pub mod diff;
+pub mod shared;
+
+pub use edit::*;
+pub use diff::*;
+pub use shared::*;
+
+use crate::ast::{ConversionBudget, ParseLevel, SimplifiedAST};
+use crate::cache::LruCache;
+use crate::language::registry::ParserRegistry;
 use code_context_graph_core::{Result, Language, Hash};
-use std::collections::HashMap;
+use std::sync::{Arc, Mutex};
 use tree_sitter::Tree;
 
-#[derive(Debug, Clone)]
+/// Default byte budget of a `ParseCache`.
+pub const DEFAULT_CACHE_BYTES: usize = 256 * 1024 * 1024;
+
+/// Rough per-node footprint of a tree-sitter tree, which does not report its
+/// own memory use.
+const TREE_BYTES_PER_NODE: usize = 32;
+
+/// Per-file cache of sources, trees and ASTs for incremental reparsing.
+///
+/// Bounded by entry count and by an estimate of the bytes each entry holds
+/// (source, AST and tree), evicting least recently used files first. All
+/// methods take `&self`, so one cache can be shared between parsers and
+/// threads through an `Arc`.
 pub struct ParseCache {
-    entries: HashMap<Hash, CacheEntry>,
+    entries: Mutex<LruCache<Hash, CacheEntry>>,
 }
 
 #[derive(Debug, Clone)]
 struct CacheEntry {
     source_hash: Hash,
-    ast: SimplifiedAST,
-    tree: Option<Tree>, // Store Tree-sitter tree for incremental parsing
+    language: Language,
+    source: String,
+    ast: Arc<SimplifiedAST>,
+    tree: Option<Tree>, // Tree-sitter tree kept for incremental reparsing
     timestamp: std::time::SystemTime,
 }
 
-#[derive(Debug, Clone)]
+impl CacheEntry {
+    /// Parses `source` into a new entry. When `stale` holds an earlier
+    /// version of the file its tree and AST are reused; the reuse figures are
+    /// returned alongside.
+    fn parse(
+        registry: &ParserRegistry,
+        stale: Option<CacheEntry>,
+        source: &str,
+        source_hash: Hash,
+        language: Language,
+        edit: Option<SourceEdit>,
+    ) -> Result<(CacheEntry, Option<ReuseStats>)> {
+        // ASTs that were downgraded to an outline are rebuilt from scratch
+        let stale = stale.filter(|entry| entry.language == language && entry.ast.level == ParseLevel::Full);
+
+        if let Some(cached_entry) = stale {
+            let edit = edit
+                .filter(|e| e.is_valid_for(&cached_entry.source, source))
+                .or_else(|| SourceEdit::diff(&cached_entry.source, source));
+
+            if let (Some(edit), Some(old_tree)) = (edit, cached_entry.tree) {
+                let old_ast = Arc::try_unwrap(cached_entry.ast)
+                    .unwrap_or_else(|shared| (*shared).clone());
+
+                if let Ok((ast, tree, stats)) = parse_with_old_tree(
+                    registry, source, language, old_tree, old_ast, &cached_entry.source, edit,
+                ) {
+                    let entry = Self::new(source_hash, language, source, ast, tree);
+                    return Ok((entry, Some(stats)));
+                }
+            }
+        }
+
+        // Fallback to full parsing
+        let tree = registry.parse_tree(source, language, None)?;
+        let ast = SimplifiedAST::from_tree_sitter(tree.root_node(), source, language)?;
+        Ok((Self::new(source_hash, language, source, ast, tree), None))
+    }
+
+    fn new(source_hash: Hash, language: Language, source: &str, ast: SimplifiedAST, tree: Tree) -> Self {
+        Self {
+            source_hash,
+            language,
+            source: source.to_string(),
+            ast: Arc::new(ast),
+            tree: Some(tree),
+            timestamp: std::time::SystemTime::now(),
+        }
+    }
+
+    fn is_current(&self, source_hash: &Hash, language: Language) -> bool {
+        self.source_hash == *source_hash && self.language == language
+    }
+
+    fn estimated_bytes(&self) -> usize {
+        let tree = self.tree.as_ref()
+            .map_or(0, |tree| tree.root_node().descendant_count() * TREE_BYTES_PER_NODE);
+        std::mem::size_of::<CacheEntry>() + self.source.capacity() + self.ast.memory_usage() + tree
+    }
+}
+
+fn parse_with_old_tree(
+    registry: &ParserRegistry,
+    source: &str,
+    language: Language,
+    mut old_tree: Tree,
+    old_ast: SimplifiedAST,
+    old_source: &str,
+    edit: SourceEdit,
+) -> Result<(SimplifiedAST, Tree, ReuseStats)> {
+    let input_edit = edit.to_input_edit(old_source, source);
+    old_tree.edit(&input_edit);
+
+    let tree = registry.parse_tree(source, language, Some(&old_tree))?;
+    let changed_ranges: Vec<tree_sitter::Range> = old_tree.changed_ranges(&tree).collect();
+
+    // Same budget as a full parse, which is the fallback when it trips
+    let (ast, stats) = AstRebuilder::new(source, language, input_edit, &changed_ranges, &ConversionBudget::default())
+        .rebuild(old_ast, tree.root_node())?;
+
+    Ok((ast, tree, stats))
+}
+
+/// Cache key of a file.
+fn file_key(path: &std::path::Path) -> Hash {
+    Hash::from_fmt(format_args!("{:?}", path))
+}
+
+/// Result of looking a file up before parsing it.
+enum Lookup {
+    /// Same source and language: the cached AST is current.
+    Fresh(Arc<SimplifiedAST>),
+    /// The file changed; the entry is taken out so its tree and AST can be
+    /// reused by the reparse.
+    Stale(CacheEntry),
+    Missing,
+}
+
+#[derive(Clone)]
 pub struct IncrementalParser {
-    cache: ParseCache,
+    cache: Arc<ParseCache>,
     max_cache_size: usize,
+    registry: Arc<ParserRegistry>,
+    last_reuse: Option<ReuseStats>,
 }
 
 impl ParseCache {
     pub fn new() -> Self {
+        Self::with_limits(1000, DEFAULT_CACHE_BYTES)
+    }
+
+    pub fn with_limits(max_entries: usize, max_bytes: usize) -> Self {
         Self {
-            entries: HashMap::new(),
+            entries: Mutex::new(LruCache::new(max_entries, max_bytes)),
         }
     }
 
-    pub fn get(&self, key: &Hash) -> Option<&CacheEntry> {
-        self.entries.get(key)
+    /// The current AST of `key`, marking it recently used.
+    pub fn get(&self, key: &Hash) -> Option<Arc<SimplifiedAST>> {
+        self.lock().get(key).map(|entry| Arc::clone(&entry.ast))
+    }
+
+    fn insert(&self, key: Hash, entry: CacheEntry) {
+        let bytes = entry.estimated_bytes();
+        self.lock().insert(key, entry, bytes);
     }
 
-    pub fn insert(&mut self, key: Hash, entry: CacheEntry) {
-        self.entries.insert(key, entry);
+    fn lookup(&self, key: &Hash, source_hash: &Hash, language: Language) -> Lookup {
+        let mut entries = self.lock();
+        let fresh = entries.get_if(key, |entry| entry.is_current(source_hash, language));
+        if let Some(entry) = fresh {
+            return Lookup::Fresh(Arc::clone(&entry.ast));
+        }
+        entries.remove(key).map_or(Lookup::Missing, Lookup::Stale)
     }
 
     pub fn contains_key(&self, key: &Hash) -> bool {
-        self.entries.contains_key(key)
+        self.lock().contains_key(key)
     }
 
-    pub fn remove(&mut self, key: &Hash) -> Option<CacheEntry> {
-        self.entries.remove(key)
+    pub fn remove(&self, key: &Hash) -> Option<Arc<SimplifiedAST>> {
+        self.lock().remove(key).map(|entry| entry.ast)
     }
 
-    pub fn clear(&mut self) {
-        self.entries.clear();
+    pub fn clear(&self) {
+        self.lock().clear();
     }
 
     pub fn len(&self) -> usize {
-        self.entries.len()
+        self.lock().len()
     }
 
-    pub fn cleanup_expired(&mut self, max_age: std::time::Duration) {
+    pub fn is_empty(&self) -> bool {
+        self.lock().is_empty()
+    }
+
+    pub fn cleanup_expired(&self, max_age: std::time::Duration) {
         let now = std::time::SystemTime::now();
-        self.entries.retain(|_, entry| {
+        self.lock().retain(|_, entry| {
             if let Ok(age) = now.duration_since(entry.timestamp) {
                 age <= max_age
             } else {
@@ -63,119 +206,119 @@ impl ParseCache {
             }
         });
     }
+
+    pub fn stats(&self) -> CacheStats {
+        let entries = self.lock();
+        let counters = entries.stats();
+        CacheStats {
+            total_entries: entries.len(),
+            max_capacity: entries.max_entries(),
+            total_bytes: entries.bytes(),
+            max_bytes: entries.max_bytes(),
+            hits: counters.hits,
+            misses: counters.misses,
+            evictions: counters.evictions,
+        }
+    }
+
+    fn lock(&self) -> std::sync::MutexGuard<'_, LruCache<Hash, CacheEntry>> {
+        // A panic while holding the lock cannot leave the LRU half-updated
+        // in a way that matters more than losing the cache
+        self.entries.lock().unwrap_or_else(|poisoned| poisoned.into_inner())
+    }
+}
+
+impl std::fmt::Debug for ParseCache {
+    fn fmt(&self, f: &mut std::fmt::Formatter<'_>) -> std::fmt::Result {
+        f.debug_struct("ParseCache")
+            .field("stats", &self.stats())
+            .finish()
+    }
 }
 
 impl IncrementalParser {
     pub fn new() -> Self {
-        Self {
-            cache: ParseCache::new(),
-            max_cache_size: 1000, // Default cache size
-        }
+        Self::with_cache_size(1000) // Default cache size
     }
 
     pub fn with_cache_size(max_cache_size: usize) -> Self {
+        Self::with_cache_limits(max_cache_size, DEFAULT_CACHE_BYTES)
+    }
+
+    /// Caps the cache at `max_entries` files and roughly `max_bytes` of
+    /// sources, trees and ASTs.
+    pub fn with_cache_limits(max_entries: usize, max_bytes: usize) -> Self {
+        Self::with_shared_cache(Arc::new(ParseCache::with_limits(max_entries, max_bytes)))
+    }
+
+    /// Uses `cache`, which may also back other parsers on other threads.
+    pub fn with_shared_cache(cache: Arc<ParseCache>) -> Self {
         Self {
-            cache: ParseCache::new(),
-            max_cache_size,
+            max_cache_size: cache.stats().max_capacity,
+            cache,
+            registry: Arc::new(ParserRegistry::new()),
+            last_reuse: None,
         }
     }
 
+    pub fn cache(&self) -> &Arc<ParseCache> {
+        &self.cache
+    }
+
+    /// Parses `source`, reusing the previous tree and AST for `file_path` when
+    /// there is one. The edit is recovered by diffing against the cached source.
     pub fn parse_incremental(
         &mut self,
         source: &str,
         language: Language,
         file_path: &std::path::Path,
-    ) -> Result<SimplifiedAST> {
-        let file_hash = Hash::from_string(&format!("{:?}", file_path));
-        let source_hash = Hash::from_string(source);
+    ) -> Result<Arc<SimplifiedAST>> {
+        self.parse_with_edit_hint(source, language, file_path, None)
+    }
 
-        // Check if we have a cached entry
-        if let Some(cached_entry) = self.cache.get(&file_hash) {
-            // If source hasn't changed, return cached AST
-            if cached_entry.source_hash == source_hash {
-                return Ok(cached_entry.ast.clone());
-            }
+    /// Same as `parse_incremental`, but with the edit supplied by the caller
+    /// (e.g. from an editor change event), which skips the source diff.
+    pub fn parse_incremental_with_edit(
+        &mut self,
+        source: &str,
+        language: Language,
+        file_path: &std::path::Path,
+        edit: SourceEdit,
+    ) -> Result<Arc<SimplifiedAST>> {
+        self.parse_with_edit_hint(source, language, file_path, Some(edit))
+    }
 
-            // Source has changed, try incremental parsing
-            if let Some(ref old_tree) = cached_entry.tree {
-                if let Ok(new_ast) = self.parse_with_old_tree(source, language, Some(old_tree)) {
-                    // Update cache with new result
-                    let new_entry = CacheEntry {
-                        source_hash,
-                        ast: new_ast.clone(),
-                        tree: None, // We don't store the new tree here for simplicity
-                        timestamp: std::time::SystemTime::now(),
-                    };
-                    self.cache.insert(file_hash, new_entry);
-                    return Ok(new_ast);
-                }
-            }
-        }
+    fn parse_with_edit_hint(
+        &mut self,
+        source: &str,
+        language: Language,
+        file_path: &std::path::Path,
+        edit: Option<SourceEdit>,
+    ) -> Result<Arc<SimplifiedAST>> {
+        let file_hash = file_key(file_path);
+        let source_hash = Hash::from_string(source);
+        self.last_reuse = None;
 
-        // Fallback to full parsing
-        let ast = self.parse_full(source, language)?;
-        
-        // Cache the result
-        let entry = CacheEntry {
-            source_hash,
-            ast: ast.clone(),
-            tree: None, // Tree would be stored from the actual parser
-            timestamp: std::time::SystemTime::now(),
+        let stale = match self.cache.lookup(&file_hash, &source_hash, language) {
+            Lookup::Fresh(ast) => return Ok(ast),
+            Lookup::Stale(entry) => Some(entry),
+            Lookup::Missing => None,
         };
-        
+
+        let (entry, reuse) = CacheEntry::parse(&self.registry, stale, source, source_hash, language, edit)?;
+        self.last_reuse = reuse;
+        let ast = Arc::clone(&entry.ast);
         self.cache.insert(file_hash, entry);
-        self.cleanup_cache();
-        
         Ok(ast)
     }
 
-    fn parse_with_old_tree(
-        &self,
-        source: &str,
-        language: Language,
-        _old_tree: Option<&Tree>,
-    ) -> Result<SimplifiedAST> {
-        // This would use the actual language parsers with incremental parsing
-        // For now, we'll delegate to the registry
-        use crate::language::registry::ParserRegistry;
-        let registry = ParserRegistry::new();
-        
-        // Note: This is a simplified version. In a real implementation,
-        // we would need to modify the parser registry to support incremental parsing
-        registry.parse(source, language)
-    }
-
-    fn parse_full(&self, source: &str, language: Language) -> Result<SimplifiedAST> {
-        use crate::language::registry::ParserRegistry;
-        let registry = ParserRegistry::new();
-        registry.parse(source, language)
-    }
-
-    fn cleanup_cache(&mut self) {
-        if self.cache.len() > self.max_cache_size {
-            // Simple cleanup: remove oldest entries
-            // In a real implementation, we might use LRU or other strategies
-            let excess_count = self.cache.len() - self.max_cache_size;
-            let mut entries_to_remove = Vec::new();
-            
-            // Collect entries sorted by timestamp
-            let mut entries: Vec<_> = self.cache.entries.iter().collect();
-            entries.sort_by_key(|(_, entry)| entry.timestamp);
-            
-            // Remove oldest entries
-            for (key, _) in entries.iter().take(excess_count) {
-                entries_to_remove.push((*key).clone());
-            }
-            
-            for key in entries_to_remove {
-                self.cache.remove(&key);
-            }
-        }
+    /// Node reuse figures for the most recent incremental reparse, if any.
+    pub fn last_reuse_stats(&self) -> Option<ReuseStats> {
+        self.last_reuse
     }
 
     pub fn invalidate_file(&mut self, file_path: &std::path::Path) {
-        let file_hash = Hash::from_string(&format!("{:?}", file_path));
-        self.cache.remove(&file_hash);
+        self.cache.remove(&file_key(file_path));
     }
 
     pub fn clear_cache(&mut self) {
@@ -183,10 +326,7 @@ impl IncrementalParser {
     }
 
     pub fn cache_stats(&self) -> CacheStats {
-        CacheStats {
-            total_entries: self.cache.len(),
-            max_capacity: self.max_cache_size,
-        }
+        self.cache.stats()
     }
 
     pub fn cleanup_expired_entries(&mut self, max_age: std::time::Duration) {
@@ -194,10 +334,25 @@ impl IncrementalParser {
     }
 }
 
-#[derive(Debug, Clone)]
+#[derive(Debug, Clone, Default, PartialEq, Eq)]
 pub struct CacheStats {
     pub total_entries: usize,
     pub max_capacity: usize,
+    /// Estimated bytes held by the cached entries.
+    pub total_bytes: usize,
+    pub max_bytes: usize,
+    pub hits: u64,
+    pub misses: u64,
+    pub evictions: u64,
+}
+
+impl std::fmt::Debug for IncrementalParser {
+    fn fmt(&self, f: &mut std::fmt::Formatter<'_>) -> std::fmt::Result {
+        f.debug_struct("IncrementalParser")
+            .field("cache", &self.cache)
+            .field("max_cache_size", &self.max_cache_size)
+            .finish()
+    }
 }
 
 impl Default for IncrementalParser {
@@ -219,7 +374,7 @@ mod tests {
 
     #[test]
     fn test_parse_cache() {
-        let mut cache = ParseCache::new();
+        let cache = ParseCache::new();
         let key = Hash::from_string("test");
         
         assert!(!cache.contains_key(&key));
@@ -248,12 +403,156 @@ mod tests {
         assert_eq!(stats.max_capacity, 1000);
     }
 
+    #[test]
+    fn test_incremental_reparse_matches_full_parse() {
+        let mut parser = IncrementalParser::new();
+        let path = std::path::Path::new("service.py");
+        let original = "import os\n\ndef first():\n    return 1\n\ndef second():\n    return os.getcwd()\n\nclass Tail:\n    def method(self):\n        pass\n";
+        let edited = "import os\n\ndef first():\n    value = 41\n    return value + 1\n\ndef second():\n    return os.getcwd()\n\nclass Tail:\n    def method(self):\n        pass\n";
+
+        parser.parse_incremental(original, Language::Python, path).unwrap();
+        let incremental = parser.parse_incremental(edited, Language::Python, path).unwrap();
+
+        let stats = parser.last_reuse_stats().expect("second parse should be incremental");
+        assert!(stats.reused_subtrees > 0);
+
+        let full = ParserRegistry::new().parse(edited, Language::Python).unwrap();
+        assert_eq!(incremental.root(), full.root());
+    }
+
+    #[test]
+    fn test_deeply_nested_edit_falls_back_to_budgeted_parse() {
+        let mut parser = IncrementalParser::new();
+        let path = std::path::Path::new("generated.py");
+        let original = "def before():\n    pass\n\nx = 1\n\ndef after():\n    pass\n";
+        let edited = format!(
+            "def before():\n    pass\n\nx = {}1{}\n\ndef after():\n    pass\n",
+            "[".repeat(5000),
+            "]".repeat(5000),
+        );
+
+        parser.parse_incremental(original, Language::Python, path).unwrap();
+        let ast = parser.parse_incremental(&edited, Language::Python, path).unwrap();
+
+        assert!(parser.last_reuse_stats().is_none(), "the rebuild should give up on the budget");
+        assert_eq!(ast.level, ParseLevel::Outline);
+        assert_eq!(ast.budget_exceeded, Some(crate::ast::BudgetExceeded::Depth));
+        assert_eq!(ast.find_all_functions().len(), 2);
+    }
+
+    #[test]
+    fn test_incremental_reparse_with_caller_edit() {
+        let mut parser = IncrementalParser::new();
+        let path = std::path::Path::new("Main.java");
+        let original = "class Main {\n    void a() {}\n    void b() {}\n}\n";
+        let edited = "class Main {\n    void a() { int x = 1; }\n    void b() {}\n}\n";
+        let edit = SourceEdit::diff(original, edited).unwrap();
+
+        parser.parse_incremental(original, Language::Java, path).unwrap();
+        let incremental = parser
+            .parse_incremental_with_edit(edited, Language::Java, path, edit)
+            .unwrap();
+
+        let full = ParserRegistry::new().parse(edited, Language::Java).unwrap();
+        assert_eq!(incremental.root(), full.root());
+        assert!(parser.last_reuse_stats().is_some());
+    }
+
+    #[test]
+    fn test_unchanged_source_is_served_from_cache() {
+        let mut parser = IncrementalParser::new();
+        let path = std::path::Path::new("a.py");
+
+        let first = parser.parse_incremental("x = 1\n", Language::Python, path).unwrap();
+        let second = parser.parse_incremental("x = 1\n", Language::Python, path).unwrap();
+
+        assert!(Arc::ptr_eq(&first, &second));
+    }
+
     #[test]
     fn test_cache_cleanup_expired() {
-        let mut cache = ParseCache::new();
+        let cache = ParseCache::new();
         
         // Test cleanup with no entries
         cache.cleanup_expired(Duration::from_secs(3600));
         assert_eq!(cache.len(), 0);
     }
-}
\ No newline at end of file
+
+    #[test]
+    fn test_cache_counts_hits_and_misses() {
+        let mut parser = IncrementalParser::new();
+        let path = std::path::Path::new("a.py");
+
+        parser.parse_incremental("x = 1\n", Language::Python, path).unwrap();
+        parser.parse_incremental("x = 1\n", Language::Python, path).unwrap();
+        parser.parse_incremental("x = 2\n", Language::Python, path).unwrap();
+
+        let stats = parser.cache_stats();
+        assert_eq!((stats.hits, stats.misses, stats.evictions), (1, 2, 0));
+        assert_eq!(stats.total_entries, 1);
+        assert!(stats.total_bytes > 0);
+    }
+
+    #[test]
+    fn test_cache_evicts_least_recently_used_file() {
+        let mut parser = IncrementalParser::with_cache_size(2);
+        let (a, b, c) = (
+            std::path::Path::new("a.py"),
+            std::path::Path::new("b.py"),
+            std::path::Path::new("c.py"),
+        );
+
+        parser.parse_incremental("a = 1\n", Language::Python, a).unwrap();
+        parser.parse_incremental("b = 1\n", Language::Python, b).unwrap();
+        parser.parse_incremental("a = 1\n", Language::Python, a).unwrap();
+        parser.parse_incremental("c = 1\n", Language::Python, c).unwrap();
+
+        let file_key = |path: &std::path::Path| Hash::from_fmt(format_args!("{:?}", path));
+        assert!(parser.cache().contains_key(&file_key(a)));
+        assert!(!parser.cache().contains_key(&file_key(b)));
+        assert_eq!(parser.cache_stats().evictions, 1);
+    }
+
+    #[test]
+    fn test_cache_respects_byte_budget() {
+        let source = "def f():\n    return 1\n".repeat(50);
+        let mut probe = IncrementalParser::new();
+        probe.parse_incremental(&source, Language::Python, std::path::Path::new("probe.py")).unwrap();
+        let entry_bytes = probe.cache_stats().total_bytes;
+
+        let mut parser = IncrementalParser::with_cache_limits(100, entry_bytes * 2 + entry_bytes / 2);
+        for i in 0..5 {
+            let path = std::path::PathBuf::from(format!("m{}.py", i));
+            parser.parse_incremental(&source, Language::Python, &path).unwrap();
+        }
+
+        let stats = parser.cache_stats();
+        assert_eq!(stats.total_entries, 2);
+        assert_eq!(stats.evictions, 3);
+        assert!(stats.total_bytes <= stats.max_bytes);
+    }
+
+    #[test]
+    fn test_shared_cache_across_threads() {
+        let cache = Arc::new(ParseCache::new());
+        let handles: Vec<_> = (0..4)
+            .map(|i| {
+                let cache = Arc::clone(&cache);
+                std::thread::spawn(move || {
+                    let mut parser = IncrementalParser::with_shared_cache(cache);
+                    let path = std::path::PathBuf::from(format!("t{}.py", i));
+                    for _ in 0..3 {
+                        parser.parse_incremental("x = 1\n", Language::Python, &path).unwrap();
+                    }
+                })
+            })
+            .collect();
+        for handle in handles {
+            handle.join().unwrap();
+        }
+
+        let stats = cache.stats();
+        assert_eq!(stats.total_entries, 4);
+        assert_eq!((stats.hits, stats.misses), (8, 4));
+    }
+}
@@ -0,0 +1,418 @@
+use crate::ast::SimplifiedAST;
+use crate::cache::LruCache;
+use crate::incremental::{file_key, CacheEntry, CacheStats, SourceEdit, DEFAULT_CACHE_BYTES};
+use crate::language::registry::ParserRegistry;
+use code_context_graph_core::{Result, Language, Hash};
+use std::sync::atomic::{AtomicU64, AtomicUsize, Ordering};
+use std::sync::{Arc, Mutex, MutexGuard, TryLockError};
+
+const SHARDS: usize = 16;
+
+/// The cached state of one file. Its lock is held for the duration of a
+/// parse, which is what makes concurrent requests for the file wait.
+#[derive(Default)]
+struct FileSlot {
+    entry: Mutex<Option<CacheEntry>>,
+}
+
+/// Thread-safe incremental parse cache shared by reference.
+///
+/// Files are spread over lock-striped LRU shards, each bounded by its share
+/// of the entry limit. The byte limit is global: any file that fits it can
+/// be cached, and going over it evicts from the inserting shard first, then
+/// from the others. A shard lock is only held to find a file's slot; parsing
+/// happens under the slot's own lock, so different files parse in parallel
+/// while concurrent requests for the same file are coalesced into a single
+/// parse (single-flight).
+pub struct SharedParseCache {
+    shards: Box<[Mutex<LruCache<Hash, Arc<FileSlot>>>]>,
+    max_bytes: usize,
+    /// Sum of the shards' byte counts.
+    bytes: AtomicUsize,
+    registry: Arc<ParserRegistry>,
+    hits: AtomicU64,
+    misses: AtomicU64,
+    parses: AtomicU64,
+    coalesced: AtomicU64,
+}
+
+impl SharedParseCache {
+    pub fn new() -> Self {
+        Self::with_limits(1000, DEFAULT_CACHE_BYTES)
+    }
+
+    pub fn with_limits(max_entries: usize, max_bytes: usize) -> Self {
+        let entries_per_shard = max_entries.div_ceil(SHARDS);
+        Self {
+            shards: (0..SHARDS)
+                .map(|_| Mutex::new(LruCache::new(entries_per_shard, max_bytes)))
+                .collect(),
+            max_bytes,
+            bytes: AtomicUsize::new(0),
+            registry: Arc::new(ParserRegistry::new()),
+            hits: AtomicU64::new(0),
+            misses: AtomicU64::new(0),
+            parses: AtomicU64::new(0),
+            coalesced: AtomicU64::new(0),
+        }
+    }
+
+    pub fn with_registry(mut self, registry: Arc<ParserRegistry>) -> Self {
+        self.registry = registry;
+        self
+    }
+
+    /// Returns the AST of `source`, reparsing incrementally from the cached
+    /// version of `file_path` when the source changed.
+    pub fn parse(&self, source: &str, language: Language, file_path: &std::path::Path) -> Result<Arc<SimplifiedAST>> {
+        self.parse_with_edit_hint(source, language, file_path, None)
+    }
+
+    /// Same as `parse`, with the edit supplied by the caller.
+    pub fn parse_with_edit(
+        &self,
+        source: &str,
+        language: Language,
+        file_path: &std::path::Path,
+        edit: SourceEdit,
+    ) -> Result<Arc<SimplifiedAST>> {
+        self.parse_with_edit_hint(source, language, file_path, Some(edit))
+    }
+
+    fn parse_with_edit_hint(
+        &self,
+        source: &str,
+        language: Language,
+        file_path: &std::path::Path,
+        edit: Option<SourceEdit>,
+    ) -> Result<Arc<SimplifiedAST>> {
+        let key = file_key(file_path);
+        let source_hash = Hash::from_string(source);
+        let slot = self.slot(&key);
+
+        let (mut entry, waited) = match slot.entry.try_lock() {
+            Ok(entry) => (entry, false),
+            Err(TryLockError::Poisoned(poisoned)) => (poisoned.into_inner(), false),
+            // Another thread is parsing this file; wait for its result
+            Err(TryLockError::WouldBlock) => (lock(&slot.entry), true),
+        };
+
+        if let Some(current) = entry.as_ref().filter(|e| e.is_current(&source_hash, language)) {
+            self.hits.fetch_add(1, Ordering::Relaxed);
+            if waited {
+                self.coalesced.fetch_add(1, Ordering::Relaxed);
+            }
+            return Ok(Arc::clone(&current.ast));
+        }
+
+        self.misses.fetch_add(1, Ordering::Relaxed);
+        self.parses.fetch_add(1, Ordering::Relaxed);
+        let (parsed, _) = CacheEntry::parse(&self.registry, entry.take(), source, source_hash, language, edit)?;
+        let ast = Arc::clone(&parsed.ast);
+        let bytes = parsed.estimated_bytes();
+        let slot_bytes = if bytes <= self.max_bytes {
+            *entry = Some(parsed);
+            bytes
+        } else {
+            // Too large to keep, but the empty slot stays cached so
+            // concurrent requests for the file still queue behind one parse
+            std::mem::size_of::<FileSlot>()
+        };
+        drop(entry);
+
+        self.resize(key, &slot, slot_bytes);
+        Ok(ast)
+    }
+
+    pub fn invalidate_file(&self, file_path: &std::path::Path) {
+        let key = file_key(file_path);
+        let mut shard = self.shard(&key);
+        let before = shard.bytes();
+        shard.remove(&key);
+        self.account(before, shard.bytes());
+    }
+
+    pub fn clear(&self) {
+        for shard in self.shards.iter() {
+            let mut shard = lock(shard);
+            let before = shard.bytes();
+            shard.clear();
+            self.account(before, 0);
+        }
+    }
+
+    pub fn len(&self) -> usize {
+        self.shards.iter().map(|shard| lock(shard).len()).sum()
+    }
+
+    pub fn is_empty(&self) -> bool {
+        self.len() == 0
+    }
+
+    pub fn stats(&self) -> CacheStats {
+        let mut stats = CacheStats {
+            hits: self.hits.load(Ordering::Relaxed),
+            misses: self.misses.load(Ordering::Relaxed),
+            ..CacheStats::default()
+        };
+        for shard in self.shards.iter() {
+            let shard = lock(shard);
+            stats.total_entries += shard.len();
+            stats.max_capacity += shard.max_entries();
+            stats.total_bytes += shard.bytes();
+            stats.evictions += shard.stats().evictions;
+        }
+        stats.max_bytes = self.max_bytes;
+        stats
+    }
+
+    /// Number of parses run, full or incremental.
+    pub fn parse_count(&self) -> u64 {
+        self.parses.load(Ordering::Relaxed)
+    }
+
+    /// Number of requests that waited for another thread's parse of the same
+    /// file and were served its result.
+    pub fn coalesced_count(&self) -> u64 {
+        self.coalesced.load(Ordering::Relaxed)
+    }
+
+    /// The slot of `key`, created empty if the file is not cached. Finding
+    /// it marks the file most recently used. The lookup and the insert
+    /// happen under one shard lock, so threads that miss on the same file
+    /// together share one slot.
+    fn slot(&self, key: &Hash) -> Arc<FileSlot> {
+        let home = shard_index(key);
+        let mut shard = lock(&self.shards[home]);
+        if let Some(slot) = shard.get(key) {
+            return Arc::clone(slot);
+        }
+        let slot = Arc::new(FileSlot::default());
+        let before = shard.bytes();
+        shard.insert(*key, Arc::clone(&slot), std::mem::size_of::<FileSlot>());
+        let total = self.account(before, shard.bytes());
+        drop(shard);
+
+        self.evict(home, total);
+        slot
+    }
+
+    /// Records the size of `slot` after a parse. A slot that was evicted
+    /// while it was being parsed is restored, but one that another thread
+    /// has since replaced is left alone.
+    fn resize(&self, key: Hash, slot: &Arc<FileSlot>, bytes: usize) {
+        let home = shard_index(&key);
+        let mut shard = lock(&self.shards[home]);
+        if shard.peek(&key).is_some_and(|current| !Arc::ptr_eq(current, slot)) {
+            return;
+        }
+        let before = shard.bytes();
+        shard.insert(key, Arc::clone(slot), bytes);
+        let total = self.account(before, shard.bytes());
+        drop(shard);
+
+        self.evict(home, total);
+    }
+
+    /// Evicts least recently used slots until the cache is back under its
+    /// byte limit: from shard `home` first, keeping at least one slot there,
+    /// then from the other shards in turn. Only one shard is locked at a
+    /// time.
+    fn evict(&self, home: usize, mut total: usize) {
+        for offset in 0..SHARDS {
+            if total <= self.max_bytes {
+                break;
+            }
+            let keep = if offset == 0 { 1 } else { 0 };
+            let mut shard = lock(&self.shards[(home + offset) % SHARDS]);
+            while total > self.max_bytes && shard.len() > keep {
+                let before = shard.bytes();
+                shard.pop_lru();
+                total = self.account(before, shard.bytes());
+            }
+        }
+    }
+
+    /// Applies a shard's byte change to the global count and returns the new
+    /// total.
+    fn account(&self, before: usize, after: usize) -> usize {
+        if after >= before {
+            self.bytes.fetch_add(after - before, Ordering::Relaxed) + (after - before)
+        } else {
+            self.bytes.fetch_sub(before - after, Ordering::Relaxed) - (before - after)
+        }
+    }
+
+    fn shard(&self, key: &Hash) -> MutexGuard<'_, LruCache<Hash, Arc<FileSlot>>> {
+        lock(&self.shards[shard_index(key)])
+    }
+}
+
+fn shard_index(key: &Hash) -> usize {
+    key.as_bytes()[0] as usize % SHARDS
+}
+
+fn lock<T>(mutex: &Mutex<T>) -> MutexGuard<'_, T> {
+    mutex.lock().unwrap_or_else(|poisoned| poisoned.into_inner())
+}
+
+impl Default for SharedParseCache {
+    fn default() -> Self {
+        Self::new()
+    }
+}
+
+impl std::fmt::Debug for SharedParseCache {
+    fn fmt(&self, f: &mut std::fmt::Formatter<'_>) -> std::fmt::Result {
+        f.debug_struct("SharedParseCache")
+            .field("stats", &self.stats())
+            .field("parses", &self.parse_count())
+            .finish()
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use std::path::{Path, PathBuf};
+    use std::sync::Barrier;
+
+    const SOURCE: &str = "import os\n\nclass A:\n    def f(self):\n        return os.getcwd()\n";
+
+    #[test]
+    fn test_concurrent_requests_for_one_file_parse_once() {
+        let cache = Arc::new(SharedParseCache::new());
+        let barrier = Arc::new(Barrier::new(8));
+
+        let handles: Vec<_> = (0..8)
+            .map(|_| {
+                let cache = Arc::clone(&cache);
+                let barrier = Arc::clone(&barrier);
+                std::thread::spawn(move || {
+                    barrier.wait();
+                    cache.parse(SOURCE, Language::Python, Path::new("a.py")).unwrap()
+                })
+            })
+            .collect();
+        let asts: Vec<_> = handles.into_iter().map(|h| h.join().unwrap()).collect();
+
+        assert_eq!(cache.parse_count(), 1);
+        assert!(asts.iter().all(|ast| Arc::ptr_eq(ast, &asts[0])));
+        let stats = cache.stats();
+        assert_eq!((stats.hits, stats.misses), (7, 1));
+    }
+
+    #[test]
+    fn test_different_files_are_cached_separately() {
+        let cache = SharedParseCache::new();
+        std::thread::scope(|scope| {
+            for i in 0..8 {
+                let cache = &cache;
+                scope.spawn(move || {
+                    let path = PathBuf::from(format!("m{}.py", i));
+                    cache.parse(SOURCE, Language::Python, &path).unwrap();
+                    cache.parse(SOURCE, Language::Python, &path).unwrap();
+                });
+            }
+        });
+
+        assert_eq!(cache.len(), 8);
+        assert_eq!(cache.parse_count(), 8);
+        assert_eq!(cache.stats().hits, 8);
+    }
+
+    #[test]
+    fn test_changed_source_reparses_incrementally() {
+        let cache = SharedParseCache::new();
+        let path = Path::new("a.py");
+        let edited = SOURCE.replace("getcwd", "getpid");
+
+        cache.parse(SOURCE, Language::Python, path).unwrap();
+        let reparsed = cache.parse(&edited, Language::Python, path).unwrap();
+
+        let full = ParserRegistry::new().parse(&edited, Language::Python).unwrap();
+        assert_eq!(reparsed.root(), full.root());
+        assert_eq!(cache.parse_count(), 2);
+
+        cache.invalidate_file(path);
+        assert!(cache.is_empty());
+    }
+
+    /// Three paths whose keys land in the same shard.
+    fn same_shard_paths() -> Vec<PathBuf> {
+        let mut by_shard: Vec<Vec<PathBuf>> = vec![Vec::new(); SHARDS];
+        for i in 0.. {
+            let path = PathBuf::from(format!("m{}.py", i));
+            let shard = &mut by_shard[shard_index(&file_key(&path))];
+            shard.push(path);
+            if shard.len() == 3 {
+                return shard.clone();
+            }
+        }
+        unreachable!()
+    }
+
+    #[test]
+    fn test_hits_refresh_recency() {
+        // Two files per shard
+        let cache = SharedParseCache::with_limits(2 * SHARDS, usize::MAX);
+        let paths = same_shard_paths();
+
+        cache.parse(SOURCE, Language::Python, &paths[0]).unwrap();
+        cache.parse(SOURCE, Language::Python, &paths[1]).unwrap();
+        cache.parse(SOURCE, Language::Python, &paths[0]).unwrap();
+        cache.parse(SOURCE, Language::Python, &paths[2]).unwrap();
+
+        // The hit made paths[1] the least recently used, so it was evicted
+        cache.parse(SOURCE, Language::Python, &paths[0]).unwrap();
+        assert_eq!(cache.parse_count(), 3);
+        cache.parse(SOURCE, Language::Python, &paths[1]).unwrap();
+        assert_eq!(cache.parse_count(), 4);
+    }
+
+    #[test]
+    fn test_byte_limit_is_global() {
+        let probe = SharedParseCache::new();
+        probe.parse(SOURCE, Language::Python, Path::new("a.py")).unwrap();
+        let entry_bytes = probe.stats().total_bytes;
+
+        // Far more than a sixteenth of the budget still fits
+        let cache = SharedParseCache::with_limits(100, entry_bytes * 3 / 2);
+        cache.parse(SOURCE, Language::Python, Path::new("a.py")).unwrap();
+        cache.parse(SOURCE, Language::Python, Path::new("a.py")).unwrap();
+        assert_eq!(cache.parse_count(), 1);
+
+        // A second file pushes the first out, wherever each one is sharded
+        cache.parse(SOURCE, Language::Python, Path::new("b.py")).unwrap();
+        let stats = cache.stats();
+        assert!(stats.total_bytes <= stats.max_bytes);
+        assert_eq!(stats.total_entries, 1);
+    }
+
+    #[test]
+    fn test_oversized_files_keep_their_slot() {
+        let budget = 2 * std::mem::size_of::<FileSlot>();
+        let cache = Arc::new(SharedParseCache::with_limits(100, budget));
+        let barrier = Arc::new(Barrier::new(4));
+
+        let handles: Vec<_> = (0..4)
+            .map(|_| {
+                let cache = Arc::clone(&cache);
+                let barrier = Arc::clone(&barrier);
+                std::thread::spawn(move || {
+                    barrier.wait();
+                    cache.parse(SOURCE, Language::Python, Path::new("big.py")).unwrap();
+                })
+            })
+            .collect();
+        for handle in handles {
+            handle.join().unwrap();
+        }
+
+        // Nothing is kept, so every request parses, one after another
+        // behind the file's slot
+        assert_eq!(cache.len(), 1);
+        assert!(cache.stats().total_bytes <= budget);
+        assert_eq!(cache.parse_count(), 4);
+    }
+}
@@ -0,0 +1,299 @@
+use code_context_graph_core::{Language, Result, CodeGraphError};
+use rayon::prelude::*;
+use std::borrow::Cow;
+use std::collections::HashMap;
+use std::path::{Path, PathBuf};
+use std::sync::Mutex;
+use std::time::{Duration, Instant};
+use crate::ast::SimplifiedAST;
+use crate::language::options::ParseOptions;
+use crate::language::registry::ParserRegistry;
+
+/// One file to parse in a batch. Source and path may be borrowed, so callers
+/// that already hold the bytes do not need to copy them.
+#[derive(Debug, Clone)]
+pub struct ParseJob<'a> {
+    pub path: Cow<'a, Path>,
+    pub source: Cow<'a, [u8]>,
+    pub language: Language,
+}
+
+impl<'a> ParseJob<'a> {
+    pub fn new(path: impl Into<Cow<'a, Path>>, source: impl Into<Cow<'a, [u8]>>, language: Language) -> Self {
+        Self {
+            path: path.into(),
+            source: source.into(),
+            language,
+        }
+    }
+}
+
+impl<'a> From<(&'a Path, &'a [u8], Language)> for ParseJob<'a> {
+    fn from((path, source, language): (&'a Path, &'a [u8], Language)) -> Self {
+        Self::new(path, source, language)
+    }
+}
+
+impl<'a> From<(&'a Path, &'a str, Language)> for ParseJob<'a> {
+    fn from((path, source, language): (&'a Path, &'a str, Language)) -> Self {
+        Self::new(path, source.as_bytes(), language)
+    }
+}
+
+impl From<(PathBuf, Vec<u8>, Language)> for ParseJob<'static> {
+    fn from((path, source, language): (PathBuf, Vec<u8>, Language)) -> Self {
+        Self::new(path, source, language)
+    }
+}
+
+/// Result of parsing one `ParseJob`.
+#[derive(Debug)]
+pub struct ParseOutcome {
+    pub path: PathBuf,
+    pub language: Language,
+    pub bytes: usize,
+    pub elapsed: Duration,
+    pub result: Result<SimplifiedAST>,
+}
+
+/// Accumulated parse throughput for one language.
+#[derive(Debug, Clone, Copy, Default, PartialEq, Eq)]
+pub struct ThroughputStats {
+    pub files: u64,
+    pub bytes: u64,
+    pub errors: u64,
+    /// Time spent parsing, summed over all worker threads.
+    pub busy: Duration,
+    /// Parses that ran past their deadline and fell back to a lexical
+    /// outline. Counted for every parse with options, batched or not.
+    pub timeouts: u64,
+    /// Parses abandoned because their cancellation token was tripped.
+    pub cancelled: u64,
+}
+
+impl ThroughputStats {
+    /// Bytes per second of parser time (per core, not wall clock).
+    pub fn bytes_per_second(&self) -> f64 {
+        let secs = self.busy.as_secs_f64();
+        if secs == 0.0 {
+            0.0
+        } else {
+            self.bytes as f64 / secs
+        }
+    }
+
+    pub fn files_per_second(&self) -> f64 {
+        let secs = self.busy.as_secs_f64();
+        if secs == 0.0 {
+            0.0
+        } else {
+            self.files as f64 / secs
+        }
+    }
+
+    fn record(&mut self, outcome: &ParseOutcome) {
+        self.files += 1;
+        self.bytes += outcome.bytes as u64;
+        self.busy += outcome.elapsed;
+        if outcome.result.is_err() {
+            self.errors += 1;
+        }
+    }
+}
+
+/// Per-language counters updated by the batch API. The lock is taken once per
+/// finished file, which is negligible next to the parse itself.
+#[derive(Debug, Default)]
+pub(crate) struct ThroughputCounters {
+    per_language: Mutex<HashMap<Language, ThroughputStats>>,
+}
+
+impl ThroughputCounters {
+    pub(crate) fn record(&self, outcome: &ParseOutcome) {
+        self.per_language.lock().unwrap()
+            .entry(outcome.language)
+            .or_default()
+            .record(outcome);
+    }
+
+    pub(crate) fn record_timeout(&self, language: Language) {
+        self.per_language.lock().unwrap().entry(language).or_default().timeouts += 1;
+    }
+
+    pub(crate) fn record_cancellation(&self, language: Language) {
+        self.per_language.lock().unwrap().entry(language).or_default().cancelled += 1;
+    }
+
+    pub(crate) fn snapshot(&self) -> HashMap<Language, ThroughputStats> {
+        self.per_language.lock().unwrap().clone()
+    }
+
+    pub(crate) fn reset(&self) {
+        self.per_language.lock().unwrap().clear();
+    }
+}
+
+impl ParserRegistry {
+    /// Parses many files across all cores and returns the outcomes in input
+    /// order.
+    ///
+    /// Work is spread over rayon's work-stealing pool; run the call inside
+    /// `ThreadPool::install` to use a dedicated pool. Each worker checks a
+    /// parser out of the shared `ParserPool`, so at most one parser per
+    /// thread and language is ever created.
+    pub fn parse_many<'a, I, J>(&self, jobs: I) -> Vec<ParseOutcome>
+    where
+        I: IntoIterator<Item = J>,
+        J: Into<ParseJob<'a>>,
+    {
+        self.parse_many_with_options(jobs, &ParseOptions::default())
+    }
+
+    pub fn parse_many_with_options<'a, I, J>(&self, jobs: I, options: &ParseOptions) -> Vec<ParseOutcome>
+    where
+        I: IntoIterator<Item = J>,
+        J: Into<ParseJob<'a>>,
+    {
+        let jobs: Vec<ParseJob<'a>> = jobs.into_iter().map(Into::into).collect();
+        jobs.par_iter()
+            .map(|job| self.parse_job(job, options))
+            .collect()
+    }
+
+    /// Like `parse_many`, but hands each outcome to `on_parsed` as soon as it
+    /// finishes, together with the job's index in the input. Callbacks run on
+    /// the worker threads in completion order.
+    pub fn parse_each<'a, I, J, F>(&self, jobs: I, on_parsed: F)
+    where
+        I: IntoIterator<Item = J>,
+        J: Into<ParseJob<'a>>,
+        F: Fn(usize, ParseOutcome) + Send + Sync,
+    {
+        let jobs: Vec<ParseJob<'a>> = jobs.into_iter().map(Into::into).collect();
+        jobs.par_iter()
+            .enumerate()
+            .for_each(|(index, job)| on_parsed(index, self.parse_job(job, &ParseOptions::default())));
+    }
+
+    /// Per-language throughput of everything parsed through the batch API.
+    pub fn throughput_stats(&self) -> HashMap<Language, ThroughputStats> {
+        self.throughput.snapshot()
+    }
+
+    pub fn reset_throughput_stats(&self) {
+        self.throughput.reset();
+    }
+
+    fn parse_job(&self, job: &ParseJob<'_>, options: &ParseOptions) -> ParseOutcome {
+        let start = Instant::now();
+        let result = std::str::from_utf8(&job.source)
+            .map_err(|e| CodeGraphError::Parser {
+                message: format!("{} is not valid UTF-8: {}", job.path.display(), e)
+            })
+            .and_then(|source| self.parse_with_options(source, job.language, options));
+
+        let outcome = ParseOutcome {
+            path: job.path.to_path_buf(),
+            language: job.language,
+            bytes: job.source.len(),
+            elapsed: start.elapsed(),
+            result,
+        };
+        self.throughput.record(&outcome);
+        outcome
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::language::pool::ParserPool;
+    use std::sync::Arc;
+
+    fn sources() -> Vec<(PathBuf, String, Language)> {
+        (0..16)
+            .map(|i| {
+                if i % 2 == 0 {
+                    (PathBuf::from(format!("m{}.py", i)), format!("def f{}():\n    return {}\n", i, i), Language::Python)
+                } else {
+                    (PathBuf::from(format!("C{}.java", i)), format!("class C{} {{ void m() {{}} }}\n", i), Language::Java)
+                }
+            })
+            .collect()
+    }
+
+    #[test]
+    fn test_parse_many_keeps_input_order() {
+        let registry = ParserRegistry::with_pool(Arc::new(ParserPool::new()));
+        let files = sources();
+
+        let outcomes = registry.parse_many(
+            files.iter().map(|(path, source, lang)| (path.as_path(), source.as_str(), *lang))
+        );
+
+        assert_eq!(outcomes.len(), files.len());
+        for ((path, source, _), outcome) in files.iter().zip(&outcomes) {
+            assert_eq!(&outcome.path, path);
+            let sequential = registry.parse(source, outcome.language).unwrap();
+            assert_eq!(outcome.result.as_ref().unwrap().root(), sequential.root());
+        }
+    }
+
+    #[test]
+    fn test_parse_many_reports_errors_per_file() {
+        let registry = ParserRegistry::new();
+        let jobs = vec![
+            ParseJob::new(Path::new("ok.py"), "x = 1".as_bytes(), Language::Python),
+            ParseJob::new(Path::new("bad.py"), vec![0xff, 0xfe], Language::Python),
+            ParseJob::new(Path::new("README"), "text".as_bytes(), Language::Unknown),
+        ];
+
+        let outcomes = registry.parse_many(jobs);
+
+        assert!(outcomes[0].result.is_ok());
+        assert!(outcomes[1].result.is_err());
+        assert!(outcomes[2].result.is_err());
+    }
+
+    #[test]
+    fn test_parse_each_streams_every_job() {
+        let registry = ParserRegistry::new();
+        let files = sources();
+        let seen = Mutex::new(Vec::new());
+
+        registry.parse_each(
+            files.iter().map(|(path, source, lang)| (path.as_path(), source.as_str(), *lang)),
+            |index, outcome| {
+                assert_eq!(outcome.path, files[index].0);
+                seen.lock().unwrap().push(index);
+            },
+        );
+
+        let mut seen = seen.into_inner().unwrap();
+        seen.sort_unstable();
+        assert_eq!(seen, (0..files.len()).collect::<Vec<_>>());
+    }
+
+    #[test]
+    fn test_throughput_counted_per_language() {
+        let registry = ParserRegistry::new();
+        let files = sources();
+        let python_bytes: usize = files.iter()
+            .filter(|(_, _, lang)| *lang == Language::Python)
+            .map(|(_, source, _)| source.len())
+            .sum();
+
+        registry.parse_many(
+            files.iter().map(|(path, source, lang)| (path.as_path(), source.as_str(), *lang))
+        );
+
+        let stats = registry.throughput_stats();
+        assert_eq!(stats[&Language::Python].files, 8);
+        assert_eq!(stats[&Language::Java].files, 8);
+        assert_eq!(stats[&Language::Python].bytes, python_bytes as u64);
+        assert_eq!(stats[&Language::Python].errors, 0);
+
+        registry.reset_throughput_stats();
+        assert!(registry.throughput_stats().is_empty());
+    }
+}
@@ -1,5 +1,11 @@
 pub mod detector;
 pub mod registry;
+pub mod pool;
+pub mod batch;
+pub mod options;
 
 pub use detector::*;
-pub use registry::*;
\ No newline at end of file
+pub use registry::*;
+pub use pool::*;
+pub use batch::*;
+pub use options::*;
@@ -0,0 +1,95 @@
+use crate::ast::{ConversionBudget, ParseLevel};
+use std::sync::atomic::{AtomicUsize, Ordering};
+use std::sync::Arc;
+use std::time::Duration;
+
+/// Per-call parse settings.
+#[derive(Debug, Clone, Default, PartialEq, Eq)]
+pub struct ParseOptions {
+    pub level: ParseLevel,
+    /// Node and depth limits; a full parse over budget becomes an outline.
+    pub budget: ConversionBudget,
+    /// Deadline for the tree-sitter parse. A file that runs past it gets a
+    /// lexical outline instead of a syntax tree.
+    pub timeout: Option<Duration>,
+    /// Parses in flight give up with an error once this is cancelled.
+    pub cancellation: Option<CancellationToken>,
+}
+
+impl ParseOptions {
+    pub fn full() -> Self {
+        Self::default()
+    }
+
+    /// Declarations, signatures and imports only; enough for graph building.
+    pub fn outline() -> Self {
+        Self::default().with_level(ParseLevel::Outline)
+    }
+
+    pub fn with_level(mut self, level: ParseLevel) -> Self {
+        self.level = level;
+        self
+    }
+
+    pub fn with_budget(mut self, budget: ConversionBudget) -> Self {
+        self.budget = budget;
+        self
+    }
+
+    pub fn with_timeout(mut self, timeout: Duration) -> Self {
+        self.timeout = Some(timeout);
+        self
+    }
+
+    pub fn with_cancellation(mut self, cancellation: CancellationToken) -> Self {
+        self.cancellation = Some(cancellation);
+        self
+    }
+
+    /// True when a deadline or cancellation token applies to the parse.
+    pub fn is_interruptible(&self) -> bool {
+        self.timeout.is_some() || self.cancellation.is_some()
+    }
+}
+
+/// Flag that callers trip to abandon parses in flight, such as the API
+/// server on a dropped request or the watcher on a newer change. Clones
+/// share the flag.
+#[derive(Clone, Default)]
+pub struct CancellationToken(Arc<AtomicUsize>);
+
+impl CancellationToken {
+    pub fn new() -> Self {
+        Self::default()
+    }
+
+    pub fn cancel(&self) {
+        self.0.store(1, Ordering::Relaxed);
+    }
+
+    pub fn is_cancelled(&self) -> bool {
+        self.0.load(Ordering::Relaxed) != 0
+    }
+
+    /// The flag in the form tree-sitter polls while parsing.
+    pub(crate) fn flag(&self) -> &AtomicUsize {
+        &self.0
+    }
+}
+
+/// Tokens are equal when they share a flag.
+impl PartialEq for CancellationToken {
+    fn eq(&self, other: &Self) -> bool {
+        Arc::ptr_eq(&self.0, &other.0)
+    }
+}
+
+impl Eq for CancellationToken {}
+
+impl std::fmt::Debug for CancellationToken {
+    fn fmt(&self, f: &mut std::fmt::Formatter<'_>) -> std::fmt::Result {
+        f.debug_struct("CancellationToken")
+            .field("cancelled", &self.is_cancelled())
+            .finish()
+    }
+}
@@ -0,0 +1,217 @@
+use code_context_graph_core::{Language, Result, CodeGraphError};
+use std::collections::HashMap;
+use std::ops::{Deref, DerefMut};
+use std::sync::atomic::{AtomicU64, Ordering};
+use std::sync::{Arc, Mutex, OnceLock};
+use tree_sitter::Parser;
+
+/// Returns the tree-sitter grammar bundled for a language, if any.
+pub fn tree_sitter_language(language: Language) -> Option<tree_sitter::Language> {
+    match language {
+        Language::Python => Some(tree_sitter_python::LANGUAGE.into()),
+        Language::Java => Some(tree_sitter_java::LANGUAGE.into()),
+        Language::JavaScript => Some(tree_sitter_javascript::LANGUAGE.into()),
+        Language::Kotlin => Some(tree_sitter_kotlin_ng::LANGUAGE.into()),
+        _ => None,
+    }
+}
+
+/// Per-language pool of warm tree-sitter parsers.
+///
+/// Parsers are checked out for the duration of a single parse and returned on
+/// drop, so the lock is only held to pop or push a parser, never while parsing.
+pub struct ParserPool {
+    idle: Mutex<HashMap<Language, Vec<Parser>>>,
+    max_idle_per_language: usize,
+    hits: AtomicU64,
+    misses: AtomicU64,
+}
+
+#[derive(Debug, Clone, Copy, PartialEq, Eq)]
+pub struct PoolStats {
+    pub hits: u64,
+    pub misses: u64,
+    pub idle: usize,
+}
+
+impl PoolStats {
+    pub fn hit_rate(&self) -> f64 {
+        let total = self.hits + self.misses;
+        if total == 0 {
+            0.0
+        } else {
+            self.hits as f64 / total as f64
+        }
+    }
+}
+
+impl ParserPool {
+    pub fn new() -> Self {
+        let workers = std::thread::available_parallelism()
+            .map(|n| n.get())
+            .unwrap_or(4);
+        Self::with_max_idle(workers)
+    }
+
+    pub fn with_max_idle(max_idle_per_language: usize) -> Self {
+        Self {
+            idle: Mutex::new(HashMap::new()),
+            max_idle_per_language: max_idle_per_language.max(1),
+            hits: AtomicU64::new(0),
+            misses: AtomicU64::new(0),
+        }
+    }
+
+    /// Process-wide pool shared by every `ParserRegistry::new()`.
+    pub fn global() -> Arc<ParserPool> {
+        static GLOBAL: OnceLock<Arc<ParserPool>> = OnceLock::new();
+        Arc::clone(GLOBAL.get_or_init(|| Arc::new(ParserPool::new())))
+    }
+
+    pub fn checkout(&self, language: Language) -> Result<PooledParser<'_>> {
+        let pooled = self.idle.lock().unwrap()
+            .get_mut(&language)
+            .and_then(|parsers| parsers.pop());
+
+        let parser = match pooled {
+            Some(parser) => {
+                self.hits.fetch_add(1, Ordering::Relaxed);
+                parser
+            }
+            None => {
+                self.misses.fetch_add(1, Ordering::Relaxed);
+                Self::create_parser(language)?
+            }
+        };
+
+        Ok(PooledParser {
+            pool: self,
+            language,
+            parser: Some(parser),
+        })
+    }
+
+    pub fn stats(&self) -> PoolStats {
+        let idle = self.idle.lock().unwrap()
+            .values()
+            .map(|parsers| parsers.len())
+            .sum();
+
+        PoolStats {
+            hits: self.hits.load(Ordering::Relaxed),
+            misses: self.misses.load(Ordering::Relaxed),
+            idle,
+        }
+    }
+
+    fn create_parser(language: Language) -> Result<Parser> {
+        let grammar = tree_sitter_language(language)
+            .ok_or_else(|| CodeGraphError::Parser {
+                message: format!("No tree-sitter grammar for language: {:?}", language)
+            })?;
+
+        let mut parser = Parser::new();
+        parser.set_language(&grammar)
+            .map_err(|e| CodeGraphError::Parser {
+                message: format!("Failed to set {:?} language: {}", language, e)
+            })?;
+
+        Ok(parser)
+    }
+
+    fn release(&self, language: Language, mut parser: Parser) {
+        parser.reset();
+        // Limits belong to the checkout that set them
+        parser.set_timeout_micros(0);
+        // SAFETY: clearing the flag leaves no pointer behind
+        unsafe { parser.set_cancellation_flag(None) };
+        if let Ok(mut idle) = self.idle.lock() {
+            let parsers = idle.entry(language).or_default();
+            if parsers.len() < self.max_idle_per_language {
+                parsers.push(parser);
+            }
+        }
+    }
+}
+
+impl Default for ParserPool {
+    fn default() -> Self {
+        Self::new()
+    }
+}
+
+/// A parser checked out from a `ParserPool`; returned to the pool on drop.
+pub struct PooledParser<'a> {
+    pool: &'a ParserPool,
+    language: Language,
+    parser: Option<Parser>,
+}
+
+impl PooledParser<'_> {
+    pub fn language(&self) -> Language {
+        self.language
+    }
+}
+
+impl Deref for PooledParser<'_> {
+    type Target = Parser;
+
+    fn deref(&self) -> &Parser {
+        self.parser.as_ref().expect("pooled parser already released")
+    }
+}
+
+impl DerefMut for PooledParser<'_> {
+    fn deref_mut(&mut self) -> &mut Parser {
+        self.parser.as_mut().expect("pooled parser already released")
+    }
+}
+
+impl Drop for PooledParser<'_> {
+    fn drop(&mut self) {
+        if let Some(parser) = self.parser.take() {
+            self.pool.release(self.language, parser);
+        }
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    #[test]
+    fn test_checkout_reuses_returned_parser() {
+        let pool = ParserPool::new();
+
+        {
+            let mut parser = pool.checkout(Language::Python).unwrap();
+            assert!(parser.parse("x = 1", None).is_some());
+        }
+        {
+            let mut parser = pool.checkout(Language::Python).unwrap();
+            assert!(parser.parse("y = 2", None).is_some());
+        }
+
+        let stats = pool.stats();
+        assert_eq!(stats.misses, 1);
+        assert_eq!(stats.hits, 1);
+        assert_eq!(stats.idle, 1);
+    }
+
+    #[test]
+    fn test_checkout_unknown_language_fails() {
+        let pool = ParserPool::new();
+        assert!(pool.checkout(Language::Unknown).is_err());
+    }
+
+    #[test]
+    fn test_idle_parsers_are_bounded() {
+        let pool = ParserPool::with_max_idle(1);
+        let first = pool.checkout(Language::Java).unwrap();
+        let second = pool.checkout(Language::Java).unwrap();
+        drop(first);
+        drop(second);
+
+        assert_eq!(pool.stats().idle, 1);
+    }
+}
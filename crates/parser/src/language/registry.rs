@@ -1,22 +1,43 @@
-use code_context_graph_core::{Language, Result, CodeGraphError};
+use code_context_graph_core::{Language, Result, CodeGraphError, Hash};
 use std::collections::HashMap;
-use std::sync::{Arc, Mutex};
-use tree_sitter::{Parser, Node};
-use crate::ast::SimplifiedAST;
+use std::fs::File;
+use std::io::{self, BufRead, BufReader, Read, Seek, SeekFrom};
+use std::path::Path;
+use std::sync::Arc;
+use std::time::Instant;
+use tree_sitter::{Parser, Point, Tree};
+use crate::ast::text::ReaderText;
+use crate::ast::{lexical_outline, lexical_outline_reader, ArenaAST, BudgetExceeded, ConversionBudget, ParseLevel, SimplifiedAST};
+use crate::cache::DiskParseCache;
+use crate::language::batch::{ParseOutcome, ThroughputCounters};
+use crate::language::options::{CancellationToken, ParseOptions};
+use crate::query::LanguageQueries;
+use crate::language::pool::{tree_sitter_language, ParserPool, PoolStats};
 
 pub type ParseResult = Result<SimplifiedAST>;
 pub type ParserFunction = Box<dyn Fn(&str) -> ParseResult + Send + Sync>;
 
+/// Read buffer of `parse_file`, and the most it hands tree-sitter per call.
+const STREAM_BUFFER_BYTES: usize = 64 * 1024;
+
 pub struct ParserRegistry {
     parsers: HashMap<Language, ParserFunction>,
-    parser_pool: Arc<Mutex<HashMap<Language, Vec<Parser>>>>,
+    parser_pool: Arc<ParserPool>,
+    pub(crate) throughput: ThroughputCounters,
+    disk_cache: Option<Arc<DiskParseCache>>,
 }
 
 impl ParserRegistry {
     pub fn new() -> Self {
+        Self::with_pool(ParserPool::global())
+    }
+
+    pub fn with_pool(parser_pool: Arc<ParserPool>) -> Self {
         let mut registry = Self {
             parsers: HashMap::new(),
-            parser_pool: Arc::new(Mutex::new(HashMap::new())),
+            parser_pool,
+            throughput: ThroughputCounters::default(),
+            disk_cache: None,
         };
         
         registry.register_builtin_parsers();
@@ -24,81 +45,23 @@ impl ParserRegistry {
     }
 
     fn register_builtin_parsers(&mut self) {
-        // Python parser
-        self.parsers.insert(
-            Language::Python,
-            Box::new(|source| {
-                let mut parser = Parser::new();
-                parser.set_language(&tree_sitter_python::LANGUAGE.into())
-                    .map_err(|e| CodeGraphError::Parser { 
-                        message: format!("Failed to set Python language: {}", e) 
-                    })?;
-                
-                let tree = parser.parse(source, None)
-                    .ok_or_else(|| CodeGraphError::Parser { 
-                        message: "Failed to parse Python source".to_string() 
-                    })?;
-                
-                SimplifiedAST::from_tree_sitter(tree.root_node(), source, Language::Python)
-            })
-        );
-
-        // Java parser
-        self.parsers.insert(
-            Language::Java,
-            Box::new(|source| {
-                let mut parser = Parser::new();
-                parser.set_language(&tree_sitter_java::LANGUAGE.into())
-                    .map_err(|e| CodeGraphError::Parser { 
-                        message: format!("Failed to set Java language: {}", e) 
-                    })?;
-                
-                let tree = parser.parse(source, None)
-                    .ok_or_else(|| CodeGraphError::Parser { 
-                        message: "Failed to parse Java source".to_string() 
-                    })?;
-                
-                SimplifiedAST::from_tree_sitter(tree.root_node(), source, Language::Java)
-            })
-        );
-
-        // JavaScript parser
-        self.parsers.insert(
-            Language::JavaScript,
-            Box::new(|source| {
-                let mut parser = Parser::new();
-                parser.set_language(&tree_sitter_javascript::LANGUAGE.into())
-                    .map_err(|e| CodeGraphError::Parser { 
-                        message: format!("Failed to set JavaScript language: {}", e) 
-                    })?;
-                
-                let tree = parser.parse(source, None)
-                    .ok_or_else(|| CodeGraphError::Parser { 
-                        message: "Failed to parse JavaScript source".to_string() 
-                    })?;
-                
-                SimplifiedAST::from_tree_sitter(tree.root_node(), source, Language::JavaScript)
-            })
-        );
-
-        // Kotlin parser
-        self.parsers.insert(
-            Language::Kotlin,
-            Box::new(|source| {
-                let mut parser = Parser::new();
-                parser.set_language(&tree_sitter_kotlin_ng::LANGUAGE.into())
-                    .map_err(|e| CodeGraphError::Parser { 
-                        message: format!("Failed to set Kotlin language: {}", e) 
-                    })?;
-                
-                let tree = parser.parse(source, None)
-                    .ok_or_else(|| CodeGraphError::Parser { 
-                        message: "Failed to parse Kotlin source".to_string() 
-                    })?;
-                
-                SimplifiedAST::from_tree_sitter(tree.root_node(), source, Language::Kotlin)
-            })
-        );
+        for language in [Language::Python, Language::Java, Language::JavaScript, Language::Kotlin] {
+            let pool = Arc::clone(&self.parser_pool);
+            self.parsers.insert(
+                language,
+                Box::new(move |source| {
+                    let mut parser = pool.checkout(language)?;
+                    let tree = parser.parse(source, None)
+                        .ok_or_else(|| CodeGraphError::Parser { 
+                            message: format!("Failed to parse {:?} source", language) 
+                        })?;
+                    // Hand the parser back before the (comparatively slow) AST conversion
+                    drop(parser);
+                    
+                    SimplifiedAST::from_tree_sitter(tree.root_node(), source, language)
+                })
+            );
+        }
     }
 
     pub fn parse(&self, source: &str, language: Language) -> ParseResult {
@@ -110,6 +73,185 @@ impl ParserRegistry {
         parser_fn(source)
     }
 
+    /// Parses with explicit options. Languages served by a custom parser
+    /// ignore them; bundled grammars honour the level, budget, deadline and
+    /// cancellation token. A parse that runs past its deadline yields a
+    /// lexical outline and counts as a timeout in `throughput_stats`. With a
+    /// disk cache attached, unchanged sources are read back instead of parsed.
+    pub fn parse_with_options(&self, source: &str, language: Language, options: &ParseOptions) -> ParseResult {
+        let Some(cache) = &self.disk_cache else {
+            return self.parse_uncached(source, language, options);
+        };
+
+        let content_hash = Hash::from_string(source);
+        if let Some(ast) = cache.get(&content_hash, language, options) {
+            return Ok(ast);
+        }
+        let ast = self.parse_uncached(source, language, options)?;
+        // A timed-out outline may well be a full parse next time
+        if ast.budget_exceeded == Some(BudgetExceeded::Time) {
+            return Ok(ast);
+        }
+        if let Err(e) = cache.put(&ast, options) {
+            tracing::debug!("Failed to write parse cache entry: {}", e);
+        }
+        Ok(ast)
+    }
+
+    fn parse_uncached(&self, source: &str, language: Language, options: &ParseOptions) -> ParseResult {
+        let defaults = options.level == ParseLevel::Full
+            && options.budget == ConversionBudget::default()
+            && !options.is_interruptible();
+        if defaults || tree_sitter_language(language).is_none() {
+            return self.parse(source, language);
+        }
+
+        let Some(tree) = self.parse_tree_interruptible(source, language, options)? else {
+            tracing::warn!("{:?} parse ran past {:?}, falling back to a lexical outline", language, options.timeout);
+            self.throughput.record_timeout(language);
+            return Ok(lexical_outline(source, language));
+        };
+        SimplifiedAST::from_tree_sitter_with_budget(tree.root_node(), source, language, options.level, &options.budget)
+    }
+
+    fn parse_tree_interruptible(&self, source: &str, language: Language, options: &ParseOptions) -> Result<Option<Tree>> {
+        self.run_interruptible(language, options, |parser| parser.parse(source, None))
+    }
+
+    /// Runs `parse` on a pooled parser under the deadline and cancellation
+    /// token of `options`. Returns `None` when the deadline passed and an
+    /// error when cancelled.
+    fn run_interruptible(
+        &self,
+        language: Language,
+        options: &ParseOptions,
+        parse: impl FnOnce(&mut Parser) -> Option<Tree>,
+    ) -> Result<Option<Tree>> {
+        let cancelled = || {
+            self.throughput.record_cancellation(language);
+            CodeGraphError::Parser {
+                message: format!("Parse of {:?} source was cancelled", language)
+            }
+        };
+        let cancellation = options.cancellation.as_ref();
+        if cancellation.map_or(false, CancellationToken::is_cancelled) {
+            return Err(cancelled());
+        }
+
+        let mut parser = self.parser_pool.checkout(language)?;
+        // tree-sitter treats 0 as no limit
+        let timeout = options.timeout.map_or(0, |t| t.as_micros().clamp(1, u64::MAX as u128) as u64);
+        parser.set_timeout_micros(timeout);
+        // SAFETY: the token outlives the parser's checkout, and the pool
+        // clears the flag before the parser is handed out again
+        unsafe { parser.set_cancellation_flag(cancellation.map(CancellationToken::flag)) };
+
+        match parse(&mut parser) {
+            Some(tree) => Ok(Some(tree)),
+            None if cancellation.map_or(false, CancellationToken::is_cancelled) => Err(cancelled()),
+            None if options.timeout.is_some() => Ok(None),
+            None => Err(CodeGraphError::Parser {
+                message: format!("Failed to parse {:?} source", language)
+            }),
+        }
+    }
+
+    /// Consults `cache` in `parse_with_options` and the batch API.
+    pub fn with_disk_cache(mut self, cache: Arc<DiskParseCache>) -> Self {
+        self.disk_cache = Some(cache);
+        self
+    }
+
+    pub fn disk_cache(&self) -> Option<&Arc<DiskParseCache>> {
+        self.disk_cache.as_ref()
+    }
+
+    /// Parses the file at `path` without loading it, for sources too large
+    /// to hold in memory. tree-sitter reads the file through a small seekable
+    /// buffer with `Parser::parse_with`, and conversion reads back only the
+    /// node text it needs (names, signatures, supertypes). Level, budget,
+    /// deadline and cancellation token come from `options`; a parse that
+    /// runs past the deadline is outlined lexically, again from the file,
+    /// and counts as a timeout. Results are not disk cached.
+    pub fn parse_file(&self, path: &Path, language: Language, options: &ParseOptions) -> ParseResult {
+        self.parse_file_with_hash(path, language, None, options)
+    }
+
+    /// Like `parse_file`, for a file whose content hash is already known
+    /// (e.g. from copying it into the CAS), which saves a full read of the
+    /// file. The parse is counted in `throughput_stats` like a batch parse.
+    pub fn parse_file_with_hash(&self, path: &Path, language: Language, source_hash: Option<Hash>, options: &ParseOptions) -> ParseResult {
+        let start = Instant::now();
+        let bytes = std::fs::metadata(path).map_or(0, |m| m.len() as usize);
+        let result = self.stream_file(path, language, source_hash, options);
+        let outcome = ParseOutcome { path: path.to_path_buf(), language, bytes, elapsed: start.elapsed(), result };
+        self.throughput.record(&outcome);
+        outcome.result
+    }
+
+    fn stream_file(&self, path: &Path, language: Language, source_hash: Option<Hash>, options: &ParseOptions) -> ParseResult {
+        if tree_sitter_language(language).is_none() {
+            return Err(CodeGraphError::Parser {
+                message: format!("No grammar to parse {:?} files from disk", language)
+            });
+        }
+        let mut reader = BufReader::with_capacity(STREAM_BUFFER_BYTES, File::open(path)?);
+        let source_hash = match source_hash {
+            Some(hash) => hash,
+            None => hash_reader(&mut reader)?,
+        };
+
+        let mut read_error = None;
+        let tree = {
+            let mut input = |offset: usize, _: Point| -> Vec<u8> {
+                if read_error.is_some() {
+                    return Vec::new();
+                }
+                read_chunk(&mut reader, offset as u64).unwrap_or_else(|e| {
+                    read_error = Some(e);
+                    Vec::new()
+                })
+            };
+            self.run_interruptible(language, options, |parser| parser.parse_with(&mut input, None))?
+        };
+        if let Some(e) = read_error {
+            return Err(e.into());
+        }
+
+        let Some(tree) = tree else {
+            tracing::warn!("{:?} parse of {} ran past {:?}, falling back to a lexical outline", language, path.display(), options.timeout);
+            self.throughput.record_timeout(language);
+            reader.seek(SeekFrom::Start(0))?;
+            return Ok(lexical_outline_reader(reader, language)?);
+        };
+        SimplifiedAST::from_source_text(tree.root_node(), &ReaderText::new(reader), source_hash, language, options.level, &options.budget)
+    }
+
+    /// Parses straight to a tree-sitter `Tree` using a pooled parser.
+    ///
+    /// When `old_tree` is given it must already have been `Tree::edit`ed to
+    /// match `source`; tree-sitter then reuses its unchanged subtrees.
+    pub fn parse_tree(&self, source: &str, language: Language, old_tree: Option<&Tree>) -> Result<Tree> {
+        let mut parser = self.parser_pool.checkout(language)?;
+        parser.parse(source, old_tree)
+            .ok_or_else(|| CodeGraphError::Parser {
+                message: format!("Failed to parse {:?} source", language)
+            })
+    }
+
+    /// Parses into the flat `ArenaAST` representation. Only languages with a
+    /// bundled grammar are supported; custom parsers produce `SimplifiedAST`.
+    pub fn parse_arena(&self, source: &str, language: Language) -> Result<ArenaAST> {
+        let tree = self.parse_tree(source, language, None)?;
+        ArenaAST::from_tree_sitter(tree.root_node(), source, language)
+    }
+
+    /// Compiled entity/relation extraction queries for `language`. They are
+    /// compiled on first use and shared by every registry and thread.
+    pub fn queries(&self, language: Language) -> Result<&'static LanguageQueries> {
+        LanguageQueries::for_language(language)
+    }
+
     pub fn supports_language(&self, language: &Language) -> bool {
         self.parsers.contains_key(language)
     }
@@ -121,6 +263,14 @@ impl ParserRegistry {
     pub fn register_custom_parser(&mut self, language: Language, parser: ParserFunction) {
         self.parsers.insert(language, parser);
     }
+
+    pub fn parser_pool(&self) -> &Arc<ParserPool> {
+        &self.parser_pool
+    }
+
+    pub fn pool_stats(&self) -> PoolStats {
+        self.parser_pool.stats()
+    }
 }
 
 impl Default for ParserRegistry {
@@ -129,6 +279,32 @@ impl Default for ParserRegistry {
     }
 }
 
+/// Content hash of everything `reader` has left, read one buffer at a time.
+fn hash_reader<R: BufRead>(reader: &mut R) -> io::Result<Hash> {
+    let mut hasher = Hash::builder();
+    loop {
+        let chunk = reader.fill_buf()?;
+        if chunk.is_empty() {
+            return Ok(hasher.finish());
+        }
+        hasher.update(chunk);
+        let read = chunk.len();
+        reader.consume(read);
+    }
+}
+
+/// Up to `STREAM_BUFFER_BYTES` of input at `offset` for `Parser::parse_with`.
+/// tree-sitter mostly reads forward, so the seek is skipped when the reader
+/// is already there; an empty chunk marks the end of the file.
+fn read_chunk<R: Read + Seek>(reader: &mut R, offset: u64) -> io::Result<Vec<u8>> {
+    if reader.stream_position()? != offset {
+        reader.seek(SeekFrom::Start(offset))?;
+    }
+    let mut chunk = Vec::with_capacity(STREAM_BUFFER_BYTES);
+    reader.take(STREAM_BUFFER_BYTES as u64).read_to_end(&mut chunk)?;
+    Ok(chunk)
+}
+
 #[cfg(test)]
 mod tests {
     use super::*;
@@ -162,4 +338,143 @@ mod tests {
         
         assert!(result.is_err());
     }
-}
\ No newline at end of file
+
+    #[test]
+    fn test_parse_arena() {
+        let registry = ParserRegistry::new();
+        let source = "class A:\n    def f(self):\n        pass\n";
+
+        let arena = registry.parse_arena(source, Language::Python).unwrap();
+        let simplified = registry.parse(source, Language::Python).unwrap();
+
+        assert_eq!(arena.find_all_classes()[0].name(), Some("A"));
+        assert_eq!(arena.to_simplified().root(), simplified.root());
+        assert!(registry.parse_arena(source, Language::Unknown).is_err());
+    }
+
+    #[test]
+    fn test_parse_with_outline_options() {
+        let registry = ParserRegistry::new();
+        let source = "class A:\n    def f(self):\n        return g(1)\n";
+
+        let outline = registry.parse_with_options(source, Language::Python, &ParseOptions::outline()).unwrap();
+        let full = registry.parse_with_options(source, Language::Python, &ParseOptions::default()).unwrap();
+
+        assert_eq!(outline.level, ParseLevel::Outline);
+        assert_eq!(full.level, ParseLevel::Full);
+        assert_eq!(outline.find_all_functions()[0].name.as_deref(), Some("f"));
+        assert!(outline.find_all_calls().is_empty());
+        assert_eq!(full.find_all_calls().len(), 1);
+    }
+
+    #[test]
+    fn test_parse_reuses_pooled_parsers() {
+        let registry = ParserRegistry::with_pool(Arc::new(ParserPool::new()));
+
+        registry.parse("x = 1", Language::Python).unwrap();
+        registry.parse("y = 2", Language::Python).unwrap();
+
+        let stats = registry.pool_stats();
+        assert_eq!(stats.misses, 1);
+        assert_eq!(stats.hits, 1);
+    }
+
+    #[test]
+    fn test_parse_from_many_threads() {
+        let registry = ParserRegistry::with_pool(Arc::new(ParserPool::with_max_idle(4)));
+
+        std::thread::scope(|scope| {
+            for i in 0..4 {
+                let registry = &registry;
+                scope.spawn(move || {
+                    for j in 0..8 {
+                        let source = format!("def f_{}_{}():\n    return {}\n", i, j, j);
+                        let ast = registry.parse(&source, Language::Python).unwrap();
+                        assert_eq!(ast.find_all_functions().len(), 1);
+                    }
+                });
+            }
+        });
+
+        let stats = registry.pool_stats();
+        assert_eq!(stats.hits + stats.misses, 32);
+        assert!(stats.misses <= 4);
+    }
+
+    fn many_functions(count: usize) -> String {
+        (0..count).map(|i| format!("class C{i}:\n    def f{i}(self):\n        return [x * {i} for x in range({i})]\n\n")).collect()
+    }
+
+    #[test]
+    fn test_timed_out_parse_falls_back_to_lexical_outline() {
+        let registry = ParserRegistry::with_pool(Arc::new(ParserPool::new()));
+        let source = many_functions(5_000);
+        let options = ParseOptions::default().with_timeout(std::time::Duration::from_micros(1));
+
+        let ast = registry.parse_with_options(&source, Language::Python, &options).unwrap();
+
+        assert_eq!(ast.level, ParseLevel::Outline);
+        assert_eq!(ast.budget_exceeded, Some(BudgetExceeded::Time));
+        assert_eq!(ast.find_all_classes().len(), 5_000);
+        assert_eq!(ast.find_all_functions().len(), 5_000);
+        assert_eq!(registry.throughput_stats()[&Language::Python].timeouts, 1);
+
+        // The pooled parser comes back without the deadline
+        let full = registry.parse_with_options(&source, Language::Python, &ParseOptions::default()).unwrap();
+        assert_eq!(full.level, ParseLevel::Full);
+        assert_eq!(registry.pool_stats().hits, 1);
+    }
+
+    #[test]
+    fn test_generous_timeout_parses_normally() {
+        let registry = ParserRegistry::new();
+        let source = "class A:\n    def f(self):\n        return g(1)\n";
+        let options = ParseOptions::default().with_timeout(std::time::Duration::from_secs(10));
+
+        let ast = registry.parse_with_options(source, Language::Python, &options).unwrap();
+
+        assert_eq!(ast.root(), registry.parse(source, Language::Python).unwrap().root());
+        assert!(registry.throughput_stats().is_empty());
+    }
+
+    #[test]
+    fn test_cancelled_parse_fails() {
+        let registry = ParserRegistry::new();
+        let token = CancellationToken::new();
+        let options = ParseOptions::outline().with_cancellation(token.clone());
+
+        assert!(registry.parse_with_options("x = 1", Language::Python, &options).is_ok());
+        token.cancel();
+        assert!(registry.parse_with_options("x = 1", Language::Python, &options).is_err());
+        assert_eq!(registry.throughput_stats()[&Language::Python].cancelled, 1);
+    }
+
+    #[test]
+    fn test_parse_file_matches_in_memory_parse() {
+        let dir = tempfile::tempdir().unwrap();
+        let path = dir.path().join("big.py");
+        // Larger than one read buffer, with a multi-byte character on the seam
+        let mut source = "é".repeat(STREAM_BUFFER_BYTES / 2);
+        source.insert(0, '#');
+        source.push('\n');
+        source.push_str(&many_functions(2_000));
+        std::fs::write(&path, &source).unwrap();
+
+        let registry = ParserRegistry::new();
+        let options = ParseOptions::outline();
+        let from_disk = registry.parse_file(&path, Language::Python, &options).unwrap();
+        let in_memory = registry.parse_with_options(&source, Language::Python, &options).unwrap();
+
+        assert_eq!(from_disk.root(), in_memory.root());
+        assert_eq!(from_disk.source_hash, Hash::from_string(&source));
+        assert_eq!(from_disk.level, ParseLevel::Outline);
+        assert_eq!(from_disk.budget_exceeded, None);
+        assert_eq!(from_disk.find_all_classes().len(), 2_000);
+        assert!(registry.parse_file(&dir.path().join("missing.py"), Language::Python, &options).is_err());
+
+        let with_hash = registry.parse_file_with_hash(&path, Language::Python, Some(Hash::from_string(&source)), &options).unwrap();
+        assert_eq!(with_hash.root(), in_memory.root());
+        let stats = &registry.throughput_stats()[&Language::Python];
+        assert_eq!((stats.files, stats.errors), (3, 1));
+    }
+}
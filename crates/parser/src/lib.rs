@@ -3,6 +3,8 @@ pub mod ast;
 pub mod parsers;
 pub mod visitor;
 pub mod incremental;
+pub mod query;
+pub mod cache;
 
 pub mod test_utils;
 
@@ -10,4 +12,6 @@ pub use language::*;
 pub use ast::*;
 pub use parsers::*;
 pub use visitor::*;
-pub use incremental::*;
\ No newline at end of file
+pub use incremental::*;
+pub use query::*;
+pub use cache::*;
\ No newline at end of file
@@ -0,0 +1,274 @@
+use code_context_graph_core::{Language, Result, CodeGraphError};
+use std::cmp::Reverse;
+use std::collections::HashSet;
+use std::sync::OnceLock;
+use tree_sitter::{Node, Query, QueryCursor};
+use crate::ast::NodeLocation;
+use crate::language::tree_sitter_language;
+
+/// What a tagged node stands for. Each variant is one capture name in the
+/// `queries/*.scm` files, e.g. `@definition.class` or `@reference.call`.
+#[derive(Debug, Clone, Copy, PartialEq, Eq, Hash)]
+pub enum TagKind {
+    Class,
+    Interface,
+    Enum,
+    Function,
+    Method,
+    Variable,
+    Import,
+    Call,
+    Extends,
+    Implements,
+}
+
+impl TagKind {
+    fn from_capture(name: &str) -> Option<Self> {
+        let kind = match name {
+            "definition.class" => TagKind::Class,
+            "definition.interface" => TagKind::Interface,
+            "definition.enum" => TagKind::Enum,
+            "definition.function" => TagKind::Function,
+            "definition.method" => TagKind::Method,
+            "definition.variable" => TagKind::Variable,
+            "reference.import" => TagKind::Import,
+            "reference.call" => TagKind::Call,
+            "reference.extends" => TagKind::Extends,
+            "reference.implements" => TagKind::Implements,
+            _ => return None,
+        };
+        Some(kind)
+    }
+
+    pub fn is_definition(self) -> bool {
+        matches!(self,
+            TagKind::Class | TagKind::Interface | TagKind::Enum |
+            TagKind::Function | TagKind::Method | TagKind::Variable
+        )
+    }
+
+    /// Definitions whose members are scoped under their name.
+    pub fn is_scope(self) -> bool {
+        matches!(self, TagKind::Class | TagKind::Interface | TagKind::Enum)
+    }
+}
+
+/// A query match: the tagged node and the node holding its name. Tags
+/// without an `@name` capture (inheritance references) are their own name.
+#[derive(Debug, Clone, Copy)]
+pub struct Tag<'tree> {
+    pub kind: TagKind,
+    pub node: Node<'tree>,
+    pub name: Node<'tree>,
+}
+
+impl<'tree> Tag<'tree> {
+    pub fn name_text<'s>(&self, source: &'s str) -> &'s str {
+        self.name.utf8_text(source.as_bytes()).unwrap_or("")
+    }
+
+    pub fn location(&self) -> NodeLocation {
+        NodeLocation::from_tree_sitter(self.node)
+    }
+}
+
+/// The compiled extraction query of one language.
+///
+/// Queries are compiled on first use and shared by every thread for the rest
+/// of the process; `QueryCursor`s are cheap and created per call.
+pub struct LanguageQueries {
+    language: Language,
+    query: Query,
+    kinds: Vec<Option<TagKind>>,
+    name_capture: Option<u32>,
+}
+
+impl LanguageQueries {
+    pub fn for_language(language: Language) -> Result<&'static LanguageQueries> {
+        static PYTHON: OnceLock<std::result::Result<LanguageQueries, String>> = OnceLock::new();
+        static JAVA: OnceLock<std::result::Result<LanguageQueries, String>> = OnceLock::new();
+        static JAVASCRIPT: OnceLock<std::result::Result<LanguageQueries, String>> = OnceLock::new();
+        static KOTLIN: OnceLock<std::result::Result<LanguageQueries, String>> = OnceLock::new();
+
+        let cell = match language {
+            Language::Python => &PYTHON,
+            Language::Java => &JAVA,
+            Language::JavaScript => &JAVASCRIPT,
+            Language::Kotlin => &KOTLIN,
+            _ => return Err(CodeGraphError::Parser {
+                message: format!("No extraction queries for language: {:?}", language)
+            }),
+        };
+
+        cell.get_or_init(|| Self::compile(language))
+            .as_ref()
+            .map_err(|message| CodeGraphError::Parser { message: message.clone() })
+    }
+
+    fn compile(language: Language) -> std::result::Result<Self, String> {
+        let (grammar, source) = match (tree_sitter_language(language), query_source(language)) {
+            (Some(grammar), Some(source)) => (grammar, source),
+            _ => return Err(format!("No extraction queries for language: {:?}", language)),
+        };
+        let query = Query::new(&grammar, source)
+            .map_err(|e| format!("Invalid {:?} extraction query: {}", language, e))?;
+
+        let kinds = query.capture_names().iter()
+            .map(|name| TagKind::from_capture(name))
+            .collect();
+        let name_capture = query.capture_index_for_name("name");
+
+        Ok(Self {
+            language,
+            query,
+            kinds,
+            name_capture,
+        })
+    }
+
+    pub fn language(&self) -> Language {
+        self.language
+    }
+
+    pub fn pattern_count(&self) -> usize {
+        self.query.pattern_count()
+    }
+
+    /// Whether the queries capture imports, calls or supertypes, and not
+    /// only definitions.
+    pub fn has_relations(&self) -> bool {
+        self.kinds.iter().flatten().any(|kind| !kind.is_definition())
+    }
+
+    /// All tags under `root`, ordered by start position with enclosing nodes
+    /// before the nodes they contain.
+    pub fn tags<'tree>(&self, root: Node<'tree>, source: &str) -> Vec<Tag<'tree>> {
+        let mut cursor = QueryCursor::new();
+        let mut seen = HashSet::new();
+        let mut tags = Vec::new();
+
+        for query_match in cursor.matches(&self.query, root, source.as_bytes()) {
+            let mut tagged = None;
+            let mut name = None;
+            for capture in query_match.captures {
+                if Some(capture.index) == self.name_capture {
+                    name = Some(capture.node);
+                } else if let Some(kind) = self.kinds[capture.index as usize] {
+                    tagged = Some((kind, capture.node));
+                }
+            }
+
+            let Some((kind, node)) = tagged else { continue };
+            // Patterns without field names can match one node more than once
+            if seen.insert((node.id(), kind)) {
+                tags.push(Tag { kind, node, name: name.unwrap_or(node) });
+            }
+        }
+
+        tags.sort_by_key(|tag| (tag.node.start_byte(), Reverse(tag.node.end_byte())));
+        tags
+    }
+}
+
+fn query_source(language: Language) -> Option<&'static str> {
+    match language {
+        Language::Python => Some(include_str!("../../queries/python.scm")),
+        Language::Java => Some(include_str!("../../queries/java.scm")),
+        Language::JavaScript => Some(include_str!("../../queries/javascript.scm")),
+        Language::Kotlin => Some(include_str!("../../queries/kotlin.scm")),
+        _ => None,
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::language::ParserRegistry;
+
+    fn tags_of(source: &str, language: Language) -> Vec<(TagKind, String)> {
+        let tree = ParserRegistry::new().parse_tree(source, language, None).unwrap();
+        LanguageQueries::for_language(language).unwrap()
+            .tags(tree.root_node(), source)
+            .iter()
+            .map(|tag| (tag.kind, tag.name_text(source).to_string()))
+            .collect()
+    }
+
+    #[test]
+    fn test_queries_compile_once() {
+        for language in [Language::Python, Language::Java, Language::JavaScript, Language::Kotlin] {
+            let first = LanguageQueries::for_language(language).unwrap();
+            let second = LanguageQueries::for_language(language).unwrap();
+            assert!(std::ptr::eq(first, second));
+            assert!(first.pattern_count() > 0);
+        }
+        assert!(LanguageQueries::for_language(Language::Unknown).is_err());
+    }
+
+    #[test]
+    fn test_every_language_captures_relations() {
+        for language in [Language::Python, Language::Java, Language::JavaScript, Language::Kotlin] {
+            assert!(LanguageQueries::for_language(language).unwrap().has_relations(), "{:?}", language);
+        }
+    }
+
+    #[test]
+    fn test_python_tags() {
+        let source = "import os\n\nclass A(Base):\n    def f(self):\n        return os.getcwd()\n";
+
+        assert_eq!(tags_of(source, Language::Python), vec![
+            (TagKind::Import, "os".to_string()),
+            (TagKind::Class, "A".to_string()),
+            (TagKind::Extends, "Base".to_string()),
+            (TagKind::Function, "f".to_string()),
+            (TagKind::Call, "getcwd".to_string()),
+        ]);
+    }
+
+    #[test]
+    fn test_java_inheritance_tags() {
+        let source = "class Repo extends Base implements Store, Closeable {}\n";
+        let tags = tags_of(source, Language::Java);
+
+        assert!(tags.contains(&(TagKind::Extends, "Base".to_string())));
+        assert!(tags.contains(&(TagKind::Implements, "Store".to_string())));
+        assert!(tags.contains(&(TagKind::Implements, "Closeable".to_string())));
+    }
+
+    #[test]
+    fn test_javascript_tags() {
+        let source = "import x from 'lib';\nclass A extends B { run() { go(); } }\nconst h = () => 1;\n";
+        let tags = tags_of(source, Language::JavaScript);
+
+        assert!(tags.contains(&(TagKind::Import, "lib".to_string())));
+        assert!(tags.contains(&(TagKind::Extends, "B".to_string())));
+        assert!(tags.contains(&(TagKind::Method, "run".to_string())));
+        assert!(tags.contains(&(TagKind::Call, "go".to_string())));
+        assert!(tags.contains(&(TagKind::Function, "h".to_string())));
+    }
+
+    #[test]
+    fn test_kotlin_definition_tags() {
+        let source = "class Repo {\n    fun save() {}\n}\n\nobject Registry\n\nfun main() {}\n";
+
+        assert_eq!(tags_of(source, Language::Kotlin), vec![
+            (TagKind::Class, "Repo".to_string()),
+            (TagKind::Function, "save".to_string()),
+            (TagKind::Class, "Registry".to_string()),
+            (TagKind::Function, "main".to_string()),
+        ]);
+    }
+
+    #[test]
+    fn test_kotlin_relation_tags() {
+        let source = "import kotlin.io.println\n\nclass Repo : Base(), Store {\n    fun save() {\n        println(\"saved\")\n        cache.flush()\n    }\n}\n";
+        let tags = tags_of(source, Language::Kotlin);
+
+        assert!(tags.contains(&(TagKind::Import, "kotlin.io.println".to_string())));
+        assert!(tags.contains(&(TagKind::Extends, "Base".to_string())));
+        assert!(tags.contains(&(TagKind::Extends, "Store".to_string())));
+        assert!(tags.contains(&(TagKind::Call, "println".to_string())));
+        assert!(tags.contains(&(TagKind::Call, "flush".to_string())));
+        assert!(!tags.contains(&(TagKind::Call, "cache".to_string())));
+    }
+}
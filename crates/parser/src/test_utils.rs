@@ -1,4 +1,5 @@
 use crate::ast::{ASTNode, SimplifiedAST, ASTNodeType, NodeLocation};
+use crate::language::batch::ParseJob;
 use crate::language::registry::ParserRegistry;
 use crate::visitor::base::{ASTVisitor, VisitorContext};
 use code_context_graph_core::{Language, Result};
@@ -32,6 +33,18 @@ impl TestUtils {
         registry.parse(source, language)
     }
 
+    /// Parse several sources in parallel; results are in input order
+    pub fn parse_sources(sources: &[(&str, Language)]) -> Vec<Result<SimplifiedAST>> {
+        let registry = ParserRegistry::new();
+        registry
+            .parse_many(sources.iter().enumerate().map(|(i, (source, language))| {
+                ParseJob::new(PathBuf::from(format!("source_{}", i)), source.as_bytes(), *language)
+            }))
+            .into_iter()
+            .map(|outcome| outcome.result)
+            .collect()
+    }
+
     /// Create a visitor context for testing
     pub fn create_test_context(language: Language, source: &str, file_path: &str) -> VisitorContext {
         VisitorContext::new(language, source.to_string(), PathBuf::from(file_path))
@@ -39,7 +52,7 @@ impl TestUtils {
 
     /// Assert that AST contains expected node types
     pub fn assert_contains_node_types(ast: &SimplifiedAST, expected_types: &[ASTNodeType]) {
-        let found_types = Self::collect_node_types(&ast.root);
+        let found_types = Self::collect_node_types(ast.root());
         for expected_type in expected_types {
             assert!(
                 found_types.contains(expected_type),
@@ -52,7 +65,7 @@ impl TestUtils {
 
     /// Assert that AST contains expected number of nodes of a specific type
     pub fn assert_node_count(ast: &SimplifiedAST, node_type: &ASTNodeType, expected_count: usize) {
-        let count = Self::count_node_type(&ast.root, node_type);
+        let count = ast.count_of_type(node_type);
         assert_eq!(
             count, expected_count,
             "Expected {} nodes of type {:?}, found {}",
@@ -62,7 +75,7 @@ impl TestUtils {
 
     /// Assert that AST contains node with specific name
     pub fn assert_contains_named_node(ast: &SimplifiedAST, name: &str, node_type: &ASTNodeType) {
-        let found = Self::find_named_node(&ast.root, name, node_type);
+        let found = Self::find_named_node(ast.root(), name, node_type);
         assert!(
             found,
             "Expected to find node named '{}' of type {:?}",
@@ -105,7 +118,7 @@ impl TestUtils {
         match result {
             Ok(ast) => {
                 // If parsing succeeds, ensure we have at least a program node
-                assert_eq!(ast.root.node_type, ASTNodeType::Program);
+                assert_eq!(ast.root().node_type, ASTNodeType::Program);
             }
             Err(_) => {
                 // If parsing fails, that's also acceptable for malformed code
@@ -132,14 +145,6 @@ impl TestUtils {
         types
     }
 
-    fn count_node_type(node: &ASTNode, target_type: &ASTNodeType) -> usize {
-        let mut count = if &node.node_type == target_type { 1 } else { 0 };
-        for child in &node.children {
-            count += Self::count_node_type(child, target_type);
-        }
-        count
-    }
-
     fn find_named_node(node: &ASTNode, name: &str, node_type: &ASTNodeType) -> bool {
         if &node.node_type == node_type && node.name.as_deref() == Some(name) {
             return true;
@@ -162,8 +167,8 @@ pub mod assertions {
     /// Assert that two ASTs are structurally similar
     #[cfg(test)]
     pub fn assert_ast_similarity(actual: &SimplifiedAST, expected: &SimplifiedAST, tolerance: f32) {
-        let actual_types = TestUtils::collect_node_types(&actual.root);
-        let expected_types = TestUtils::collect_node_types(&expected.root);
+        let actual_types = TestUtils::collect_node_types(actual.root());
+        let expected_types = TestUtils::collect_node_types(expected.root());
         
         let similarity = calculate_similarity(&actual_types, &expected_types);
         assert!(
@@ -238,7 +243,7 @@ pub mod perf_utils {
         let ast = TestUtils::parse_source(source, language)?;
         let parse_time = start.elapsed();
 
-        let node_count = count_all_nodes(&ast.root);
+        let node_count = count_all_nodes(ast.root());
         
         Ok(ParseMetrics {
             parse_time_ms: parse_time.as_millis() as u64,
@@ -255,14 +260,14 @@ pub mod perf_utils {
     #[cfg(test)]
     fn estimate_memory_usage(ast: &SimplifiedAST) -> usize {
         // Rough estimation - in a real implementation you'd use a proper profiler
-        std::mem::size_of_val(ast) + estimate_node_memory(&ast.root)
+        std::mem::size_of_val(ast) + estimate_node_memory(ast.root())
     }
 
     #[cfg(test)]
     fn estimate_node_memory(node: &ASTNode) -> usize {
         let base_size = std::mem::size_of_val(node);
         let children_size: usize = node.children.iter().map(estimate_node_memory).sum();
-        let metadata_size = node.metadata.capacity() * std::mem::size_of::<String>();
+        let metadata_size = node.metadata.heap_size();
         
         base_size + children_size + metadata_size
     }
@@ -1,4 +1,4 @@
-use crate::ast::{ASTNode, SimplifiedAST};
+use crate::ast::{ASTNode, ArenaAST, NodeId, NodeRef, SimplifiedAST};
 use code_context_graph_core::{Result, Language, Hash};
 use std::collections::HashMap;
 
@@ -106,6 +106,34 @@ impl<V: ASTVisitor> WalkingVisitor<V> {
     }
 }
 
+/// Visitor over an `ArenaAST`. The walk is driven by `walk_arena`, so
+/// implementations only decide what to do with each node; `Skip` jumps
+/// straight past the node's subtree.
+pub trait ArenaVisitor {
+    type Output;
+
+    fn visit_node(&mut self, node: NodeRef<'_>, context: &mut VisitorContext) -> Result<VisitResult>;
+
+    fn finish(&mut self, context: &mut VisitorContext) -> Result<Self::Output>;
+}
+
+/// Preorder walk over the arena's node array, without recursion.
+pub fn walk_arena<V: ArenaVisitor>(ast: &ArenaAST, visitor: &mut V, context: &mut VisitorContext) -> Result<V::Output> {
+    let end = ast.len() as NodeId;
+    let mut id: NodeId = 0;
+
+    while id < end {
+        let node = ast.node(id);
+        match visitor.visit_node(node, context)? {
+            VisitResult::Continue => id += 1,
+            VisitResult::Skip => id = node.subtree_end(),
+            VisitResult::Stop => break,
+        }
+    }
+
+    visitor.finish(context)
+}
+
 // Utility trait for visitor composition
 pub trait VisitorComposer {
     fn compose<V1, V2>(visitor1: V1, visitor2: V2) -> CompositeVisitor<V1, V2>
@@ -187,7 +215,7 @@ where
     type Output = Vec<ASTNode>;
 
     fn visit_ast(&mut self, ast: &SimplifiedAST, context: &mut VisitorContext) -> Result<Self::Output> {
-        self.visit_node(&ast.root, context)?;
+        self.visit_node(ast.root(), context)?;
         Ok(self.collected.clone())
     }
 
@@ -214,7 +242,7 @@ mod tests {
         type Output = Vec<String>;
 
         fn visit_ast(&mut self, ast: &SimplifiedAST, context: &mut VisitorContext) -> Result<Self::Output> {
-            self.visit_node(&ast.root, context)?;
+            self.visit_node(ast.root(), context)?;
             Ok(self.visited_nodes.clone())
         }
 
@@ -241,6 +269,41 @@ mod tests {
         assert_eq!(context.current_scope_path(), "module");
     }
 
+    struct ArenaTypeCounter {
+        functions: usize,
+        skip_classes: bool,
+    }
+
+    impl ArenaVisitor for ArenaTypeCounter {
+        type Output = usize;
+
+        fn visit_node(&mut self, node: NodeRef<'_>, _context: &mut VisitorContext) -> Result<VisitResult> {
+            match node.node_type() {
+                ASTNodeType::FunctionDeclaration => self.functions += 1,
+                ASTNodeType::ClassDeclaration if self.skip_classes => return Ok(VisitResult::Skip),
+                _ => {}
+            }
+            Ok(VisitResult::Continue)
+        }
+
+        fn finish(&mut self, _context: &mut VisitorContext) -> Result<Self::Output> {
+            Ok(self.functions)
+        }
+    }
+
+    #[test]
+    fn test_walk_arena_honours_skip() {
+        let source = "def a():\n    pass\n\nclass C:\n    def b(self):\n        pass\n";
+        let ast = crate::language::ParserRegistry::new().parse_arena(source, Language::Python).unwrap();
+        let mut context = VisitorContext::new(Language::Python, source.to_string(), std::path::PathBuf::from("test.py"));
+
+        let mut all = ArenaTypeCounter { functions: 0, skip_classes: false };
+        assert_eq!(walk_arena(&ast, &mut all, &mut context).unwrap(), 2);
+
+        let mut outside_classes = ArenaTypeCounter { functions: 0, skip_classes: true };
+        assert_eq!(walk_arena(&ast, &mut outside_classes, &mut context).unwrap(), 1);
+    }
+
     #[test]
     fn test_filter_visitor() {
         use crate::ast::SimplifiedAST;
@@ -1,16 +1,19 @@
-use crate::ast::{ASTNode, SimplifiedAST, ASTNodeType};
+use crate::ast::{ASTNode, SimplifiedAST, ASTNodeType, NodeMetadata};
+use crate::query::{LanguageQueries, Tag, TagKind};
 use crate::visitor::base::{ASTVisitor, VisitorContext, VisitResult};
-use code_context_graph_core::Result;
-use std::collections::HashMap;
+use crate::visitor::fused::{FusedVisitor, PassVisitor};
+use code_context_graph_core::{Language, Result, Symbol};
+use std::borrow::Cow;
+use tree_sitter::Tree;
 
 #[derive(Debug, Clone)]
 pub struct EntityInfo {
-    pub name: String,
+    pub name: Symbol,
     pub entity_type: EntityType,
     pub location: crate::ast::NodeLocation,
     pub visibility: Option<String>,
     pub modifiers: Vec<String>,
-    pub metadata: HashMap<String, serde_json::Value>,
+    pub metadata: NodeMetadata,
 }
 
 #[derive(Debug, Clone, Copy, PartialEq)]
@@ -37,8 +40,65 @@ impl EntityExtractor {
         }
     }
 
+    /// Extracts entities straight from the concrete syntax tree with the
+    /// compiled queries of `language`, without building a `SimplifiedAST`.
+    /// Functions nested in a class, interface or enum are reported as methods,
+    /// as the visitor does.
+    pub fn extract_from_tree(tree: &Tree, source: &str, language: Language) -> Result<Vec<EntityInfo>> {
+        let queries = LanguageQueries::for_language(language)?;
+        let mut entities = Vec::new();
+        // End byte of each enclosing definition and whether it opens a scope
+        let mut enclosing: Vec<(usize, bool)> = Vec::new();
+
+        for tag in queries.tags(tree.root_node(), source) {
+            if !tag.kind.is_definition() {
+                continue;
+            }
+            let start = tag.node.start_byte();
+            while enclosing.last().map_or(false, |&(end, _)| end <= start) {
+                enclosing.pop();
+            }
+
+            let entity_type = match tag.kind {
+                TagKind::Class => EntityType::Class,
+                TagKind::Interface => EntityType::Interface,
+                TagKind::Enum => EntityType::Enum,
+                TagKind::Function if enclosing.iter().any(|&(_, scope)| scope) => EntityType::Method,
+                TagKind::Function => EntityType::Function,
+                TagKind::Method => EntityType::Method,
+                _ => EntityType::Variable,
+            };
+            enclosing.push((tag.node.end_byte(), tag.kind.is_scope()));
+            entities.push(Self::entity_from_tag(&tag, entity_type, source, language));
+        }
+
+        Ok(entities)
+    }
+
+    fn entity_from_tag(tag: &Tag<'_>, entity_type: EntityType, source: &str, language: Language) -> EntityInfo {
+        let mut metadata = NodeMetadata::new();
+        metadata.kind = Some(Cow::Borrowed(tag.node.kind()));
+        metadata.is_named = Some(tag.node.is_named());
+        metadata.language = Some(language);
+        SimplifiedAST::add_language_metadata(&mut metadata, &tag.node, source, language);
+
+        EntityInfo {
+            name: Symbol::intern(tag.name_text(source)),
+            entity_type,
+            location: tag.location(),
+            visibility: metadata.get("visibility"),
+            modifiers: metadata.modifiers.clone(),
+            metadata,
+        }
+    }
+
+    /// The entities found so far, without copying them.
+    pub fn into_entities(self) -> Vec<EntityInfo> {
+        self.entities
+    }
+
     fn extract_modifiers(&self, node: &ASTNode) -> Vec<String> {
-        node.get_metadata::<Vec<String>>("modifiers").unwrap_or_default()
+        node.metadata.modifiers.clone()
     }
 
     fn extract_visibility(&self, node: &ASTNode) -> Option<String> {
@@ -46,7 +106,7 @@ impl EntityExtractor {
     }
 
     fn create_entity_info(&self, node: &ASTNode, entity_type: EntityType) -> Option<EntityInfo> {
-        let name = node.name.clone()?;
+        let name = Symbol::intern(node.name.as_deref()?);
         
         Some(EntityInfo {
             name,
@@ -59,25 +119,18 @@ impl EntityExtractor {
     }
 }
 
-impl ASTVisitor for EntityExtractor {
-    type Output = Vec<EntityInfo>;
-
-    fn visit_ast(&mut self, ast: &SimplifiedAST, context: &mut VisitorContext) -> Result<Self::Output> {
-        self.visit_node(&ast.root, context)?;
-        Ok(self.entities.clone())
-    }
-
-    fn visit_node(&mut self, node: &ASTNode, context: &mut VisitorContext) -> Result<VisitResult> {
+impl PassVisitor for EntityExtractor {
+    fn enter(&mut self, node: &ASTNode, context: &mut VisitorContext) -> Result<VisitResult> {
         match &node.node_type {
             ASTNodeType::ClassDeclaration => {
                 if let Some(entity) = self.create_entity_info(node, EntityType::Class) {
-                    context.push_scope(entity.name.clone());
+                    context.push_scope(entity.name.to_string());
                     self.entities.push(entity);
                 }
             }
             ASTNodeType::InterfaceDeclaration => {
                 if let Some(entity) = self.create_entity_info(node, EntityType::Interface) {
-                    context.push_scope(entity.name.clone());
+                    context.push_scope(entity.name.to_string());
                     self.entities.push(entity);
                 }
             }
@@ -103,22 +156,23 @@ impl ASTVisitor for EntityExtractor {
             }
             ASTNodeType::EnumDeclaration => {
                 if let Some(entity) = self.create_entity_info(node, EntityType::Enum) {
-                    context.push_scope(entity.name.clone());
+                    context.push_scope(entity.name.to_string());
                     self.entities.push(entity);
                 }
             }
             ASTNodeType::Module => {
                 if let Some(entity) = self.create_entity_info(node, EntityType::Module) {
-                    context.push_scope(entity.name.clone());
+                    context.push_scope(entity.name.to_string());
                     self.entities.push(entity);
                 }
             }
             _ => {}
         }
 
-        // Continue visiting children
-        let result = self.visit_children(node, context)?;
-        
+        Ok(VisitResult::Continue)
+    }
+
+    fn leave(&mut self, node: &ASTNode, context: &mut VisitorContext) -> Result<()> {
         // Pop scope if we pushed one
         match &node.node_type {
             ASTNodeType::ClassDeclaration | 
@@ -129,8 +183,21 @@ impl ASTVisitor for EntityExtractor {
             }
             _ => {}
         }
+        Ok(())
+    }
+}
 
-        Ok(result)
+impl ASTVisitor for EntityExtractor {
+    type Output = Vec<EntityInfo>;
+
+    fn visit_ast(&mut self, ast: &SimplifiedAST, context: &mut VisitorContext) -> Result<Self::Output> {
+        FusedVisitor::new().with(self).run(ast, context)?;
+        Ok(self.entities.clone())
+    }
+
+    fn visit_node(&mut self, node: &ASTNode, context: &mut VisitorContext) -> Result<VisitResult> {
+        FusedVisitor::new().with(self).walk(node, context)?;
+        Ok(VisitResult::Continue)
     }
 }
 
@@ -138,4 +205,53 @@ impl Default for EntityExtractor {
     fn default() -> Self {
         Self::new()
     }
-}
\ No newline at end of file
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::language::ParserRegistry;
+    use std::path::PathBuf;
+
+    fn names_by_type(entities: &[EntityInfo], entity_type: EntityType) -> Vec<&str> {
+        entities.iter()
+            .filter(|e| e.entity_type == entity_type)
+            .map(|e| e.name.as_str())
+            .collect()
+    }
+
+    #[test]
+    fn test_extract_from_tree_matches_visitor() {
+        let source = "class Service:\n    def start(self):\n        pass\n\ndef main():\n    pass\n";
+        let registry = ParserRegistry::new();
+        let tree = registry.parse_tree(source, Language::Python, None).unwrap();
+
+        let from_tree = EntityExtractor::extract_from_tree(&tree, source, Language::Python).unwrap();
+
+        let ast = registry.parse(source, Language::Python).unwrap();
+        let mut context = VisitorContext::new(Language::Python, source.to_string(), PathBuf::from("t.py"));
+        let from_ast = EntityExtractor::new().visit_ast(&ast, &mut context).unwrap();
+
+        for entity_type in [EntityType::Class, EntityType::Method, EntityType::Function] {
+            assert_eq!(names_by_type(&from_tree, entity_type), names_by_type(&from_ast, entity_type));
+        }
+        assert_eq!(names_by_type(&from_tree, EntityType::Method), vec!["start"]);
+    }
+
+    #[test]
+    fn test_extract_from_tree_keeps_java_metadata() {
+        let source = "public class A extends B {\n    public static void run() {}\n}\n";
+        let registry = ParserRegistry::new();
+        let tree = registry.parse_tree(source, Language::Java, None).unwrap();
+
+        let entities = EntityExtractor::extract_from_tree(&tree, source, Language::Java).unwrap();
+        let ast = registry.parse(source, Language::Java).unwrap();
+
+        let run = entities.iter().find(|e| e.name == "run").unwrap();
+        assert_eq!(run.entity_type, EntityType::Method);
+        assert_eq!(run.modifiers, ast.find_all_functions()[0].metadata.modifiers);
+
+        let class = entities.iter().find(|e| e.name == "A").unwrap();
+        assert_eq!(class.metadata.extends.as_deref(), Some("B"));
+    }
+}
@@ -0,0 +1,354 @@
+use crate::ast::{ASTNode, SimplifiedAST};
+use crate::visitor::base::{VisitorContext, VisitResult};
+use crate::visitor::entity_extractor::{EntityExtractor, EntityInfo};
+use crate::visitor::metadata_collector::{CodeMetrics, EntityMetadata, MetadataCollector};
+use crate::visitor::relation_extractor::{RelationExtractor, RelationInfo};
+use code_context_graph_core::{Result, CodeGraphError};
+
+/// Most visitors one `FusedVisitor` can drive; each takes a bit of a mask.
+pub const MAX_FUSED_VISITORS: usize = 64;
+
+/// Visitor driven by a `FusedVisitor` walk.
+///
+/// `enter` is called on the way down and `leave` on the way back up, for
+/// every node the visitor entered, including the ones it skipped. `Skip`
+/// keeps the visitor out of the node's subtree; `Stop` drops it from the
+/// rest of the walk without further `leave` calls.
+pub trait PassVisitor {
+    fn begin(&mut self, _ast: &SimplifiedAST, _context: &mut VisitorContext) -> Result<()> {
+        Ok(())
+    }
+
+    fn enter(&mut self, node: &ASTNode, context: &mut VisitorContext) -> Result<VisitResult>;
+
+    fn leave(&mut self, _node: &ASTNode, _context: &mut VisitorContext) -> Result<()> {
+        Ok(())
+    }
+
+    fn end(&mut self, _ast: &SimplifiedAST, _context: &mut VisitorContext) -> Result<()> {
+        Ok(())
+    }
+}
+
+struct Slot<'v> {
+    visitor: &'v mut (dyn PassVisitor + 'v),
+    /// This visitor's scope stack, swapped into the context around each call
+    scope: Vec<String>,
+}
+
+enum Step<'a> {
+    Enter(&'a ASTNode, u64),
+    Leave(&'a ASTNode, u64),
+}
+
+/// Runs any number of visitors over a tree in a single traversal.
+///
+/// Every node is dispatched to each visitor whose bit is set in the mask it
+/// was reached with, so a visitor that skips a subtree costs nothing inside
+/// it, and the subtree is not walked at all once every visitor skipped it.
+/// Each visitor sees its own `current_scope`, as if it had walked the tree
+/// alone with the shared context.
+pub struct FusedVisitor<'v> {
+    slots: Vec<Slot<'v>>,
+}
+
+impl<'v> FusedVisitor<'v> {
+    pub fn new() -> Self {
+        Self { slots: Vec::new() }
+    }
+
+    pub fn with(mut self, visitor: &'v mut (dyn PassVisitor + 'v)) -> Self {
+        self.add(visitor);
+        self
+    }
+
+    pub fn add(&mut self, visitor: &'v mut (dyn PassVisitor + 'v)) {
+        self.slots.push(Slot { visitor, scope: Vec::new() });
+    }
+
+    pub fn len(&self) -> usize {
+        self.slots.len()
+    }
+
+    pub fn is_empty(&self) -> bool {
+        self.slots.is_empty()
+    }
+
+    /// Walks the whole AST, with `begin` and `end` around the traversal.
+    pub fn run(&mut self, ast: &SimplifiedAST, context: &mut VisitorContext) -> Result<()> {
+        self.check_capacity()?;
+        self.reset_scopes(context);
+        for slot in &mut self.slots {
+            dispatch(slot, context, |visitor, context| visitor.begin(ast, context))?;
+        }
+        self.traverse(ast.root(), context)?;
+        for slot in &mut self.slots {
+            dispatch(slot, context, |visitor, context| visitor.end(ast, context))?;
+        }
+        Ok(())
+    }
+
+    /// Walks the subtree of `node` only.
+    pub fn walk(&mut self, node: &ASTNode, context: &mut VisitorContext) -> Result<()> {
+        self.check_capacity()?;
+        self.reset_scopes(context);
+        self.traverse(node, context)
+    }
+
+    fn check_capacity(&self) -> Result<()> {
+        if self.slots.len() > MAX_FUSED_VISITORS {
+            return Err(CodeGraphError::Parser {
+                message: format!("Cannot fuse {} visitors, the limit is {}", self.slots.len(), MAX_FUSED_VISITORS),
+            });
+        }
+        Ok(())
+    }
+
+    fn reset_scopes(&mut self, context: &VisitorContext) {
+        for slot in &mut self.slots {
+            slot.scope.clone_from(&context.current_scope);
+        }
+    }
+
+    fn traverse(&mut self, root: &ASTNode, context: &mut VisitorContext) -> Result<()> {
+        let all = match self.slots.len() {
+            0 => return Ok(()),
+            MAX_FUSED_VISITORS => u64::MAX,
+            n => (1u64 << n) - 1,
+        };
+        let mut stopped = 0u64;
+        let mut stack = vec![Step::Enter(root, all)];
+
+        while let Some(step) = stack.pop() {
+            match step {
+                Step::Enter(node, mask) => {
+                    let mask = mask & !stopped;
+                    let mut descend = 0u64;
+                    for i in bits(mask) {
+                        match dispatch(&mut self.slots[i], context, |visitor, context| visitor.enter(node, context))? {
+                            VisitResult::Continue => descend |= 1 << i,
+                            VisitResult::Skip => {}
+                            VisitResult::Stop => stopped |= 1 << i,
+                        }
+                    }
+
+                    let entered = mask & !stopped;
+                    if entered != 0 {
+                        stack.push(Step::Leave(node, entered));
+                    }
+                    if descend != 0 {
+                        // Reversed so children pop in source order
+                        stack.extend(node.children.iter().rev().map(|child| Step::Enter(child, descend)));
+                    }
+                }
+                Step::Leave(node, mask) => {
+                    for i in bits(mask & !stopped) {
+                        dispatch(&mut self.slots[i], context, |visitor, context| visitor.leave(node, context))?;
+                    }
+                }
+            }
+
+            if stopped == all {
+                break;
+            }
+        }
+        Ok(())
+    }
+}
+
+impl Default for FusedVisitor<'_> {
+    fn default() -> Self {
+        Self::new()
+    }
+}
+
+fn dispatch<T>(
+    slot: &mut Slot<'_>,
+    context: &mut VisitorContext,
+    call: impl FnOnce(&mut dyn PassVisitor, &mut VisitorContext) -> Result<T>,
+) -> Result<T> {
+    std::mem::swap(&mut context.current_scope, &mut slot.scope);
+    let result = call(&mut *slot.visitor, context);
+    std::mem::swap(&mut context.current_scope, &mut slot.scope);
+    result
+}
+
+/// Indices of the set bits of `mask`, lowest first.
+fn bits(mut mask: u64) -> impl Iterator<Item = usize> {
+    std::iter::from_fn(move || {
+        if mask == 0 {
+            return None;
+        }
+        let i = mask.trailing_zeros() as usize;
+        mask &= mask - 1;
+        Some(i)
+    })
+}
+
+/// Everything the standard visitors extract from one file.
+#[derive(Debug, Clone, Default)]
+pub struct FileExtraction {
+    pub entities: Vec<EntityInfo>,
+    pub relations: Vec<RelationInfo>,
+    pub metrics: CodeMetrics,
+    pub entity_metadata: Vec<EntityMetadata>,
+}
+
+/// Runs entity, relation and metadata extraction in one pass over `ast`.
+pub fn extract_file(ast: &SimplifiedAST, context: &mut VisitorContext) -> Result<FileExtraction> {
+    let mut entities = EntityExtractor::new();
+    let mut relations = RelationExtractor::new();
+    let mut metadata = MetadataCollector::new();
+
+    FusedVisitor::new()
+        .with(&mut entities)
+        .with(&mut relations)
+        .with(&mut metadata)
+        .run(ast, context)?;
+
+    let (metrics, entity_metadata) = metadata.into_parts();
+    Ok(FileExtraction {
+        entities: entities.into_entities(),
+        relations: relations.into_relations(),
+        metrics,
+        entity_metadata,
+    })
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::ast::ASTNodeType;
+    use crate::language::ParserRegistry;
+    use crate::visitor::base::ASTVisitor;
+    use code_context_graph_core::Language;
+    use std::path::PathBuf;
+
+    const SOURCE: &str = "import os\n\nclass Service(Base):\n    def start(self):\n        if os.getcwd():\n            helper()\n\ndef main():\n    for x in []:\n        Service().start()\n";
+
+    fn context() -> VisitorContext {
+        VisitorContext::new(Language::Python, SOURCE.to_string(), PathBuf::from("t.py"))
+    }
+
+    /// Records the node types it enters, skipping the subtrees of `skip`.
+    struct Recorder {
+        skip: Option<ASTNodeType>,
+        stop_after: Option<usize>,
+        entered: Vec<ASTNodeType>,
+        left: usize,
+    }
+
+    impl Recorder {
+        fn new(skip: Option<ASTNodeType>, stop_after: Option<usize>) -> Self {
+            Self { skip, stop_after, entered: Vec::new(), left: 0 }
+        }
+    }
+
+    impl PassVisitor for Recorder {
+        fn enter(&mut self, node: &ASTNode, _context: &mut VisitorContext) -> Result<VisitResult> {
+            self.entered.push(node.node_type.clone());
+            if self.stop_after == Some(self.entered.len()) {
+                return Ok(VisitResult::Stop);
+            }
+            if self.skip.as_ref() == Some(&node.node_type) {
+                return Ok(VisitResult::Skip);
+            }
+            Ok(VisitResult::Continue)
+        }
+
+        fn leave(&mut self, _node: &ASTNode, _context: &mut VisitorContext) -> Result<()> {
+            self.left += 1;
+            Ok(())
+        }
+    }
+
+    #[test]
+    fn test_fused_extraction_matches_separate_walks() {
+        let ast = ParserRegistry::new().parse(SOURCE, Language::Python).unwrap();
+        let fused = extract_file(&ast, &mut context()).unwrap();
+
+        let entities = EntityExtractor::new().visit_ast(&ast, &mut context()).unwrap();
+        let relations = RelationExtractor::new().visit_ast(&ast, &mut context()).unwrap();
+        let (metrics, entity_metadata) = MetadataCollector::new().visit_ast(&ast, &mut context()).unwrap();
+
+        let entity_keys = |e: &[EntityInfo]| e.iter().map(|e| (e.name.clone(), e.entity_type)).collect::<Vec<_>>();
+        assert_eq!(entity_keys(&fused.entities), entity_keys(&entities));
+
+        let relation_keys = |r: &[RelationInfo]| {
+            r.iter().map(|r| (r.relation_type.clone(), r.from_entity.clone(), r.to_entity.clone())).collect::<Vec<_>>()
+        };
+        assert_eq!(relation_keys(&fused.relations), relation_keys(&relations));
+
+        assert_eq!(fused.metrics.classes_count, metrics.classes_count);
+        assert_eq!(fused.metrics.complexity_score, metrics.complexity_score);
+        assert_eq!(fused.metrics.language_specific, metrics.language_specific);
+        let complexities = |m: &[EntityMetadata]| m.iter().map(|m| (m.entity_name.clone(), m.cyclomatic_complexity)).collect::<Vec<_>>();
+        assert_eq!(complexities(&fused.entity_metadata), complexities(&entity_metadata));
+    }
+
+    #[test]
+    fn test_visitors_keep_their_own_scopes() {
+        let ast = ParserRegistry::new().parse(SOURCE, Language::Python).unwrap();
+        let fused = extract_file(&ast, &mut context()).unwrap();
+
+        let start = fused.entities.iter().find(|e| e.name == "start").unwrap();
+        assert_eq!(start.entity_type, crate::visitor::EntityType::Method);
+        let main = fused.entities.iter().find(|e| e.name == "main").unwrap();
+        assert_eq!(main.entity_type, crate::visitor::EntityType::Function);
+        assert!(fused.relations.iter().any(|r| r.from_entity == "Service::start" && r.to_entity == "helper"));
+    }
+
+    #[test]
+    fn test_complexity_matches_subtree_walk() {
+        fn subtree_complexity(node: &ASTNode) -> u32 {
+            let own = match node.node_type {
+                ASTNodeType::IfStatement | ASTNodeType::ForStatement | ASTNodeType::WhileStatement => 2,
+                _ => 1,
+            };
+            own + node.children.iter().map(subtree_complexity).sum::<u32>()
+        }
+
+        let ast = ParserRegistry::new().parse(SOURCE, Language::Python).unwrap();
+        let fused = extract_file(&ast, &mut context()).unwrap();
+
+        for function in ast.find_all_functions() {
+            let name = function.name.as_deref().unwrap();
+            let metadata = fused.entity_metadata.iter().find(|m| m.entity_name == name).unwrap();
+            assert_eq!(metadata.cyclomatic_complexity, subtree_complexity(function));
+        }
+    }
+
+    #[test]
+    fn test_skip_masks_are_per_visitor() {
+        let ast = ParserRegistry::new().parse(SOURCE, Language::Python).unwrap();
+        let mut all = Recorder::new(None, None);
+        let mut outside_classes = Recorder::new(Some(ASTNodeType::ClassDeclaration), None);
+
+        FusedVisitor::new().with(&mut all).with(&mut outside_classes).run(&ast, &mut context()).unwrap();
+
+        fn size(node: &ASTNode) -> usize {
+            1 + node.children.iter().map(size).sum::<usize>()
+        }
+        let class = ast.find_all_classes()[0];
+
+        assert_eq!(all.entered.len(), ast.node_count());
+        assert_eq!(all.left, all.entered.len());
+        // The skipped class is entered and left, its subtree is not
+        assert!(size(class) > 1);
+        assert_eq!(outside_classes.entered.len(), all.entered.len() - (size(class) - 1));
+        assert_eq!(outside_classes.left, outside_classes.entered.len());
+    }
+
+    #[test]
+    fn test_stop_drops_only_that_visitor() {
+        let ast = ParserRegistry::new().parse(SOURCE, Language::Python).unwrap();
+        let mut stops = Recorder::new(None, Some(3));
+        let mut all = Recorder::new(None, None);
+
+        FusedVisitor::new().with(&mut stops).with(&mut all).run(&ast, &mut context()).unwrap();
+
+        assert_eq!(stops.entered.len(), 3);
+        assert_eq!(stops.left, 0);
+        assert_eq!(all.entered.len(), ast.node_count());
+    }
+}
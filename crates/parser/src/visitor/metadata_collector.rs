@@ -1,9 +1,10 @@
-use crate::ast::{ASTNode, SimplifiedAST, ASTNodeType};
+use crate::ast::{ASTNode, SimplifiedAST, ASTNodeType, NodeMetadata};
 use crate::visitor::base::{ASTVisitor, VisitorContext, VisitResult};
+use crate::visitor::fused::{FusedVisitor, PassVisitor};
 use code_context_graph_core::Result;
 use std::collections::HashMap;
 
-#[derive(Debug, Clone)]
+#[derive(Debug, Clone, Default)]
 pub struct CodeMetrics {
     pub total_lines: u32,
     pub total_files: u32,
@@ -24,13 +25,35 @@ pub struct EntityMetadata {
     pub lines_of_code: u32,
     pub parameters_count: u32,
     pub dependencies: Vec<String>,
-    pub attributes: HashMap<String, serde_json::Value>,
+    pub attributes: NodeMetadata,
 }
 
 pub struct MetadataCollector {
     metrics: CodeMetrics,
     entity_metadata: Vec<EntityMetadata>,
     current_complexity: u32,
+    /// One frame per node entered but not yet left
+    open_nodes: Vec<OpenNode>,
+    tallies: LanguageTallies,
+}
+
+struct OpenNode {
+    children_complexity: u32,
+    /// Index into `entity_metadata` of the entity this node declares
+    entity: Option<usize>,
+}
+
+/// Language-specific constructs counted during the walk.
+#[derive(Default)]
+struct LanguageTallies {
+    decorators: u32,
+    comprehensions: u32,
+    annotations: u32,
+    interfaces: u32,
+    arrow_functions: u32,
+    async_functions: u32,
+    data_classes: u32,
+    suspend_functions: u32,
 }
 
 impl MetadataCollector {
@@ -48,26 +71,26 @@ impl MetadataCollector {
             },
             entity_metadata: Vec::new(),
             current_complexity: 1, // Base complexity is 1
+            open_nodes: Vec::new(),
+            tallies: LanguageTallies::default(),
         }
     }
 
-    fn calculate_cyclomatic_complexity(&mut self, node: &ASTNode) -> u32 {
-        let mut complexity = 1; // Base complexity
+    /// The metrics and entity metadata collected so far, without copying them.
+    pub fn into_parts(self) -> (CodeMetrics, Vec<EntityMetadata>) {
+        (self.metrics, self.entity_metadata)
+    }
 
-        // Add complexity for control flow structures
+    /// Cyclomatic complexity contributed by `node` itself; a node's total is
+    /// this plus the totals of its children, summed as the walk leaves them.
+    fn node_complexity(node: &ASTNode) -> u32 {
+        // Base complexity, plus one for control flow structures
         match &node.node_type {
-            ASTNodeType::IfStatement => complexity += 1,
-            ASTNodeType::ForStatement => complexity += 1,
-            ASTNodeType::WhileStatement => complexity += 1,
-            _ => {}
-        }
-
-        // Recursively calculate complexity for children
-        for child in &node.children {
-            complexity += self.calculate_cyclomatic_complexity(child);
+            ASTNodeType::IfStatement |
+            ASTNodeType::ForStatement |
+            ASTNodeType::WhileStatement => 2,
+            _ => 1,
         }
-
-        complexity
     }
 
     fn calculate_lines_of_code(&self, node: &ASTNode) -> u32 {
@@ -114,55 +137,85 @@ impl MetadataCollector {
         dependencies
     }
 
-    fn collect_entity_metadata(&mut self, node: &ASTNode, entity_type: &str) {
-        if let Some(name) = &node.name {
-            let complexity = self.calculate_cyclomatic_complexity(node);
-            let lines_of_code = self.calculate_lines_of_code(node);
-            let parameters_count = self.count_parameters(node);
-            let dependencies = self.extract_dependencies(node);
-
-            let metadata = EntityMetadata {
-                entity_name: name.clone(),
-                entity_type: entity_type.to_string(),
-                location: node.location.clone(),
-                cyclomatic_complexity: complexity,
-                lines_of_code,
-                parameters_count,
-                dependencies,
-                attributes: node.metadata.clone(),
-            };
-
-            self.entity_metadata.push(metadata);
-        }
+    /// Records the entity declared by `node`. Its complexity is filled in
+    /// when the walk leaves the node.
+    fn collect_entity_metadata(&mut self, node: &ASTNode, entity_type: &str) -> Option<usize> {
+        let name = node.name.as_ref()?;
+        let lines_of_code = self.calculate_lines_of_code(node);
+        let parameters_count = self.count_parameters(node);
+        let dependencies = self.extract_dependencies(node);
+
+        let metadata = EntityMetadata {
+            entity_name: name.clone(),
+            entity_type: entity_type.to_string(),
+            location: node.location.clone(),
+            cyclomatic_complexity: 0,
+            lines_of_code,
+            parameters_count,
+            dependencies,
+            attributes: node.metadata.clone(),
+        };
+
+        self.entity_metadata.push(metadata);
+        Some(self.entity_metadata.len() - 1)
     }
 
-    fn update_metrics_for_node(&mut self, node: &ASTNode) {
+    fn update_metrics_for_node(&mut self, node: &ASTNode) -> Option<usize> {
         match &node.node_type {
             ASTNodeType::ClassDeclaration => {
                 self.metrics.classes_count += 1;
-                self.collect_entity_metadata(node, "class");
+                self.collect_entity_metadata(node, "class")
             }
             ASTNodeType::FunctionDeclaration => {
                 self.metrics.functions_count += 1;
-                self.collect_entity_metadata(node, "function");
+                self.collect_entity_metadata(node, "function")
             }
             ASTNodeType::MethodDeclaration => {
                 self.metrics.methods_count += 1;
-                self.collect_entity_metadata(node, "method");
+                self.collect_entity_metadata(node, "method")
             }
             ASTNodeType::VariableDeclaration => {
                 self.metrics.variables_count += 1;
+                None
+            }
+            _ => None,
+        }
+    }
+
+    fn tally_language_constructs(&mut self, node: &ASTNode) {
+        let tallies = &mut self.tallies;
+        match &node.node_type {
+            ASTNodeType::Decorator => tallies.decorators += 1,
+            ASTNodeType::Comprehension => tallies.comprehensions += 1,
+            ASTNodeType::Annotation => tallies.annotations += 1,
+            ASTNodeType::InterfaceDeclaration => tallies.interfaces += 1,
+            ASTNodeType::ClassDeclaration => {
+                if node.metadata.has_modifier("data") {
+                    tallies.data_classes += 1;
+                }
+            }
+            ASTNodeType::FunctionDeclaration | ASTNodeType::MethodDeclaration => {
+                if node.metadata.get::<bool>("arrow") == Some(true) {
+                    tallies.arrow_functions += 1;
+                }
+                if node.metadata.is_async {
+                    tallies.async_functions += 1;
+                }
+                if node.metadata.has_modifier("suspend") {
+                    tallies.suspend_functions += 1;
+                }
             }
             _ => {}
         }
     }
 
-    fn collect_language_specific_metadata(&mut self, ast: &SimplifiedAST) {
-        match ast.language {
+    fn collect_language_specific_metadata(&mut self, language: code_context_graph_core::Language) {
+        let tallies = &self.tallies;
+        match language {
             code_context_graph_core::Language::Python => {
                 // Python-specific metrics
-                let decorators_count = self.count_node_type(ast, &ASTNodeType::Decorator);
-                let comprehensions_count = self.count_node_type(ast, &ASTNodeType::Comprehension);
+                let decorators_count = tallies.decorators;
+                let comprehensions_count = tallies.comprehensions;
                 
                 self.metrics.language_specific.insert(
                     "decorators_count".to_string(),
@@ -175,8 +228,8 @@ impl MetadataCollector {
             }
             code_context_graph_core::Language::Java => {
                 // Java-specific metrics
-                let annotations_count = self.count_node_type(ast, &ASTNodeType::Annotation);
-                let interfaces_count = self.count_node_type(ast, &ASTNodeType::InterfaceDeclaration);
+                let annotations_count = tallies.annotations;
+                let interfaces_count = tallies.interfaces;
                 
                 self.metrics.language_specific.insert(
                     "annotations_count".to_string(),
@@ -189,8 +242,8 @@ impl MetadataCollector {
             }
             code_context_graph_core::Language::JavaScript => {
                 // JavaScript-specific metrics
-                let arrow_functions = self.count_arrow_functions(ast);
-                let async_functions = self.count_async_functions(ast);
+                let arrow_functions = tallies.arrow_functions;
+                let async_functions = tallies.async_functions;
                 
                 self.metrics.language_specific.insert(
                     "arrow_functions_count".to_string(),
@@ -203,8 +256,8 @@ impl MetadataCollector {
             }
             code_context_graph_core::Language::Kotlin => {
                 // Kotlin-specific metrics
-                let data_classes = self.count_data_classes(ast);
-                let suspend_functions = self.count_suspend_functions(ast);
+                let data_classes = tallies.data_classes;
+                let suspend_functions = tallies.suspend_functions;
                 
                 self.metrics.language_specific.insert(
                     "data_classes_count".to_string(),
@@ -218,107 +271,44 @@ impl MetadataCollector {
             _ => {}
         }
     }
+}
 
-    fn count_node_type(&self, ast: &SimplifiedAST, node_type: &ASTNodeType) -> u32 {
-        self.count_node_type_recursive(&ast.root, node_type)
-    }
-
-    fn count_node_type_recursive(&self, node: &ASTNode, target_type: &ASTNodeType) -> u32 {
-        let mut count = if &node.node_type == target_type { 1 } else { 0 };
-        
-        for child in &node.children {
-            count += self.count_node_type_recursive(child, target_type);
-        }
+impl PassVisitor for MetadataCollector {
+    fn begin(&mut self, _ast: &SimplifiedAST, context: &mut VisitorContext) -> Result<()> {
+        // Initialize file count
+        self.metrics.total_files = 1;
         
-        count
-    }
-
-    fn count_arrow_functions(&self, ast: &SimplifiedAST) -> u32 {
-        self.count_functions_with_attribute(&ast.root, "arrow", true)
-    }
-
-    fn count_async_functions(&self, ast: &SimplifiedAST) -> u32 {
-        self.count_functions_with_attribute(&ast.root, "async", true)
-    }
-
-    fn count_data_classes(&self, ast: &SimplifiedAST) -> u32 {
-        self.count_classes_with_modifier(&ast.root, "data")
-    }
+        // Calculate total lines from the source
+        self.metrics.total_lines = context.source.lines().count() as u32;
 
-    fn count_suspend_functions(&self, ast: &SimplifiedAST) -> u32 {
-        self.count_functions_with_modifier(&ast.root, "suspend")
+        self.open_nodes.clear();
+        self.tallies = LanguageTallies::default();
+        Ok(())
     }
 
-    fn count_functions_with_attribute(&self, node: &ASTNode, attribute: &str, expected_value: bool) -> u32 {
-        let mut count = 0;
-        
-        if matches!(node.node_type, ASTNodeType::FunctionDeclaration | ASTNodeType::MethodDeclaration) {
-            if let Some(value) = node.get_metadata::<bool>(attribute) {
-                if value == expected_value {
-                    count += 1;
-                }
-            }
-        }
-        
-        for child in &node.children {
-            count += self.count_functions_with_attribute(child, attribute, expected_value);
-        }
-        
-        count
-    }
-
-    fn count_classes_with_modifier(&self, node: &ASTNode, modifier: &str) -> u32 {
-        let mut count = 0;
-        
-        if matches!(node.node_type, ASTNodeType::ClassDeclaration) {
-            if let Some(modifiers) = node.get_metadata::<Vec<String>>("modifiers") {
-                if modifiers.contains(&modifier.to_string()) {
-                    count += 1;
-                }
-            }
-        }
-        
-        for child in &node.children {
-            count += self.count_classes_with_modifier(child, modifier);
-        }
-        
-        count
+    fn enter(&mut self, node: &ASTNode, _context: &mut VisitorContext) -> Result<VisitResult> {
+        // Update metrics for current node
+        let entity = self.update_metrics_for_node(node);
+        self.tally_language_constructs(node);
+        self.open_nodes.push(OpenNode { children_complexity: 0, entity });
+        Ok(VisitResult::Continue)
     }
 
-    fn count_functions_with_modifier(&self, node: &ASTNode, modifier: &str) -> u32 {
-        let mut count = 0;
-        
-        if matches!(node.node_type, ASTNodeType::FunctionDeclaration | ASTNodeType::MethodDeclaration) {
-            if let Some(modifiers) = node.get_metadata::<Vec<String>>("modifiers") {
-                if modifiers.contains(&modifier.to_string()) {
-                    count += 1;
-                }
-            }
+    fn leave(&mut self, node: &ASTNode, _context: &mut VisitorContext) -> Result<()> {
+        let Some(open) = self.open_nodes.pop() else { return Ok(()) };
+        let complexity = Self::node_complexity(node) + open.children_complexity;
+        if let Some(index) = open.entity {
+            self.entity_metadata[index].cyclomatic_complexity = complexity;
         }
-        
-        for child in &node.children {
-            count += self.count_functions_with_modifier(child, modifier);
+        if let Some(parent) = self.open_nodes.last_mut() {
+            parent.children_complexity += complexity;
         }
-        
-        count
+        Ok(())
     }
-}
-
-impl ASTVisitor for MetadataCollector {
-    type Output = (CodeMetrics, Vec<EntityMetadata>);
 
-    fn visit_ast(&mut self, ast: &SimplifiedAST, context: &mut VisitorContext) -> Result<Self::Output> {
-        // Initialize file count
-        self.metrics.total_files = 1;
-        
-        // Calculate total lines from the source
-        self.metrics.total_lines = context.source.lines().count() as u32;
-        
-        // Visit all nodes to collect metrics
-        self.visit_node(&ast.root, context)?;
-        
+    fn end(&mut self, ast: &SimplifiedAST, _context: &mut VisitorContext) -> Result<()> {
         // Collect language-specific metadata
-        self.collect_language_specific_metadata(ast);
+        self.collect_language_specific_metadata(ast.language);
         
         // Calculate overall complexity score
         let total_entities = self.metrics.classes_count + self.metrics.functions_count + self.metrics.methods_count;
@@ -328,16 +318,21 @@ impl ASTVisitor for MetadataCollector {
                 .sum();
             self.metrics.complexity_score = total_complexity as f64 / total_entities as f64;
         }
-        
+        Ok(())
+    }
+}
+
+impl ASTVisitor for MetadataCollector {
+    type Output = (CodeMetrics, Vec<EntityMetadata>);
+
+    fn visit_ast(&mut self, ast: &SimplifiedAST, context: &mut VisitorContext) -> Result<Self::Output> {
+        FusedVisitor::new().with(self).run(ast, context)?;
         Ok((self.metrics.clone(), self.entity_metadata.clone()))
     }
 
     fn visit_node(&mut self, node: &ASTNode, context: &mut VisitorContext) -> Result<VisitResult> {
-        // Update metrics for current node
-        self.update_metrics_for_node(node);
-        
-        // Continue visiting children
-        self.visit_children(node, context)
+        FusedVisitor::new().with(self).walk(node, context)?;
+        Ok(VisitResult::Continue)
     }
 }
 
@@ -2,8 +2,12 @@ pub mod base;
 pub mod entity_extractor;
 pub mod relation_extractor;
 pub mod metadata_collector;
+pub mod fused;
+pub mod parallel;
 
 pub use base::*;
 pub use entity_extractor::*;
 pub use relation_extractor::*;
-pub use metadata_collector::*;
\ No newline at end of file
+pub use metadata_collector::*;
+pub use fused::*;
+pub use parallel::*;
\ No newline at end of file
@@ -0,0 +1,208 @@
+use crate::ast::SimplifiedAST;
+use crate::visitor::base::{ASTVisitor, VisitorContext};
+use crate::visitor::fused::{extract_file, FileExtraction};
+use crate::visitor::metadata_collector::CodeMetrics;
+use code_context_graph_core::Result;
+use rayon::prelude::*;
+use std::path::Path;
+
+/// Output of a visitor that can be combined with the output for another
+/// file. `merge` must be associative; `Default` is its identity.
+pub trait Merge: Default {
+    /// Folds `other`, the output for files after `self`'s, into `self`.
+    fn merge(&mut self, other: Self);
+}
+
+impl<T> Merge for Vec<T> {
+    fn merge(&mut self, mut other: Self) {
+        self.append(&mut other);
+    }
+}
+
+impl<A: Merge, B: Merge> Merge for (A, B) {
+    fn merge(&mut self, other: Self) {
+        self.0.merge(other.0);
+        self.1.merge(other.1);
+    }
+}
+
+impl Merge for CodeMetrics {
+    fn merge(&mut self, other: Self) {
+        // The complexity score is a per-entity average, so weight it
+        let entities = |m: &CodeMetrics| (m.classes_count + m.functions_count + m.methods_count) as f64;
+        let (ours, theirs) = (entities(self), entities(&other));
+        if ours + theirs > 0.0 {
+            self.complexity_score = (self.complexity_score * ours + other.complexity_score * theirs) / (ours + theirs);
+        }
+
+        self.total_lines += other.total_lines;
+        self.total_files += other.total_files;
+        self.classes_count += other.classes_count;
+        self.functions_count += other.functions_count;
+        self.methods_count += other.methods_count;
+        self.variables_count += other.variables_count;
+
+        // Counters add up; anything else keeps the latest value
+        for (key, value) in other.language_specific {
+            let sum = self.language_specific.get(&key)
+                .and_then(serde_json::Value::as_u64)
+                .zip(value.as_u64())
+                .map(|(a, b)| serde_json::Value::from(a + b));
+            self.language_specific.insert(key, sum.unwrap_or(value));
+        }
+    }
+}
+
+impl Merge for FileExtraction {
+    fn merge(&mut self, other: Self) {
+        self.entities.merge(other.entities);
+        self.relations.merge(other.relations);
+        self.metrics.merge(other.metrics);
+        self.entity_metadata.merge(other.entity_metadata);
+    }
+}
+
+/// One parsed file to visit.
+#[derive(Debug, Clone, Copy)]
+pub struct VisitInput<'a> {
+    pub ast: &'a SimplifiedAST,
+    pub source: &'a str,
+    pub path: &'a Path,
+}
+
+impl<'a> VisitInput<'a> {
+    pub fn new(ast: &'a SimplifiedAST, source: &'a str, path: &'a Path) -> Self {
+        Self { ast, source, path }
+    }
+
+    fn context(&self) -> VisitorContext {
+        VisitorContext::new(self.ast.language, self.source.to_string(), self.path.to_path_buf())
+    }
+}
+
+/// Runs a fresh visitor from `make_visitor` over every file across all cores
+/// and merges the outputs.
+///
+/// Outputs are merged in input order, so lists come back as if the files
+/// had been visited one after another. The first error stops the run. Work
+/// is spread over rayon's pool; run the call inside `ThreadPool::install`
+/// to use a dedicated pool.
+pub fn visit_parallel<V, F>(inputs: &[VisitInput<'_>], make_visitor: F) -> Result<V::Output>
+where
+    V: ASTVisitor,
+    V::Output: Merge + Send,
+    F: Fn() -> V + Sync,
+{
+    map_reduce(inputs, |input| {
+        let mut context = input.context();
+        make_visitor().visit_ast(input.ast, &mut context)
+    })
+}
+
+/// Runs entity, relation and metadata extraction over every file, one fused
+/// pass per file, and merges the results into project-wide totals.
+pub fn extract_parallel(inputs: &[VisitInput<'_>]) -> Result<FileExtraction> {
+    map_reduce(inputs, |input| extract_file(input.ast, &mut input.context()))
+}
+
+fn map_reduce<T, F>(inputs: &[VisitInput<'_>], map: F) -> Result<T>
+where
+    T: Merge + Send,
+    F: Fn(&VisitInput<'_>) -> Result<T> + Sync,
+{
+    inputs.par_iter()
+        .map(map)
+        .try_reduce(T::default, |mut merged, output| {
+            merged.merge(output);
+            Ok(merged)
+        })
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::language::ParserRegistry;
+    use crate::visitor::entity_extractor::{EntityExtractor, EntityInfo};
+    use crate::visitor::metadata_collector::MetadataCollector;
+    use code_context_graph_core::Language;
+    use std::path::PathBuf;
+
+    fn files() -> Vec<(PathBuf, String, SimplifiedAST)> {
+        let registry = ParserRegistry::new();
+        (0..12)
+            .map(|i| {
+                let source = format!(
+                    "class C{i}:\n    def m{i}(self):\n        if x:\n            pass\n\ndef f{i}():\n    return [y for y in range({i})]\n"
+                );
+                let ast = registry.parse(&source, Language::Python).unwrap();
+                (PathBuf::from(format!("m{i}.py")), source, ast)
+            })
+            .collect()
+    }
+
+    fn inputs(files: &[(PathBuf, String, SimplifiedAST)]) -> Vec<VisitInput<'_>> {
+        files.iter().map(|(path, source, ast)| VisitInput::new(ast, source, path)).collect()
+    }
+
+    fn names(entities: &[EntityInfo]) -> Vec<&str> {
+        entities.iter().map(|e| e.name.as_str()).collect()
+    }
+
+    #[test]
+    fn test_outputs_merge_in_input_order() {
+        let files = files();
+        let inputs = inputs(&files);
+        let pool = rayon::ThreadPoolBuilder::new().num_threads(4).build().unwrap();
+
+        let parallel = pool.install(|| visit_parallel(&inputs, EntityExtractor::new)).unwrap();
+
+        let mut sequential = Vec::new();
+        for input in &inputs {
+            sequential.extend(EntityExtractor::new().visit_ast(input.ast, &mut input.context()).unwrap());
+        }
+        assert_eq!(names(&parallel), names(&sequential));
+    }
+
+    #[test]
+    fn test_project_metrics_add_up() {
+        let files = files();
+        let inputs = inputs(&files);
+
+        let (metrics, entity_metadata) = visit_parallel(&inputs, MetadataCollector::new).unwrap();
+        let (single, _) = MetadataCollector::new().visit_ast(inputs[0].ast, &mut inputs[0].context()).unwrap();
+
+        assert_eq!(metrics.total_files, 12);
+        assert_eq!(metrics.total_lines, single.total_lines * 12);
+        assert_eq!(metrics.classes_count, single.classes_count * 12);
+        // Every file has the same shape, so the weighted average is unchanged
+        assert!((metrics.complexity_score - single.complexity_score).abs() < 1e-9);
+        assert_eq!(
+            metrics.language_specific.get("comprehensions_count").and_then(|v| v.as_u64()),
+            single.language_specific.get("comprehensions_count").and_then(|v| v.as_u64()).map(|n| n * 12),
+        );
+        assert_eq!(entity_metadata.len(), files.len() * 3);
+    }
+
+    #[test]
+    fn test_extract_parallel_matches_per_file_extraction() {
+        let files = files();
+        let inputs = inputs(&files);
+
+        let merged = extract_parallel(&inputs).unwrap();
+
+        let mut expected = FileExtraction::default();
+        for input in &inputs {
+            expected.merge(extract_file(input.ast, &mut input.context()).unwrap());
+        }
+        assert_eq!(names(&merged.entities), names(&expected.entities));
+        assert_eq!(merged.relations.len(), expected.relations.len());
+        assert_eq!(merged.metrics.functions_count, expected.metrics.functions_count);
+    }
+
+    #[test]
+    fn test_empty_input_is_the_identity() {
+        let merged = extract_parallel(&[]).unwrap();
+        assert!(merged.entities.is_empty());
+        assert_eq!(merged.metrics.total_files, 0);
+    }
+}
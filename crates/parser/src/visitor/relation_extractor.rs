@@ -1,7 +1,10 @@
 use crate::ast::{ASTNode, SimplifiedAST, ASTNodeType};
+use crate::query::{LanguageQueries, TagKind};
 use crate::visitor::base::{ASTVisitor, VisitorContext, VisitResult};
-use code_context_graph_core::Result;
+use crate::visitor::fused::{FusedVisitor, PassVisitor};
+use code_context_graph_core::{CodeGraphError, Language, Result};
 use std::collections::HashMap;
+use tree_sitter::Tree;
 
 #[derive(Debug, Clone)]
 pub struct RelationInfo {
@@ -28,6 +31,8 @@ pub enum RelationType {
 pub struct RelationExtractor {
     relations: Vec<RelationInfo>,
     current_entity: Option<String>,
+    /// Entity to restore when leaving each open function
+    enclosing_entities: Vec<Option<String>>,
 }
 
 impl RelationExtractor {
@@ -35,16 +40,100 @@ impl RelationExtractor {
         Self {
             relations: Vec::new(),
             current_entity: None,
+            enclosing_entities: Vec::new(),
         }
     }
 
+    /// The relations found so far, without copying them.
+    pub fn into_relations(self) -> Vec<RelationInfo> {
+        self.relations
+    }
+
+    /// Extracts inheritance, call and import relations straight from the
+    /// concrete syntax tree with the compiled queries of `language`. Entity
+    /// names follow the visitor: `Outer::Inner` for types and
+    /// `<scope>::name` for functions.
+    pub fn extract_from_tree(tree: &Tree, source: &str, language: Language) -> Result<Vec<RelationInfo>> {
+        struct Enclosing {
+            end: usize,
+            entity: String,
+            is_scope: bool,
+        }
+
+        let queries = LanguageQueries::for_language(language)?;
+        // An empty result must mean there are no relations, not no captures
+        if !queries.has_relations() {
+            return Err(CodeGraphError::Parser {
+                message: format!("Extraction queries for {:?} capture definitions only", language)
+            });
+        }
+        let mut relations = Vec::new();
+        let mut enclosing: Vec<Enclosing> = Vec::new();
+
+        for tag in queries.tags(tree.root_node(), source) {
+            let start = tag.node.start_byte();
+            while enclosing.last().map_or(false, |e| e.end <= start) {
+                enclosing.pop();
+            }
+            // The innermost type already carries the full `Outer::Inner` path
+            let scope_path = || {
+                enclosing.iter().rev()
+                    .find(|e| e.is_scope)
+                    .map(|e| e.entity.clone())
+                    .unwrap_or_default()
+            };
+
+            let name = tag.name_text(source);
+            let relation = |from_entity: &str, relation_type: RelationType| RelationInfo {
+                from_entity: from_entity.to_string(),
+                to_entity: name.to_string(),
+                relation_type,
+                source_location: tag.location(),
+                metadata: HashMap::new(),
+            };
+
+            match tag.kind {
+                TagKind::Class | TagKind::Interface | TagKind::Enum => {
+                    let scope = scope_path();
+                    let entity = if scope.is_empty() { name.to_string() } else { format!("{}::{}", scope, name) };
+                    enclosing.push(Enclosing { end: tag.node.end_byte(), entity, is_scope: true });
+                }
+                TagKind::Function | TagKind::Method => {
+                    let entity = format!("{}::{}", scope_path(), name);
+                    enclosing.push(Enclosing { end: tag.node.end_byte(), entity, is_scope: false });
+                }
+                TagKind::Variable => {}
+                TagKind::Call => {
+                    if let Some(current) = enclosing.last() {
+                        relations.push(relation(&current.entity, RelationType::CallsFunction));
+                    }
+                }
+                TagKind::Import => {
+                    relations.push(relation("current_module", RelationType::ImportModule));
+                }
+                TagKind::Extends | TagKind::Implements => {
+                    // Supertypes sit in the header of the type they belong to
+                    if let Some(owner) = enclosing.last().filter(|e| e.is_scope) {
+                        let mut inheritance = relation(&owner.entity, RelationType::Inheritance);
+                        if tag.kind == TagKind::Implements {
+                            inheritance.metadata.insert("interface".to_string(), serde_json::Value::Bool(true));
+                        }
+                        relations.push(inheritance);
+                    }
+                }
+            }
+        }
+
+        Ok(relations)
+    }
+
     fn extract_inheritance_relations(&mut self, node: &ASTNode) {
         if let Some(current) = &self.current_entity {
             // Check for extends relationship
-            if let Some(extends) = node.get_metadata::<String>("extends") {
+            if let Some(extends) = &node.metadata.extends {
                 let relation = RelationInfo {
                     from_entity: current.clone(),
-                    to_entity: extends,
+                    to_entity: extends.clone(),
                     relation_type: RelationType::Inheritance,
                     source_location: node.location.clone(),
                     metadata: HashMap::new(),
@@ -53,35 +142,31 @@ impl RelationExtractor {
             }
 
             // Check for implements relationships
-            if let Some(implements) = node.get_metadata::<Vec<String>>("implements") {
-                for interface in implements {
-                    let relation = RelationInfo {
-                        from_entity: current.clone(),
-                        to_entity: interface,
-                        relation_type: RelationType::Inheritance,
-                        source_location: node.location.clone(),
-                        metadata: {
-                            let mut map = HashMap::new();
-                            map.insert("interface".to_string(), serde_json::Value::Bool(true));
-                            map
-                        },
-                    };
-                    self.relations.push(relation);
-                }
+            for interface in &node.metadata.implements {
+                let relation = RelationInfo {
+                    from_entity: current.clone(),
+                    to_entity: interface.clone(),
+                    relation_type: RelationType::Inheritance,
+                    source_location: node.location.clone(),
+                    metadata: {
+                        let mut map = HashMap::new();
+                        map.insert("interface".to_string(), serde_json::Value::Bool(true));
+                        map
+                    },
+                };
+                self.relations.push(relation);
             }
 
             // Check for parents (Kotlin style)
-            if let Some(parents) = node.get_metadata::<Vec<String>>("parents") {
-                for parent in parents {
-                    let relation = RelationInfo {
-                        from_entity: current.clone(),
-                        to_entity: parent,
-                        relation_type: RelationType::Inheritance,
-                        source_location: node.location.clone(),
-                        metadata: HashMap::new(),
-                    };
-                    self.relations.push(relation);
-                }
+            for parent in &node.metadata.parents {
+                let relation = RelationInfo {
+                    from_entity: current.clone(),
+                    to_entity: parent.clone(),
+                    relation_type: RelationType::Inheritance,
+                    source_location: node.location.clone(),
+                    metadata: HashMap::new(),
+                };
+                self.relations.push(relation);
             }
         }
     }
@@ -152,15 +237,8 @@ impl RelationExtractor {
     }
 }
 
-impl ASTVisitor for RelationExtractor {
-    type Output = Vec<RelationInfo>;
-
-    fn visit_ast(&mut self, ast: &SimplifiedAST, context: &mut VisitorContext) -> Result<Self::Output> {
-        self.visit_node(&ast.root, context)?;
-        Ok(self.relations.clone())
-    }
-
-    fn visit_node(&mut self, node: &ASTNode, context: &mut VisitorContext) -> Result<VisitResult> {
+impl PassVisitor for RelationExtractor {
+    fn enter(&mut self, node: &ASTNode, context: &mut VisitorContext) -> Result<VisitResult> {
         match &node.node_type {
             ASTNodeType::ClassDeclaration | 
             ASTNodeType::InterfaceDeclaration |
@@ -174,15 +252,10 @@ impl ASTVisitor for RelationExtractor {
             ASTNodeType::FunctionDeclaration |
             ASTNodeType::MethodDeclaration => {
                 if let Some(name) = &node.name {
-                    let previous_entity = self.current_entity.clone();
-                    self.current_entity = Some(format!("{}::{}", 
-                        context.current_scope_path(), name));
-                    
-                    // Visit children to find calls and dependencies within this function
-                    let result = self.visit_children(node, context)?;
-                    
-                    self.current_entity = previous_entity;
-                    return Ok(result);
+                    // Calls and dependencies inside the body belong to this function
+                    let entity = format!("{}::{}", context.current_scope_path(), name);
+                    let previous_entity = self.current_entity.replace(entity);
+                    self.enclosing_entities.push(previous_entity);
                 }
             }
             ASTNodeType::CallExpression => {
@@ -197,21 +270,39 @@ impl ASTVisitor for RelationExtractor {
             _ => {}
         }
 
-        // Continue visiting children
-        let result = self.visit_children(node, context)?;
-        
-        // Pop scope if we pushed one
+        Ok(VisitResult::Continue)
+    }
+
+    fn leave(&mut self, node: &ASTNode, context: &mut VisitorContext) -> Result<()> {
         match &node.node_type {
+            // Pop scope if we pushed one
             ASTNodeType::ClassDeclaration | 
             ASTNodeType::InterfaceDeclaration | 
             ASTNodeType::EnumDeclaration => {
                 context.pop_scope();
                 self.current_entity = self.get_current_scope_entity(context);
             }
+            ASTNodeType::FunctionDeclaration |
+            ASTNodeType::MethodDeclaration if node.name.is_some() => {
+                self.current_entity = self.enclosing_entities.pop().flatten();
+            }
             _ => {}
         }
+        Ok(())
+    }
+}
+
+impl ASTVisitor for RelationExtractor {
+    type Output = Vec<RelationInfo>;
+
+    fn visit_ast(&mut self, ast: &SimplifiedAST, context: &mut VisitorContext) -> Result<Self::Output> {
+        FusedVisitor::new().with(self).run(ast, context)?;
+        Ok(self.relations.clone())
+    }
 
-        Ok(result)
+    fn visit_node(&mut self, node: &ASTNode, context: &mut VisitorContext) -> Result<VisitResult> {
+        FusedVisitor::new().with(self).walk(node, context)?;
+        Ok(VisitResult::Continue)
     }
 }
 
@@ -219,4 +310,53 @@ impl Default for RelationExtractor {
     fn default() -> Self {
         Self::new()
     }
-}
\ No newline at end of file
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::language::ParserRegistry;
+
+    fn relations_of(source: &str, language: Language) -> Vec<(RelationType, String, String)> {
+        let tree = ParserRegistry::new().parse_tree(source, language, None).unwrap();
+        RelationExtractor::extract_from_tree(&tree, source, language).unwrap()
+            .into_iter()
+            .map(|r| (r.relation_type, r.from_entity, r.to_entity))
+            .collect()
+    }
+
+    #[test]
+    fn test_extract_from_tree_python() {
+        let source = "import os\n\nclass Outer:\n    class Inner(Base):\n        def run(self):\n            helper()\n";
+
+        assert_eq!(relations_of(source, Language::Python), vec![
+            (RelationType::ImportModule, "current_module".to_string(), "os".to_string()),
+            (RelationType::Inheritance, "Outer::Inner".to_string(), "Base".to_string()),
+            (RelationType::CallsFunction, "Outer::Inner::run".to_string(), "helper".to_string()),
+        ]);
+    }
+
+    #[test]
+    fn test_extract_from_tree_kotlin() {
+        let source = "import kotlin.io.println\n\nclass Repo : Base() {\n    fun save() {\n        println(\"saved\")\n    }\n}\n";
+        let relations = relations_of(source, Language::Kotlin);
+
+        assert!(relations.contains(&(RelationType::ImportModule, "current_module".to_string(), "kotlin.io.println".to_string())));
+        assert!(relations.contains(&(RelationType::Inheritance, "Repo".to_string(), "Base".to_string())));
+        assert!(relations.contains(&(RelationType::CallsFunction, "Repo::save".to_string(), "println".to_string())));
+    }
+
+    #[test]
+    fn test_extract_from_tree_java_interfaces() {
+        let source = "class Repo extends Base implements Store {\n    void save() { flush(); }\n}\n";
+        let tree = ParserRegistry::new().parse_tree(source, Language::Java, None).unwrap();
+        let relations = RelationExtractor::extract_from_tree(&tree, source, Language::Java).unwrap();
+
+        let store = relations.iter().find(|r| r.to_entity == "Store").unwrap();
+        assert_eq!(store.from_entity, "Repo");
+        assert_eq!(store.metadata.get("interface"), Some(&serde_json::Value::Bool(true)));
+        assert!(relations.iter().any(|r| {
+            r.relation_type == RelationType::CallsFunction && r.from_entity == "Repo::save" && r.to_entity == "flush"
+        }));
+    }
+}
@@ -105,15 +105,15 @@ fn collect_node_type_counts_recursive(
 fn create_ast_summary(ast: &code_context_graph_parser::ast::SimplifiedAST) -> ASTSummary {
     ASTSummary {
         language: format!("{:?}", ast.language),
-        root_type: format!("{:?}", ast.root.node_type),
-        total_nodes: count_nodes_recursive(&ast.root),
-        node_type_counts: collect_node_type_counts(&ast.root),
+        root_type: format!("{:?}", ast.root().node_type),
+        total_nodes: count_nodes_recursive(ast.root()),
+        node_type_counts: collect_node_type_counts(ast.root()),
     }
 }
 
 fn create_entity_summary(entity: &EntityInfo) -> EntitySummary {
     EntitySummary {
-        name: entity.name.clone(),
+        name: entity.name.to_string(),
         entity_type: format!("{:?}", entity.entity_type),
         location_summary: format!(
             "{}:{}-{}:{}",
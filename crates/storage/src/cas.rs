@@ -1,9 +1,13 @@
 use std::fs;
-use std::io::Write;
+use std::io::{Read, Write};
 use std::path::{Path, PathBuf};
+use std::sync::atomic::{AtomicU64, Ordering};
 
 use anyhow::{anyhow, Context, Result};
 
+/// Chunk size used when streaming files into the store.
+const COPY_BUFFER_BYTES: usize = 64 * 1024;
+
 #[derive(Debug, Clone)]
 pub struct CasConfig {
     pub root: PathBuf,
@@ -53,6 +57,58 @@ impl CasStore {
         Ok(hash)
     }
 
+    /// Stores the file at `source` without loading it into memory. It is
+    /// copied to a staging file in fixed-size chunks, hashed on the way, and
+    /// then moved into place under its hash.
+    pub fn put_file(&self, source: &Path) -> Result<String> {
+        static STAGED: AtomicU64 = AtomicU64::new(0);
+        let staging = self.root.join(format!(
+            ".incoming-{}-{}", std::process::id(), STAGED.fetch_add(1, Ordering::Relaxed)
+        ));
+
+        let hash = match Self::copy_hashing(source, &staging) {
+            Ok(hash) => hash,
+            Err(e) => {
+                let _ = fs::remove_file(&staging);
+                return Err(e);
+            }
+        };
+
+        let path = self.path_for_hash(&hash)?;
+        if path.exists() {
+            // already present; assume identical by content hash
+            let _ = fs::remove_file(&staging);
+            return Ok(hash);
+        }
+        if let Some(parent) = path.parent() {
+            fs::create_dir_all(parent)
+                .with_context(|| format!("creating CAS bucket {}", parent.display()))?;
+        }
+        fs::rename(&staging, &path).with_context(|| format!("committing CAS object {}", path.display()))?;
+        Ok(hash)
+    }
+
+    fn copy_hashing(source: &Path, staging: &Path) -> Result<String> {
+        let mut input = fs::File::open(source)
+            .with_context(|| format!("opening {}", source.display()))?;
+        let mut output = fs::File::create(staging)
+            .with_context(|| format!("creating temp file {}", staging.display()))?;
+        let mut hasher = blake3::Hasher::new();
+        let mut buffer = vec![0u8; COPY_BUFFER_BYTES];
+        loop {
+            let read = match input.read(&mut buffer) {
+                Ok(0) => break,
+                Ok(read) => read,
+                Err(e) if e.kind() == std::io::ErrorKind::Interrupted => continue,
+                Err(e) => return Err(e).with_context(|| format!("reading {}", source.display())),
+            };
+            hasher.update(&buffer[..read]);
+            output.write_all(&buffer[..read]).with_context(|| "writing data to temp file")?;
+        }
+        output.sync_all().ok();
+        Ok(hasher.finalize().to_hex().to_string())
+    }
+
     pub fn get(&self, hash: &str) -> Result<Option<Vec<u8>>> {
         let path = self.path_for_hash(hash)?;
         if !path.exists() { return Ok(None); }
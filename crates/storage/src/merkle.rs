@@ -3,21 +3,23 @@ use std::collections::BTreeMap;
 #[derive(Debug, Default)]
 pub struct MerkleBuilder {
     fanout: usize,
-    entries: BTreeMap<String, Vec<u8>>, // keep sorted by path
+    entries: BTreeMap<String, String>, // path -> content hash, kept sorted by path
 }
 
 impl MerkleBuilder {
     pub fn new() -> Self { Self { fanout: 2, entries: BTreeMap::new() } }
     pub fn fanout(mut self, fanout: usize) -> Self { if fanout >= 2 { self.fanout = fanout; } self }
+    /// Hashes `bytes` right away; only the hash is kept until `build`.
     pub fn add<P: Into<String>>(&mut self, path: P, bytes: &[u8]) {
-        self.entries.insert(path.into(), bytes.to_vec());
+        self.add_hash(path, blake3::hash(bytes).to_hex().to_string());
+    }
+    /// Adds a file by its hex blake3 content hash, e.g. one computed while
+    /// streaming the file into the CAS.
+    pub fn add_hash<P: Into<String>>(&mut self, path: P, hash: String) {
+        self.entries.insert(path.into(), hash);
     }
     pub fn build(self) -> MerkleTree {
-        let mut leaves: Vec<(String, String)> = Vec::with_capacity(self.entries.len());
-        for (path, bytes) in self.entries {
-            let h = blake3::hash(&bytes).to_hex().to_string();
-            leaves.push((path, h));
-        }
+        let leaves: Vec<(String, String)> = self.entries.into_iter().collect();
         // BTreeMap ensures sorted by path; compute root by hierarchical combining
         let root = compute_root(self.fanout, &leaves.iter().map(|(_, h)| h.as_str()).collect::<Vec<_>>());
         MerkleTree { fanout: self.fanout, leaves, root }
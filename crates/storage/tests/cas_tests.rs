@@ -27,3 +27,29 @@ fn cas_put_get_and_deduplication() {
     let roundtrip = cas.get(&h1).unwrap().expect("content must exist");
     assert_eq!(roundtrip, b"hello world");
 }
+
+#[test]
+fn cas_put_file_streams_and_matches_put_bytes() {
+    use code_context_graph_storage::cas::{CasConfig, CasStore};
+
+    let temp = tempfile::tempdir().unwrap();
+    let cas = CasStore::new(CasConfig { root: temp.path().join("cas") }).unwrap();
+
+    // Larger than one copy chunk so the hash spans several reads
+    let data: Vec<u8> = (0..200_000u32).map(|i| (i % 251) as u8).collect();
+    let source = temp.path().join("big.bin");
+    std::fs::write(&source, &data).unwrap();
+
+    let h1 = cas.put_file(&source).unwrap();
+    let h2 = cas.put_file(&source).unwrap();
+    assert_eq!(h1, h2);
+    assert_eq!(h1, cas.put_bytes(&data).unwrap(), "streamed hash must match in-memory hash");
+    assert_eq!(cas.get(&h1).unwrap().unwrap(), data);
+
+    // No staging files are left behind
+    let leftovers = std::fs::read_dir(temp.path().join("cas")).unwrap()
+        .filter_map(|e| e.ok())
+        .filter(|e| e.file_name().to_string_lossy().starts_with(".incoming"))
+        .count();
+    assert_eq!(leftovers, 0);
+}
@@ -24,3 +24,18 @@ fn merkle_builds_root_and_diff() {
     let diff = t1.diff(&t2);
     assert_eq!(diff.changed_paths, vec!["a.txt".to_string()]);
 }
+
+#[test]
+fn merkle_add_hash_matches_add() {
+    use code_context_graph_storage::merkle::MerkleBuilder;
+
+    let mut by_bytes = MerkleBuilder::new();
+    by_bytes.add("a.txt", b"aaa");
+    by_bytes.add("b.txt", b"bbb");
+
+    let mut by_hash = MerkleBuilder::new();
+    by_hash.add_hash("a.txt", blake3::hash(b"aaa").to_hex().to_string());
+    by_hash.add("b.txt", b"bbb");
+
+    assert_eq!(by_bytes.build().root(), by_hash.build().root());
+}
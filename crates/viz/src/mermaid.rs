@@ -22,8 +22,8 @@ impl ClassDiagramExporter {
                         if !classes.iter().any(|c| c == name) {
                             classes.push(name.clone());
                         }
-                        if let Some(parent) = node.get_metadata::<String>("extends") {
-                            inherits.push((parent, name.clone()));
+                        if let Some(parent) = &node.metadata.extends {
+                            inherits.push((parent.clone(), name.clone()));
                         }
                     }
                 }
@@ -34,7 +34,7 @@ impl ClassDiagramExporter {
             }
         }
 
-        walk(&ast.root, &mut classes, &mut inherits);
+        walk(ast.root(), &mut classes, &mut inherits);
 
         // Apply filter if provided
         let keep: Box<dyn Fn(&String) -> bool> = if let Some(list) = filter {